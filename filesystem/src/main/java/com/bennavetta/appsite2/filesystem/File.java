@@ -71,4 +71,18 @@ public interface File
 	 * @return a byte array containing the hash of the file.
 	 */
 	public byte[] getMD5Hash();
+	
+	/**
+	 * Get the size of this file's content, as stored when the file was created or last updated.
+	 * @return the size in bytes, or {@code 0} for a directory
+	 */
+	public long getSize();
+	
+	/**
+	 * Get a digest of this file's content. For a file, this is its MD5 hash. For a directory, it is calculated from the
+	 * names and digests of everything in it, recursively, so two directories with the same digest almost certainly
+	 * contain the same tree. Comparing digests lets unchanged subtrees be skipped without listing them.
+	 * @return the digest. The array can be modified without affecting this file.
+	 */
+	public byte[] getDigest();
 }
@@ -15,7 +15,14 @@
  */
 package com.bennavetta.appsite2.filesystem;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.concurrent.Future;
+
 import com.bennavetta.appsite2.filesystem.util.FileInfo;
+import com.bennavetta.appsite2.filesystem.util.FileSummary;
+import com.bennavetta.appsite2.filesystem.util.Page;
 import com.google.appengine.api.blobstore.BlobKey;
 import com.google.common.collect.ImmutableList;
 import com.google.common.net.MediaType;
@@ -54,7 +61,161 @@ public interface FileSystem
 	public ImmutableList<? extends File> listFiles(File directory) throws FileSystemException;
 	
 	/**
-	 * Return the file located at the given absolute path.
+	 * List one page of the paths of a directory's children. Pages come straight from the datastore, so very large
+	 * directories can be listed a page at a time, across several requests if necessary. Ordering is not guaranteed,
+	 * but it is stable from one page to the next.
+	 * @param directory the directory to list (cannot be {@code null})
+	 * @param cursor the cursor from the previous page, or {@code null} to start from the beginning
+	 * @param pageSize the most children to return (must be positive)
+	 * @return the children's absolute paths, and the cursor for the next page
+	 * @throws FileSystemException if there is an exception retrieving the directory listing
+	 * @see #listIterator(File, int)
+	 */
+	public Page<String> list(File directory, String cursor, int pageSize) throws FileSystemException;
+	
+	/**
+	 * List one page of a directory's children. Like {@link #list(File, String, int)}, but the files themselves are
+	 * loaded.
+	 * @param directory the directory to list (cannot be {@code null})
+	 * @param cursor the cursor from the previous page, or {@code null} to start from the beginning
+	 * @param pageSize the most children to return (must be positive)
+	 * @return the children, and the cursor for the next page
+	 * @throws FileSystemException if there is an exception retrieving the directory listing
+	 * @see #fileIterator(File, int)
+	 */
+	public Page<? extends File> listFiles(File directory, String cursor, int pageSize) throws FileSystemException;
+	
+	/**
+	 * Iterate over the paths of a directory's children, fetching them a page at a time as they are needed. Nothing is
+	 * fetched until the iterator is first used, and only one page is held in memory at once.
+	 * @param directory the directory to list (cannot be {@code null})
+	 * @param pageSize the number of children to fetch at once (must be positive)
+	 * @return an iterator over the children's absolute paths
+	 * @see #list(File, String, int)
+	 */
+	public Iterator<String> listIterator(File directory, int pageSize);
+	
+	/**
+	 * Iterate over a directory's children, loading them a page at a time as they are needed. Nothing is loaded until
+	 * the iterator is first used, and only one page is held in memory at once.
+	 * @param directory the directory to list (cannot be {@code null})
+	 * @param pageSize the number of children to load at once (must be positive)
+	 * @return an iterator over the children
+	 * @see #listFiles(File, String, int)
+	 */
+	public Iterator<? extends File> fileIterator(File directory, int pageSize);
+	
+	/**
+	 * Start listing the files in a directory, like {@link #listFiles(File)}, without waiting for them to load. Starting
+	 * several lookups before waiting for any of them lets their datastore calls overlap.
+	 * @param directory the directory to list (cannot be {@code null})
+	 * @return the children of the directory. If the listing fails, {@link Future#get()} throws an
+	 * {@link java.util.concurrent.ExecutionException} caused by a {@link FileSystemException}.
+	 * @see #listFiles(File)
+	 */
+	public Future<ImmutableList<? extends File>> listFilesAsync(File directory);
+	
+	/**
+	 * List the paths of everything under a directory, at any depth. The whole subtree is found with batched queries
+	 * instead of one query per directory, so this is much cheaper than listing each directory in turn. Ordering is not
+	 * guaranteed. The whole listing is held in memory, so very large trees should be listed with
+	 * {@link #treeIterator(File, int)} instead.
+	 * @param directory the directory to list (cannot be {@code null})
+	 * @return the absolute paths of the directory's descendants, not including the directory itself
+	 * @throws FileSystemException if there is an exception retrieving the listing
+	 * @see #listFileTree(File)
+	 * @see #listTree(File, String, int)
+	 */
+	public ImmutableList<String> listTree(File directory) throws FileSystemException;
+	
+	/**
+	 * List everything under a directory, at any depth. Ordering is not guaranteed. The files are loaded a batch at a
+	 * time, but they are all held in memory, so very large trees should be listed with
+	 * {@link #fileTreeIterator(File, int)} instead.
+	 * @param directory the directory to list (cannot be {@code null})
+	 * @return the directory's descendants, not including the directory itself
+	 * @throws FileSystemException if there is an exception retrieving the listing
+	 * @see #listTree(File)
+	 */
+	public ImmutableList<? extends File> listFileTree(File directory) throws FileSystemException;
+	
+	/**
+	 * List one page of the paths of everything under a directory, at any depth. Like {@link #list(File, String, int)},
+	 * pages come straight from the datastore, so very large trees can be listed a page at a time, across several
+	 * requests if necessary. Pages can have fewer items than requested even when more follow, since deleted files are
+	 * left out after the page is fetched.
+	 * @param directory the directory to list (cannot be {@code null})
+	 * @param cursor the cursor from the previous page, or {@code null} to start from the beginning
+	 * @param pageSize the most descendants to return (must be positive)
+	 * @return the descendants' absolute paths, and the cursor for the next page
+	 * @throws FileSystemException if there is an exception retrieving the listing
+	 * @see #treeIterator(File, int)
+	 */
+	public Page<String> listTree(File directory, String cursor, int pageSize) throws FileSystemException;
+	
+	/**
+	 * List one page of everything under a directory, at any depth. Like {@link #listTree(File, String, int)}, but the
+	 * files themselves are loaded.
+	 * @param directory the directory to list (cannot be {@code null})
+	 * @param cursor the cursor from the previous page, or {@code null} to start from the beginning
+	 * @param pageSize the most descendants to return (must be positive)
+	 * @return the descendants, and the cursor for the next page
+	 * @throws FileSystemException if there is an exception retrieving the listing
+	 * @see #fileTreeIterator(File, int)
+	 */
+	public Page<? extends File> listFileTree(File directory, String cursor, int pageSize) throws FileSystemException;
+	
+	/**
+	 * Iterate over the paths of everything under a directory, fetching them a page at a time as they are needed.
+	 * Nothing is fetched until the iterator is first used, and only one page is held in memory at once.
+	 * @param directory the directory to list (cannot be {@code null})
+	 * @param pageSize the number of descendants to fetch at once (must be positive)
+	 * @return an iterator over the descendants' absolute paths
+	 * @see #listTree(File, String, int)
+	 */
+	public Iterator<String> treeIterator(File directory, int pageSize);
+	
+	/**
+	 * Iterate over everything under a directory, loading it a page at a time as it is needed. Nothing is loaded until
+	 * the iterator is first used, and only one page is held in memory at once.
+	 * @param directory the directory to list (cannot be {@code null})
+	 * @param pageSize the number of descendants to load at once (must be positive)
+	 * @return an iterator over the descendants
+	 * @see #listFileTree(File, String, int)
+	 */
+	public Iterator<? extends File> fileTreeIterator(File directory, int pageSize);
+	
+	/**
+	 * List one page of summaries of a directory's children: their paths, types and sizes. Summaries are read from the
+	 * datastore's indexes with projection queries, so no file entities are loaded, and filtering by type happens in the
+	 * datastore rather than after loading. Pages can have fewer items than requested even when more follow, since
+	 * deleted children are left out after the page is fetched.
+	 * @param directory the directory to list (cannot be {@code null})
+	 * @param type the MIME type to list, such as {@code image/png} or {@code image/*} (parameters are ignored), or
+	 * {@code null} to list every child, including directories
+	 * @param cursor the cursor of the page to list, from {@link Page#getCursor()}, or {@code null} for the first page
+	 * @param pageSize the largest number of children to list (must be positive)
+	 * @return one page of summaries, in no particular order
+	 * @throws FileSystemException if there is an exception retrieving the listing
+	 */
+	public Page<FileSummary> listSummaries(File directory, MediaType type, String cursor, int pageSize) throws FileSystemException;
+	
+	/**
+	 * List one page of summaries of everything under a directory, at any depth, like
+	 * {@link #listSummaries(File, MediaType, String, int)}.
+	 * @param directory the directory to list (cannot be {@code null})
+	 * @param type the MIME type to list, or {@code null} to list everything
+	 * @param cursor the cursor of the page to list, or {@code null} for the first page
+	 * @param pageSize the largest number of files to list (must be positive)
+	 * @return one page of summaries, in no particular order
+	 * @throws FileSystemException if there is an exception retrieving the listing
+	 * @see #listTree(File)
+	 */
+	public Page<FileSummary> listTreeSummaries(File directory, MediaType type, String cursor, int pageSize) throws FileSystemException;
+	
+	/**
+	 * Return the file located at the given absolute path. Implementations may cache files, in which case changes made
+	 * through other instances of the same file system can take a while to show up; see the implementation for how long.
 	 * @param path the path of the file (cannot be {@code null})
 	 * @return a {@code File}, or {@code null} if the file does not exist
 	 * @see #filesAt(Iterable)
@@ -82,6 +243,31 @@ public interface FileSystem
 	 */
 	public ImmutableList<? extends File> filesAt(Iterable<String> paths);
 	
+	/**
+	 * Start looking up the file at a path, like {@link #fileAt(String)}, without waiting for it to load.
+	 * @param path the path of the file (cannot be {@code null})
+	 * @return the file, or {@code null} if it does not exist
+	 * @see #fileAt(String)
+	 */
+	public Future<File> fileAtAsync(String path);
+	
+	/**
+	 * Start looking up the files at several paths, like {@link #filesAt(Iterable)}, without waiting for them to load.
+	 * @param paths the paths of the files to load (cannot be {@code null})
+	 * @return a list of all files loaded
+	 * @see #filesAt(Iterable)
+	 */
+	public Future<ImmutableList<? extends File>> filesAtAsync(Iterable<String> paths);
+	
+	/**
+	 * Take an immutable snapshot of every file in this file system. Taking snapshots may be cheap, if the
+	 * implementation already keeps the whole tree in memory, or may need to read every file, in which case the
+	 * snapshot may include part of a change made while it was being read.
+	 * @return a snapshot of the file system as it is now
+	 * @see Snapshot
+	 */
+	public Snapshot snapshot();
+	
 	/**
 	 * Resolve a relative path to a file against a base. The rules for resolving are the same as those for {@link java.net.URI#resolve(java.net.URI)}.
 	 * For example, given a base of {@code /foo/bar} and a path of {@code baz}, the returned file would be at {@code /foo/baz}. Given a 
@@ -96,11 +282,25 @@ public interface FileSystem
 	 * Delete a file or directory.
 	 * @param file the file or directory to delete
 	 * @param recurse if {@code true} and the file is a directory, then all children of this file will
-	 * also be deleted
+	 * also be deleted. The whole tree disappears immediately, but implementations may reclaim its contents later, in
+	 * the background.
 	 * @throws FileSystemException if there is a problem deleting the file(s)
 	 */
 	public void delete(File file, boolean recurse) throws FileSystemException;
 	
+	/**
+	 * Start deleting a file or directory, like {@link #delete(File, boolean)}. The delete is issued before this
+	 * returns, so it happens whether or not {@link Future#get()} is called, which only waits for it to finish. What to
+	 * write depends on the stored file, which is read before this returns too, so only the writes overlap: starting
+	 * several deletes still waits for one datastore read after another.
+	 * @param file the file or directory to delete
+	 * @param recurse whether to delete the contents of a directory as well
+	 * @return a future that completes when the file has been deleted. If the delete fails, {@link Future#get()}
+	 * throws an {@link java.util.concurrent.ExecutionException} caused by a {@link FileSystemException}.
+	 * @see #delete(File, boolean)
+	 */
+	public Future<Void> deleteAsync(File file, boolean recurse);
+	
 	/**
 	 * Create a new file. None of the parameters to this method can be {@code null} because all
 	 * are necessary fields for {@link File} objects, and the file system will not work properly
@@ -124,4 +324,70 @@ public interface FileSystem
 	 * @see #create(String, MediaType, BlobKey, byte[])
 	 */
 	public File create(FileInfo info) throws FileSystemException;
+	
+	/**
+	 * Start creating a new file, like {@link #create(FileInfo)}. The write is issued before this returns, so the file is
+	 * created whether or not {@link Future#get()} is called, which only waits for the write to finish. The write
+	 * depends on the files already at the path and its ancestors, which are read before this returns too, so only the
+	 * writes overlap: starting several creates still waits for one datastore read after another. Use
+	 * {@link #createAll(Iterable)} to read everything for many files at once.
+	 * @param info the information to use creating the file
+	 * @return the created file. If creating it fails, {@link Future#get()} throws an
+	 * {@link java.util.concurrent.ExecutionException} caused by a {@link FileSystemException}.
+	 * @see #create(FileInfo)
+	 */
+	public Future<File> createAsync(FileInfo info);
+	
+	/**
+	 * Create many files at once, as when deploying a site. This is much cheaper than creating the files one at a time,
+	 * since the directories they need are only looked up (and created) once, and everything is written in batches.
+	 * All fields of each {@code FileInfo} must be set, and no path can appear more than once.
+	 * @param infos the files to create
+	 * @return the created files, in the same order as {@code infos}
+	 * @throws FileSystemException if there is a problem creating the files
+	 * @see #create(FileInfo)
+	 */
+	public ImmutableList<? extends File> createAll(Iterable<FileInfo> infos) throws FileSystemException;
+	
+	/**
+	 * Change the content of an existing file using only the differences from its current content, so that small edits
+	 * to large files don't need a full upload. The differences must be in the format written by
+	 * {@link com.bennavetta.appsite2.sync.protocol.DifferenceWriter}, calculated against the blocks of the file's
+	 * current content with a single basis. A new blob is built from the old content and the new data, and the file's
+	 * blob key and MD5 hash are then updated together. The old blob is deleted once the new one has replaced it, so
+	 * it must not be shared with any other file.
+	 * @param file the file to update (cannot be a directory)
+	 * @param blockSize the block size used to calculate the differences
+	 * @param differences the encoded differences
+	 * @return the updated file
+	 * @throws FileSystemException if the differences cannot be applied, or if the file was changed or deleted while
+	 * it was being updated
+	 */
+	public File update(File file, int blockSize, InputStream differences) throws FileSystemException;
+	
+	/**
+	 * Write the block signature of a file's content, in the format read by
+	 * {@link com.bennavetta.appsite2.sync.protocol.Blocks#readBlocks(java.io.DataInputStream)}. Clients can calculate
+	 * differences against the signature and send them to {@link #update(File, int, InputStream)}. Signatures are cached,
+	 * so repeated requests for the same content and block size are cheap.
+	 * @param file the file (cannot be a directory)
+	 * @param blockSize the block size to use
+	 * @param out the stream to write the signature to
+	 * @throws FileSystemException if there is an exception reading the file or writing the signature
+	 */
+	public void writeSignature(File file, int blockSize, OutputStream out) throws FileSystemException;
+	
+	/**
+	 * Calculate the differences between a client's copy of a file and its stored content, so that the client only
+	 * has to download what changed. The client's signature is read in the format written by
+	 * {@link com.bennavetta.appsite2.sync.protocol.Blocks#writeBlocks(com.carrotsearch.hppc.ObjectArrayList, java.io.DataOutputStream)},
+	 * and the differences are written in the format written by
+	 * {@link com.bennavetta.appsite2.sync.protocol.DifferenceWriter}.
+	 * @param file the file (cannot be a directory)
+	 * @param blockSize the block size the client's signature was calculated with
+	 * @param signature the client's signature
+	 * @param out the stream to write the differences to
+	 * @throws FileSystemException if there is an exception reading the file or signature, or writing the differences
+	 */
+	public void writeDifferences(File file, int blockSize, InputStream signature, OutputStream out) throws FileSystemException;
 }
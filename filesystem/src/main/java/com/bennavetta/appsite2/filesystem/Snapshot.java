@@ -0,0 +1,77 @@
+/**
+ * Copyright 2013 Ben Navetta <ben.navetta@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.appsite2.filesystem;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * An immutable view of every file in a {@link FileSystem}. Later changes to the file system never show up in a
+ * snapshot, so a request can render everything against one snapshot without files changing under it. Snapshots are
+ * safe to share between threads and need no locking to read. Switching between versions of a site only means
+ * switching which snapshot is used, for example by swapping an {@link java.util.concurrent.atomic.AtomicReference}.
+ * <p>
+ * How consistent a snapshot is depends on how it was taken, which {@link FileSystem#snapshot()} implementations
+ * document. One that reads every file with a paged scan can hold part of a change made while the scan ran, such as a
+ * file that was moved in both its old and its new place.
+ * </p>
+ * <p>
+ * Every lookup returns new {@code File} objects, which callers are free to change. Only the files themselves are
+ * frozen, though: their content is read from the blobstore, and {@link File#getParent()} is loaded from the file
+ * system as it is now.
+ * </p>
+ * @author ben
+ * @see FileSystem#snapshot()
+ */
+public interface Snapshot
+{
+	/**
+	 * Get the file at a path, as it was when the snapshot was taken.
+	 * @param path the path of the file, which is normalized first (cannot be {@code null})
+	 * @return the file, or {@code null} if there was no file at the path
+	 * @see FileSystem#fileAt(String)
+	 */
+	public File fileAt(String path);
+	
+	/**
+	 * Get the files at several paths. Paths with no file are left out.
+	 * @param paths the paths of the files, which are normalized first (cannot be {@code null})
+	 * @return the files, in the same order as their paths
+	 * @see FileSystem#filesAt(Iterable)
+	 */
+	public ImmutableList<? extends File> filesAt(Iterable<String> paths);
+	
+	/**
+	 * List the paths of a directory's children, as they were when the snapshot was taken.
+	 * @param directory the directory to list (cannot be {@code null})
+	 * @return the absolute paths of the children, in order, or an empty list if the directory wasn't in the snapshot
+	 * @see FileSystem#list(File)
+	 */
+	public ImmutableList<String> list(File directory);
+	
+	/**
+	 * List a directory's children, as they were when the snapshot was taken.
+	 * @param directory the directory to list (cannot be {@code null})
+	 * @return the children, in path order, or an empty list if the directory wasn't in the snapshot
+	 * @see FileSystem#listFiles(File)
+	 */
+	public ImmutableList<? extends File> listFiles(File directory);
+	
+	/**
+	 * Get the number of files and directories in the snapshot, including the root.
+	 * @return the number of files, or {@code 0} if the file system was empty
+	 */
+	public int size();
+}
@@ -0,0 +1,310 @@
+/**
+ * Copyright 2013 Ben Navetta <ben.navetta@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.appsite2.filesystem.impl;
+
+import static com.bennavetta.appsite2.filesystem.util.PathUtils.SEPARATOR;
+import static com.bennavetta.appsite2.filesystem.util.PathUtils.ancestors;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.googlecode.objectify.ObjectifyService.ofy;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.common.net.MediaType;
+import com.googlecode.objectify.Key;
+
+/**
+ * Fills in the ancestor index ({@link #ANCESTORS_PROPERTY}) of files saved before it existed, along with the indexed
+ * types and sizes used by {@link FileSummaries}. Sizes are read from the blobstore's info for each file's blob, one
+ * batch at a time. Files are scanned in batches, and only the ones whose properties are missing or wrong are written,
+ * so the migration is safe to run more than once. Entities are changed directly so that loading a file doesn't load its parent too.
+ * <p>
+ * Once every file has been processed, the {@linkplain DirectoryDigests digests} of every directory are rebuilt from
+ * the bottom up, which fills in the digests of directories saved before digests existed, and repairs any left wrong
+ * by an interrupted change. This is done in a single, final batch.
+ * </p>
+ * <p>
+ * Each batch ends at a {@link Cursor}, so a migration that is interrupted (for example by a request deadline) can be
+ * resumed by creating a new migration from {@link #getCursor()}.
+ * </p>
+ * @author ben
+ *
+ */
+public final class AncestorIndexMigration
+{
+	/**
+	 * The default number of files processed in each batch.
+	 * <br/>
+	 * Value: {@value}
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 500;
+	
+	/**
+	 * The datastore property holding the paths of a file's ancestors.
+	 */
+	static final String ANCESTORS_PROPERTY = "ancestors";
+	
+	/**
+	 * The datastore property holding a file's MIME type.
+	 */
+	private static final String MIME_TYPE_PROPERTY = "mimeType";
+	
+	/**
+	 * The datastore property holding the key of a file's blob.
+	 */
+	private static final String BLOB_KEY_PROPERTY = "blobKey";
+	
+	/**
+	 * The number of files to process in each batch.
+	 */
+	private final int batchSize;
+	
+	/**
+	 * Where the next batch starts, or {@code null} to start from the beginning.
+	 */
+	private Cursor cursor;
+	
+	/**
+	 * Whether every file has been processed, leaving only the digests to rebuild.
+	 */
+	private boolean indexed;
+	
+	/**
+	 * Whether every file has been processed and the digests have been rebuilt.
+	 */
+	private boolean finished;
+	
+	/**
+	 * The number of files processed so far.
+	 */
+	private long scanned;
+	
+	/**
+	 * The number of files whose index was written so far.
+	 */
+	private long updated;
+	
+	/**
+	 * The number of directories whose digest was rebuilt.
+	 */
+	private long repaired;
+	
+	/**
+	 * Create a migration that starts from the beginning, with the default batch size.
+	 */
+	public AncestorIndexMigration()
+	{
+		this(null, DEFAULT_BATCH_SIZE);
+	}
+	
+	/**
+	 * Create a migration.
+	 * @param cursor where to start, from the {@link #getCursor()} of an earlier migration, or {@code null} to start
+	 * from the beginning
+	 * @param batchSize the number of files to process in each batch
+	 */
+	public AncestorIndexMigration(final Cursor cursor, final int batchSize)
+	{
+		checkArgument(batchSize > 0, "Batch size must be positive: %s", batchSize);
+		this.cursor = cursor;
+		this.batchSize = batchSize;
+	}
+	
+	/**
+	 * Process every remaining file.
+	 * @return the number of files whose index was written by this migration
+	 */
+	public long run()
+	{
+		while(runBatch())
+		{
+			// keep going until there are no files left
+		}
+		return updated;
+	}
+	
+	/**
+	 * Process the next batch of files, or rebuild the digests once every file has been processed.
+	 * @return {@code true} if there may be more to do
+	 */
+	public boolean runBatch()
+	{
+		if(!indexed)
+		{
+			final DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+			final FetchOptions options = FetchOptions.Builder.withLimit(batchSize);
+			if(cursor != null)
+			{
+				options.startCursor(cursor);
+			}
+			final QueryResultList<Entity> batch = datastore.prepare(new Query(Key.getKind(FileImpl.class))).asQueryResultList(options);
+			final List<Entity> changed = new ArrayList<>();
+			final List<Entity> unsized = new ArrayList<>();
+			final Set<BlobKey> blobKeys = new HashSet<>();
+			for(final Entity entity : batch)
+			{
+				final boolean sized = entity.hasProperty(FileSummaries.SIZE_PROPERTY);
+				if(!sized && entity.getProperty(BLOB_KEY_PROPERTY) instanceof BlobKey)
+				{
+					unsized.add(entity);
+					blobKeys.add((BlobKey) entity.getProperty(BLOB_KEY_PROPERTY));
+				}
+				else if(!sized)
+				{
+					entity.setProperty(FileSummaries.SIZE_PROPERTY, 0L);
+				}
+				if(migrate(entity) || !sized)
+				{
+					changed.add(entity);
+				}
+			}
+			if(!unsized.isEmpty())
+			{
+				final Map<com.google.appengine.api.datastore.Key, Entity> infos = Deferred.await(FileSummaries.blobSizes(blobKeys));
+				for(final Entity entity : unsized)
+				{
+					entity.setProperty(FileSummaries.SIZE_PROPERTY,
+							FileSummaries.sizeOf(infos, (BlobKey) entity.getProperty(BLOB_KEY_PROPERTY)));
+				}
+			}
+			datastore.put(changed);
+			
+			scanned += batch.size();
+			updated += changed.size();
+			cursor = batch.getCursor();
+			indexed = batch.size() < batchSize;
+			// the session may hold files without their index
+			ofy().clear();
+		}
+		else if(!finished)
+		{
+			repaired = DirectoryDigests.rebuild(SEPARATOR).size();
+			finished = true;
+		}
+		return !finished;
+	}
+	
+	/**
+	 * Get the position of the next batch, which can be used to resume the migration later.
+	 * @return a cursor, or {@code null} if no batches have been run
+	 */
+	public Cursor getCursor()
+	{
+		return cursor;
+	}
+	
+	/**
+	 * Check if every file has been processed and the digests have been rebuilt.
+	 * @return {@code true} if the migration is finished
+	 */
+	public boolean isFinished()
+	{
+		return finished;
+	}
+	
+	/**
+	 * Get the number of files processed so far.
+	 * @return the number of files scanned
+	 */
+	public long getScanned()
+	{
+		return scanned;
+	}
+	
+	/**
+	 * Get the number of files whose index was written so far.
+	 * @return the number of files updated
+	 */
+	public long getUpdated()
+	{
+		return updated;
+	}
+	
+	/**
+	 * Get the number of directories whose digest was wrong, once the digests have been rebuilt.
+	 * @return the number of directories repaired
+	 */
+	public long getRepaired()
+	{
+		return repaired;
+	}
+	
+	/**
+	 * Set a file's ancestor index and indexed types if they are missing or wrong.
+	 * @param entity the file's entity
+	 * @return {@code true} if the entity was changed
+	 */
+	private static boolean migrate(final Entity entity)
+	{
+		boolean changed = migrateAncestors(entity);
+		final Object mimeType = entity.getProperty(MIME_TYPE_PROPERTY);
+		if(mimeType instanceof String)
+		{
+			final MediaType type = MediaType.parse((String) mimeType);
+			changed |= migrateProperty(entity, FileSummaries.BASE_TYPE_PROPERTY, type.withoutParameters().toString());
+			changed |= migrateProperty(entity, FileSummaries.TOP_LEVEL_TYPE_PROPERTY, type.type());
+		}
+		return changed;
+	}
+	
+	/**
+	 * Set an indexed property if it is missing or wrong.
+	 * @param entity the file's entity
+	 * @param property the name of the property
+	 * @param expected the value the property should have
+	 * @return {@code true} if the entity was changed
+	 */
+	private static boolean migrateProperty(final Entity entity, final String property, final Object expected)
+	{
+		final boolean current = expected.equals(entity.getProperty(property));
+		if(!current)
+		{
+			entity.setProperty(property, expected);
+		}
+		return !current;
+	}
+	
+	/**
+	 * Set a file's ancestor index if it is missing or wrong.
+	 * @param entity the file's entity
+	 * @return {@code true} if the entity was changed
+	 */
+	private static boolean migrateAncestors(final Entity entity)
+	{
+		final List<String> expected = ancestors(entity.getKey().getName());
+		final Object stored = entity.getProperty(ANCESTORS_PROPERTY);
+		// the datastore doesn't keep empty lists, so the root has no index at all
+		final boolean current = expected.isEmpty() ? stored == null
+				: stored instanceof Collection && expected.equals(new ArrayList<>((Collection<?>) stored));
+		if(!current)
+		{
+			entity.setProperty(ANCESTORS_PROPERTY, expected);
+		}
+		return !current;
+	}
+}
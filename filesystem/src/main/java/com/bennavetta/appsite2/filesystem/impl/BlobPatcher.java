@@ -0,0 +1,221 @@
+/**
+ * Copyright 2013 Ben Navetta <ben.navetta@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.appsite2.filesystem.impl;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import com.bennavetta.appsite2.sync.DifferenceListener;
+import com.google.appengine.api.files.FileReadChannel;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Rebuilds a file from the blocks of its old content and a stream of differences, writing the result to a channel.
+ * Copies from earlier in the new file ({@link DifferenceListener#onCopy(int, int)}) are supported as long as they reach
+ * back no further than {@link #HISTORY_SIZE}.
+ * @author ben
+ *
+ */
+final class BlobPatcher implements DifferenceListener
+{
+	/**
+	 * The amount of the new content kept in memory for copies, which is the largest history size senders can use.
+	 * <br/>
+	 * Value: {@value}
+	 */
+	public static final int HISTORY_SIZE = 1 << 20;
+
+	/**
+	 * The size of the buffer used for copies.
+	 */
+	private static final int COPY_BUFFER_SIZE = 8192;
+
+	/**
+	 * The old content of the file.
+	 */
+	private final FileReadChannel basis;
+
+	/**
+	 * The block size the differences were calculated with.
+	 */
+	private final int blockSize;
+
+	/**
+	 * The channel the new content is written to.
+	 */
+	private final WritableByteChannel output;
+
+	/**
+	 * Holds one block of the old content.
+	 */
+	private final ByteBuffer block;
+
+	/**
+	 * Holds data being copied from the history.
+	 */
+	private final byte[] copyBuffer = new byte[COPY_BUFFER_SIZE];
+
+	/**
+	 * The end of the new content, in a ring buffer.
+	 */
+	private final byte[] history = new byte[HISTORY_SIZE];
+
+	/**
+	 * Calculates the hash of the new content.
+	 */
+	private final Hasher md5 = Hashing.md5().newHasher();
+
+	/**
+	 * The amount of new content written so far.
+	 */
+	private long position;
+
+	/**
+	 * Create a new patcher.
+	 * @param basis the old content of the file
+	 * @param blockSize the block size that the differences were calculated with
+	 * @param output the channel to write the new content to
+	 */
+	BlobPatcher(final FileReadChannel basis, final int blockSize, final WritableByteChannel output)
+	{
+		checkArgument(blockSize > 0, "Block size must be positive: %s", blockSize);
+		this.basis = basis;
+		this.blockSize = blockSize;
+		this.output = output;
+		this.block = ByteBuffer.allocate(blockSize);
+	}
+
+	/**
+	 * Get the MD5 hash of the new content. This can only be called once, after all differences have been applied.
+	 * @return the hash
+	 */
+	public byte[] getMD5Hash()
+	{
+		return md5.hash().asBytes();
+	}
+
+	/**
+	 * Get the size of the new content written so far.
+	 * @return the size in bytes
+	 */
+	public long getSize()
+	{
+		return position;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void onMatch(final int basisId, final int index) throws IOException
+	{
+		if(basisId != 0)
+		{
+			throw new IOException("Only one basis file is supported: " + basisId);
+		}
+		block.clear();
+		basis.position((long) index * blockSize);
+		int read = 0;
+		while(block.hasRemaining() && read != -1)
+		{
+			read = basis.read(block);
+		}
+		if(block.position() == 0)
+		{
+			throw new IOException("No such block: " + index);
+		}
+		write(block.array(), 0, block.position());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void onDifferent(final byte[] data, final int off, final int len) throws IOException
+	{
+		write(data, off, len);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void onCopy(final int distance, final int length) throws IOException
+	{
+		if(distance > position || distance > history.length || length > distance)
+		{
+			throw new IOException("Invalid copy of " + length + " bytes from " + distance + " bytes back");
+		}
+		// the source never overlaps what is being written, so it isn't overwritten while copying
+		long source = position - distance;
+		int remaining = length;
+		while(remaining > 0)
+		{
+			final int len = Math.min(remaining, copyBuffer.length);
+			for(int i = 0; i < len; i++)
+			{
+				copyBuffer[i] = history[(int) ((source + i) % history.length)];
+			}
+			write(copyBuffer, 0, len);
+			source += len;
+			remaining -= len;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void onStart()
+	{
+		// nothing to do
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void onFinish()
+	{
+		// nothing to do - the caller finalizes the output
+	}
+
+	/**
+	 * Append data to the new content.
+	 * @param data the buffer containing the data
+	 * @param off the offset of the data within the buffer
+	 * @param len the length of the data
+	 * @throws IOException if there is an error writing the data
+	 */
+	private void write(final byte[] data, final int off, final int len) throws IOException
+	{
+		final ByteBuffer buf = ByteBuffer.wrap(data, off, len);
+		while(buf.hasRemaining())
+		{
+			output.write(buf);
+		}
+		md5.putBytes(data, off, len);
+		for(int i = 0; i < len; i++)
+		{
+			history[(int) ((position + i) % history.length)] = data[off + i];
+		}
+		position += len;
+	}
+}
@@ -0,0 +1,202 @@
+/**
+ * Copyright 2013 Ben Navetta <ben.navetta@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.appsite2.filesystem.impl;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.google.common.base.Throwables;
+
+/**
+ * A {@link Future} for an operation whose datastore calls have already been started asynchronously, but which has
+ * some work left to do once they finish. App Engine requests can't run that work on another thread, so it runs on the
+ * first thread to ask for the result, exactly once. Until then, the calls are in flight alongside anything else the
+ * caller does, so starting several operations before waiting for any of them overlaps their datastore calls.
+ * <p>
+ * Operations that change anything issue all of their writes before they return a {@code Deferred}, so the changes
+ * are made whether or not the result is ever asked for. The work left for {@link #get()} is only waiting for calls
+ * that are already in flight and tidying up the caches, which is also why {@link #get(long, TimeUnit)} can honour its
+ * timeout by waiting for {@link #pending()} first. The reads that decide what to write have to finish before the
+ * writes are issued, so they are made before the operation returns, and only the writes overlap with the caller.
+ * </p>
+ * @param <T> the type of the result
+ * @author ben
+ *
+ */
+abstract class Deferred<T> implements Future<T>
+{
+	/**
+	 * The result, once it has been computed.
+	 */
+	private T value;
+	
+	/**
+	 * The exception thrown computing the result, if there was one.
+	 */
+	private Exception failure;
+	
+	/**
+	 * Whether the result has been computed.
+	 */
+	private boolean done;
+	
+	/**
+	 * Finish the operation, waiting for any asynchronous calls that it started.
+	 * @return the result
+	 * @throws Exception if the operation fails
+	 */
+	protected abstract T compute() throws Exception;
+	
+	/**
+	 * Get the asynchronous calls that {@link #compute()} waits for. Once they are all done, computing the result
+	 * doesn't block for long.
+	 * @return the calls that were started for this operation
+	 */
+	protected abstract Iterable<? extends Future<?>> pending();
+	
+	/**
+	 * Get the result, finishing the operation first if necessary.
+	 * @return the result
+	 * @throws ExecutionException if the operation failed. The cause is the exception it threw.
+	 */
+	@Override
+	@SuppressWarnings("PMD.AvoidCatchingGenericException")
+	public final synchronized T get() throws ExecutionException
+	{
+		if(!done)
+		{
+			try
+			{
+				value = compute();
+			}
+			catch(final Exception e)
+			{
+				failure = e;
+			}
+			done = true;
+		}
+		if(failure != null)
+		{
+			throw new ExecutionException(failure);
+		}
+		return value;
+	}
+	
+	/**
+	 * Get the result, finishing the operation first if necessary. The {@link #pending()} calls are waited for within
+	 * the timeout, and the rest of the operation only runs once they are done. If the time runs out first, the
+	 * operation is left as it was, so the result can still be asked for later.
+	 * @param timeout the longest time to wait for the pending calls
+	 * @param unit the unit of {@code timeout}
+	 * @return the result
+	 * @throws ExecutionException if the operation failed. The cause is the exception it threw.
+	 * @throws InterruptedException if the thread was interrupted while waiting
+	 * @throws TimeoutException if the pending calls didn't finish in time
+	 */
+	@Override
+	public final T get(final long timeout, final TimeUnit unit) throws ExecutionException, InterruptedException, TimeoutException
+	{
+		if(!isDone())
+		{
+			final long deadline = System.nanoTime() + unit.toNanos(timeout);
+			for(final Future<?> call : pending())
+			{
+				try
+				{
+					call.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+				}
+				catch(final ExecutionException e)
+				{
+					// compute() reports the failure along with anything else that went wrong
+					continue;
+				}
+			}
+		}
+		return get();
+	}
+	
+	/**
+	 * Get the result of an operation that can only fail with unchecked exceptions, which are thrown as they are.
+	 * @return the result
+	 */
+	public final T now()
+	{
+		try
+		{
+			return get();
+		}
+		catch(final ExecutionException e)
+		{
+			throw Throwables.propagate(e.getCause());
+		}
+	}
+	
+	/**
+	 * Wait for an asynchronous call that was started by an operation. Exceptions from the call are thrown as they are,
+	 * so operations don't have to unwrap them.
+	 * @param future the result of the call
+	 * @param <V> the type of the result
+	 * @return the result
+	 */
+	protected static <V> V await(final Future<V> future)
+	{
+		try
+		{
+			return future.get();
+		}
+		catch(final ExecutionException e)
+		{
+			throw Throwables.propagate(e.getCause());
+		}
+		catch(final InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw Throwables.propagate(e);
+		}
+	}
+	
+	/**
+	 * Operations can't be cancelled once they have been started.
+	 * @param mayInterruptIfRunning ignored
+	 * @return {@code false}
+	 */
+	@Override
+	public final boolean cancel(final boolean mayInterruptIfRunning)
+	{
+		return false;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public final boolean isCancelled()
+	{
+		return false;
+	}
+	
+	/**
+	 * Check if the operation has finished. This is only the case once its result has been asked for.
+	 * @return {@code true} if the result has been computed
+	 */
+	@Override
+	public final synchronized boolean isDone()
+	{
+		return done;
+	}
+}
@@ -0,0 +1,587 @@
+/**
+ * Copyright 2013 Ben Navetta <ben.navetta@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.appsite2.filesystem.impl;
+
+import static com.bennavetta.appsite2.filesystem.util.PathUtils.lastPathComponent;
+import static com.googlecode.objectify.ObjectifyService.ofy;
+
+import java.io.Serializable;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.bennavetta.appsite2.filesystem.util.FilePath;
+import com.google.appengine.api.NamespaceManager;
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import com.googlecode.objectify.Work;
+import com.googlecode.objectify.util.DatastoreIntrospector;
+
+/**
+ * Maintains the content digests of directories. A directory's digest is the XOR of one hash per child, calculated
+ * from the child's name, type and digest (its MD5 hash for a file, or its own digest for a directory), so an empty
+ * directory has a digest of all zeros. Since XOR is order-independent and its own inverse, adding, removing or
+ * changing a child only needs the old and new hash of that one entry, applied to each directory up the parent chain.
+ * <p>
+ * Each directory is updated in its own transaction, working on the entity directly so that nothing else can be pulled
+ * into the transaction through the session. Concurrent changes are safe because XOR updates commute: however they interleave, each
+ * directory ends up with the XOR of all of its children. Directories in the session are changed along with their
+ * entities, so the rest of the session is left alone.
+ * </p>
+ * <p>
+ * Every change reaches every directory above it, so the root takes a transactional write for each change in the
+ * namespace, and the datastore only sustains about one write per second to a single entity group. Changes made at
+ * the same time in one instance are coalesced: while one thread applies its changes, the changes of the threads
+ * waiting behind it are merged, and the next of them applies them all in one pass that updates each directory once.
+ * Changes from different instances still contend for the directories they share, and are retried until they
+ * commit, so many writers spread over many instances slow each other down. Bulk changes should go through a single
+ * call that applies them all at once, as {@code createAll} does.
+ * </p>
+ * <p>
+ * A change can update its own directory in the same transaction with {@link #begin(String, byte[])}, but the digests
+ * further up are always updated after the change is saved, so a change that is interrupted part way through leaves
+ * the digests above it wrong until they are {@linkplain #rebuild(String) rebuilt}.
+ * </p>
+ * @author ben
+ *
+ */
+final class DirectoryDigests
+{
+	/**
+	 * The length of a digest in bytes.
+	 */
+	static final int DIGEST_LENGTH = 16;
+
+	/**
+	 * The datastore property holding a directory's digest.
+	 */
+	static final String DIGEST_PROPERTY = "digest";
+
+	/**
+	 * The datastore property holding the key of a file's parent.
+	 */
+	private static final String PARENT_PROPERTY = "parent";
+
+	/**
+	 * Marks an entry as a file in {@link #entry(String, boolean, byte[])}.
+	 */
+	private static final byte FILE = 'f';
+
+	/**
+	 * Marks an entry as a directory in {@link #entry(String, boolean, byte[])}.
+	 */
+	private static final byte DIRECTORY = 'd';
+
+	/**
+	 * The changes waiting to be applied in each namespace.
+	 */
+	private static final ConcurrentMap<String, Queue> QUEUES = new ConcurrentHashMap<>();
+
+	/**
+	 * Hidden constructor.
+	 */
+	private DirectoryDigests() {}
+
+	/**
+	 * Get the digest of an empty directory.
+	 * @return a new array of zeros
+	 */
+	static byte[] empty()
+	{
+		return new byte[DIGEST_LENGTH];
+	}
+
+	/**
+	 * Calculate the hash that a child contributes to its directory's digest.
+	 * @param name the name of the child
+	 * @param directory whether the child is a directory
+	 * @param digest the child's digest
+	 * @return the entry hash
+	 */
+	static byte[] entry(final String name, final boolean directory, final byte[] digest)
+	{
+		return Hashing.md5().newHasher()
+				.putByte(directory ? DIRECTORY : FILE)
+				.putString(name, Charsets.UTF_8)
+				.putByte((byte) 0)
+				.putBytes(digest)
+				.hash().asBytes();
+	}
+
+	/**
+	 * Calculate the hash that a file contributes to its directory's digest.
+	 * @param file the file or directory
+	 * @return the entry hash
+	 */
+	static byte[] entry(final FileImpl file)
+	{
+		return entry(file.getName(), file.isDirectory(), file.getDigest());
+	}
+
+	/**
+	 * XOR one digest into another.
+	 * @param target the digest to change
+	 * @param change the digest to XOR into it
+	 * @return {@code target}
+	 */
+	static byte[] xor(final byte[] target, final byte[] change)
+	{
+		for(int i = 0; i < target.length; i++)
+		{
+			target[i] ^= change[i];
+		}
+		return target;
+	}
+
+	/**
+	 * Apply a change to a directory's digest and to the digests of all of its ancestors.
+	 * @param directory the path of the directory whose child changed
+	 * @param change the XOR of the child's old and new entry hashes (see {@link #entry(String, boolean, byte[])}).
+	 * When a child is added or removed, its entry hash alone.
+	 */
+	static void update(final String directory, final byte[] change)
+	{
+		update(ImmutableMap.of(directory, change));
+	}
+	
+	/**
+	 * Apply changes to several directories and to all of their ancestors. Directories are updated deepest first, and
+	 * the changes each one makes to its parent are combined with any other changes to the parent, so every directory
+	 * is only updated once. The changes are merged with those of any other threads in this namespace that are waiting
+	 * to apply theirs, and this returns once they have all been applied.
+	 * @param changes the change to each directory's digest, keyed by path (see {@link #update(String, byte[])})
+	 */
+	static void update(final Map<String, byte[]> changes)
+	{
+		final String namespace = Strings.nullToEmpty(NamespaceManager.get());
+		QUEUES.putIfAbsent(namespace, new Queue());
+		final Queue queue = QUEUES.get(namespace);
+		final Batch batch = queue.join(changes);
+		queue.applying.lock();
+		try
+		{
+			// if another thread already applied this batch, there is nothing left to do
+			if(!batch.done)
+			{
+				queue.take().apply();
+			}
+		}
+		finally
+		{
+			queue.applying.unlock();
+		}
+		if(batch.failure != null)
+		{
+			throw batch.failure;
+		}
+		for(final Map.Entry<Key, Step> step : batch.steps.entrySet())
+		{
+			cache(step.getKey(), step.getValue());
+		}
+	}
+	
+	/**
+	 * Recalculate the digests of a directory and everything under it from their children, from the bottom up, and
+	 * apply any change to the directory's digest to its ancestors. This fills in the digests of directories saved
+	 * before digests existed, and repairs digests left behind by an update that was interrupted between saving a file
+	 * and updating its ancestors, since each directory's digest is updated after, and separately from, the change.
+	 * <p>
+	 * Children are found with an eventually consistent query, so children added just before this runs may be missed,
+	 * and changes made while this runs may be lost. It's meant to be run while the tree isn't being changed; running
+	 * it again afterwards repairs anything it missed. Every directory is read with its own query, but only the
+	 * children of the directories on the current path are held at once.
+	 * </p>
+	 * @param directory the normalized path of the directory
+	 * @return the paths of the directories under {@code directory} (including itself) whose digest was wrong
+	 */
+	static ImmutableList<String> rebuild(final String directory)
+	{
+		final DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+		final ImmutableList.Builder<String> repaired = ImmutableList.builder();
+		final Key key = com.googlecode.objectify.Key.create(FileImpl.class, directory).getRaw();
+		final Entity entity = datastore.get(ImmutableList.of(key)).get(key);
+		final FileImpl root = entity == null ? null : ofy().<FileImpl>toPojo(entity);
+		if(root != null && root.isDirectory() && !root.isTombstone())
+		{
+			final byte[] correction = xor(rebuild(datastore, root, repaired), root.getDigest());
+			if(!isZero(correction))
+			{
+				// the correction is applied like any other change, so that it reaches the ancestors too
+				update(directory, correction);
+				repaired.add(directory);
+			}
+		}
+		return repaired.build();
+	}
+	
+	/**
+	 * Rebuild the digests of every directory under a directory, and calculate what the directory's own digest should be.
+	 * @param datastore the datastore to read from
+	 * @param directory the directory
+	 * @param repaired collects the paths of the directories whose digests were wrong
+	 * @return the directory's correct digest
+	 */
+	private static byte[] rebuild(final DatastoreService datastore, final FileImpl directory, final ImmutableList.Builder<String> repaired)
+	{
+		final Query query = new Query(com.googlecode.objectify.Key.getKind(FileImpl.class)).setFilter(
+				new FilterPredicate(PARENT_PROPERTY, FilterOperator.EQUAL, com.googlecode.objectify.Key.create(FileImpl.class, directory.getPath()).getRaw()));
+		final byte[] digest = empty();
+		for(final Entity entity : datastore.prepare(query).asIterable())
+		{
+			final FileImpl child = ofy().toPojo(entity);
+			// deleted trees are left out of their parent's digest
+			if(child.isDirectory() && !child.isTombstone())
+			{
+				final byte[] correct = rebuild(datastore, child, repaired);
+				final byte[] correction = xor(correct.clone(), child.getDigest());
+				if(!isZero(correction))
+				{
+					// the correction is applied as a change, so that concurrent changes to the directory aren't lost
+					cache(entity.getKey(), transact(entity.getKey(), correction));
+					repaired.add(child.getPath());
+				}
+				xor(digest, entry(child.getName(), true, correct));
+			}
+			else if(!child.isTombstone())
+			{
+				xor(digest, entry(child));
+			}
+		}
+		return digest;
+	}
+	
+	/**
+	 * Add a change to the pending changes for a directory.
+	 * @param pending the pending changes
+	 * @param directory the path of the directory
+	 * @param change the change to add
+	 */
+	static void merge(final Map<String, byte[]> pending, final String directory, final byte[] change)
+	{
+		final byte[] existing = pending.get(directory);
+		pending.put(directory, existing == null ? change.clone() : xor(existing, change));
+	}
+
+	/**
+	 * Apply a change to one directory's digest in its own transaction. Only the entity is written, so the caller has
+	 * to {@linkplain #cache(Key, Step) change the directory in the session} too.
+	 * @param key the directory's key
+	 * @param change the change to the directory's digest
+	 * @return the next directory to change, and how to change it
+	 */
+	private static Step transact(final Key key, final byte[] change)
+	{
+		return ofy().transact(new Work<Step>()
+		{
+			/**
+			 * Update a single directory.
+			 */
+			@Override
+			public Step run()
+			{
+				return apply(key, change);
+			}
+		});
+	}
+	
+	/**
+	 * Apply a change to a directory's digest as part of the current transaction, so that it is saved along with the
+	 * change to the directory's child. Objectify's transactions are cross-group on the high replication datastore, so
+	 * the directory doesn't need to be in the same entity group as the child; elsewhere, the whole change is left for
+	 * {@link #finish(Step)}. Once the transaction commits, the change has to be passed on to the directory's ancestors
+	 * with {@link #finish(Step)}.
+	 * @param directory the path of the directory whose child changed
+	 * @param change the change to the directory's digest (see {@link #update(String, byte[])})
+	 * @return the rest of the change
+	 */
+	static Step begin(final String directory, final byte[] change)
+	{
+		final Key key = com.googlecode.objectify.Key.create(FileImpl.class, directory).getRaw();
+		return DatastoreIntrospector.SUPPORTS_XG ? apply(key, change) : new Step(key, key, change, null);
+	}
+	
+	/**
+	 * Pass a change started with {@link #begin(String, byte[])} on to the directory's ancestors, once the transaction
+	 * it was made in has committed.
+	 * @param step the rest of the change
+	 */
+	static void finish(final Step step)
+	{
+		cache(step.key, step);
+		if(step.parent != null)
+		{
+			update(step.parent.getName(), step.delta);
+		}
+	}
+	
+	/**
+	 * Change the digest of a directory in the session, if it's there, after its entity was changed.
+	 * @param key the directory's key
+	 * @param step the change made to the directory
+	 */
+	private static void cache(final Key key, final Step step)
+	{
+		final com.googlecode.objectify.Key<FileImpl> cached = com.googlecode.objectify.Key.create(key);
+		if(step.digest != null && ofy().isLoaded(cached))
+		{
+			final FileImpl directory = ofy().load().key(cached).now();
+			if(directory != null)
+			{
+				directory.setDigest(step.digest);
+			}
+		}
+	}
+
+	/**
+	 * Apply a change to one directory's digest, in the current transaction.
+	 * @param key the directory's key
+	 * @param change the change to the directory's digest
+	 * @return the next directory to change, and how to change it
+	 */
+	private static Step apply(final Key key, final byte[] change)
+	{
+		final DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+		Step step;
+		try
+		{
+			final Entity entity = datastore.get(ofy().getTxn(), key);
+			if(Boolean.TRUE.equals(entity.getProperty(Tombstones.TOMBSTONE_PROPERTY)))
+			{
+				// a deleted tree was already removed from its parent's digest, so changes inside it go no further
+				step = new Step(key, null, empty(), null);
+			}
+			else
+			{
+				final Blob stored = (Blob) entity.getProperty(DIGEST_PROPERTY);
+				final byte[] oldDigest = stored == null ? empty() : stored.getBytes();
+				final byte[] newDigest = xor(oldDigest.clone(), change);
+				entity.setUnindexedProperty(DIGEST_PROPERTY, new Blob(newDigest));
+				datastore.put(ofy().getTxn(), entity);
+				
+				final String name = lastPathComponent(key.getName());
+				step = new Step(key, (Key) entity.getProperty(PARENT_PROPERTY),
+						xor(entry(name, true, oldDigest), entry(name, true, newDigest)), newDigest);
+			}
+		}
+		catch(final EntityNotFoundException e)
+		{
+			// the directory was deleted, so there are no digests left to update
+			step = new Step(key, null, empty(), null);
+		}
+		return step;
+	}
+
+	/**
+	 * Check if a digest change does nothing.
+	 * @param delta the change
+	 * @return {@code true} if the change is all zeros
+	 */
+	private static boolean isZero(final byte[] delta)
+	{
+		boolean zero = true;
+		for(int i = 0; i < delta.length && zero; i++)
+		{
+			zero = delta[i] == 0;
+		}
+		return zero;
+	}
+
+	/**
+	 * The result of updating one directory.
+	 * @author ben
+	 */
+	static final class Step
+	{
+		/**
+		 * The directory's key.
+		 */
+		private final Key key;
+		
+		/**
+		 * The next directory to change: normally the directory's parent, or {@code null} for the root.
+		 */
+		private final Key parent;
+
+		/**
+		 * The change to the next directory's digest.
+		 */
+		private final byte[] delta;
+		
+		/**
+		 * The directory's new digest, or {@code null} if it wasn't changed.
+		 */
+		private final byte[] digest;
+
+		/**
+		 * Create a new step.
+		 * @param key the directory's key
+		 * @param parent the directory's parent
+		 * @param delta the change to the parent's digest
+		 * @param digest the directory's new digest
+		 */
+		Step(final Key key, final Key parent, final byte[] delta, final byte[] digest)
+		{
+			this.key = key;
+			this.parent = parent;
+			this.delta = delta;
+			this.digest = digest;
+		}
+	}
+	
+	/**
+	 * The changes waiting to be applied in one namespace. Threads add their changes to the open batch, and then take
+	 * turns holding the lock; whichever gets it first applies the whole batch, while the next one collects changes.
+	 * @author ben
+	 */
+	private static final class Queue
+	{
+		/**
+		 * Held while a batch is being applied.
+		 */
+		private final Lock applying = new ReentrantLock();
+		
+		/**
+		 * The batch that new changes are added to.
+		 */
+		private Batch open = new Batch();
+		
+		/**
+		 * Add changes to the open batch.
+		 * @param changes the change to each directory's digest, keyed by path
+		 * @return the batch the changes were added to
+		 */
+		synchronized Batch join(final Map<String, byte[]> changes)
+		{
+			for(final Map.Entry<String, byte[]> change : changes.entrySet())
+			{
+				merge(open.pending, change.getKey(), change.getValue());
+			}
+			return open;
+		}
+		
+		/**
+		 * Close the open batch, so that new changes go into the next one.
+		 * @return the batch to apply
+		 */
+		synchronized Batch take()
+		{
+			final Batch taken = open;
+			open = new Batch();
+			return taken;
+		}
+	}
+	
+	/**
+	 * Changes from one or more threads that are applied together. Once the batch is {@linkplain #done done}, every
+	 * thread that added to it can see what happened through the queue's lock.
+	 * @author ben
+	 */
+	private static final class Batch
+	{
+		/**
+		 * The changes still to apply, deepest first.
+		 */
+		private final TreeMap<String, byte[]> pending = new TreeMap<>(new DeepestFirst());
+		
+		/**
+		 * The change made to each directory, so that every thread can change its session to match.
+		 */
+		private final Map<Key, Step> steps = new HashMap<>();
+		
+		/**
+		 * Whether the batch has been applied.
+		 */
+		private boolean done;
+		
+		/**
+		 * Why the batch couldn't be applied, or {@code null} if it was.
+		 */
+		private RuntimeException failure;
+		
+		/**
+		 * Apply the changes, passing each directory's change on to its parent.
+		 */
+		@SuppressWarnings("PMD.AvoidCatchingGenericException")
+		void apply()
+		{
+			try
+			{
+				while(!pending.isEmpty())
+				{
+					final Map.Entry<String, byte[]> next = pending.pollFirstEntry();
+					if(!isZero(next.getValue()))
+					{
+						final Key key = com.googlecode.objectify.Key.create(FileImpl.class, next.getKey()).getRaw();
+						final Step step = transact(key, next.getValue());
+						steps.put(key, step);
+						if(step.parent != null)
+						{
+							merge(pending, step.parent.getName(), step.delta);
+						}
+					}
+				}
+			}
+			catch(final RuntimeException e)
+			{
+				// every thread in the batch fails the same way, not just the one that happened to apply it
+				failure = e;
+			}
+			finally
+			{
+				done = true;
+			}
+		}
+	}
+	
+	/**
+	 * Orders paths so that deeper paths come first, and the root comes last.
+	 * @author ben
+	 */
+	private static final class DeepestFirst implements Comparator<String>, Serializable
+	{
+		/**
+		 * Serialization version.
+		 */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public int compare(final String first, final String second)
+		{
+			final int depth = FilePath.of(second).getDepth() - FilePath.of(first).getDepth();
+			return depth == 0 ? first.compareTo(second) : depth;
+		}
+	}
+}
@@ -0,0 +1,490 @@
+/**
+ * Copyright 2013 Ben Navetta <ben.navetta@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.appsite2.filesystem.impl;
+
+import static com.bennavetta.appsite2.filesystem.util.PathUtils.ancestors;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.CasValues;
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.googlecode.objectify.Key;
+
+/**
+ * A read-through cache of file entities, keyed by path. Paths with no file are cached too, so looking up a missing file
+ * repeatedly doesn't go to the datastore either. Every change to a file, including creating or deleting it, must be
+ * reported with {@link #invalidate(Iterable)} once it has been written. Writes that are still in flight are reported
+ * with {@link #changing(Iterable)} as they are issued, and their paths aren't cached until they are invalidated, or for
+ * {@value #CHANGE_WINDOW_SECS} seconds if nobody waits for the writes.
+ * <p>
+ * Entities are cached rather than {@link FileImpl}s, so that every lookup gets its own copy that the caller is free to
+ * change. With a shared {@link MemcacheService}, entities are also stored in memcache, where invalidations from every
+ * instance remove them. Local entries then only need to live for a few seconds, since memcache lookups don't touch the
+ * datastore either; on their own, local entries only see changes made through the same instance, so they expire
+ * sooner than the {@link ListingCache} ones.
+ * </p>
+ * <p>
+ * A lookup that loads from the datastore may finish after the file was changed and invalidated, so it must not cache
+ * what it read unless nothing was invalidated in the meantime. Before loading, missing memcache entries are reserved
+ * with a placeholder, and what was loaded only replaces the placeholder if it is untouched, which an invalidation
+ * deleting it prevents. Locally, every invalidation bumps a generation, and a lookup only keeps what it cached if the
+ * generation is still the one it started with.
+ * </p>
+ * <p>
+ * Paths with writes in flight are marked locally and, with a shared cache, in memcache in place of their entries, so
+ * that no instance caches what it reads from the datastore before the writes land.
+ * </p>
+ * @author ben
+ *
+ */
+final class FileCache
+{
+	/**
+	 * The default maximum number of paths kept locally.
+	 * <br/>
+	 * Value: {@value}
+	 */
+	public static final long DEFAULT_MAX_FILES = 10000;
+	
+	/**
+	 * How long a local entry is kept after it was loaded, in seconds, when there is no shared cache.
+	 */
+	private static final long LOCAL_EXPIRATION_SECS = 60;
+	
+	/**
+	 * How long a local entry is kept after it was loaded, in seconds, when there is a shared cache.
+	 */
+	private static final long SHARED_EXPIRATION_SECS = 5;
+	
+	/**
+	 * How long an entry is kept in memcache, in seconds.
+	 */
+	private static final int MEMCACHE_EXPIRATION_SECS = 30 * 60;
+	
+	/**
+	 * How long a path is left uncached after a write to it was issued, in seconds, unless the write is waited for.
+	 */
+	private static final int CHANGE_WINDOW_SECS = 10;
+	
+	/**
+	 * The prefix of the memcache keys holding entities.
+	 */
+	private static final String FILE_PREFIX = "file:";
+	
+	/**
+	 * Stored in memcache for paths with no file, since {@code null} can't be told apart from a missing entry.
+	 */
+	private static final Boolean ABSENT = Boolean.FALSE;
+	
+	/**
+	 * Stored in memcache for paths that are being loaded from the datastore.
+	 */
+	private static final String LOADING = "loading";
+	
+	/**
+	 * Stored in memcache for paths that have writes in flight.
+	 */
+	private static final String CHANGING = "changing";
+	
+	/**
+	 * The local entries. An absent value means that there is no file at the path.
+	 */
+	private final Cache<String, Optional<Entity>> local;
+	
+	/**
+	 * The paths with writes in flight through this instance.
+	 */
+	private final Cache<String, Boolean> changing = CacheBuilder.newBuilder()
+			.expireAfterWrite(CHANGE_WINDOW_SECS, TimeUnit.SECONDS)
+			.build();
+	
+	/**
+	 * The shared entries, or {@code null} if entities aren't shared.
+	 */
+	private final MemcacheService shared;
+	
+	/**
+	 * Incremented by every invalidation, so that lookups can tell whether what they loaded might be out of date.
+	 */
+	private final AtomicLong generation = new AtomicLong();
+	
+	/**
+	 * Create a cache that is local to this instance, holding up to {@link #DEFAULT_MAX_FILES} paths.
+	 */
+	FileCache()
+	{
+		this(null, DEFAULT_MAX_FILES);
+	}
+	
+	/**
+	 * Create a cache.
+	 * @param shared the memcache service shared with other instances, or {@code null} to only cache locally
+	 * @param maxFiles the maximum number of paths to keep locally
+	 */
+	FileCache(final MemcacheService shared, final long maxFiles)
+	{
+		this.shared = shared;
+		local = CacheBuilder.newBuilder()
+				.maximumSize(maxFiles)
+				.expireAfterWrite(shared == null ? LOCAL_EXPIRATION_SECS : SHARED_EXPIRATION_SECS, TimeUnit.SECONDS)
+				.recordStats()
+				.build();
+	}
+	
+	/**
+	 * Get the memcache service that entities are shared through.
+	 * @return the shared memcache service, or {@code null} if entities are only cached locally
+	 */
+	MemcacheService getShared()
+	{
+		return shared;
+	}
+	
+	/**
+	 * Get the entities of several files, trying the local cache, then memcache, and then the datastore. Whatever is
+	 * missing locally is looked up in a single batch at each level.
+	 * @param paths the normalized paths of the files
+	 * @return the entities of the files that exist, keyed by path
+	 */
+	public ImmutableMap<String, Entity> getAll(final Iterable<String> paths)
+	{
+		return getAllAsync(paths).now();
+	}
+	
+	/**
+	 * Start getting the entities of several files, like {@link #getAll(Iterable)}. The local cache and memcache are
+	 * checked straight away, but the datastore is only waited for when the result is asked for.
+	 * @param paths the normalized paths of the files
+	 * @return the entities of the files that exist, keyed by path
+	 */
+	public Deferred<ImmutableMap<String, Entity>> getAllAsync(final Iterable<String> paths)
+	{
+		final long started = generation.get();
+		final Map<String, Optional<Entity>> found = new HashMap<>(local.getAllPresent(paths));
+		List<String> missing = new ArrayList<>();
+		for(final String path : paths)
+		{
+			if(!found.containsKey(path))
+			{
+				missing.add(path);
+			}
+		}
+		final Map<String, IdentifiableValue> reserved = new HashMap<>();
+		final Set<String> unsettled = new HashSet<>();
+		if(shared != null && !missing.isEmpty())
+		{
+			final Map<String, Optional<Entity>> cached = new HashMap<>();
+			for(final Map.Entry<String, IdentifiableValue> entry : sharedEntities(missing).entrySet())
+			{
+				final Object value = entry.getValue().getValue();
+				if(value instanceof Entity)
+				{
+					cached.put(entry.getKey(), Optional.of((Entity) value));
+				}
+				else if(ABSENT.equals(value))
+				{
+					cached.put(entry.getKey(), Optional.<Entity>absent());
+				}
+				else if(LOADING.equals(value))
+				{
+					reserved.put(entry.getKey(), entry.getValue());
+				}
+				else
+				{
+					unsettled.add(entry.getKey());
+				}
+			}
+			cacheLocally(cached, started);
+			found.putAll(cached);
+			missing = new ArrayList<>(missing);
+			missing.removeAll(cached.keySet());
+		}
+		final List<com.google.appengine.api.datastore.Key> keys = new ArrayList<>(missing.size());
+		for(final String path : missing)
+		{
+			keys.add(Key.create(FileImpl.class, path).getRaw());
+		}
+		return new Lookup(started, found, missing, reserved, unsettled,
+				keys.isEmpty() ? null : DatastoreServiceFactory.getAsyncDatastoreService().get(keys));
+	}
+	
+	/**
+	 * Get the statistics for the local cache.
+	 * @return the cache statistics
+	 */
+	public CacheStats stats()
+	{
+		return local.stats();
+	}
+	
+	/**
+	 * Forget what is cached for some paths, and stop caching them, because writes to them have been issued but may
+	 * not have landed yet.
+	 * @param paths the normalized paths of the files
+	 */
+	public void changing(final Iterable<String> paths)
+	{
+		final Map<String, Object> marks = new HashMap<>();
+		for(final String path : paths)
+		{
+			changing.put(path, Boolean.TRUE);
+			marks.put(FILE_PREFIX + path, CHANGING);
+		}
+		generation.incrementAndGet();
+		local.invalidateAll(paths);
+		if(shared != null)
+		{
+			shared.putAll(marks, Expiration.byDeltaSeconds(CHANGE_WINDOW_SECS));
+		}
+	}
+	
+	/**
+	 * Forget what is cached for some paths, because the files at them were created, changed or deleted. The paths
+	 * can be cached again straight away, even if they were {@link #changing(Iterable)}.
+	 * @param paths the normalized paths of the files
+	 */
+	public void invalidate(final Iterable<String> paths)
+	{
+		// bump the generation first, so that a lookup that cached a path before it was forgotten here notices
+		generation.incrementAndGet();
+		changing.invalidateAll(paths);
+		local.invalidateAll(paths);
+		if(shared != null)
+		{
+			final List<String> keys = new ArrayList<>();
+			for(final String path : paths)
+			{
+				keys.add(FILE_PREFIX + path);
+			}
+			shared.deleteAll(keys);
+		}
+	}
+	
+	/**
+	 * Forget what is cached locally under directories that have just been created. Nothing can be under a directory
+	 * that didn't exist, so anything cached there was left from a deleted tree that was reclaimed without this cache,
+	 * and would show up again through the new directory.
+	 * @param directories the normalized paths of the new directories
+	 */
+	public void invalidateUnder(final Set<String> directories)
+	{
+		generation.incrementAndGet();
+		final List<String> buried = new ArrayList<>();
+		for(final String path : local.asMap().keySet())
+		{
+			boolean under = false;
+			final Iterator<String> ancestors = ancestors(path).iterator();
+			while(ancestors.hasNext() && !under)
+			{
+				under = directories.contains(ancestors.next());
+			}
+			if(under)
+			{
+				buried.add(path);
+			}
+		}
+		local.invalidateAll(buried);
+	}
+	
+	/**
+	 * Add entries to the local cache, unless something was invalidated since a lookup started, or they have writes in
+	 * flight.
+	 * @param entries the entries to add, keyed by path
+	 * @param started the generation when the lookup started
+	 */
+	private void cacheLocally(final Map<String, Optional<Entity>> entries, final long started)
+	{
+		final Map<String, Optional<Entity>> settled = new HashMap<>(entries);
+		settled.keySet().removeAll(changing.getAllPresent(entries.keySet()).keySet());
+		local.putAll(settled);
+		if(generation.get() != started)
+		{
+			local.invalidateAll(entries.keySet());
+		}
+	}
+	
+	/**
+	 * Look up entities in memcache, reserving the paths that memcache has nothing for with {@link #LOADING}.
+	 * @param paths the normalized paths of the files
+	 * @return the memcache value of each path, keyed by path, which is an entity, {@link #ABSENT} if there is no file
+	 *         there, {@link #LOADING} if the path is being loaded, or {@link #CHANGING} if it has writes in flight.
+	 *         Paths memcache couldn't store are left out.
+	 */
+	private Map<String, IdentifiableValue> sharedEntities(final List<String> paths)
+	{
+		final List<String> keys = new ArrayList<>(paths.size());
+		for(final String path : paths)
+		{
+			keys.add(FILE_PREFIX + path);
+		}
+		final Map<String, IdentifiableValue> cached = new HashMap<>(shared.getIdentifiables(keys));
+		if(cached.size() < keys.size())
+		{
+			final Map<String, Object> placeholders = new HashMap<>();
+			for(final String key : keys)
+			{
+				if(!cached.containsKey(key))
+				{
+					placeholders.put(key, LOADING);
+				}
+			}
+			shared.putAll(placeholders, Expiration.byDeltaSeconds(MEMCACHE_EXPIRATION_SECS), SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+			cached.putAll(shared.getIdentifiables(placeholders.keySet()));
+		}
+		
+		final Map<String, IdentifiableValue> values = new HashMap<>();
+		for(final String path : paths)
+		{
+			final IdentifiableValue value = cached.get(FILE_PREFIX + path);
+			if(value != null)
+			{
+				values.put(path, value);
+			}
+		}
+		return values;
+	}
+	
+	/**
+	 * A lookup waiting for entities from the datastore.
+	 * @author ben
+	 */
+	private final class Lookup extends Deferred<ImmutableMap<String, Entity>>
+	{
+		/**
+		 * The generation of the cache when the lookup started.
+		 */
+		private final long started;
+		
+		/**
+		 * The entities that were already cached, keyed by path.
+		 */
+		private final Map<String, Optional<Entity>> found;
+		
+		/**
+		 * The paths being loaded from the datastore.
+		 */
+		private final List<String> missing;
+		
+		/**
+		 * The memcache placeholders of the paths being loaded, keyed by path.
+		 */
+		private final Map<String, IdentifiableValue> reserved;
+		
+		/**
+		 * The paths that memcache says have writes in flight, which aren't cached locally either.
+		 */
+		private final Set<String> unsettled;
+		
+		/**
+		 * The entities being loaded from the datastore, or {@code null} if everything was cached.
+		 */
+		private final Future<Map<com.google.appengine.api.datastore.Key, Entity>> loading;
+		
+		/**
+		 * Create a new lookup.
+		 * @param started the generation of the cache when the lookup started
+		 * @param found the entities that were already cached
+		 * @param missing the paths being loaded from the datastore
+		 * @param reserved the memcache placeholders of the paths being loaded
+		 * @param unsettled the paths that memcache says have writes in flight
+		 * @param loading the entities being loaded, or {@code null} if there are none
+		 */
+		Lookup(final long started, final Map<String, Optional<Entity>> found, final List<String> missing,
+				final Map<String, IdentifiableValue> reserved, final Set<String> unsettled,
+				final Future<Map<com.google.appengine.api.datastore.Key, Entity>> loading)
+		{
+			this.started = started;
+			this.found = found;
+			this.missing = missing;
+			this.reserved = reserved;
+			this.unsettled = unsettled;
+			this.loading = loading;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected Iterable<? extends Future<?>> pending()
+		{
+			return loading == null ? ImmutableList.<Future<?>>of() : ImmutableList.of(loading);
+		}
+		
+		/**
+		 * Wait for the datastore and cache what it returned, unless the paths were invalidated in the meantime.
+		 * @return the entities of the files that exist, keyed by path
+		 */
+		@Override
+		protected ImmutableMap<String, Entity> compute()
+		{
+			if(loading != null)
+			{
+				final Map<com.google.appengine.api.datastore.Key, Entity> stored = await(loading);
+				final Map<String, Optional<Entity>> loaded = new HashMap<>();
+				final Map<String, CasValues> shareable = new HashMap<>();
+				final Expiration expiration = Expiration.byDeltaSeconds(MEMCACHE_EXPIRATION_SECS);
+				for(final String path : missing)
+				{
+					final Entity entity = stored.get(Key.create(FileImpl.class, path).getRaw());
+					loaded.put(path, Optional.fromNullable(entity));
+					final IdentifiableValue placeholder = reserved.get(path);
+					if(placeholder != null)
+					{
+						shareable.put(FILE_PREFIX + path, new CasValues(placeholder, entity == null ? ABSENT : entity, expiration));
+					}
+				}
+				final Map<String, Optional<Entity>> cacheable = new HashMap<>(loaded);
+				cacheable.keySet().removeAll(unsettled);
+				cacheLocally(cacheable, started);
+				if(!shareable.isEmpty())
+				{
+					shared.putIfUntouched(shareable);
+				}
+				found.putAll(loaded);
+			}
+			
+			final ImmutableMap.Builder<String, Entity> entities = ImmutableMap.builder();
+			for(final Map.Entry<String, Optional<Entity>> entry : found.entrySet())
+			{
+				if(entry.getValue().isPresent())
+				{
+					entities.put(entry.getKey(), entry.getValue().get());
+				}
+			}
+			return entities.build();
+		}
+	}
+}
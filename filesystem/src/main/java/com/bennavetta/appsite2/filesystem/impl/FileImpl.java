@@ -15,23 +15,26 @@
  */
 package com.bennavetta.appsite2.filesystem.impl;
 
-import static com.bennavetta.appsite2.filesystem.util.PathUtils.lastPathComponent;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.util.Arrays;
+import java.util.List;
 
 import com.bennavetta.appsite2.filesystem.File;
 import com.bennavetta.appsite2.filesystem.FileSystem;
 import com.bennavetta.appsite2.filesystem.FileSystemManager;
+import com.bennavetta.appsite2.filesystem.util.FilePath;
 import com.google.appengine.api.blobstore.BlobKey;
 import com.google.common.net.MediaType;
 import com.googlecode.objectify.Ref;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Ignore;
 import com.googlecode.objectify.annotation.Index;
 import com.googlecode.objectify.annotation.Load;
 import com.googlecode.objectify.condition.IfNotNull;
+import com.googlecode.objectify.condition.IfTrue;
 
 /**
  * Objectify-based implementation of the {@link File} interface.
@@ -48,12 +51,27 @@ public class FileImpl implements File
 	private String path;
 	
 	/**
-	 * A pointer to this file's parent.
+	 * The parsed form of {@link #path}, created when it is first needed. Files loaded by Objectify only have their path
+	 * string, so this can't be set up front.
 	 */
-	@Load
+	@Ignore
+	private FilePath parsedPath;
+	
+	/**
+	 * A pointer to this file's parent. It is only loaded along with the file in the {@link WithParent} load group,
+	 * and otherwise fetched when it is first used.
+	 */
+	@Load(WithParent.class)
 	@Index(IfNotNull.class)
 	private Ref<FileImpl> parent;
 	
+	/**
+	 * The paths of every directory containing this file, so that a whole subtree can be found with a single query.
+	 * @see com.bennavetta.appsite2.filesystem.util.PathUtils#ancestors(String)
+	 */
+	@Index
+	private List<String> ancestors;
+	
 	/**
 	 * The name of the file system that this file belongs to.
 	 * @see #getFileSystem()
@@ -77,6 +95,43 @@ public class FileImpl implements File
 	 */
 	private MediaType mimeType;
 	
+	/**
+	 * The MIME type of the file without any parameters, such as {@code image/png}, or {@code null} for a directory.
+	 * Kept separately from {@link #mimeType} so that it can be indexed and filtered on.
+	 * @see FileSummaries
+	 */
+	@Index
+	private String baseType;
+	
+	/**
+	 * The top-level type of the file's MIME type, such as {@code image}, or {@code null} for a directory.
+	 * @see FileSummaries
+	 */
+	@Index
+	private String topLevelType;
+	
+	/**
+	 * The size of the file's content in bytes. Indexed so that it can be read by projection queries.
+	 * @see #getSize()
+	 * @see FileSummaries
+	 */
+	@Index
+	private long size;
+	
+	/**
+	 * The digest of a directory's content, or {@code null} for an empty directory or a file.
+	 * @see #getDigest()
+	 * @see DirectoryDigests
+	 */
+	private byte[] digest;
+	
+	/**
+	 * Whether this file has been deleted, but not yet reclaimed. Only indexed when set, so that tombstones are cheap to find.
+	 * @see Tombstones
+	 */
+	@Index(IfTrue.class)
+	private boolean tombstone;
+	
 	/**
 	 * Empty constructor for Objectify.
 	 */
@@ -94,6 +149,8 @@ public class FileImpl implements File
 		this.path = checkNotNull(path, "Path cannot be null");
 		this.namespace = checkNotNull(namespace, "Namespace cannot be null");
 		//CHECKSTYLE.ON: MultipleStringLiterals
+		this.parsedPath = FilePath.of(path);
+		this.ancestors = parsedPath.getAncestors();
 		
 		// parent will be null for root directory
 		if(parent != null)
@@ -160,6 +217,8 @@ public class FileImpl implements File
 		//CHECKSTYLE.OFF: MultipleStringLiterals - declaring fields for error messages is silly
 		this.path = checkNotNull(path, "Path cannot be null");
 		//CHECKSTYLE.ON: MultipleStringLiterals
+		this.parsedPath = FilePath.of(path);
+		this.ancestors = parsedPath.getAncestors();
 	}
 
 	/**
@@ -169,6 +228,19 @@ public class FileImpl implements File
 	public final void setMimeType(final MediaType mimeType)
 	{
 		this.mimeType = mimeType;
+		this.baseType = mimeType == null ? null : mimeType.withoutParameters().toString();
+		this.topLevelType = mimeType == null ? null : mimeType.type();
+	}
+	
+	/**
+	 * Set the size of this file's content. This should be changed along with the blob key.
+	 * @param size the size in bytes
+	 * @see #getSize()
+	 */
+	public final void setSize(final long size)
+	{
+		checkArgument(size >= 0, "Size cannot be negative: %s", size);
+		this.size = size;
 	}
 
 	/**
@@ -177,7 +249,20 @@ public class FileImpl implements File
 	@Override
 	public final String getName()
 	{
-		return lastPathComponent(path);
+		return filePath().getName();
+	}
+	
+	/**
+	 * Get the parsed form of this file's path.
+	 * @return the path
+	 */
+	final FilePath filePath()
+	{
+		if(parsedPath == null)
+		{
+			parsedPath = FilePath.of(path);
+		}
+		return parsedPath;
 	}
 
 	/**
@@ -204,7 +289,17 @@ public class FileImpl implements File
 	@Override
 	public final File getParent()
 	{
-		return parent.get();
+		return parentFile();
+	}
+	
+	/**
+	 * Get this file's parent without going through the {@link File} interface. The parent is loaded if it wasn't
+	 * loaded along with this file.
+	 * @return the parent, or {@code null} for the root directory
+	 */
+	final FileImpl parentFile()
+	{
+		return parent == null ? null : parent.get();
 	}
 	
 	/**
@@ -218,6 +313,37 @@ public class FileImpl implements File
 		this.parent = Ref.create(parent);
 	}
 
+	/**
+	 * Set the digest of a directory's content. This is normally maintained by {@link DirectoryDigests}, but a new
+	 * directory's digest can be set before it is first saved.
+	 * @param digest the new digest
+	 * @see #getDigest()
+	 */
+	final void setDigest(final byte[] digest)
+	{
+		this.digest = Arrays.copyOf(digest, digest.length);
+	}
+	
+	/**
+	 * Check if this file has been deleted, but not yet reclaimed. Tombstones and everything under them are hidden.
+	 * @return {@code true} if this file is a tombstone
+	 * @see Tombstones
+	 */
+	public final boolean isTombstone()
+	{
+		return tombstone;
+	}
+	
+	/**
+	 * Mark this file as deleted, but not yet reclaimed.
+	 * @param tombstone whether this file is a tombstone
+	 * @see #isTombstone()
+	 */
+	public final void setTombstone(final boolean tombstone)
+	{
+		this.tombstone = tombstone;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -235,6 +361,15 @@ public class FileImpl implements File
 	{
 		return mimeType;
 	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public final long getSize()
+	{
+		return size;
+	}
 
 	/**
 	 * {@inheritDoc}
@@ -244,5 +379,40 @@ public class FileImpl implements File
 	{
 		return Arrays.copyOf(md5Hash, md5Hash.length);
 	}
-
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public final byte[] getDigest()
+	{
+		byte[] result;
+		if(!isDirectory())
+		{
+			result = getMD5Hash();
+		}
+		else if(digest == null)
+		{
+			result = DirectoryDigests.empty();
+		}
+		else
+		{
+			result = Arrays.copyOf(digest, digest.length);
+		}
+		return result;
+	}
+	
+	/**
+	 * The Objectify load group that loads a file's parent along with the file. Parents aren't loaded by default,
+	 * since loading a file would then load every directory above it; pass this to
+	 * {@link com.googlecode.objectify.cmd.Loader#group(Class...)} when the parents will be needed.
+	 * @author ben
+	 */
+	public static final class WithParent
+	{
+		/**
+		 * Hidden constructor.
+		 */
+		private WithParent() {}
+	}
 }
@@ -0,0 +1,287 @@
+/**
+ * Copyright 2013 Ben Navetta <ben.navetta@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.appsite2.filesystem.impl;
+
+import static com.google.appengine.api.datastore.Query.FilterOperator.EQUAL;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import com.bennavetta.appsite2.filesystem.util.FileSummary;
+import com.bennavetta.appsite2.filesystem.util.Page;
+import com.google.appengine.api.blobstore.BlobInfoFactory;
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.PropertyProjection;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.common.collect.ImmutableList;
+import com.google.common.net.MediaType;
+import com.googlecode.objectify.Key;
+
+/**
+ * Lists {@link FileSummary file summaries} with projection queries, which read the size and type of each file straight
+ * from the datastore's indexes instead of loading whole entities. Listings can be filtered by MIME type on the server,
+ * either by an exact type such as {@code image/png} or by a top-level type such as {@code image/*}.
+ * <p>
+ * Projection queries need composite indexes, which the development server generates as they are used. Deployed
+ * applications need indexes on kind {@code file} for {@code parent} or {@code ancestors}, then optionally
+ * {@code topLevelType} or {@code baseType}, then the projected {@code size} and (unless filtering on it)
+ * {@code baseType}. They are declared, along with the indexes {@link Tombstones} uses, in the
+ * {@code com/bennavetta/appsite2/filesystem/datastore-indexes.xml} resource, whose entries belong in the application's
+ * {@code WEB-INF/datastore-indexes.xml}. Files saved before these properties existed aren't listed until
+ * {@link AncestorIndexMigration} has filled them in.
+ * </p>
+ * @author ben
+ *
+ */
+final class FileSummaries
+{
+	/**
+	 * The datastore property holding the size of a file's content.
+	 */
+	static final String SIZE_PROPERTY = "size";
+	
+	/**
+	 * The datastore property holding a file's MIME type without parameters.
+	 */
+	static final String BASE_TYPE_PROPERTY = "baseType";
+	
+	/**
+	 * The datastore property holding the top-level type of a file's MIME type.
+	 */
+	static final String TOP_LEVEL_TYPE_PROPERTY = "topLevelType";
+	
+	/**
+	 * The datastore property holding the key of a file's parent.
+	 */
+	private static final String PARENT_PROPERTY = "parent";
+	
+	/**
+	 * The MIME type wildcard, which matches any type or subtype.
+	 */
+	private static final String WILDCARD = "*";
+	
+	/**
+	 * Hidden constructor.
+	 */
+	private FileSummaries() {}
+	
+	/**
+	 * List one page of summaries of a directory's children, leaving out tombstones.
+	 * @param path the path of the directory
+	 * @param type the MIME type to match (which may have wildcards), or {@code null} to list everything
+	 * @param cursor the web-safe cursor of the page, or {@code null} for the first page
+	 * @param pageSize the most children to return
+	 * @return the summaries of the children on the page
+	 */
+	static Page<FileSummary> children(final String path, final MediaType type, final String cursor, final int pageSize)
+	{
+		final QueryResultList<Entity> results = query(new FilterPredicate(PARENT_PROPERTY, EQUAL,
+				Key.create(FileImpl.class, path).getRaw()), type, cursor, pageSize);
+		final Collection<Key<FileImpl>> tombstones = results.isEmpty() ? ImmutableList.<Key<FileImpl>>of() : Tombstones.childrenOf(path);
+		final ImmutableList.Builder<FileSummary> summaries = ImmutableList.builder();
+		for(final Entity entity : results)
+		{
+			if(!tombstones.contains(Key.<FileImpl>create(entity.getKey())))
+			{
+				summaries.add(summarize(entity, type));
+			}
+		}
+		return new Page<>(summaries.build(), next(results, pageSize));
+	}
+	
+	/**
+	 * List one page of summaries of everything under a directory, at any depth, leaving out anything under a
+	 * tombstone.
+	 * @param path the path of the directory
+	 * @param type the MIME type to match (which may have wildcards), or {@code null} to list everything
+	 * @param cursor the web-safe cursor of the page, or {@code null} for the first page
+	 * @param pageSize the most files to return
+	 * @return the summaries of the files on the page
+	 */
+	static Page<FileSummary> tree(final String path, final MediaType type, final String cursor, final int pageSize)
+	{
+		final QueryResultList<Entity> results = query(new FilterPredicate(AncestorIndexMigration.ANCESTORS_PROPERTY, EQUAL, path),
+				type, cursor, pageSize);
+		final List<String> tombstones = results.isEmpty() ? ImmutableList.<String>of() : Tombstones.under(path);
+		final ImmutableList.Builder<FileSummary> summaries = ImmutableList.builder();
+		for(final Entity entity : results)
+		{
+			if(!Tombstones.buried(entity.getKey().getName(), tombstones))
+			{
+				summaries.add(summarize(entity, type));
+			}
+		}
+		return new Page<>(summaries.build(), next(results, pageSize));
+	}
+	
+	/**
+	 * Start loading the sizes of some blobs, from their {@link com.google.appengine.api.blobstore.BlobInfo}s.
+	 * @param blobKeys the blobs
+	 * @return the blobs' info entities, as they are loaded
+	 * @see #sizeOf(Map, BlobKey)
+	 */
+	static Future<Map<com.google.appengine.api.datastore.Key, Entity>> blobSizes(final Collection<BlobKey> blobKeys)
+	{
+		return DatastoreServiceFactory.getAsyncDatastoreService().get(blobInfoKeys(blobKeys));
+	}
+	
+	/**
+	 * Get the keys of some blobs' info entities, so that they can be loaded along with other entities.
+	 * @param blobKeys the blobs
+	 * @return the keys of their info
+	 * @see #sizeOf(Map, BlobKey)
+	 */
+	static List<com.google.appengine.api.datastore.Key> blobInfoKeys(final Collection<BlobKey> blobKeys)
+	{
+		final List<com.google.appengine.api.datastore.Key> keys = new ArrayList<>(blobKeys.size());
+		for(final BlobKey blobKey : blobKeys)
+		{
+			keys.add(blobInfoKey(blobKey));
+		}
+		return keys;
+	}
+	
+	/**
+	 * Get the size of a blob.
+	 * @param infos the blob info entities from {@link #blobSizes(Collection)}, which may include other entities too
+	 * @param blobKey the blob
+	 * @return the size of the blob in bytes, or {@code 0} if it has no info
+	 */
+	static long sizeOf(final Map<com.google.appengine.api.datastore.Key, Entity> infos, final BlobKey blobKey)
+	{
+		final Entity info = infos.get(blobInfoKey(blobKey));
+		final Object size = info == null ? null : info.getProperty(BlobInfoFactory.SIZE);
+		return size instanceof Long ? (Long) size : 0;
+	}
+	
+	/**
+	 * Get the key of a blob's info entity.
+	 * @param blobKey the blob
+	 * @return the key of its info
+	 */
+	private static com.google.appengine.api.datastore.Key blobInfoKey(final BlobKey blobKey)
+	{
+		return KeyFactory.createKey(BlobInfoFactory.KIND, blobKey.getKeyString());
+	}
+	
+	/**
+	 * Run one page of a projection query for file summaries.
+	 * @param scope the filter choosing which files to list
+	 * @param type the MIME type to match, or {@code null} to match everything
+	 * @param cursor the web-safe cursor of the page, or {@code null} for the first page
+	 * @param pageSize the most files to return
+	 * @return the projected entities
+	 */
+	private static QueryResultList<Entity> query(final Filter scope, final MediaType type, final String cursor, final int pageSize)
+	{
+		final Query query = new Query(Key.getKind(FileImpl.class)).addProjection(new PropertyProjection(SIZE_PROPERTY, Long.class));
+		final Filter typeFilter = typeFilter(type);
+		if(typeFilter == null)
+		{
+			query.setFilter(scope);
+		}
+		else
+		{
+			query.setFilter(CompositeFilterOperator.and(scope, typeFilter));
+		}
+		// properties with equality filters can't be projected, but then their value is already known
+		if(!isExact(type))
+		{
+			query.addProjection(new PropertyProjection(BASE_TYPE_PROPERTY, String.class));
+		}
+		final FetchOptions options = FetchOptions.Builder.withLimit(pageSize);
+		if(cursor != null)
+		{
+			options.startCursor(Cursor.fromWebSafeString(cursor));
+		}
+		return DatastoreServiceFactory.getDatastoreService().prepare(query).asQueryResultList(options);
+	}
+	
+	/**
+	 * Create the filter for a MIME type.
+	 * @param type the type, or {@code null}
+	 * @return a filter on the top-level type for a wildcard subtype, a filter on the base type for an exact type, or
+	 * {@code null} if the type matches everything
+	 */
+	private static Filter typeFilter(final MediaType type)
+	{
+		Filter filter = null;
+		if(isExact(type))
+		{
+			filter = new FilterPredicate(BASE_TYPE_PROPERTY, EQUAL, type.withoutParameters().toString());
+		}
+		else if(type != null && !WILDCARD.equals(type.type()))
+		{
+			filter = new FilterPredicate(TOP_LEVEL_TYPE_PROPERTY, EQUAL, type.type());
+		}
+		return filter;
+	}
+	
+	/**
+	 * Check if a MIME type has no wildcards.
+	 * @param type the type, or {@code null}
+	 * @return {@code true} if the type only matches itself
+	 */
+	private static boolean isExact(final MediaType type)
+	{
+		return type != null && !type.hasWildcard();
+	}
+	
+	/**
+	 * Turn a projected entity into a summary.
+	 * @param entity the entity
+	 * @param type the MIME type the query matched
+	 * @return the summary
+	 */
+	private static FileSummary summarize(final Entity entity, final MediaType type)
+	{
+		MediaType mimeType;
+		if(isExact(type))
+		{
+			mimeType = type.withoutParameters();
+		}
+		else
+		{
+			final String baseType = (String) entity.getProperty(BASE_TYPE_PROPERTY);
+			mimeType = baseType == null ? null : MediaType.parse(baseType);
+		}
+		return new FileSummary(entity.getKey().getName(), mimeType, (Long) entity.getProperty(SIZE_PROPERTY));
+	}
+	
+	/**
+	 * Find the cursor for the page after a page of results.
+	 * @param results the results
+	 * @param pageSize the size of a full page
+	 * @return the web-safe cursor, or {@code null} if this was the last page
+	 */
+	private static String next(final QueryResultList<Entity> results, final int pageSize)
+	{
+		// a short page must be the last one
+		return results.size() < pageSize ? null : results.getCursor().toWebSafeString();
+	}
+}
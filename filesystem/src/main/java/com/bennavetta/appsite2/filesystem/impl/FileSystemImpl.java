@@ -15,6 +15,8 @@
  */
 package com.bennavetta.appsite2.filesystem.impl;
 
+import static com.bennavetta.appsite2.filesystem.util.PathUtils.SEPARATOR;
+import static com.bennavetta.appsite2.filesystem.util.PathUtils.ancestors;
 import static com.bennavetta.appsite2.filesystem.util.PathUtils.normalize;
 import static com.bennavetta.appsite2.filesystem.util.PathUtils.withoutLastComponent;
 import static com.google.common.base.Preconditions.checkArgument;
@@ -23,30 +25,84 @@ import static com.google.common.base.Preconditions.checkState;
 import static com.googlecode.objectify.ObjectifyService.factory;
 import static com.googlecode.objectify.ObjectifyService.ofy;
 
-import java.net.URI;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import com.bennavetta.appsite2.filesystem.File;
 import com.bennavetta.appsite2.filesystem.FileSystem;
 import com.bennavetta.appsite2.filesystem.FileSystemException;
+import com.bennavetta.appsite2.filesystem.Snapshot;
 import com.bennavetta.appsite2.filesystem.util.FileInfo;
+import com.bennavetta.appsite2.filesystem.util.FilePath;
+import com.bennavetta.appsite2.filesystem.util.FileSummary;
+import com.bennavetta.appsite2.filesystem.util.Page;
+import com.bennavetta.appsite2.sync.Rsync;
+import com.bennavetta.appsite2.sync.protocol.Blocks;
+import com.bennavetta.appsite2.sync.protocol.DifferenceReader;
+import com.bennavetta.appsite2.sync.protocol.DifferenceWriter;
 import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.files.AppEngineFile;
+import com.google.appengine.api.files.FileReadChannel;
+import com.google.appengine.api.files.FileService;
+import com.google.appengine.api.files.FileServiceFactory;
+import com.google.appengine.api.files.FileWriteChannel;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.taskqueue.Queue;
 import com.google.common.base.Function;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
+import com.google.common.base.Optional;
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.net.MediaType;
+import com.google.common.util.concurrent.Futures;
 import com.googlecode.objectify.Key;
-import com.googlecode.objectify.VoidWork;
+import com.googlecode.objectify.Work;
+import com.googlecode.objectify.cmd.Query;
 
 /**
  * JPA- and BlobStore-based implementation of the file system API.
+ * <p>
+ * Every change also updates the digest of each directory above it, in a transaction per directory, so the root
+ * directory is written once for every change and the datastore only sustains about one such write per second.
+ * Concurrent changes in one instance are applied together, and changes that collide with other instances are
+ * retried until they commit, but deploying many files should use {@link #createAll(Iterable)}, which updates each
+ * directory once for the whole batch. The digests are written after the files, so a failure in between leaves them
+ * wrong until {@link #repairDigests(File)} is run. New directories are written without a transaction, so creates
+ * running at the same time shouldn't both create the same missing directory: each would count it in its parent's
+ * digest. Create shared directories first, or create everything with one call.
+ * </p>
  * @author ben
  *
  */
@@ -54,14 +110,24 @@ import com.googlecode.objectify.VoidWork;
 public class FileSystemImpl implements FileSystem
 {
 	/**
-	 * The maximum size of the directory listing cache.
+	 * The datastore property holding a file's blob key.
 	 */
-	private static final long MAX_CACHE_SIZE = 1000; // NOPMD - can't really get much shorter
+	private static final String BLOB_KEY_PROPERTY = "blobKey";
 	
 	/**
-	 * The time to wait after an object in the directory listing cache is last accessed before marking it as expired.
+	 * The datastore property holding a file's MD5 hash.
 	 */
-	private static final long CACHE_EXPIRATION_MINS = 2; // NOPMD - can't really get much shorter
+	private static final String MD5_PROPERTY = "md5Hash";
+	
+	/**
+	 * The number of keys fetched by each query when listing a subtree.
+	 */
+	private static final int TREE_BATCH_SIZE = 500;
+	
+	/**
+	 * The number of files saved by each datastore call when creating files in bulk.
+	 */
+	private static final int SAVE_BATCH_SIZE = 500;
 	
 	static
 	{
@@ -79,20 +145,83 @@ public class FileSystemImpl implements FileSystem
 	/**
 	 * A cache of the contents of directories. Listing directories requires a query, so it is more expensive than a lookup.
 	 */
-	private final LoadingCache<FileImpl, ImmutableList<Key<FileImpl>>> listingCache;
+	private final ListingCache listingCache;
+	
+	/**
+	 * A cache of the block signatures of file content, used for transferring differences.
+	 */
+	private final SignatureCache signatureCache = new SignatureCache();
+	
+	/**
+	 * A cache of file entities, including paths with no file, so that looking files up doesn't usually need the
+	 * datastore.
+	 */
+	private final FileCache fileCache;
+	
+	/**
+	 * Schedules the tasks that reclaim deleted directory trees.
+	 * @see Tombstones
+	 */
+	private final SweepScheduler sweeper;
+	
+	/**
+	 * The in-memory index of every file, or {@code null} if reads go to the caches and the datastore.
+	 * @see #enableIndex(long, TimeUnit)
+	 */
+	private volatile NamespaceIndex index;
 	
 	/**
 	 * Create a new file system with the given name. This file system will only consider files in this namespace.
+	 * Deleted directory trees are reclaimed by tasks on the default task queue.
 	 * @param name the name of the file system
 	 * @see #getName()
 	 */
 	public FileSystemImpl(final String name)
+	{
+		this(name, Tombstones.queue(Queue.DEFAULT_QUEUE));
+	}
+	
+	/**
+	 * Create a new file system with the given name. Recursive deletes only mark the directory as deleted, which hides
+	 * it immediately, and leave reclaiming its contents to a task scheduled by {@code sweeper}.
+	 * <p>
+	 * Files and directory listings are only cached by this instance, so it is meant for namespaces that no other
+	 * instance changes. Changes made through other instances can take up to a minute to show up in
+	 * {@link #fileAt(String)}, and listings that are read often may not show them until this instance changes the
+	 * directory. Use {@link #FileSystemImpl(String, SweepScheduler, MemcacheService)} when several instances share a
+	 * namespace.
+	 * </p>
+	 * @param name the name of the file system
+	 * @param sweeper schedules the tasks that reclaim deleted directory trees
+	 * @see #getName()
+	 * @see Tombstones
+	 */
+	public FileSystemImpl(final String name, final SweepScheduler sweeper)
+	{
+		this.name = name;
+		this.sweeper = checkNotNull(sweeper, "Sweeper cannot be null");
+		this.listingCache = new ListingCache();
+		this.fileCache = new FileCache();
+	}
+	
+	/**
+	 * Create a new file system with the given name that shares directory listings and files with other instances
+	 * through memcache, so that they can be cached for much longer. Changes made through other instances show up in
+	 * {@link #fileAt(String)} within a few seconds, and in directory listings within a second.
+	 * @param name the name of the file system
+	 * @param sweeper schedules the tasks that reclaim deleted directory trees
+	 * @param shared the memcache service to share directory listings and files through
+	 * @see #getName()
+	 * @see ListingCache
+	 * @see FileCache
+	 */
+	public FileSystemImpl(final String name, final SweepScheduler sweeper, final MemcacheService shared)
 	{
 		this.name = name;
-		listingCache = CacheBuilder.newBuilder()
-				.maximumSize(MAX_CACHE_SIZE)
-				.expireAfterAccess(CACHE_EXPIRATION_MINS, TimeUnit.MINUTES)
-				.build(new FileListingLoader());
+		this.sweeper = checkNotNull(sweeper, "Sweeper cannot be null");
+		checkNotNull(shared, "Memcache service cannot be null");
+		this.listingCache = new ListingCache(shared, ListingCache.DEFAULT_MAX_CHILDREN);
+		this.fileCache = new FileCache(shared, FileCache.DEFAULT_MAX_FILES);
 	}
 	
 	/**
@@ -103,26 +232,149 @@ public class FileSystemImpl implements FileSystem
 	{
 		return this.name;
 	}
+	
+	/**
+	 * Get the statistics for this file system's cache of directory listings, which holds up to
+	 * {@link ListingCache#DEFAULT_MAX_CHILDREN} children across all listings.
+	 * @return the cache statistics
+	 */
+	public final CacheStats getListingCacheStats()
+	{
+		return listingCache.stats();
+	}
+	
+	/**
+	 * Get the statistics for this file system's cache of files, which holds up to {@link FileCache#DEFAULT_MAX_FILES}
+	 * paths. Lookups check each file's ancestors too, so each path looked up counts once per level.
+	 * @return the cache statistics
+	 */
+	public final CacheStats getFileCacheStats()
+	{
+		return fileCache.stats();
+	}
+	
+	/**
+	 * Build an in-memory index of every file, and answer {@link #fileAt(String)}, {@link #filesAt(Iterable)},
+	 * {@link #list(File)} and {@link #listFiles(File)} (and their asynchronous forms) from it without touching the
+	 * datastore. The index is built with a paged scan of every file before this returns, and is kept up to date with
+	 * changes made through this file system. Changes made elsewhere are checked for during reads, at most once per
+	 * {@code checkInterval}, by comparing directory digests. Calling this again rebuilds the index. While the index is
+	 * enabled, {@link #snapshot()} costs nothing, since the index is made of immutable snapshots.
+	 * <p>
+	 * Every file is held in memory, so this is only meant for file systems of up to tens of thousands of files.
+	 * </p>
+	 * @param checkInterval the minimum time between checks for changes made elsewhere
+	 * @param unit the unit of {@code checkInterval}
+	 * @see NamespaceIndex
+	 */
+	public final void enableIndex(final long checkInterval, final TimeUnit unit)
+	{
+		index = new NamespaceIndex(checkInterval, unit);
+	}
+	
+	/**
+	 * Stop using the in-memory index, and go back to reading through the caches.
+	 * @see #enableIndex(long, TimeUnit)
+	 */
+	public final void disableIndex()
+	{
+		index = null;
+	}
+	
+	/**
+	 * Recalculate the digests of a directory and everything under it, and fix any that are wrong, along with the
+	 * digests of the directory's ancestors. Digests are updated after each change is saved, so this repairs the
+	 * digests above a change that was interrupted part way through. It reads every directory in the tree, and may
+	 * miss very recent changes, so it should be run while the tree isn't being changed.
+	 * @param directory the directory to check
+	 * @return the number of directories whose digest was wrong
+	 * @see AncestorIndexMigration
+	 */
+	public final int repairDigests(final File directory)
+	{
+		checkArgument(directory.isDirectory(), "Not a directory: %s", directory.getPath());
+		final ImmutableList<String> repaired = DirectoryDigests.rebuild(directory.getPath());
+		if(!repaired.isEmpty())
+		{
+			changed(Iterables.concat(repaired, ancestors(directory.getPath())));
+		}
+		return repaired.size();
+	}
+	
+	/**
+	 * Report files changed through this file system, so that they are loaded again the next time they are used.
+	 * @param paths the normalized paths of the changed files
+	 */
+	private void changed(final Iterable<String> paths)
+	{
+		fileCache.invalidate(paths);
+		final NamespaceIndex current = index;
+		if(current != null)
+		{
+			current.refresh(paths);
+		}
+	}
+	
+	/**
+	 * Report files whose writes through this file system have been issued, but may not have landed yet, so that they
+	 * aren't cached until they have.
+	 * @param written the entities being written, keyed by normalized path, with an absent value for deleted files
+	 */
+	private void changing(final Map<String, Optional<Entity>> written)
+	{
+		fileCache.changing(written.keySet());
+		final NamespaceIndex current = index;
+		if(current != null)
+		{
+			current.written(written);
+		}
+	}
 
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
 	public final ImmutableList<? extends File> listFiles(final File directory) throws FileSystemException
+	{
+		return result(listFilesAsync(directory));
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public final Future<ImmutableList<? extends File>> listFilesAsync(final File directory)
 	{
 		//CHECKSTYLE.OFF: MultipleStringLiterals - declaring fields for error messages is silly
 		checkArgument(directory instanceof FileImpl, "Unsupported File implementation: %s", directory);
 		//CHECKSTYLE.ON: MultipleStringLiterals
-		try
+		final NamespaceIndex current = index;
+		Future<ImmutableList<? extends File>> files;
+		if(current == null)
 		{
-			return ImmutableList.copyOf(ofy().load().keys(listingCache.get((FileImpl) directory)).values());
+			try
+			{
+				// the loads are started straight away, and only waited for once the result is asked for
+				final List<com.google.appengine.api.datastore.Key> children = new ArrayList<>();
+				for(final Key<FileImpl> child : listingCache.get(directory.getPath()))
+				{
+					children.add(child.getRaw());
+				}
+				files = new ChildListing(directory.getPath(), fileCache.getAllAsync(withAncestors(directory.getPath())), children,
+						DatastoreServiceFactory.getAsyncDatastoreService().get(children));
+			}
+			catch (final ExecutionException e)
+			{
+				//CHECKSTYLE.OFF: MultipleStringLiterals - more unreadable if I use a constant
+				files = Futures.immediateFailedFuture(new FileSystemException("Error listing directory " + directory.getPath(), e));
+				//CHECKSTYLE.ON: MultipleStringLiterals
+			}
 		}
-		catch (final ExecutionException e)
+		else
 		{
-			//CHECKSTYLE.OFF: MultipleStringLiterals - more unreadable if I use a constant
-			throw new FileSystemException("Error listing directory " + directory.getPath(), e);
-			//CHECKSTYLE.ON: MultipleStringLiterals
+			files = Futures.<ImmutableList<? extends File>>immediateFuture(current.snapshot().listFiles(directory));
 		}
+		return files;
 	}
 	
 	@Override
@@ -131,192 +383,1177 @@ public class FileSystemImpl implements FileSystem
 		//CHECKSTYLE.OFF: MultipleStringLiterals - declaring fields for error messages is silly
 		checkArgument(directory instanceof FileImpl, "Unsupported File implementation: %s", directory);
 		//CHECKSTYLE.ON: MultipleStringLiterals
-		try
+		final NamespaceIndex current = index;
+		ImmutableList<String> children;
+		if(current == null)
 		{
-			return new ImmutableList.Builder<String>().addAll(FluentIterable.from(
-				listingCache.get((FileImpl) directory)).transform(new KeyToString())).build();
+			try
+			{
+				children = new ImmutableList.Builder<String>().addAll(FluentIterable.from(
+					listingCache.get(directory.getPath())).transform(new KeyToString())).build();
+			}
+			catch(final ExecutionException e)
+			{
+				//CHECKSTYLE.OFF: MultipleStringLiterals - more unreadable if I use a constant
+				throw new FileSystemException("Error listing directory " + directory.getPath(), e);
+				//CHECKSTYLE.ON: MultipleStringLiterals
+			}
 		}
-		catch(final ExecutionException e)
+		else
 		{
-			//CHECKSTYLE.OFF: MultipleStringLiterals - more unreadable if I use a constant
-			throw new FileSystemException("Error listing directory " + directory.getPath(), e);
-			//CHECKSTYLE.ON: MultipleStringLiterals
+			children = current.snapshot().list(directory);
 		}
+		return children;
 	}
 
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
-	public final File fileAt(final String path)
+	public final Page<String> list(final File directory, final String cursor, final int pageSize) throws FileSystemException
 	{
-		return ofy().load().type(FileImpl.class).id(normalize(path)).now();
+		return pathPage(childKeys(directory, cursor, pageSize));
 	}
 	
+	/**
+	 * {@inheritDoc}
+	 */
 	@Override
-	public final ImmutableList<? extends File> filesAt(final String... paths)
+	public final Page<? extends File> listFiles(final File directory, final String cursor, final int pageSize) throws FileSystemException
 	{
-		return filesAt(Arrays.asList(paths));
+		return filePage(childKeys(directory, cursor, pageSize));
 	}
-
+	
+	/**
+	 * {@inheritDoc}
+	 */
 	@Override
-	public final ImmutableList<? extends File> filesAt(final Iterable<String> paths)
+	public final Iterator<String> listIterator(final File directory, final int pageSize)
 	{
-		final Iterable<String> normalized = FluentIterable.from(paths).transform(new Normalizer());
-		return ImmutableList.copyOf(ofy().load().type(FileImpl.class).ids(normalized).values());
+		checkListing(directory, pageSize);
+		return new ChildPaths(directory.getPath(), pageSize);
 	}
-
+	
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
-	public final File relativeTo(final File base, final String path)
+	public final Iterator<? extends File> fileIterator(final File directory, final int pageSize)
 	{
-		final String realPath = URI.create(base.getPath()).resolve(path).getPath();
-		return fileAt(realPath);
+		checkListing(directory, pageSize);
+		return new ChildFiles(directory.getPath(), pageSize);
 	}
-
+	
 	/**
-	 * {@inheritDoc}
+	 * Check the arguments to a paged listing.
+	 * @param directory the directory to list
+	 * @param pageSize the page size
 	 */
-	@Override
-	public final void delete(final File file, final boolean recurse) throws FileSystemException
+	private static void checkListing(final File directory, final int pageSize)
 	{
 		//CHECKSTYLE.OFF: MultipleStringLiterals - declaring fields for error messages is silly
-		checkArgument(file instanceof FileImpl, "Unsupported File implementation: %s", file);
+		checkArgument(directory instanceof FileImpl, "Unsupported File implementation: %s", directory);
+		checkArgument(pageSize > 0, "Page size must be positive: %s", pageSize);
 		//CHECKSTYLE.ON: MultipleStringLiterals
-		if(recurse)
+	}
+	
+	/**
+	 * Find one page of the keys of a directory's children with a keys-only query, leaving out tombstones. Pages bypass
+	 * the listing cache, since they are meant for directories too big to cache.
+	 * @param directory the directory
+	 * @param cursor the web-safe cursor of the page, or {@code null} for the first page
+	 * @param pageSize the most children to return
+	 * @return the keys of the children on the page
+	 */
+	private static Page<Key<FileImpl>> childKeys(final File directory, final String cursor, final int pageSize)
+	{
+		checkListing(directory, pageSize);
+		return childKeys(directory.getPath(), cursor, pageSize);
+	}
+	
+	/**
+	 * Find one page of the keys of a directory's children with a keys-only query, leaving out tombstones.
+	 * @param path the path of the directory
+	 * @param cursor the web-safe cursor of the page, or {@code null} for the first page
+	 * @param pageSize the most children to return
+	 * @return the keys of the children on the page
+	 */
+	private static Page<Key<FileImpl>> childKeys(final String path, final String cursor, final int pageSize)
+	{
+		final Page<Key<FileImpl>> keys = keyPage(ofy().load().type(FileImpl.class).filter("parent =", Key.create(FileImpl.class, path)), cursor, pageSize);
+		final ImmutableList<Key<FileImpl>> children = keys.getItems().isEmpty() ? keys.getItems()
+				: ImmutableList.copyOf(Iterables.filter(keys.getItems(), Predicates.not(Predicates.in(Tombstones.childrenOf(path)))));
+		return new Page<>(children, keys.getCursor());
+	}
+	
+	/**
+	 * Find one page of the keys of everything under a directory with a keys-only query on the ancestor index, leaving
+	 * out anything under a tombstone.
+	 * @param path the path of the directory
+	 * @param cursor the web-safe cursor of the page, or {@code null} for the first page
+	 * @param pageSize the most descendants to return
+	 * @param tombstones the paths of the tombstones under the directory
+	 * @return the keys of the descendants on the page
+	 */
+	private static Page<Key<FileImpl>> treeKeys(final String path, final String cursor, final int pageSize, final Iterable<String> tombstones)
+	{
+		final Page<Key<FileImpl>> keys = keyPage(ofy().load().type(FileImpl.class).filter(AncestorIndexMigration.ANCESTORS_PROPERTY, path),
+				cursor, pageSize);
+		return new Page<>(ImmutableList.copyOf(Iterables.filter(keys.getItems(), new NotBuried(tombstones))), keys.getCursor());
+	}
+	
+	/**
+	 * Run one page of a keys-only query.
+	 * @param query the query
+	 * @param cursor the web-safe cursor of the page, or {@code null} for the first page
+	 * @param pageSize the most keys to return
+	 * @return the keys on the page
+	 */
+	private static Page<Key<FileImpl>> keyPage(final Query<FileImpl> query, final String cursor, final int pageSize)
+	{
+		Query<FileImpl> page = query.limit(pageSize);
+		if(cursor != null)
 		{
-			final Set<FileImpl> filesToDelete = listRecurse((FileImpl) file);
-			ofy().transact(new VoidWork()
-			{
-				/**
-				 * Run in a transaction so that the file tree will be deleted once and for all, or not at all.
-				 */
-				@Override
-				public void vrun()
-				{
-					ofy().delete().entities(filesToDelete);
-				}
-			});
+			page = page.startAt(Cursor.fromWebSafeString(cursor));
 		}
-		else
+		final QueryResultIterator<Key<FileImpl>> results = page.keys().iterator();
+		final List<Key<FileImpl>> keys = new ArrayList<>(pageSize);
+		while(results.hasNext())
 		{
-			ofy().delete().entity(file);
+			keys.add(results.next());
 		}
+		// a short page must be the last one
+		final String next = keys.size() < pageSize ? null : results.getCursor().toWebSafeString();
+		return new Page<>(ImmutableList.copyOf(keys), next);
 	}
-
+	
 	/**
-	 * Internal method to do a recursive directory listing.
-	 * @param file the root file to recurse from
-	 * @throws FileSystemException if there is an error listing the files
-	 * @return the list of files located under the given directory
+	 * Turn a page of keys into a page of paths.
+	 * @param keys the keys
+	 * @return the paths of the keys, with the same cursor
 	 */
-	private final Set<FileImpl> listRecurse(final FileImpl file) throws FileSystemException
+	private static Page<String> pathPage(final Page<Key<FileImpl>> keys)
 	{
-		final Set<FileImpl> files = new HashSet<>();
-		files.add(file);
-		if(file.isDirectory())
-		{
-			for(File child : listFiles(file))
-			{
-				files.addAll(listRecurse((FileImpl) child));
-			}
-		}
-		return files;
+		return new Page<>(ImmutableList.copyOf(Lists.transform(keys.getItems(), new KeyToPath())), keys.getCursor());
+	}
+	
+	/**
+	 * Turn a page of keys into a page of files, loading them in a single batch.
+	 * @param keys the keys
+	 * @return the files, with the same cursor
+	 */
+	private static Page<FileImpl> filePage(final Page<Key<FileImpl>> keys)
+	{
+		return new Page<>(ImmutableList.copyOf(ofy().load().keys(keys.getItems()).values()), keys.getCursor());
 	}
 
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
-	public final File create(final String path, final MediaType mimeType, final BlobKey blobKey, final byte[] md5) throws FileSystemException
+	public final ImmutableList<String> listTree(final File directory) throws FileSystemException
 	{
-		final String normalized = normalize(checkNotNull(path, "Path of file cannot be null"));
-		final FileImpl parent = directory(withoutLastComponent(normalized));
-		final FileImpl file = new FileImpl(normalized, parent, name);
-		file.setMimeType(checkNotNull(mimeType, "MIME type cannot be null"));
-		file.setBlobKey(checkNotNull(blobKey, "Blob key cannot be null"));
-		file.setMD5Hash(checkNotNull(md5, "MD5 hash cannot be null"));
-		ofy().save().entity(file);
-		return file;
+		return ImmutableList.copyOf(treeIterator(directory, TREE_BATCH_SIZE));
 	}
-
+	
 	/**
-	 * Locate a directory. The directory will be created if necessary.
-	 * @param path the path of the directory
-	 * @return the loaded (possibly created) directory
-	 * @throws IllegalStateException if the directory exists but is not a directory
+	 * {@inheritDoc}
 	 */
-	private FileImpl directory(final String path) throws IllegalStateException
+	@Override
+	public final ImmutableList<? extends File> listFileTree(final File directory) throws FileSystemException
 	{
-		FileImpl dir = (FileImpl) fileAt(path);
-		if(dir == null)
-		{
-			final FileImpl parent = directory(withoutLastComponent(path));
-			dir = new FileImpl(path, parent, name);
-			ofy().save().entity(dir);
-			return dir;
-		}
-		else
-		{
-			checkState(dir.isDirectory(), "File %s is not a directory", dir.getPath());
-			return dir;
-		}
+		return ImmutableList.copyOf(fileTreeIterator(directory, TREE_BATCH_SIZE));
 	}
-
+	
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
-	public final File create(final FileInfo info) throws FileSystemException
+	public final Page<String> listTree(final File directory, final String cursor, final int pageSize) throws FileSystemException
 	{
-		return create(info.getPath(), info.getMimeType(), info.getBlobKey(), info.getMd5());
+		checkListing(directory, pageSize);
+		return pathPage(treeKeys(directory.getPath(), cursor, pageSize, Tombstones.under(directory.getPath())));
 	}
 	
 	/**
-	 * A {@link Function} that passes its input through {@link com.bennavetta.appsite2.filesystem.util.PathUtils#normalize(String)}.
-	 * @author ben
+	 * {@inheritDoc}
 	 */
-	private static final class Normalizer implements Function<String, String>
+	@Override
+	public final Page<? extends File> listFileTree(final File directory, final String cursor, final int pageSize) throws FileSystemException
 	{
-		/**
-		 * {@inheritDoc}
-		 */
-		@Override
-		public String apply(final String input)
-		{
-			return normalize(input);
-		}	
+		checkListing(directory, pageSize);
+		return filePage(treeKeys(directory.getPath(), cursor, pageSize, Tombstones.under(directory.getPath())));
 	}
 	
 	/**
-	 * A {@link CacheLoader} that loads values by performing a keys-only query that loads {@link FileImpl}s whose parent is
-	 * the given file (the key).
-	 * @author ben
-	 *
+	 * {@inheritDoc}
 	 */
-	private static final class FileListingLoader extends CacheLoader<File, ImmutableList<Key<FileImpl>>>
+	@Override
+	public final Iterator<String> treeIterator(final File directory, final int pageSize)
 	{
-		/**
-		 * {@inheritDoc}
-		 */
-		@Override
-		public ImmutableList<Key<FileImpl>> load(final File key)
+		checkListing(directory, pageSize);
+		return new TreePaths(directory.getPath(), pageSize);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public final Iterator<? extends File> fileTreeIterator(final File directory, final int pageSize)
+	{
+		checkListing(directory, pageSize);
+		return new TreeFiles(directory.getPath(), pageSize);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public final Page<FileSummary> listSummaries(final File directory, final MediaType type, final String cursor, final int pageSize)
+		throws FileSystemException
+	{
+		checkListing(directory, pageSize);
+		return isVisible(directory.getPath()) ? FileSummaries.children(directory.getPath(), type, cursor, pageSize)
+				: new Page<>(ImmutableList.<FileSummary>of(), null);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public final Page<FileSummary> listTreeSummaries(final File directory, final MediaType type, final String cursor, final int pageSize)
+		throws FileSystemException
+	{
+		checkListing(directory, pageSize);
+		return isVisible(directory.getPath()) ? FileSummaries.tree(directory.getPath(), type, cursor, pageSize)
+				: new Page<>(ImmutableList.<FileSummary>of(), null);
+	}
+	
+	/**
+	 * Check if a file still exists and hasn't been deleted with one of its ancestors.
+	 * @param path the path of the file
+	 * @return {@code true} if the file is visible
+	 */
+	private boolean isVisible(final String path)
+	{
+		return Tombstones.visible(path, fileCache.getAll(withAncestors(path)));
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public final File fileAt(final String path)
+	{
+		return Deferred.await(fileAtAsync(path));
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public final Future<File> fileAtAsync(final String path)
+	{
+		final String normalized = normalize(path);
+		final NamespaceIndex current = index;
+		return current == null ? Futures.lazyTransform(fileCache.getAllAsync(withAncestors(normalized)), new VisibleFile(normalized))
+				: Futures.<File>immediateFuture(current.snapshot().fileAt(normalized));
+	}
+	
+	@Override
+	public final ImmutableList<? extends File> filesAt(final String... paths)
+	{
+		return filesAt(Arrays.asList(paths));
+	}
+
+	@Override
+	public final ImmutableList<? extends File> filesAt(final Iterable<String> paths)
+	{
+		return Deferred.await(filesAtAsync(paths));
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public final Future<ImmutableList<? extends File>> filesAtAsync(final Iterable<String> paths)
+	{
+		final Set<String> normalized = new LinkedHashSet<>();
+		final Set<String> lookups = new HashSet<>();
+		for(final String path : FluentIterable.from(paths).transform(new Normalizer()))
 		{
-			return ImmutableList.copyOf(ofy().load().type(FileImpl.class).filter("parent =", key).keys());
+			normalized.add(path);
+			lookups.addAll(withAncestors(path));
 		}
-		
+		final NamespaceIndex current = index;
+		return current == null ? Futures.lazyTransform(fileCache.getAllAsync(lookups), new VisibleFiles(normalized))
+				: Futures.<ImmutableList<? extends File>>immediateFuture(current.snapshot().filesAt(normalized));
 	}
 	
 	/**
-	 * A {@link Function} that transforms a {@link Key} to a {@link String} by calling {@link Key#getString()}. 
-	 * @author ben
+	 * Get a path along with all of its ancestors, which are needed to tell if the file there is hidden.
+	 * @param path the normalized path
+	 * @return the path's ancestors from the root down, followed by the path itself
 	 */
-	private static final class KeyToString implements Function<Key<FileImpl>, String>
+	private static List<String> withAncestors(final String path)
 	{
-		/**
-		 * {@inheritDoc}
+		final List<String> chain = new ArrayList<>(ancestors(path));
+		chain.add(path);
+		return chain;
+	}
+	
+	/**
+	 * Get the datastore keys of the files at some paths.
+	 * @param paths the normalized paths of the files
+	 * @return the keys, in the same order
+	 */
+	private static List<com.google.appengine.api.datastore.Key> rawKeys(final Iterable<String> paths)
+	{
+		final List<com.google.appengine.api.datastore.Key> keys = new ArrayList<>();
+		for(final String path : paths)
+		{
+			keys.add(Key.create(FileImpl.class, path).getRaw());
+		}
+		return keys;
+	}
+	
+	/**
+	 * Key the entities of files by their paths.
+	 * @param entities the entities, keyed by datastore key
+	 * @return the same entities, keyed by normalized path
+	 */
+	private static Map<String, Entity> byPath(final Map<com.google.appengine.api.datastore.Key, Entity> entities)
+	{
+		final Map<String, Entity> paths = new HashMap<>();
+		for(final Entity entity : entities.values())
+		{
+			paths.put(entity.getKey().getName(), entity);
+		}
+		return paths;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * With the {@link #enableIndex(long, TimeUnit) index} enabled, this just returns its current version, after
+	 * checking for changes made elsewhere if it is time to. The index starts from a paged scan, like the one below, but
+	 * after that each version holds every change made through this file system either whole or not at all. Changes
+	 * made elsewhere only show up once a check has found them.
+	 * </p>
+	 * <p>
+	 * Otherwise every file is read with a paged scan, and the snapshot is only as consistent as the scan: the pages
+	 * aren't read at one moment, so a change made while the scan runs can show up in part, and the queries may not see
+	 * changes made just before. Enable the index if snapshots have to hold whole changes.
+	 * </p>
+	 */
+	@Override
+	public final Snapshot snapshot()
+	{
+		final NamespaceIndex current = index;
+		return current == null ? NamespaceIndex.scan() : current.snapshot();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public final File relativeTo(final File base, final String path)
+	{
+		return fileAt(FilePath.of(base.getPath()).resolve(path).toString());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public final void delete(final File file, final boolean recurse) throws FileSystemException
+	{
+		result(startDelete(file, recurse));
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public final Future<Void> deleteAsync(final File file, final boolean recurse)
+	{
+		return startDelete(file, recurse);
+	}
+	
+	/**
+	 * Start deleting a file, or marking a directory tree as deleted. The write depends on the stored file, which is
+	 * looked up along with its ancestors in one strongly consistent batch, and is issued before this returns. Deleted
+	 * trees are only handed to the sweeper once their tombstone is in place.
+	 * @param file the file or directory to delete
+	 * @param recurse whether to delete a directory's contents
+	 * @return the deletion, which only has to wait for its write
+	 */
+	@SuppressWarnings("PMD.AvoidCatchingGenericException")
+	private Future<Void> startDelete(final File file, final boolean recurse)
+	{
+		//CHECKSTYLE.OFF: MultipleStringLiterals - declaring fields for error messages is silly
+		checkArgument(file instanceof FileImpl, "Unsupported File implementation: %s", file);
+		//CHECKSTYLE.ON: MultipleStringLiterals
+		Future<Void> deletion;
+		try
+		{
+			deletion = delete(file.getPath(), recurse);
+		}
+		catch(final RuntimeException e)
+		{
+			// only bad arguments are thrown straight away, everything else is reported through the future
+			deletion = Futures.immediateFailedFuture(e);
+		}
+		return deletion;
+	}
+	
+	/**
+	 * Look up the stored file and issue the write that deletes it.
+	 * @param path the normalized path of the file or directory to delete
+	 * @param recurse whether to delete a directory's contents
+	 * @return the deletion, which only has to wait for its write
+	 * @see #startDelete(File, boolean)
+	 */
+	private Deferred<Void> delete(final String path, final boolean recurse)
+	{
+		final AsyncDatastoreService datastore = DatastoreServiceFactory.getAsyncDatastoreService();
+		// use the stored copy, since the digest of a directory could have changed since it was loaded. This is the one
+		// call that is waited for before returning, since the write depends on it and has to be issued straight away
+		final Map<String, Entity> stored = byPath(Deferred.await(datastore.get(rawKeys(withAncestors(path)))));
+		final FileImpl current = Tombstones.visible(path, stored) ? ofy().<FileImpl>toPojo(stored.get(path)) : null;
+		final boolean tombstone = recurse && current != null && current.isDirectory();
+		final Map<String, Optional<Entity>> written = new HashMap<>();
+		final Future<?> write;
+		if(tombstone)
+		{
+			// hide the tree straight away, and leave the real work to the sweeper
+			current.setTombstone(true);
+			final Entity entity = ofy().toEntity(current);
+			written.put(path, Optional.of(entity));
+			changing(written);
+			write = datastore.put(entity);
+		}
+		else
+		{
+			written.put(path, Optional.<Entity>absent());
+			changing(written);
+			write = datastore.delete(Key.create(FileImpl.class, path).getRaw());
+		}
+		if(current != null && !SEPARATOR.equals(path))
+		{
+			listingCache.invalidate(withoutLastComponent(path));
+			DirectoryDigests.update(withoutLastComponent(path), DirectoryDigests.entry(current));
+			changed(ancestors(path));
+		}
+		if(tombstone)
+		{
+			listingCache.invalidateTree(path);
+			Deferred.await(write);
+			sweeper.schedule(Tombstones.sweeper(path, fileCache));
+		}
+		return new Writes<Void>(null, ImmutableList.<Future<?>>of(write), written.keySet());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public final File create(final String path, final MediaType mimeType, final BlobKey blobKey, final byte[] md5) throws FileSystemException
+	{
+		return create(new FileInfo(checkNotNull(path, "Path of file cannot be null"),
+				checkNotNull(mimeType, "MIME type cannot be null"),
+				checkNotNull(blobKey, "Blob key cannot be null"),
+				checkNotNull(md5, "MD5 hash cannot be null")));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public final File create(final FileInfo info) throws FileSystemException
+	{
+		return createAll(ImmutableList.of(info)).get(0);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public final Future<File> createAsync(final FileInfo info)
+	{
+		return Futures.lazyTransform(startCreate(ImmutableList.of(info)), new First());
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public final ImmutableList<? extends File> createAll(final Iterable<FileInfo> infos) throws FileSystemException
+	{
+		return result(startCreate(infos));
+	}
+	
+	/**
+	 * Start creating files. The files are checked first, so that nothing is written if any of them are invalid.
+	 * @param infos the files to create
+	 * @return the creation, which only has to wait for its saves
+	 */
+	@SuppressWarnings("PMD.AvoidCatchingGenericException")
+	private Future<ImmutableList<FileImpl>> startCreate(final Iterable<FileInfo> infos)
+	{
+		// build the files first, so that nothing is written if any of them are invalid
+		final Map<String, FileImpl> files = new LinkedHashMap<>();
+		final Set<String> directories = new LinkedHashSet<>();
+		for(final FileInfo info : infos)
+		{
+			final String normalized = normalize(checkNotNull(info.getPath(), "Path of file cannot be null"));
+			checkArgument(!SEPARATOR.equals(normalized), "Cannot replace the root directory");
+			final FileImpl file = new FileImpl(normalized, null, name);
+			file.setMimeType(checkNotNull(info.getMimeType(), "MIME type cannot be null"));
+			file.setBlobKey(checkNotNull(info.getBlobKey(), "Blob key cannot be null"));
+			file.setMD5Hash(checkNotNull(info.getMd5(), "MD5 hash cannot be null"));
+			checkArgument(files.put(normalized, file) == null, "Path %s is given more than once", normalized);
+			// each file's ancestors are added from the top down, so every directory comes after its parent
+			directories.addAll(ancestors(normalized));
+		}
+		for(final String path : files.keySet())
+		{
+			checkArgument(!directories.contains(path), "Path %s is given for a file, but holds other files", path);
+		}
+		// the blobs' sizes are loaded in the same batch as the existing files
+		final List<com.google.appengine.api.datastore.Key> keys = rawKeys(Iterables.concat(directories, files.keySet()));
+		final List<BlobKey> blobKeys = new ArrayList<>(files.size());
+		for(final FileImpl file : files.values())
+		{
+			blobKeys.add(file.getBlobKey());
+		}
+		keys.addAll(FileSummaries.blobInfoKeys(blobKeys));
+		Future<ImmutableList<FileImpl>> creation;
+		try
+		{
+			creation = create(files, directories, keys);
+		}
+		catch(final RuntimeException e)
+		{
+			// only bad arguments are thrown straight away, everything else is reported through the future
+			creation = Futures.immediateFailedFuture(e);
+		}
+		return creation;
+	}
+	
+	/**
+	 * Create checked files. The existing files at their paths (and their ancestors' paths) are loaded in one batch,
+	 * and then every save is issued, and the digests of the existing directories are updated while the saves are in
+	 * flight.
+	 * @param files the new files, keyed by normalized path
+	 * @param directories the normalized paths of every directory the new files need, with each directory after its
+	 * parent
+	 * @param keys the keys of the files at those paths, and of the new files' blob info
+	 * @return the creation, which only has to wait for its saves
+	 * @see #startCreate(Iterable)
+	 */
+	private Deferred<ImmutableList<FileImpl>> create(final Map<String, FileImpl> files, final Set<String> directories,
+			final List<com.google.appengine.api.datastore.Key> keys)
+	{
+		final AsyncDatastoreService datastore = DatastoreServiceFactory.getAsyncDatastoreService();
+		// the saves depend on what is already stored, and have to be issued before returning, so this is waited for
+		final Map<com.google.appengine.api.datastore.Key, Entity> entities = Deferred.await(datastore.get(keys));
+		final Map<String, FileImpl> found = new HashMap<>();
+		for(final Entity entity : entities.values())
+		{
+			if(Key.getKind(FileImpl.class).equals(entity.getKind()))
+			{
+				found.put(entity.getKey().getName(), ofy().<FileImpl>toPojo(entity));
+			}
+		}
+		final Map<String, FileImpl> stored = storedFiles(found);
+		
+		final Map<String, FileImpl> parents = new HashMap<>();
+		final List<FileImpl> created = new ArrayList<>();
+		final List<String> existing = new ArrayList<>();
+		for(final String path : directories)
+		{
+			FileImpl dir = stored.get(path);
+			if(dir == null)
+			{
+				dir = new FileImpl(path, SEPARATOR.equals(path) ? null : parents.get(withoutLastComponent(path)), name);
+				created.add(dir);
+			}
+			else
+			{
+				checkState(dir.isDirectory(), "File %s is not a directory", path);
+				existing.add(path);
+			}
+			parents.put(path, dir);
+		}
+		
+		// collect the changes to each directory's digest, replacing the entries of any files being overwritten
+		final Map<String, byte[]> changes = new HashMap<>();
+		for(final FileImpl file : files.values())
+		{
+			final String parent = withoutLastComponent(file.getPath());
+			file.setParent(parents.get(parent));
+			file.setSize(FileSummaries.sizeOf(entities, file.getBlobKey()));
+			final byte[] change = DirectoryDigests.entry(file);
+			final FileImpl replaced = stored.get(file.getPath());
+			if(replaced != null)
+			{
+				DirectoryDigests.xor(change, DirectoryDigests.entry(replaced));
+			}
+			DirectoryDigests.merge(changes, parent, change);
+		}
+		// new directories only hold new files, so their digests are known before anything is saved
+		for(int i = created.size() - 1; i >= 0; i--)
+		{
+			final FileImpl dir = created.get(i);
+			dir.setDigest(changes.remove(dir.getPath()));
+			if(!SEPARATOR.equals(dir.getPath()))
+			{
+				DirectoryDigests.merge(changes, withoutLastComponent(dir.getPath()), DirectoryDigests.entry(dir));
+			}
+		}
+		
+		final Map<String, Optional<Entity>> written = new LinkedHashMap<>();
+		for(final FileImpl file : Iterables.concat(created, files.values()))
+		{
+			written.put(file.getPath(), Optional.of(ofy().toEntity(file)));
+		}
+		changing(written);
+		if(!created.isEmpty())
+		{
+			// anything still cached under a new directory was left from a tree that was reclaimed by another request
+			final Set<String> paths = new HashSet<>();
+			for(final FileImpl dir : created)
+			{
+				paths.add(dir.getPath());
+			}
+			fileCache.invalidateUnder(paths);
+		}
+		final List<Future<?>> saves = new ArrayList<>();
+		for(final List<Optional<Entity>> chunk : Iterables.partition(written.values(), SAVE_BATCH_SIZE))
+		{
+			saves.add(datastore.put(Optional.presentInstances(chunk)));
+		}
+		// only existing directories are left, and each of them is an ancestor of a new file
+		DirectoryDigests.update(changes);
+		changed(existing);
+		invalidateListings(created, files.values(), stored);
+		return new Writes<>(ImmutableList.copyOf(files.values()), saves, written.keySet());
+	}
+	
+	/**
+	 * Forget the listings of every directory that has new children. New directories are included too, in case an old
+	 * listing from before they were deleted is still cached.
+	 * @param created the new directories
+	 * @param files the new or replaced files
+	 * @param stored the files that already existed, keyed by path
+	 */
+	private void invalidateListings(final List<FileImpl> created, final Collection<FileImpl> files, final Map<String, FileImpl> stored)
+	{
+		final Set<String> changed = new HashSet<>();
+		for(final FileImpl dir : created)
+		{
+			changed.add(dir.getPath());
+			if(!SEPARATOR.equals(dir.getPath()))
+			{
+				changed.add(withoutLastComponent(dir.getPath()));
+			}
+		}
+		for(final FileImpl file : files)
+		{
+			if(!stored.containsKey(file.getPath()))
+			{
+				changed.add(withoutLastComponent(file.getPath()));
+			}
+		}
+		for(final String path : changed)
+		{
+			listingCache.invalidate(path);
+		}
+	}
+
+	/**
+	 * Reclaim any tombstones among the files already stored at the paths being created, since reclaiming them later
+	 * would take any new files under them too. They are left out along with everything under them.
+	 * @param stored the files at the normalized paths, including every ancestor of each path, which is changed to
+	 * leave out reclaimed files
+	 * @return the stored files, keyed by path
+	 */
+	private Map<String, FileImpl> storedFiles(final Map<String, FileImpl> stored)
+	{
+		final List<String> tombstones = new ArrayList<>();
+		for(final FileImpl file : stored.values())
+		{
+			if(file.isTombstone())
+			{
+				new TreeDeletion(file.getPath(), fileCache).run();
+				tombstones.add(file.getPath());
+			}
+		}
+		if(!tombstones.isEmpty())
+		{
+			final Predicate<Key<FileImpl>> notBuried = new NotBuried(tombstones);
+			final Iterator<String> iter = stored.keySet().iterator();
+			while(iter.hasNext())
+			{
+				if(!notBuried.apply(Key.create(FileImpl.class, iter.next())))
+				{
+					iter.remove();
+				}
+			}
+		}
+		return stored;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public final File update(final File file, final int blockSize, final InputStream differences) throws FileSystemException
+	{
+		//CHECKSTYLE.OFF: MultipleStringLiterals - declaring fields for error messages is silly
+		checkArgument(file instanceof FileImpl, "Unsupported File implementation: %s", file);
+		//CHECKSTYLE.ON: MultipleStringLiterals
+		checkArgument(!file.isDirectory(), "Cannot update a directory: %s", file.getPath());
+		final String path = file.getPath();
+		final BlobKey oldKey = ((FileImpl) file).getBlobKey();
+		final byte[] oldHash = file.getMD5Hash();
+		final FileService files = FileServiceFactory.getFileService();
+		final BlobKey newKey;
+		final byte[] md5;
+		final long size;
+		try
+		{
+			final AppEngineFile blob = files.createNewBlobFile(file.getMimeType().toString(), file.getName());
+			final FileReadChannel basis = files.openReadChannel(files.getBlobFile(oldKey), false);
+			final FileWriteChannel output = files.openWriteChannel(blob, true);
+			try
+			{
+				final BlobPatcher patcher = new BlobPatcher(basis, blockSize, output);
+				DifferenceReader.readDifferences(new DataInputStream(differences), patcher);
+				md5 = patcher.getMD5Hash();
+				size = patcher.getSize();
+			}
+			finally
+			{
+				basis.close();
+			}
+			output.closeFinally();
+			newKey = files.getBlobKey(blob);
+		}
+		catch(final IOException e)
+		{
+			throw new FileSystemException("Error updating " + path, e);
+		}
+		
+		final byte[] change = DirectoryDigests.xor(
+				DirectoryDigests.entry(file.getName(), false, oldHash),
+				DirectoryDigests.entry(file.getName(), false, md5));
+		final DirectoryDigests.Step digests = ofy().transact(new Work<DirectoryDigests.Step>()
+		{
+			/**
+			 * Only replace the content if nobody else has changed it since the differences were applied, and change the
+			 * parent's digest along with it. The entities are used directly, so that nothing else can be pulled into
+			 * the transaction through the session.
+			 * @return the rest of the change to the digests, or {@code null} if the file was changed or deleted
+			 */
+			@Override
+			public DirectoryDigests.Step run()
+			{
+				DirectoryDigests.Step result = null;
+				final DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+				try
+				{
+					final Entity entity = datastore.get(ofy().getTxn(), Key.create(FileImpl.class, path).getRaw());
+					if(oldKey.equals(entity.getProperty(BLOB_KEY_PROPERTY)))
+					{
+						entity.setUnindexedProperty(BLOB_KEY_PROPERTY, newKey);
+						entity.setUnindexedProperty(MD5_PROPERTY, new Blob(md5));
+						entity.setProperty(FileSummaries.SIZE_PROPERTY, size);
+						datastore.put(ofy().getTxn(), entity);
+						result = DirectoryDigests.begin(withoutLastComponent(path), change);
+					}
+				}
+				catch(final EntityNotFoundException e)
+				{
+					// the file was deleted, so there is nothing to update
+					result = null;
+				}
+				return result;
+			}
+		});
+		if(digests == null)
+		{
+			BlobstoreServiceFactory.getBlobstoreService().delete(newKey);
+			throw new FileSystemException("File " + path + " was changed or deleted during the update");
+		}
+		// the entity was changed directly, so the session's copy is out of date
+		final Key<FileImpl> key = Key.create(FileImpl.class, path);
+		if(ofy().isLoaded(key))
+		{
+			final FileImpl cached = ofy().load().key(key).now();
+			if(cached != null)
+			{
+				cached.setBlobKey(newKey);
+				cached.setMD5Hash(md5);
+				cached.setSize(size);
+			}
+		}
+		DirectoryDigests.finish(digests);
+		changed(withAncestors(path));
+		// nothing refers to the old content any more
+		BlobstoreServiceFactory.getBlobstoreService().delete(oldKey);
+		return fileAt(path);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public final void writeSignature(final File file, final int blockSize, final OutputStream out) throws FileSystemException
+	{
+		final BlobKey blobKey = contentOf(file);
+		try
+		{
+			final DataOutputStream data = new DataOutputStream(out);
+			Blocks.writeBlocks(signatureCache.get(blobKey, blockSize), data);
+			data.flush();
+		}
+		catch(final IOException e)
+		{
+			throw new FileSystemException("Error writing signature of " + file.getPath(), e);
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public final void writeDifferences(final File file, final int blockSize, final InputStream signature, final OutputStream out) throws FileSystemException
+	{
+		final BlobKey blobKey = contentOf(file);
+		try
+		{
+			final DataOutputStream data = new DataOutputStream(out);
+			final InputStream content = SignatureCache.open(blobKey);
+			try
+			{
+				Rsync.calculateDifferences(Blocks.readBlocks(new DataInputStream(signature)), blockSize, content, new DifferenceWriter(data));
+			}
+			finally
+			{
+				content.close();
+			}
+			data.flush();
+		}
+		catch(final IOException e)
+		{
+			throw new FileSystemException("Error calculating differences for " + file.getPath(), e);
+		}
+	}
+	
+	/**
+	 * Get the result of an operation, throwing any {@link FileSystemException} that it failed with.
+	 * @param operation the operation
+	 * @param <T> the type of the result
+	 * @return the result
+	 * @throws FileSystemException if the operation failed with one
+	 */
+	private static <T> T result(final Future<T> operation) throws FileSystemException
+	{
+		try
+		{
+			return operation.get();
+		}
+		catch(final ExecutionException e)
+		{
+			Throwables.propagateIfInstanceOf(e.getCause(), FileSystemException.class);
+			throw Throwables.propagate(e.getCause());
+		}
+		catch(final InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new FileSystemException("Interrupted while waiting for the file system", e);
+		}
+	}
+	
+	/**
+	 * Get the blob containing a file's content.
+	 * @param file the file
+	 * @return the file's blob key
+	 * @throws IllegalArgumentException if the file is a directory or from another implementation
+	 */
+	private static BlobKey contentOf(final File file)
+	{
+		//CHECKSTYLE.OFF: MultipleStringLiterals - declaring fields for error messages is silly
+		checkArgument(file instanceof FileImpl, "Unsupported File implementation: %s", file);
+		checkArgument(!file.isDirectory(), "Directories have no content: %s", file.getPath());
+		//CHECKSTYLE.ON: MultipleStringLiterals
+		return ((FileImpl) file).getBlobKey();
+	}
+	
+	/**
+	 * An operation waiting for the writes it issued to land.
+	 * @param <T> the type of the result
+	 * @author ben
+	 */
+	private final class Writes<T> extends Deferred<T>
+	{
+		/**
+		 * The result of the operation.
+		 */
+		private final T result;
+		
+		/**
+		 * The writes, as they land.
+		 */
+		private final List<Future<?>> writes;
+		
+		/**
+		 * The normalized paths of the files being written.
+		 */
+		private final Set<String> paths;
+		
+		/**
+		 * Create a new operation.
+		 * @param result the result of the operation
+		 * @param writes the writes, as they land
+		 * @param paths the normalized paths of the files being written
+		 */
+		Writes(final T result, final List<Future<?>> writes, final Set<String> paths)
+		{
+			this.result = result;
+			this.writes = writes;
+			this.paths = paths;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected Iterable<? extends Future<?>> pending()
+		{
+			return writes;
+		}
+		
+		/**
+		 * Wait for the writes, and let the files be cached again. If any of them failed, the index is told about
+		 * what actually landed.
+		 * @return the result of the operation
+		 */
+		@Override
+		protected T compute()
+		{
+			boolean landed = false;
+			try
+			{
+				for(final Future<?> write : writes)
+				{
+					await(write);
+				}
+				landed = true;
+			}
+			finally
+			{
+				if(landed)
+				{
+					fileCache.invalidate(paths);
+				}
+				else
+				{
+					changed(paths);
+				}
+			}
+			return result;
+		}
+	}
+	
+	/**
+	 * A {@link Function} that picks the file at a path out of the entities of it and its ancestors, if it is visible.
+	 * @author ben
+	 */
+	private static final class VisibleFile implements Function<ImmutableMap<String, Entity>, File>
+	{
+		/**
+		 * The normalized path of the file.
+		 */
+		private final String path;
+		
+		/**
+		 * Create a new function.
+		 * @param path the normalized path of the file
+		 */
+		VisibleFile(final String path)
+		{
+			this.path = path;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public File apply(final ImmutableMap<String, Entity> input)
+		{
+			return Tombstones.visible(path, input) ? ofy().<FileImpl>toPojo(input.get(path)) : null;
+		}
+	}
+	
+	/**
+	 * A {@link Function} that picks the visible files at several paths out of the entities of them and their ancestors.
+	 * @author ben
+	 */
+	private static final class VisibleFiles implements Function<ImmutableMap<String, Entity>, ImmutableList<? extends File>>
+	{
+		/**
+		 * The normalized paths of the files, in order.
+		 */
+		private final ImmutableList<String> paths;
+		
+		/**
+		 * Create a new function.
+		 * @param paths the normalized paths of the files
+		 */
+		VisibleFiles(final Iterable<String> paths)
+		{
+			this.paths = ImmutableList.copyOf(paths);
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public ImmutableList<? extends File> apply(final ImmutableMap<String, Entity> input)
+		{
+			final ImmutableList.Builder<FileImpl> files = ImmutableList.builder();
+			for(final String path : paths)
+			{
+				if(Tombstones.visible(path, input))
+				{
+					files.add(ofy().<FileImpl>toPojo(input.get(path)));
+				}
+			}
+			return files.build();
+		}
+	}
+	
+	/**
+	 * A directory listing waiting for the children to load. The children are left out if the directory itself is
+	 * hidden, which is checked with the directory's (usually cached) entity and those of its ancestors, instead of
+	 * loading the parents of every child.
+	 * @author ben
+	 */
+	private static final class ChildListing extends Deferred<ImmutableList<? extends File>>
+	{
+		/**
+		 * The normalized path of the directory.
+		 */
+		private final String path;
+		
+		/**
+		 * The entities of the directory and its ancestors, as they are loaded.
+		 */
+		private final Deferred<ImmutableMap<String, Entity>> directory;
+		
+		/**
+		 * The keys of the children, in the order they were listed.
+		 */
+		private final List<com.google.appengine.api.datastore.Key> children;
+		
+		/**
+		 * The entities of the children, as they are loaded.
+		 */
+		private final Future<Map<com.google.appengine.api.datastore.Key, Entity>> loading;
+		
+		/**
+		 * Create a new listing.
+		 * @param path the normalized path of the directory
+		 * @param directory the entities of the directory and its ancestors, as they are loaded
+		 * @param children the keys of the children, in the order they were listed
+		 * @param loading the entities of the children, as they are loaded
+		 */
+		ChildListing(final String path, final Deferred<ImmutableMap<String, Entity>> directory,
+				final List<com.google.appengine.api.datastore.Key> children,
+				final Future<Map<com.google.appengine.api.datastore.Key, Entity>> loading)
+		{
+			this.path = path;
+			this.directory = directory;
+			this.children = children;
+			this.loading = loading;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected Iterable<? extends Future<?>> pending()
+		{
+			return ImmutableList.of(directory, loading);
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected ImmutableList<? extends File> compute()
+		{
+			final ImmutableList.Builder<FileImpl> files = ImmutableList.builder();
+			final Map<com.google.appengine.api.datastore.Key, Entity> entities = await(loading);
+			if(Tombstones.visible(path, directory.now()))
+			{
+				for(final com.google.appengine.api.datastore.Key child : children)
+				{
+					// children deleted since the directory was listed are left out
+					final Entity entity = entities.get(child);
+					if(entity != null)
+					{
+						files.add(ofy().<FileImpl>toPojo(entity));
+					}
+				}
+			}
+			return ImmutableList.copyOf(Iterables.filter(files.build(), new NotTombstone()));
+		}
+	}
+	
+	/**
+	 * A {@link Function} that picks the first file out of a list.
+	 * @author ben
+	 */
+	private static final class First implements Function<ImmutableList<FileImpl>, File>
+	{
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public File apply(final ImmutableList<FileImpl> input)
+		{
+			return input.get(0);
+		}
+	}
+	
+	/**
+	 * A {@link Function} that passes its input through {@link com.bennavetta.appsite2.filesystem.util.PathUtils#normalize(String)}.
+	 * @author ben
+	 */
+	private static final class Normalizer implements Function<String, String>
+	{
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public String apply(final String input)
+		{
+			return normalize(input);
+		}	
+	}
+	
+	/**
+	 * A {@link Function} that transforms a {@link Key} to a {@link String} by calling {@link Key#getString()}. 
+	 * @author ben
+	 */
+	private static final class KeyToString implements Function<Key<FileImpl>, String>
+	{
+		/**
+		 * {@inheritDoc}
 		 */
 		@Override
 		public String apply(final Key<FileImpl> input)
@@ -324,4 +1561,234 @@ public class FileSystemImpl implements FileSystem
 			return input.getString();
 		}	
 	}
+	
+	/**
+	 * A {@link Function} that transforms a {@link Key} to the path of the file it identifies.
+	 * @author ben
+	 */
+	private static final class KeyToPath implements Function<Key<FileImpl>, String>
+	{
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public String apply(final Key<FileImpl> input)
+		{
+			return input.getName();
+		}	
+	}
+	
+	/**
+	 * Iterates over the paths of a directory's children, a page at a time.
+	 * @author ben
+	 */
+	private static final class ChildPaths extends PageIterator<String>
+	{
+		/**
+		 * The path of the directory.
+		 */
+		private final String directory;
+		
+		/**
+		 * The number of children in each page.
+		 */
+		private final int pageSize;
+		
+		/**
+		 * Create a new iterator.
+		 * @param directory the path of the directory
+		 * @param pageSize the number of children in each page
+		 */
+		ChildPaths(final String directory, final int pageSize)
+		{
+			this.directory = directory;
+			this.pageSize = pageSize;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected Page<String> fetch(final String pageCursor)
+		{
+			return pathPage(childKeys(directory, pageCursor, pageSize));
+		}
+	}
+	
+	/**
+	 * Iterates over a directory's children, a page at a time.
+	 * @author ben
+	 */
+	private static final class ChildFiles extends PageIterator<FileImpl>
+	{
+		/**
+		 * The path of the directory.
+		 */
+		private final String directory;
+		
+		/**
+		 * The number of children in each page.
+		 */
+		private final int pageSize;
+		
+		/**
+		 * Create a new iterator.
+		 * @param directory the path of the directory
+		 * @param pageSize the number of children in each page
+		 */
+		ChildFiles(final String directory, final int pageSize)
+		{
+			this.directory = directory;
+			this.pageSize = pageSize;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected Page<FileImpl> fetch(final String pageCursor)
+		{
+			return filePage(childKeys(directory, pageCursor, pageSize));
+		}
+	}
+	
+	/**
+	 * Iterates over the paths of everything under a directory, a page at a time. The tombstones under the directory
+	 * are found when the first page is fetched.
+	 * @author ben
+	 */
+	private static final class TreePaths extends PageIterator<String>
+	{
+		/**
+		 * The path of the directory.
+		 */
+		private final String directory;
+		
+		/**
+		 * The number of descendants in each page.
+		 */
+		private final int pageSize;
+		
+		/**
+		 * The paths of the tombstones under the directory, once the first page has been fetched.
+		 */
+		private ImmutableList<String> tombstones;
+		
+		/**
+		 * Create a new iterator.
+		 * @param directory the path of the directory
+		 * @param pageSize the number of descendants in each page
+		 */
+		TreePaths(final String directory, final int pageSize)
+		{
+			this.directory = directory;
+			this.pageSize = pageSize;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected Page<String> fetch(final String pageCursor)
+		{
+			if(tombstones == null)
+			{
+				tombstones = Tombstones.under(directory);
+			}
+			return pathPage(treeKeys(directory, pageCursor, pageSize, tombstones));
+		}
+	}
+	
+	/**
+	 * Iterates over everything under a directory, loading it a page at a time. The tombstones under the directory are
+	 * found when the first page is fetched.
+	 * @author ben
+	 */
+	private static final class TreeFiles extends PageIterator<FileImpl>
+	{
+		/**
+		 * The path of the directory.
+		 */
+		private final String directory;
+		
+		/**
+		 * The number of descendants in each page.
+		 */
+		private final int pageSize;
+		
+		/**
+		 * The paths of the tombstones under the directory, once the first page has been fetched.
+		 */
+		private ImmutableList<String> tombstones;
+		
+		/**
+		 * Create a new iterator.
+		 * @param directory the path of the directory
+		 * @param pageSize the number of descendants in each page
+		 */
+		TreeFiles(final String directory, final int pageSize)
+		{
+			this.directory = directory;
+			this.pageSize = pageSize;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected Page<FileImpl> fetch(final String pageCursor)
+		{
+			if(tombstones == null)
+			{
+				tombstones = Tombstones.under(directory);
+			}
+			return filePage(treeKeys(directory, pageCursor, pageSize, tombstones));
+		}
+	}
+	
+	/**
+	 * A {@link Predicate} that accepts files that aren't tombstones themselves.
+	 * @author ben
+	 */
+	private static final class NotTombstone implements Predicate<FileImpl>
+	{
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public boolean apply(final FileImpl input)
+		{
+			return !input.isTombstone();
+		}
+	}
+	
+	/**
+	 * A {@link Predicate} that accepts keys of files that aren't tombstones or under one.
+	 * @author ben
+	 */
+	private static final class NotBuried implements Predicate<Key<FileImpl>>
+	{
+		/**
+		 * The paths of the tombstones.
+		 */
+		private final ImmutableList<String> tombstones;
+		
+		/**
+		 * Create a new predicate.
+		 * @param tombstones the paths of the tombstones
+		 */
+		NotBuried(final Iterable<String> tombstones)
+		{
+			this.tombstones = ImmutableList.copyOf(tombstones);
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public boolean apply(final Key<FileImpl> input)
+		{
+			return !Tombstones.buried(input.getName(), tombstones);
+		}
+	}
 }
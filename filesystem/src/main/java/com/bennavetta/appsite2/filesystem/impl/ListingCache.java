@@ -0,0 +1,379 @@
+/**
+ * Copyright 2013 Ben Navetta <ben.navetta@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.appsite2.filesystem.impl;
+
+import static com.bennavetta.appsite2.filesystem.util.PathUtils.SEPARATOR;
+import static com.googlecode.objectify.ObjectifyService.ofy;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.common.base.Predicates;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.googlecode.objectify.Key;
+
+/**
+ * A cache of directory listings (the keys of each directory's children, without tombstones), keyed by path. Every
+ * change to a directory's children must be reported with {@link #invalidate(String)}.
+ * <p>
+ * On its own, the cache only knows about changes made through the same instance, so entries expire soon after they
+ * were last used. With a shared {@link MemcacheService}, each directory also has a version number in memcache, which
+ * every invalidation increments. Listings are stored in memcache under their version, so all instances share them,
+ * and local entries are checked against the current version before they are used, at most once every
+ * {@value #VERSION_CHECK_MILLIS} milliseconds. Instances then see each other's changes within that time, and listings
+ * can be kept for hours.
+ * </p>
+ * <p>
+ * Listings come from an eventually consistent query, which may not include a change made just before it. So a listing
+ * taken within {@value #CONSISTENCY_WINDOW_SECS} seconds of a change to the directory is only kept for that long,
+ * locally and in memcache, and is then taken again.
+ * </p>
+ * @author ben
+ *
+ */
+final class ListingCache
+{
+	/**
+	 * The default maximum number of children in all of the listings kept locally.
+	 * <br/>
+	 * Value: {@value}
+	 */
+	public static final long DEFAULT_MAX_CHILDREN = 100000;
+	
+	/**
+	 * How long a local listing is kept after it was last used, in minutes, when there is no shared cache.
+	 */
+	private static final long LOCAL_EXPIRATION_MINS = 2;
+	
+	/**
+	 * How long a local listing is kept after it was last used, in minutes, when there is a shared cache.
+	 */
+	private static final long SHARED_EXPIRATION_MINS = 60;
+	
+	/**
+	 * How long a listing is kept in memcache, in seconds.
+	 */
+	private static final int MEMCACHE_EXPIRATION_SECS = 6 * 60 * 60;
+	
+	/**
+	 * How long a change to a directory's children may take to show up in its listing, in seconds. Listings taken this
+	 * soon after a change are only kept this long.
+	 */
+	private static final int CONSISTENCY_WINDOW_SECS = 10;
+	
+	/**
+	 * How long a local listing is used before its version is checked again, in milliseconds.
+	 */
+	static final long VERSION_CHECK_MILLIS = 1000;
+	
+	/**
+	 * The prefix of the memcache keys marking directories that changed in the last {@link #CONSISTENCY_WINDOW_SECS}.
+	 */
+	private static final String CHANGED_PREFIX = "listing-changed:";
+	
+	/**
+	 * The prefix of the memcache keys holding directory versions.
+	 */
+	private static final String VERSION_PREFIX = "listing-version:";
+	
+	/**
+	 * The prefix of the memcache keys holding listings.
+	 */
+	private static final String LISTING_PREFIX = "listing:";
+	
+	/**
+	 * The local listings.
+	 */
+	private final Cache<String, Listing> local;
+	
+	/**
+	 * The shared listings and versions, or {@code null} if listings aren't shared.
+	 */
+	private final MemcacheService shared;
+	
+	/**
+	 * The directories that changed in the last {@link #CONSISTENCY_WINDOW_SECS}, if listings aren't shared.
+	 */
+	private final Cache<String, Boolean> changed = CacheBuilder.newBuilder()
+			.expireAfterWrite(CONSISTENCY_WINDOW_SECS, TimeUnit.SECONDS)
+			.build();
+	
+	/**
+	 * Create a cache that is local to this instance, holding up to {@link #DEFAULT_MAX_CHILDREN} children.
+	 */
+	ListingCache()
+	{
+		this(null, DEFAULT_MAX_CHILDREN);
+	}
+	
+	/**
+	 * Create a cache.
+	 * @param shared the memcache service shared with other instances, or {@code null} to only cache locally
+	 * @param maxChildren the maximum number of children to keep locally, across all listings. Each listing also
+	 * counts as one child, so that empty directories aren't free.
+	 */
+	ListingCache(final MemcacheService shared, final long maxChildren)
+	{
+		this.shared = shared;
+		local = CacheBuilder.newBuilder()
+				.maximumWeight(maxChildren)
+				.weigher(new ChildWeigher())
+				.expireAfterAccess(shared == null ? LOCAL_EXPIRATION_MINS : SHARED_EXPIRATION_MINS, TimeUnit.MINUTES)
+				.recordStats()
+				.build();
+	}
+	
+	/**
+	 * Get the listing of a directory, querying the datastore if necessary.
+	 * @param path the path of the directory
+	 * @return the keys of the directory's children
+	 * @throws ExecutionException if there is an exception querying the datastore
+	 */
+	public ImmutableList<Key<FileImpl>> get(final String path) throws ExecutionException
+	{
+		final long now = System.currentTimeMillis();
+		// check the listing without touching the statistics, which only count the lookup below
+		final Listing cached = local.asMap().get(path);
+		long version = cached == null ? 0 : cached.version;
+		if(cached != null && now >= cached.expires)
+		{
+			local.invalidate(path);
+		}
+		if(shared != null && (cached == null || now >= cached.expires || now >= cached.checked + VERSION_CHECK_MILLIS))
+		{
+			version = shared.increment(VERSION_PREFIX + path, 0, initialVersion());
+			if(cached != null && cached.version != version)
+			{
+				local.invalidate(path);
+			}
+			else if(cached != null)
+			{
+				cached.checked = now;
+			}
+		}
+		return local.get(path, new Loader(path, version)).children;
+	}
+	
+	/**
+	 * Get the statistics for the local cache. Listings that were out of date count as misses.
+	 * @return the cache statistics
+	 */
+	public CacheStats stats()
+	{
+		return local.stats();
+	}
+	
+	/**
+	 * Forget the listing of a directory, because its children have changed.
+	 * @param path the path of the directory
+	 */
+	public void invalidate(final String path)
+	{
+		local.invalidate(path);
+		if(shared == null)
+		{
+			changed.put(path, Boolean.TRUE);
+		}
+		else
+		{
+			shared.increment(VERSION_PREFIX + path, 1, initialVersion());
+			shared.put(CHANGED_PREFIX + path, Boolean.TRUE, Expiration.byDeltaSeconds(CONSISTENCY_WINDOW_SECS));
+		}
+	}
+	
+	/**
+	 * Forget the listing of a directory and of everything under it, because the tree was deleted. Listings under the
+	 * directory are only forgotten locally, since other instances can't reach them without going through the directory,
+	 * and recreating any of the directories invalidates them.
+	 * @param path the path of the directory
+	 */
+	public void invalidateTree(final String path)
+	{
+		invalidate(path);
+		final String prefix = SEPARATOR.equals(path) ? path : path + SEPARATOR;
+		final Iterator<String> cached = local.asMap().keySet().iterator();
+		while(cached.hasNext())
+		{
+			if(cached.next().startsWith(prefix))
+			{
+				cached.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Get a listing from memcache, querying the datastore and storing it if necessary.
+	 * @param path the path of the directory
+	 * @param version the current version of the directory
+	 * @return the listing
+	 */
+	private Listing sharedListing(final String path, final long version)
+	{
+		final String key = LISTING_PREFIX + version + ':' + path;
+		final Map<String, Object> found = shared.getAll(ImmutableList.of(key, CHANGED_PREFIX + path));
+		final boolean recent = found.containsKey(CHANGED_PREFIX + path);
+		ImmutableList<Key<FileImpl>> children;
+		@SuppressWarnings("unchecked")
+		final ArrayList<String> names = (ArrayList<String>) found.get(key);
+		if(names == null)
+		{
+			children = query(path);
+			final ArrayList<String> stored = new ArrayList<>(children.size());
+			for(final Key<FileImpl> child : children)
+			{
+				stored.add(child.getName());
+			}
+			shared.put(key, stored, Expiration.byDeltaSeconds(recent ? CONSISTENCY_WINDOW_SECS : MEMCACHE_EXPIRATION_SECS));
+		}
+		else
+		{
+			final ImmutableList.Builder<Key<FileImpl>> builder = ImmutableList.builder();
+			for(final String name : names)
+			{
+				builder.add(Key.create(FileImpl.class, name));
+			}
+			children = builder.build();
+		}
+		return new Listing(version, children, recent);
+	}
+	
+	/**
+	 * The version a directory starts at if memcache doesn't have one. Versions start from the current time, so that a
+	 * directory whose version was evicted doesn't go back to an old version and pick up a stale listing.
+	 * @return the initial version
+	 */
+	private static long initialVersion()
+	{
+		return System.currentTimeMillis();
+	}
+	
+	/**
+	 * List a directory with keys-only queries on the children's parent, leaving out tombstones.
+	 * @param path the path of the directory
+	 * @return the keys of the directory's children
+	 */
+	private static ImmutableList<Key<FileImpl>> query(final String path)
+	{
+		return ImmutableList.copyOf(Iterables.filter(ofy().load().type(FileImpl.class)
+				.filter("parent =", Key.create(FileImpl.class, path)).keys(),
+				Predicates.not(Predicates.in(Tombstones.childrenOf(path)))));
+	}
+	
+	/**
+	 * A directory listing.
+	 * @author ben
+	 */
+	private static final class Listing
+	{
+		/**
+		 * The version of the directory the listing was made from, or {@code 0} if listings aren't shared.
+		 */
+		private final long version;
+		
+		/**
+		 * The keys of the directory's children.
+		 */
+		private final ImmutableList<Key<FileImpl>> children;
+		
+		/**
+		 * When the listing must be taken again, in milliseconds since the epoch.
+		 */
+		private final long expires;
+		
+		/**
+		 * When the version was last checked, in milliseconds since the epoch.
+		 */
+		private volatile long checked;
+		
+		/**
+		 * Create a new listing.
+		 * @param version the version of the directory the listing was made from
+		 * @param children the keys of the directory's children
+		 * @param recent whether the directory changed so recently that the listing may be missing the change
+		 */
+		Listing(final long version, final ImmutableList<Key<FileImpl>> children, final boolean recent)
+		{
+			this.version = version;
+			this.children = children;
+			this.checked = System.currentTimeMillis();
+			this.expires = recent ? checked + TimeUnit.SECONDS.toMillis(CONSISTENCY_WINDOW_SECS) : Long.MAX_VALUE;
+		}
+	}
+	
+	/**
+	 * Loads listings into the local cache, from memcache or the datastore.
+	 * @author ben
+	 */
+	private final class Loader implements Callable<Listing>
+	{
+		/**
+		 * The path of the directory.
+		 */
+		private final String path;
+		
+		/**
+		 * The current version of the directory, or {@code 0} if listings aren't shared.
+		 */
+		private final long version;
+		
+		/**
+		 * Create a new loader.
+		 * @param path the path of the directory
+		 * @param version the current version of the directory
+		 */
+		Loader(final String path, final long version)
+		{
+			this.path = path;
+			this.version = version;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public Listing call()
+		{
+			return shared == null ? new Listing(version, query(path), changed.getIfPresent(path) != null) : sharedListing(path, version);
+		}
+	}
+	
+	/**
+	 * A {@link Weigher} that weighs listings by their number of children, plus one.
+	 * @author ben
+	 */
+	private static final class ChildWeigher implements Weigher<String, Listing>
+	{
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public int weigh(final String key, final Listing value)
+		{
+			return value.children.size() + 1;
+		}
+	}
+}
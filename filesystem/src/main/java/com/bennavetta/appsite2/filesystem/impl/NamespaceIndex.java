@@ -0,0 +1,493 @@
+/**
+ * Copyright 2013 Ben Navetta <ben.navetta@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.appsite2.filesystem.impl;
+
+import static com.bennavetta.appsite2.filesystem.util.PathUtils.lastPathComponent;
+import static com.google.appengine.api.datastore.Query.FilterOperator.EQUAL;
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.bennavetta.appsite2.filesystem.impl.NamespaceSnapshot.Node;
+import com.bennavetta.appsite2.filesystem.util.FilePath;
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.common.base.Optional;
+import com.googlecode.objectify.Key;
+
+/**
+ * An in-memory index of every file in the namespace, held as a tree of path components, so that lookups and
+ * listings don't need the datastore at all. The index is built with a paged scan of every file, and
+ * {@link #refresh(Iterable)} must be told about every change made through this instance. Changes made elsewhere are
+ * found by {@link #check()}, which reads the root directory's digest at most once per check interval. If it has
+ * changed, only the directories whose digests changed are listed again, so the cost depends on how much changed rather
+ * than on the size of the namespace.
+ * <p>
+ * The tree is a {@link NamespaceSnapshot}. Updates build a new version that shares every unchanged node with the old
+ * one, and publish it with a single write, so readers never lock and never see half of an update. Updates are made
+ * one at a time. Tombstones, and everything under them, are left out. Digests only cover names and content, so a
+ * change elsewhere that keeps a file's content but changes its type isn't seen until the file's directory changes in
+ * some other way.
+ * </p>
+ * @author ben
+ *
+ */
+final class NamespaceIndex
+{
+	/**
+	 * The number of files read by each query when the index is built.
+	 */
+	private static final int SCAN_BATCH_SIZE = 500;
+	
+	/**
+	 * The datastore property holding the key of a file's parent.
+	 */
+	private static final String PARENT_PROPERTY = "parent";
+	
+	/**
+	 * The datastore property holding a file's blob key, which is only missing for directories.
+	 */
+	private static final String BLOB_KEY_PROPERTY = "blobKey";
+	
+	/**
+	 * The datastore property holding a file's MD5 hash.
+	 */
+	private static final String MD5_PROPERTY = "md5Hash";
+	
+	/**
+	 * Held while an update is made and published, so that updates don't overwrite each other.
+	 */
+	private final Object updateLock = new Object();
+	
+	/**
+	 * The current version of the tree.
+	 */
+	private volatile NamespaceSnapshot current;
+	
+	/**
+	 * The minimum time between checks for changes made elsewhere, in nanoseconds.
+	 */
+	private final long checkInterval;
+	
+	/**
+	 * Set while a thread is checking for changes, so that other threads don't check at the same time.
+	 */
+	private final AtomicBoolean checking = new AtomicBoolean();
+	
+	/**
+	 * When changes were last checked for, from {@link System#nanoTime()}.
+	 */
+	private volatile long lastCheck;
+	
+	/**
+	 * Build an index of every file in the namespace.
+	 * @param checkInterval the minimum time between checks for changes made elsewhere
+	 * @param unit the unit of {@code checkInterval}
+	 */
+	NamespaceIndex(final long checkInterval, final TimeUnit unit)
+	{
+		checkArgument(checkInterval >= 0, "Check interval cannot be negative: %s", checkInterval);
+		this.checkInterval = unit.toNanos(checkInterval);
+		this.current = scan();
+		this.lastCheck = System.nanoTime();
+	}
+	
+	/**
+	 * Get the current version of the tree, checking for changes made elsewhere first if the check interval has passed.
+	 * This is all a read needs: the version never changes, so it can be used for as long as the caller likes.
+	 * @return the current version
+	 */
+	NamespaceSnapshot snapshot()
+	{
+		check();
+		return current;
+	}
+	
+	/**
+	 * Read every file in the namespace with a paged scan. Tombstones are removed once the scan is finished, since
+	 * files under them can be found after them. Each page is read separately, so a change made during the scan can
+	 * show up in part.
+	 * @return a snapshot of the namespace
+	 */
+	static NamespaceSnapshot scan()
+	{
+		final DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+		final Draft root = new Draft();
+		final List<String> tombstones = new ArrayList<>();
+		Cursor cursor = null;
+		boolean more = true;
+		while(more)
+		{
+			final FetchOptions options = FetchOptions.Builder.withLimit(SCAN_BATCH_SIZE);
+			if(cursor != null)
+			{
+				options.startCursor(cursor);
+			}
+			final QueryResultList<Entity> batch = datastore.prepare(new Query(Key.getKind(FileImpl.class))).asQueryResultList(options);
+			for(final Entity entity : batch)
+			{
+				root.put(entity);
+				if(isTombstone(entity))
+				{
+					tombstones.add(entity.getKey().getName());
+				}
+			}
+			cursor = batch.getCursor();
+			more = batch.size() == SCAN_BATCH_SIZE;
+		}
+		for(final String tombstone : tombstones)
+		{
+			root.remove(tombstone);
+		}
+		return new NamespaceSnapshot(root.freeze());
+	}
+	
+	/**
+	 * Reload files that were changed through this instance, in a single batch, and publish a new version with them.
+	 * Files that no longer exist, or have become tombstones, are removed along with everything under them.
+	 * @param paths the normalized paths of the changed files
+	 */
+	void refresh(final Iterable<String> paths)
+	{
+		final List<com.google.appengine.api.datastore.Key> keys = new ArrayList<>();
+		final Set<String> unique = new HashSet<>();
+		for(final String path : paths)
+		{
+			if(unique.add(path))
+			{
+				keys.add(Key.create(FileImpl.class, path).getRaw());
+			}
+		}
+		publish(keys, DatastoreServiceFactory.getDatastoreService().get(keys));
+	}
+	
+	/**
+	 * Publish a new version with files whose writes through this instance have been issued but may not have landed
+	 * yet, so that they don't have to be read back.
+	 * @param written the entities being written, keyed by path, with an absent value for files being deleted
+	 */
+	void written(final Map<String, Optional<Entity>> written)
+	{
+		final List<com.google.appengine.api.datastore.Key> keys = new ArrayList<>(written.size());
+		final Map<com.google.appengine.api.datastore.Key, Entity> entities = new HashMap<>();
+		for(final Map.Entry<String, Optional<Entity>> entry : written.entrySet())
+		{
+			final com.google.appengine.api.datastore.Key key = Key.create(FileImpl.class, entry.getKey()).getRaw();
+			keys.add(key);
+			if(entry.getValue().isPresent())
+			{
+				entities.put(key, entry.getValue().get());
+			}
+		}
+		publish(keys, entities);
+	}
+	
+	/**
+	 * Publish a new version with changed files. Files that no longer exist, or have become tombstones, are removed
+	 * along with everything under them.
+	 * @param keys the keys of the changed files, which are sorted in place
+	 * @param entities the entities of the files that exist, keyed by key
+	 */
+	private void publish(final List<com.google.appengine.api.datastore.Key> keys,
+			final Map<com.google.appengine.api.datastore.Key, Entity> entities)
+	{
+		// parents go first, so that a new directory is in place before its children
+		Collections.sort(keys, new ShallowestFirst());
+		synchronized(updateLock)
+		{
+			Node root = current.getRoot();
+			for(final com.google.appengine.api.datastore.Key key : keys)
+			{
+				final Entity entity = entities.get(key);
+				if(entity == null || isTombstone(entity))
+				{
+					root = root.remove(key.getName());
+				}
+				else
+				{
+					root = root.put(key.getName(), entity);
+				}
+			}
+			current = new NamespaceSnapshot(root);
+		}
+	}
+	
+	/**
+	 * Check for changes made elsewhere if the check interval has passed since the last check. If another thread is
+	 * already checking, this returns straight away, and readers keep using the current version until the check
+	 * publishes a new one. The changed directories are listed without holding the update lock, so changes made through
+	 * this instance can be published in the meantime. The check is then thrown away, since publishing it would
+	 * overwrite them, and the next check tries again.
+	 * @return {@code true} if a check was made
+	 */
+	boolean check()
+	{
+		final boolean due = System.nanoTime() - lastCheck >= checkInterval && checking.compareAndSet(false, true);
+		if(due)
+		{
+			try
+			{
+				final NamespaceSnapshot base = current;
+				final DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+				final Map<com.google.appengine.api.datastore.Key, Entity> found = datastore.get(
+						Collections.singleton(Key.create(FileImpl.class, FilePath.ROOT.toString()).getRaw()));
+				final Entity entity = found.isEmpty() ? null : found.values().iterator().next();
+				final Node root = base.getRoot();
+				Node updated;
+				if(entity == null || isTombstone(entity))
+				{
+					updated = Node.EMPTY;
+				}
+				else if(root.getEntity() == null || !sameDigest(root.getEntity(), entity))
+				{
+					updated = sync(datastore, root, entity);
+				}
+				else
+				{
+					updated = root.withEntity(entity);
+				}
+				synchronized(updateLock)
+				{
+					if(current == base)
+					{
+						current = new NamespaceSnapshot(updated);
+					}
+				}
+			}
+			finally
+			{
+				lastCheck = System.nanoTime();
+				checking.set(false);
+			}
+		}
+		return due;
+	}
+	
+	/**
+	 * Bring a directory that changed elsewhere up to date, along with any of its children whose digests changed.
+	 * Children whose digests haven't changed are kept as they are, along with everything under them.
+	 * <p>
+	 * The children are found with an eventually consistent query, which can miss recent changes. The directory's new
+	 * digest is only adopted if the entries of the children that were found add up to it, and every child directory
+	 * adopted its own. Otherwise the directory keeps its old digest, so the next check finds it changed and lists it
+	 * again.
+	 * </p>
+	 * @param datastore the datastore
+	 * @param node the directory's node
+	 * @param entity the directory's current entity
+	 * @return the directory's new node
+	 */
+	private static Node sync(final DatastoreService datastore, final Node node, final Entity entity)
+	{
+		final Query query = new Query(Key.getKind(FileImpl.class)).setFilter(new FilterPredicate(PARENT_PROPERTY, EQUAL, entity.getKey()));
+		final TreeMap<String, Node> children = new TreeMap<>();
+		final byte[] listed = DirectoryDigests.empty();
+		boolean complete = true;
+		for(final Entity child : datastore.prepare(query).asIterable(FetchOptions.Builder.withChunkSize(SCAN_BATCH_SIZE)))
+		{
+			if(!isTombstone(child))
+			{
+				final String name = lastPathComponent(child.getKey().getName());
+				DirectoryDigests.xor(listed, DirectoryDigests.entry(name, isDirectory(child),
+						isDirectory(child) ? digest(child) : ((Blob) child.getProperty(MD5_PROPERTY)).getBytes()));
+				final Node existing = node.getChild(name) == null ? Node.EMPTY : node.getChild(name);
+				if(isDirectory(child) && (existing.getEntity() == null || !sameDigest(existing.getEntity(), child)))
+				{
+					final Node synced = sync(datastore, existing, child);
+					// a child that kept its old digest makes this directory keep its own, so the next check gets back to it
+					if(!sameDigest(synced.getEntity(), child))
+					{
+						complete = false;
+					}
+					children.put(name, synced);
+				}
+				else
+				{
+					children.put(name, existing.withEntity(child));
+				}
+			}
+		}
+		Entity adopted = entity;
+		if(!complete || !Arrays.equals(listed, digest(entity)))
+		{
+			adopted = entity.clone();
+			adopted.setUnindexedProperty(DirectoryDigests.DIGEST_PROPERTY,
+					node.getEntity() == null ? null : node.getEntity().getProperty(DirectoryDigests.DIGEST_PROPERTY));
+		}
+		return new Node(adopted, PersistentSortedMap.copyOfSorted(children));
+	}
+	
+	/**
+	 * Check if an entity is a tombstone.
+	 * @param entity the entity
+	 * @return {@code true} if the file has been deleted but not reclaimed
+	 */
+	private static boolean isTombstone(final Entity entity)
+	{
+		return Boolean.TRUE.equals(entity.getProperty(Tombstones.TOMBSTONE_PROPERTY));
+	}
+	
+	/**
+	 * Check if an entity is a directory.
+	 * @param entity the entity
+	 * @return {@code true} if the file has no content
+	 */
+	private static boolean isDirectory(final Entity entity)
+	{
+		return entity.getProperty(BLOB_KEY_PROPERTY) == null;
+	}
+	
+	/**
+	 * Check if two versions of a directory have the same digest, and so the same content.
+	 * @param indexed the version in the index
+	 * @param current the current version
+	 * @return {@code true} if the digests match
+	 */
+	private static boolean sameDigest(final Entity indexed, final Entity current)
+	{
+		return Arrays.equals(digest(indexed), digest(current));
+	}
+	
+	/**
+	 * Get the digest of a directory.
+	 * @param entity the directory
+	 * @return the digest, which is all zeros for an empty directory
+	 */
+	private static byte[] digest(final Entity entity)
+	{
+		final Blob digest = (Blob) entity.getProperty(DirectoryDigests.DIGEST_PROPERTY);
+		return digest == null ? DirectoryDigests.empty() : digest.getBytes();
+	}
+	
+	/**
+	 * A node of a tree that is still being built. Building the tree from drafts and freezing it once avoids copying
+	 * nodes for every file found by a scan.
+	 * @author ben
+	 */
+	private static final class Draft
+	{
+		/**
+		 * The file at this node, or {@code null} if there isn't one (yet).
+		 */
+		private Entity entity;
+		
+		/**
+		 * The nodes below this one, keyed by name.
+		 */
+		private final TreeMap<String, Draft> children = new TreeMap<>();
+		
+		/**
+		 * Add or replace a file, creating empty nodes for any missing directories above it.
+		 * @param file the file's entity
+		 */
+		void put(final Entity file)
+		{
+			Draft node = this;
+			for(final String component : FilePath.of(file.getKey().getName()).getComponents())
+			{
+				Draft child = node.children.get(component);
+				if(child == null)
+				{
+					child = new Draft();
+					node.children.put(component, child);
+				}
+				node = child;
+			}
+			node.entity = file;
+		}
+		
+		/**
+		 * Remove a file and everything under it.
+		 * @param path the normalized path of the file
+		 */
+		void remove(final String path)
+		{
+			final FilePath parsed = FilePath.of(path);
+			if(parsed.isRoot())
+			{
+				entity = null;
+				children.clear();
+			}
+			else
+			{
+				Draft node = this;
+				final List<String> components = parsed.getComponents();
+				for(int i = 0; i < components.size() - 1 && node != null; i++)
+				{
+					node = node.children.get(components.get(i));
+				}
+				if(node != null)
+				{
+					node.children.remove(parsed.getName());
+				}
+			}
+		}
+		
+		/**
+		 * Turn this draft and everything under it into immutable nodes.
+		 * @return the node
+		 */
+		Node freeze()
+		{
+			final TreeMap<String, Node> frozen = new TreeMap<>();
+			for(final Map.Entry<String, Draft> child : children.entrySet())
+			{
+				frozen.put(child.getKey(), child.getValue().freeze());
+			}
+			return new Node(entity, PersistentSortedMap.copyOfSorted(frozen));
+		}
+	}
+	
+	/**
+	 * Orders keys so that shallower paths come first.
+	 * @author ben
+	 */
+	private static final class ShallowestFirst implements Comparator<com.google.appengine.api.datastore.Key>, Serializable
+	{
+		/**
+		 * Serialization version.
+		 */
+		private static final long serialVersionUID = 1L;
+		
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public int compare(final com.google.appengine.api.datastore.Key first, final com.google.appengine.api.datastore.Key second)
+		{
+			return FilePath.of(first.getName()).getDepth() - FilePath.of(second.getName()).getDepth();
+		}
+	}
+}
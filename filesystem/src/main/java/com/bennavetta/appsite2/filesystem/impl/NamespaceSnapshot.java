@@ -0,0 +1,356 @@
+/**
+ * Copyright 2013 Ben Navetta <ben.navetta@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.appsite2.filesystem.impl;
+
+import static com.bennavetta.appsite2.filesystem.util.PathUtils.normalize;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.googlecode.objectify.ObjectifyService.ofy;
+
+import java.util.List;
+
+import com.bennavetta.appsite2.filesystem.File;
+import com.bennavetta.appsite2.filesystem.Snapshot;
+import com.bennavetta.appsite2.filesystem.util.FilePath;
+import com.google.appengine.api.datastore.Entity;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * A {@link Snapshot} made of immutable {@link Node}s. Changing a file copies only the nodes on its path, and every
+ * other node is shared with the snapshot it was made from, so a new version after a small change is cheap to make and
+ * both versions stay valid. Each node's children are a {@link PersistentSortedMap}, so copying a node only copies the
+ * part of the map on the way to the changed child. A change costs time logarithmic in the size of each directory
+ * along the path, and nothing depends on the size of the whole tree.
+ * @author ben
+ *
+ */
+final class NamespaceSnapshot implements Snapshot
+{
+	/**
+	 * The node of the root directory.
+	 */
+	private final Node root;
+	
+	/**
+	 * Create a new snapshot.
+	 * @param root the node of the root directory
+	 */
+	NamespaceSnapshot(final Node root)
+	{
+		this.root = root;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public FileImpl fileAt(final String path)
+	{
+		final Node node = find(normalize(path));
+		return node == null ? null : node.toFile();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public ImmutableList<FileImpl> filesAt(final Iterable<String> paths)
+	{
+		final ImmutableList.Builder<FileImpl> files = ImmutableList.builder();
+		for(final String path : checkNotNull(paths, "Paths cannot be null"))
+		{
+			final Node node = find(normalize(path));
+			if(node != null)
+			{
+				files.add(node.toFile());
+			}
+		}
+		return files.build();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public ImmutableList<String> list(final File directory)
+	{
+		//CHECKSTYLE.OFF: MultipleStringLiterals - declaring fields for error messages is silly
+		final Node node = find(checkNotNull(directory, "Directory cannot be null").getPath());
+		//CHECKSTYLE.ON: MultipleStringLiterals
+		final ImmutableList.Builder<String> children = ImmutableList.builder();
+		if(node != null)
+		{
+			for(final Node child : node.children.values())
+			{
+				if(child.entity != null)
+				{
+					children.add(child.entity.getKey().getName());
+				}
+			}
+		}
+		return children.build();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public ImmutableList<FileImpl> listFiles(final File directory)
+	{
+		//CHECKSTYLE.OFF: MultipleStringLiterals - declaring fields for error messages is silly
+		final Node node = find(checkNotNull(directory, "Directory cannot be null").getPath());
+		//CHECKSTYLE.ON: MultipleStringLiterals
+		final ImmutableList.Builder<FileImpl> children = ImmutableList.builder();
+		if(node != null)
+		{
+			for(final Node child : node.children.values())
+			{
+				if(child.entity != null)
+				{
+					children.add(child.toFile());
+				}
+			}
+		}
+		return children.build();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int size()
+	{
+		return root.size;
+	}
+	
+	/**
+	 * Get the node of the root directory.
+	 * @return the root node
+	 */
+	Node getRoot()
+	{
+		return root;
+	}
+	
+	/**
+	 * Find the node of a visible file. Every node on the way must hold a file, since a missing directory hides
+	 * everything under it.
+	 * @param path the normalized path
+	 * @return the node, or {@code null} if the file isn't visible
+	 */
+	private Node find(final String path)
+	{
+		Node node = root.entity == null ? null : root;
+		for(final String component : FilePath.of(path).getComponents())
+		{
+			if(node != null)
+			{
+				node = node.children.get(component);
+				if(node != null && node.entity == null)
+				{
+					node = null;
+				}
+			}
+		}
+		return node;
+	}
+	
+	/**
+	 * One component of a path in a snapshot. Nodes never change once created; the methods that change them return
+	 * new nodes instead.
+	 * @author ben
+	 */
+	static final class Node
+	{
+		/**
+		 * A node with no file and no children.
+		 */
+		static final Node EMPTY = new Node(null, PersistentSortedMap.<String, Node>of());
+		
+		/**
+		 * The file at this node, or {@code null} if there isn't one. It is shared by every version, so it must never
+		 * be changed.
+		 */
+		private final Entity entity;
+		
+		/**
+		 * The nodes below this one, keyed by name.
+		 */
+		private final PersistentSortedMap<String, Node> children;
+		
+		/**
+		 * The number of visible files at and under the children, which are only visible if this node has a file.
+		 */
+		private final int below;
+		
+		/**
+		 * The number of visible files at and under this node.
+		 */
+		private final int size;
+		
+		/**
+		 * Create a new node, counting the files under it.
+		 * @param entity the file at this node, or {@code null}
+		 * @param children the nodes below this one
+		 */
+		Node(final Entity entity, final PersistentSortedMap<String, Node> children)
+		{
+			this(entity, children, count(children));
+		}
+		
+		/**
+		 * Create a new node whose files have already been counted.
+		 * @param entity the file at this node, or {@code null}
+		 * @param children the nodes below this one
+		 * @param below the number of visible files at and under the children
+		 */
+		private Node(final Entity entity, final PersistentSortedMap<String, Node> children, final int below)
+		{
+			this.entity = entity;
+			this.children = children;
+			this.below = below;
+			this.size = entity == null ? 0 : below + 1;
+		}
+		
+		/**
+		 * Count the visible files at and under some nodes.
+		 * @param nodes the nodes
+		 * @return the number of files
+		 */
+		private static int count(final PersistentSortedMap<String, Node> nodes)
+		{
+			int count = 0;
+			for(final Node node : nodes.values())
+			{
+				count += node.size;
+			}
+			return count;
+		}
+		
+		/**
+		 * Get the file at this node.
+		 * @return the file's entity, or {@code null}
+		 */
+		Entity getEntity()
+		{
+			return entity;
+		}
+		
+		/**
+		 * Get a child of this node.
+		 * @param name the name of the child
+		 * @return the child, or {@code null} if there isn't one
+		 */
+		Node getChild(final String name)
+		{
+			return children.get(name);
+		}
+		
+		/**
+		 * Get a copy of this node with a different file.
+		 * @param file the new file
+		 * @return the new node, which shares this node's children
+		 */
+		Node withEntity(final Entity file)
+		{
+			return new Node(file, children, below);
+		}
+		
+		/**
+		 * Get a copy of this node with a child added, replaced or removed.
+		 * @param name the name of the child
+		 * @param child the new child, or {@code null} to remove it
+		 * @return the new node
+		 */
+		Node withChild(final String name, final Node child)
+		{
+			final Node old = children.get(name);
+			final int count = below - (old == null ? 0 : old.size) + (child == null ? 0 : child.size);
+			return new Node(entity, child == null ? children.without(name) : children.with(name, child), count);
+		}
+		
+		/**
+		 * Get a copy of this tree with a file added or replaced, creating empty nodes for any missing directories.
+		 * @param path the normalized path of the file
+		 * @param file the file
+		 * @return the new root, if this is the root
+		 */
+		Node put(final String path, final Entity file)
+		{
+			return put(FilePath.of(path).getComponents(), 0, file);
+		}
+		
+		/**
+		 * Get a copy of this subtree with a file added or replaced.
+		 * @param components the components of the file's path
+		 * @param depth the depth of this node
+		 * @param file the file
+		 * @return the new node
+		 */
+		private Node put(final List<String> components, final int depth, final Entity file)
+		{
+			Node result;
+			if(depth == components.size())
+			{
+				result = withEntity(file);
+			}
+			else
+			{
+				final String name = components.get(depth);
+				final Node child = children.get(name);
+				result = withChild(name, (child == null ? EMPTY : child).put(components, depth + 1, file));
+			}
+			return result;
+		}
+		
+		/**
+		 * Get a copy of this tree with a file and everything under it removed.
+		 * @param path the normalized path of the file
+		 * @return the new root, if this is the root
+		 */
+		Node remove(final String path)
+		{
+			final FilePath parsed = FilePath.of(path);
+			return parsed.isRoot() ? EMPTY : remove(parsed.getComponents(), 0);
+		}
+		
+		/**
+		 * Get a copy of this subtree with a file removed.
+		 * @param components the components of the file's path, of which there is at least one
+		 * @param depth the depth of this node
+		 * @return the new node, or this node if the file isn't there
+		 */
+		private Node remove(final List<String> components, final int depth)
+		{
+			final String name = components.get(depth);
+			final Node child = children.get(name);
+			Node result = this;
+			if(child != null)
+			{
+				result = withChild(name, depth == components.size() - 1 ? null : child.remove(components, depth + 1));
+			}
+			return result;
+		}
+		
+		/**
+		 * Get a copy of the file at this node.
+		 * @return a new {@link FileImpl}
+		 */
+		FileImpl toFile()
+		{
+			return ofy().toPojo(entity);
+		}
+	}
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright 2013 Ben Navetta <ben.navetta@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.appsite2.filesystem.impl;
+
+import java.util.Iterator;
+
+import com.bennavetta.appsite2.filesystem.util.Page;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+
+/**
+ * An {@link Iterator} over a listing that fetches one page at a time, only when the entries before it have been used
+ * up. Only one page is held in memory, and nothing is fetched until the first entry is asked for.
+ * @param <T> the type of the entries
+ * @author ben
+ *
+ */
+abstract class PageIterator<T> extends AbstractIterator<T>
+{
+	/**
+	 * The remaining entries on the current page.
+	 */
+	private Iterator<T> current = Iterators.emptyIterator();
+	
+	/**
+	 * The cursor for the next page, or {@code null} for the first page.
+	 */
+	private String cursor;
+	
+	/**
+	 * Whether the last page has been fetched.
+	 */
+	private boolean finished;
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected final T computeNext()
+	{
+		// pages can be empty, so keep going until there is an entry or no more pages
+		while(!current.hasNext() && !finished)
+		{
+			final Page<T> page = fetch(cursor);
+			current = page.getItems().iterator();
+			cursor = page.getCursor();
+			finished = !page.hasMore();
+		}
+		return current.hasNext() ? current.next() : endOfData();
+	}
+	
+	/**
+	 * Fetch a page of the listing.
+	 * @param pageCursor the cursor of the page, or {@code null} for the first page
+	 * @return the page
+	 */
+	protected abstract Page<T> fetch(String pageCursor);
+}
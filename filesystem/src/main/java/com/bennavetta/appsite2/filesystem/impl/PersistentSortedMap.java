@@ -0,0 +1,438 @@
+/**
+ * Copyright 2013 Ben Navetta <ben.navetta@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.appsite2.filesystem.impl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+import com.google.common.collect.AbstractIterator;
+
+/**
+ * An immutable sorted map held as an AVL tree. Adding or removing an entry copies only the tree nodes on the way to
+ * it, and shares the rest with the original map, so a change costs time and memory logarithmic in the size of the map
+ * instead of a copy of the whole map. Both versions stay valid.
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ * @author ben
+ *
+ */
+final class PersistentSortedMap<K extends Comparable<? super K>, V>
+{
+	/**
+	 * The map with no entries.
+	 */
+	private static final PersistentSortedMap<?, ?> EMPTY = new PersistentSortedMap<>(null);
+
+	/**
+	 * The root of the tree, or {@code null} if the map is empty.
+	 */
+	private final Tree<K, V> root;
+
+	/**
+	 * Create a new map.
+	 * @param root the root of the tree, or {@code null} for an empty map
+	 */
+	private PersistentSortedMap(final Tree<K, V> root)
+	{
+		this.root = root;
+	}
+
+	/**
+	 * Get the empty map.
+	 * @param <K> the type of the keys
+	 * @param <V> the type of the values
+	 * @return a map with no entries
+	 */
+	@SuppressWarnings("unchecked")
+	static <K extends Comparable<? super K>, V> PersistentSortedMap<K, V> of()
+	{
+		return (PersistentSortedMap<K, V>) EMPTY;
+	}
+
+	/**
+	 * Copy a sorted map, building a balanced tree in a single pass.
+	 * @param entries the entries, in their natural order
+	 * @param <K> the type of the keys
+	 * @param <V> the type of the values
+	 * @return a map with the same entries
+	 */
+	static <K extends Comparable<? super K>, V> PersistentSortedMap<K, V> copyOfSorted(final SortedMap<K, V> entries)
+	{
+		final List<Map.Entry<K, V>> sorted = new ArrayList<>(entries.entrySet());
+		return new PersistentSortedMap<>(build(sorted, 0, sorted.size()));
+	}
+
+	/**
+	 * Get the value for a key.
+	 * @param key the key
+	 * @return the value, or {@code null} if there isn't one
+	 */
+	V get(final K key)
+	{
+		Tree<K, V> tree = root;
+		while(tree != null && !key.equals(tree.key))
+		{
+			tree = key.compareTo(tree.key) < 0 ? tree.left : tree.right;
+		}
+		return tree == null ? null : tree.value;
+	}
+
+	/**
+	 * Get a copy of this map with an entry added or replaced.
+	 * @param key the key
+	 * @param value the new value
+	 * @return the new map
+	 */
+	PersistentSortedMap<K, V> with(final K key, final V value)
+	{
+		return new PersistentSortedMap<>(insert(root, key, value));
+	}
+
+	/**
+	 * Get a copy of this map with an entry removed.
+	 * @param key the key
+	 * @return the new map, or this map if it has no entry for the key
+	 */
+	PersistentSortedMap<K, V> without(final K key)
+	{
+		final Tree<K, V> removed = remove(root, key);
+		return removed == root ? this : new PersistentSortedMap<>(removed);
+	}
+
+	/**
+	 * Get the values of this map.
+	 * @return the values, in the order of their keys
+	 */
+	Iterable<V> values()
+	{
+		return new Values<>(root);
+	}
+
+	/**
+	 * Build a balanced tree from sorted entries.
+	 * @param entries the entries
+	 * @param from the index of the first entry to use
+	 * @param to the index after the last entry to use
+	 * @param <K> the type of the keys
+	 * @param <V> the type of the values
+	 * @return the tree, or {@code null} if there are no entries to use
+	 */
+	private static <K, V> Tree<K, V> build(final List<Map.Entry<K, V>> entries, final int from, final int to)
+	{
+		Tree<K, V> tree = null;
+		if(from < to)
+		{
+			final int middle = (from + to) >>> 1;
+			final Map.Entry<K, V> entry = entries.get(middle);
+			tree = new Tree<>(build(entries, from, middle), entry.getKey(), entry.getValue(), build(entries, middle + 1, to));
+		}
+		return tree;
+	}
+
+	/**
+	 * Add or replace an entry in a tree.
+	 * @param tree the tree, or {@code null} if it is empty
+	 * @param key the key
+	 * @param value the new value
+	 * @param <K> the type of the keys
+	 * @param <V> the type of the values
+	 * @return the new tree
+	 */
+	private static <K extends Comparable<? super K>, V> Tree<K, V> insert(final Tree<K, V> tree, final K key, final V value)
+	{
+		Tree<K, V> result;
+		if(tree == null)
+		{
+			result = new Tree<>(null, key, value, null);
+		}
+		else
+		{
+			final int order = key.compareTo(tree.key);
+			if(order < 0)
+			{
+				result = balance(insert(tree.left, key, value), tree.key, tree.value, tree.right);
+			}
+			else if(order > 0)
+			{
+				result = balance(tree.left, tree.key, tree.value, insert(tree.right, key, value));
+			}
+			else
+			{
+				result = new Tree<>(tree.left, key, value, tree.right);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Remove an entry from a tree.
+	 * @param tree the tree, or {@code null} if it is empty
+	 * @param key the key
+	 * @param <K> the type of the keys
+	 * @param <V> the type of the values
+	 * @return the new tree, or {@code tree} itself if it has no entry for the key
+	 */
+	private static <K extends Comparable<? super K>, V> Tree<K, V> remove(final Tree<K, V> tree, final K key)
+	{
+		Tree<K, V> result = tree;
+		if(tree != null)
+		{
+			final int order = key.compareTo(tree.key);
+			if(order < 0)
+			{
+				final Tree<K, V> left = remove(tree.left, key);
+				result = left == tree.left ? tree : balance(left, tree.key, tree.value, tree.right);
+			}
+			else if(order > 0)
+			{
+				final Tree<K, V> right = remove(tree.right, key);
+				result = right == tree.right ? tree : balance(tree.left, tree.key, tree.value, right);
+			}
+			else if(tree.left == null)
+			{
+				result = tree.right;
+			}
+			else if(tree.right == null)
+			{
+				result = tree.left;
+			}
+			else
+			{
+				// the smallest entry on the right takes the removed entry's place
+				Tree<K, V> first = tree.right;
+				while(first.left != null)
+				{
+					first = first.left;
+				}
+				result = balance(tree.left, first.key, first.value, removeFirst(tree.right));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Remove the smallest entry from a tree.
+	 * @param tree the tree, which is not empty
+	 * @param <K> the type of the keys
+	 * @param <V> the type of the values
+	 * @return the new tree
+	 */
+	private static <K, V> Tree<K, V> removeFirst(final Tree<K, V> tree)
+	{
+		return tree.left == null ? tree.right : balance(removeFirst(tree.left), tree.key, tree.value, tree.right);
+	}
+
+	/**
+	 * Join two trees with an entry between them, rotating if their heights differ by more than one. That is never by
+	 * more than two after a single insert or remove, so one single or double rotation is enough.
+	 * @param left the tree of smaller keys
+	 * @param key the key of the entry
+	 * @param value the value of the entry
+	 * @param right the tree of larger keys
+	 * @param <K> the type of the keys
+	 * @param <V> the type of the values
+	 * @return the balanced tree
+	 */
+	private static <K, V> Tree<K, V> balance(final Tree<K, V> left, final K key, final V value, final Tree<K, V> right)
+	{
+		final int leftHeight = height(left);
+		final int rightHeight = height(right);
+		Tree<K, V> result;
+		if(leftHeight > rightHeight + 1)
+		{
+			if(height(left.left) >= height(left.right))
+			{
+				result = new Tree<>(left.left, left.key, left.value, new Tree<>(left.right, key, value, right));
+			}
+			else
+			{
+				final Tree<K, V> middle = left.right;
+				result = new Tree<>(new Tree<>(left.left, left.key, left.value, middle.left), middle.key, middle.value,
+						new Tree<>(middle.right, key, value, right));
+			}
+		}
+		else if(rightHeight > leftHeight + 1)
+		{
+			if(height(right.right) >= height(right.left))
+			{
+				result = new Tree<>(new Tree<>(left, key, value, right.left), right.key, right.value, right.right);
+			}
+			else
+			{
+				final Tree<K, V> middle = right.left;
+				result = new Tree<>(new Tree<>(left, key, value, middle.left), middle.key, middle.value,
+						new Tree<>(middle.right, right.key, right.value, right.right));
+			}
+		}
+		else
+		{
+			result = new Tree<>(left, key, value, right);
+		}
+		return result;
+	}
+
+	/**
+	 * Get the height of a tree.
+	 * @param tree the tree, or {@code null} if it is empty
+	 * @return the height, which is 0 for an empty tree
+	 */
+	private static int height(final Tree<?, ?> tree)
+	{
+		return tree == null ? 0 : tree.height;
+	}
+
+	/**
+	 * A node of the tree, which never changes once created.
+	 * @param <K> the type of the keys
+	 * @param <V> the type of the values
+	 * @author ben
+	 */
+	private static final class Tree<K, V>
+	{
+		/**
+		 * The tree of smaller keys, or {@code null} if there are none.
+		 */
+		private final Tree<K, V> left;
+
+		/**
+		 * The key of this entry.
+		 */
+		private final K key;
+
+		/**
+		 * The value of this entry.
+		 */
+		private final V value;
+
+		/**
+		 * The tree of larger keys, or {@code null} if there are none.
+		 */
+		private final Tree<K, V> right;
+
+		/**
+		 * The number of levels in this tree.
+		 */
+		private final int height;
+
+		/**
+		 * Create a new node.
+		 * @param left the tree of smaller keys, or {@code null}
+		 * @param key the key of the entry
+		 * @param value the value of the entry
+		 * @param right the tree of larger keys, or {@code null}
+		 */
+		Tree(final Tree<K, V> left, final K key, final V value, final Tree<K, V> right)
+		{
+			this.left = left;
+			this.key = key;
+			this.value = value;
+			this.right = right;
+			this.height = Math.max(height(left), height(right)) + 1;
+		}
+	}
+
+	/**
+	 * The values of a tree, in the order of their keys.
+	 * @param <V> the type of the values
+	 * @author ben
+	 */
+	private static final class Values<V> implements Iterable<V>
+	{
+		/**
+		 * The root of the tree, or {@code null} if it is empty.
+		 */
+		private final Tree<?, V> root;
+
+		/**
+		 * Create a new view of the values.
+		 * @param root the root of the tree, or {@code null}
+		 */
+		Values(final Tree<?, V> root)
+		{
+			this.root = root;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public Iterator<V> iterator()
+		{
+			return new InOrder<>(root);
+		}
+	}
+
+	/**
+	 * Walks a tree in the order of its keys, holding only the nodes on the way to the next entry.
+	 * @param <V> the type of the values
+	 * @author ben
+	 */
+	private static final class InOrder<V> extends AbstractIterator<V>
+	{
+		/**
+		 * The nodes whose entries and right subtrees haven't been visited yet, with the next one on top.
+		 */
+		private final Deque<Tree<?, V>> path = new ArrayDeque<>();
+
+		/**
+		 * Start walking a tree.
+		 * @param root the root of the tree, or {@code null}
+		 */
+		InOrder(final Tree<?, V> root)
+		{
+			descend(root);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected V computeNext()
+		{
+			V next;
+			if(path.isEmpty())
+			{
+				next = endOfData();
+			}
+			else
+			{
+				final Tree<?, V> tree = path.pop();
+				descend(tree.right);
+				next = tree.value;
+			}
+			return next;
+		}
+
+		/**
+		 * Push a tree's leftmost path.
+		 * @param tree the tree, or {@code null}
+		 */
+		private void descend(final Tree<?, V> tree)
+		{
+			Tree<?, V> node = tree;
+			while(node != null)
+			{
+				path.push(node);
+				node = node.left;
+			}
+		}
+	}
+}
@@ -0,0 +1,213 @@
+/**
+ * Copyright 2013 Ben Navetta <ben.navetta@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.appsite2.filesystem.impl;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.util.concurrent.ExecutionException;
+
+import com.bennavetta.appsite2.sync.Block;
+import com.bennavetta.appsite2.sync.Rsync;
+import com.carrotsearch.hppc.ObjectArrayList;
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.files.FileService;
+import com.google.appengine.api.files.FileServiceFactory;
+import com.google.common.base.Objects;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.Weigher;
+
+/**
+ * A cache of the Rsync block signatures of stored blobs, keyed by blob key and block size. Blobs never change once
+ * written (updating a file creates a new blob), so cached signatures never need to be invalidated; they are only
+ * evicted to bound memory use, which is measured in blocks.
+ * @author ben
+ *
+ */
+final class SignatureCache
+{
+	/**
+	 * The default maximum number of blocks kept in the cache.
+	 * <br/>
+	 * Value: {@value}
+	 */
+	public static final long DEFAULT_MAX_BLOCKS = 100000;
+
+	/**
+	 * The cached signatures.
+	 */
+	private final LoadingCache<SignatureKey, ObjectArrayList<Block>> signatures;
+
+	/**
+	 * Create a cache holding up to {@link #DEFAULT_MAX_BLOCKS} blocks.
+	 */
+	SignatureCache()
+	{
+		this(DEFAULT_MAX_BLOCKS);
+	}
+
+	/**
+	 * Create a cache.
+	 * @param maxBlocks the maximum number of blocks to keep, across all signatures
+	 */
+	SignatureCache(final long maxBlocks)
+	{
+		signatures = CacheBuilder.newBuilder()
+				.maximumWeight(maxBlocks)
+				.weigher(new BlockWeigher())
+				.recordStats()
+				.build(new SignatureLoader());
+	}
+
+	/**
+	 * Get the signature of a blob, calculating it if necessary. The returned list is shared and must not be modified.
+	 * @param blobKey the blob
+	 * @param blockSize the block size of the signature
+	 * @return the blob's blocks
+	 * @throws IOException if there is an exception reading the blob
+	 */
+	public ObjectArrayList<Block> get(final BlobKey blobKey, final int blockSize) throws IOException
+	{
+		checkArgument(blockSize > 0, "Block size must be positive: %s", blockSize);
+		try
+		{
+			return signatures.get(new SignatureKey(checkNotNull(blobKey, "Blob key cannot be null"), blockSize));
+		}
+		catch(final ExecutionException e)
+		{
+			throw new IOException("Error calculating signature of " + blobKey, e.getCause());
+		}
+	}
+
+	/**
+	 * Get the statistics for this cache.
+	 * @return the cache statistics
+	 */
+	public CacheStats stats()
+	{
+		return signatures.stats();
+	}
+
+	/**
+	 * Open a blob for reading.
+	 * @param blobKey the blob
+	 * @return a stream of the blob's content
+	 * @throws IOException if the blob can't be opened
+	 */
+	static InputStream open(final BlobKey blobKey) throws IOException
+	{
+		final FileService files = FileServiceFactory.getFileService();
+		return Channels.newInputStream(files.openReadChannel(files.getBlobFile(blobKey), false));
+	}
+
+	/**
+	 * Identifies a signature in the cache.
+	 * @author ben
+	 */
+	private static final class SignatureKey
+	{
+		/**
+		 * The blob the signature is of.
+		 */
+		private final BlobKey blobKey;
+
+		/**
+		 * The block size of the signature.
+		 */
+		private final int blockSize;
+
+		/**
+		 * Create a new key.
+		 * @param blobKey the blob the signature is of
+		 * @param blockSize the block size of the signature
+		 */
+		SignatureKey(final BlobKey blobKey, final int blockSize)
+		{
+			this.blobKey = blobKey;
+			this.blockSize = blockSize;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public boolean equals(final Object obj)
+		{
+			boolean equal = false;
+			if(obj instanceof SignatureKey)
+			{
+				final SignatureKey other = (SignatureKey) obj;
+				equal = blockSize == other.blockSize && blobKey.equals(other.blobKey);
+			}
+			return equal;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public int hashCode()
+		{
+			return Objects.hashCode(blobKey, blockSize);
+		}
+	}
+
+	/**
+	 * A {@link CacheLoader} that calculates the signature of a blob with {@link Rsync#calculateBlocks(InputStream, int)}.
+	 * @author ben
+	 */
+	private static final class SignatureLoader extends CacheLoader<SignatureKey, ObjectArrayList<Block>>
+	{
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public ObjectArrayList<Block> load(final SignatureKey key) throws IOException
+		{
+			final InputStream input = open(key.blobKey);
+			try
+			{
+				return Rsync.calculateBlocks(input, key.blockSize);
+			}
+			finally
+			{
+				input.close();
+			}
+		}
+	}
+
+	/**
+	 * A {@link Weigher} that weighs signatures by their number of blocks.
+	 * @author ben
+	 */
+	private static final class BlockWeigher implements Weigher<SignatureKey, ObjectArrayList<Block>>
+	{
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public int weigh(final SignatureKey key, final ObjectArrayList<Block> value)
+		{
+			return value.size();
+		}
+	}
+}
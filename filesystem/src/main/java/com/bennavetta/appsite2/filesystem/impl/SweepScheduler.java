@@ -0,0 +1,35 @@
+/**
+ * Copyright 2013 Ben Navetta <ben.navetta@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.appsite2.filesystem.impl;
+
+import com.google.appengine.api.taskqueue.DeferredTask;
+
+/**
+ * Schedules the tasks that reclaim deleted directory trees. The tasks are {@link DeferredTask}s that only hold the
+ * namespace and path of their tombstone, so they can be sent to the task queue and run in any later request, which
+ * is what {@link Tombstones#queue(String)} does. Tests can run them in place, or collect them and run them later.
+ * @author ben
+ * @see Tombstones
+ *
+ */
+public interface SweepScheduler
+{
+	/**
+	 * Schedule a task that reclaims a deleted directory tree.
+	 * @param sweep the task
+	 */
+	void schedule(DeferredTask sweep);
+}
@@ -0,0 +1,300 @@
+/**
+ * Copyright 2013 Ben Navetta <ben.navetta@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.appsite2.filesystem.impl;
+
+import static com.bennavetta.appsite2.filesystem.util.PathUtils.SEPARATOR;
+import static com.bennavetta.appsite2.filesystem.util.PathUtils.ancestors;
+import static com.googlecode.objectify.ObjectifyService.ofy;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.google.appengine.api.NamespaceManager;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.taskqueue.DeferredTask;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.googlecode.objectify.Key;
+
+/**
+ * Support for lazy deletes. Deleting a directory tree only marks its root as a tombstone, which hides the root and
+ * everything under it straight away; the files themselves are reclaimed later by {@link #sweep(String)}, normally in
+ * a task that a {@link SweepScheduler} sends to the {@linkplain #queue(String) task queue}, so the delete itself takes
+ * the same time however big the tree is. {@link #sweepAll()} reclaims every remaining tombstone, and is only meant as a
+ * fallback, for example from a cron job that catches sweeps that were lost.
+ * @author ben
+ *
+ */
+public final class Tombstones
+{
+	/**
+	 * The datastore property marking a file as a tombstone. It is only indexed when set.
+	 */
+	static final String TOMBSTONE_PROPERTY = "tombstone";
+	
+	/**
+	 * Hidden constructor.
+	 */
+	private Tombstones() {}
+	
+	/**
+	 * Check if a file exists and isn't hidden by a tombstone, using entities that were already loaded. A file whose
+	 * ancestors don't all exist is hidden too, since it was left behind by a deletion that missed it.
+	 * @param path the normalized path of the file
+	 * @param entities loaded entities keyed by path, which must include the file and all of its ancestors that exist
+	 * @return {@code true} if the file is visible
+	 */
+	static boolean visible(final String path, final Map<String, Entity> entities)
+	{
+		boolean visible = entities.containsKey(path);
+		final List<String> chain = ancestors(path);
+		for(int i = 0; i < chain.size() && visible; i++)
+		{
+			final Entity ancestor = entities.get(chain.get(i));
+			visible = ancestor != null && !isTombstone(ancestor);
+		}
+		return visible && !isTombstone(entities.get(path));
+	}
+	
+	/**
+	 * Find the tombstones among a directory's children. There are normally very few, if any, so they can be found
+	 * separately and left out of a listing, with the composite index on {@code parent} and {@code tombstone}.
+	 * @param path the path of the directory
+	 * @return the keys of the tombstones
+	 */
+	static ImmutableSet<Key<FileImpl>> childrenOf(final String path)
+	{
+		return ImmutableSet.copyOf(ofy().load().type(FileImpl.class)
+				.filter("parent =", Key.create(FileImpl.class, path)).filter(TOMBSTONE_PROPERTY, true).keys());
+	}
+	
+	/**
+	 * Find the tombstones anywhere under a directory, with the ancestor index. Deployed applications should have the
+	 * composite index on {@code ancestors} and {@code tombstone} from {@code datastore-indexes.xml} (see
+	 * {@link FileSummaries}), or this scans every file under the directory.
+	 * @param path the path of the directory
+	 * @return the paths of the tombstones
+	 */
+	static ImmutableList<String> under(final String path)
+	{
+		final ImmutableList.Builder<String> paths = ImmutableList.builder();
+		for(final Key<FileImpl> key : ofy().load().type(FileImpl.class)
+				.filter(AncestorIndexMigration.ANCESTORS_PROPERTY, path).filter(TOMBSTONE_PROPERTY, true).keys())
+		{
+			paths.add(key.getName());
+		}
+		return paths.build();
+	}
+	
+	/**
+	 * Check if a path is one of some tombstones, or under one of them.
+	 * @param path the path
+	 * @param tombstones the paths of the tombstones
+	 * @return {@code true} if the path is hidden by one of the tombstones
+	 */
+	static boolean buried(final String path, final Iterable<String> tombstones)
+	{
+		boolean buried = false;
+		final Iterator<String> iter = tombstones.iterator();
+		while(iter.hasNext() && !buried)
+		{
+			final String tombstone = iter.next();
+			buried = path.equals(tombstone) || path.startsWith(tombstone + SEPARATOR);
+		}
+		return buried;
+	}
+	
+	/**
+	 * Check if an entity is a tombstone.
+	 * @param entity the entity, or {@code null}
+	 * @return {@code true} if the entity is a tombstone
+	 */
+	private static boolean isTombstone(final Entity entity)
+	{
+		return entity != null && Boolean.TRUE.equals(entity.getProperty(TOMBSTONE_PROPERTY));
+	}
+	
+	/**
+	 * Create a task that reclaims a tombstone in the current namespace. The task can be serialized, so it only holds
+	 * the namespace, the path and the namespace of the cache's shared memcache, if it has one.
+	 * @param path the path of the tombstone
+	 * @param files the cache to remove reclaimed files from
+	 * @return a task that calls {@link #sweep(String, FileCache)}
+	 */
+	static DeferredTask sweeper(final String path, final FileCache files)
+	{
+		final MemcacheService shared = files.getShared();
+		return new Sweeper(NamespaceManager.get(), path, shared != null, shared == null ? null : shared.getNamespace());
+	}
+	
+	/**
+	 * Get a scheduler that adds sweeps to a task queue.
+	 * @param queue the name of the queue, such as {@link com.google.appengine.api.taskqueue.Queue#DEFAULT_QUEUE}
+	 * @return the scheduler
+	 */
+	public static SweepScheduler queue(final String queue)
+	{
+		return new QueueScheduler(queue);
+	}
+	
+	/**
+	 * Delete a tombstone and everything under it. Nothing is deleted if the file is no longer a tombstone, which
+	 * happens if it was already reclaimed, or if it was reclaimed and then created again.
+	 * @param path the path of the tombstone
+	 * @return {@code true} if a tombstone was reclaimed
+	 */
+	public static boolean sweep(final String path)
+	{
+		return sweep(path, null);
+	}
+	
+	/**
+	 * Delete a tombstone and everything under it, like {@link #sweep(String)}, removing the deleted files from a cache.
+	 * @param path the path of the tombstone
+	 * @param files the cache to remove reclaimed files from, or {@code null} if there is none
+	 * @return {@code true} if a tombstone was reclaimed
+	 */
+	static boolean sweep(final String path, final FileCache files)
+	{
+		final FileImpl file = ofy().load().type(FileImpl.class).id(path).now();
+		final boolean tombstone = file != null && file.isTombstone();
+		if(tombstone)
+		{
+			new TreeDeletion(path, files).run();
+		}
+		return tombstone;
+	}
+	
+	/**
+	 * Reclaim every tombstone. Files reclaimed this way are left in the caches of running file systems until they
+	 * expire, but they stay hidden there unless their tombstone's path is created again in the meantime.
+	 * @return the number of tombstones reclaimed
+	 */
+	public static int sweepAll()
+	{
+		int swept = 0;
+		for(final Key<FileImpl> key : ofy().load().type(FileImpl.class).filter(TOMBSTONE_PROPERTY, true).keys())
+		{
+			if(sweep(key.getName()))
+			{
+				swept++;
+			}
+		}
+		return swept;
+	}
+	
+	/**
+	 * A task that reclaims a tombstone. It runs in the namespace it was created in, whichever namespace it is run
+	 * from, and removes the reclaimed files from the shared memcache that the file system caches them in. Caches
+	 * local to other instances keep them until they expire, as with {@link Tombstones#sweepAll()}.
+	 * @author ben
+	 */
+	private static final class Sweeper implements DeferredTask
+	{
+		/**
+		 * Serialization version.
+		 */
+		private static final long serialVersionUID = 1L;
+		
+		/**
+		 * The namespace of the tombstone, or {@code null} for the default namespace.
+		 */
+		private final String namespace;
+		
+		/**
+		 * The path of the tombstone.
+		 */
+		private final String path;
+		
+		/**
+		 * Whether the file system shares its cached files through memcache.
+		 */
+		private final boolean shared;
+		
+		/**
+		 * The namespace of the memcache that cached files are shared through.
+		 */
+		private final String cacheNamespace;
+		
+		/**
+		 * Create a new task.
+		 * @param namespace the namespace of the tombstone
+		 * @param path the path of the tombstone
+		 * @param shared whether the file system shares its cached files through memcache
+		 * @param cacheNamespace the namespace of that memcache
+		 */
+		Sweeper(final String namespace, final String path, final boolean shared, final String cacheNamespace)
+		{
+			this.namespace = namespace;
+			this.path = path;
+			this.shared = shared;
+			this.cacheNamespace = cacheNamespace;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void run()
+		{
+			final String previous = NamespaceManager.get();
+			NamespaceManager.set(namespace);
+			try
+			{
+				sweep(path, shared ? new FileCache(MemcacheServiceFactory.getMemcacheService(cacheNamespace), 1) : null);
+			}
+			finally
+			{
+				NamespaceManager.set(previous);
+			}
+		}
+	}
+	
+	/**
+	 * Adds sweeps to a task queue.
+	 * @author ben
+	 */
+	private static final class QueueScheduler implements SweepScheduler
+	{
+		/**
+		 * The name of the queue.
+		 */
+		private final String queue;
+		
+		/**
+		 * Create a new scheduler.
+		 * @param queue the name of the queue
+		 */
+		QueueScheduler(final String queue)
+		{
+			this.queue = queue;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void schedule(final DeferredTask sweep)
+		{
+			QueueFactory.getQueue(queue).add(TaskOptions.Builder.withPayload(sweep));
+		}
+	}
+}
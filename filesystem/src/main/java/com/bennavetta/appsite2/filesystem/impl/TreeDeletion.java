@@ -0,0 +1,373 @@
+/**
+ * Copyright 2013 Ben Navetta <ben.navetta@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.appsite2.filesystem.impl;
+
+import static com.bennavetta.appsite2.filesystem.util.PathUtils.normalize;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.googlecode.objectify.ObjectifyService.ofy;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Result;
+import com.googlecode.objectify.cmd.Query;
+
+/**
+ * Deletes a directory and everything under it, however large. Descendants are found with keys-only queries on the
+ * ancestor index, one batch at a time, and each batch is deleted asynchronously, with several batches in flight at
+ * once. Only the keys of the batches in flight are held in memory, and no transaction is needed.
+ * <p>
+ * The directory itself is deleted last, once all of its descendants are gone. The ancestor index is only eventually
+ * consistent, so files added just before the deletion started might not have been found; before deleting the
+ * directory, the descendants are queried again, and anything still found is checked by key, so that nothing is left
+ * behind without its directory. Deletion can be spread over several
+ * requests (or task queue tasks) by calling {@link #runBatch()} until it returns {@code false}. If a deletion is
+ * interrupted, a new one for the same directory carries on from where it stopped, since files that were already
+ * deleted are no longer found.
+ * </p>
+ * @author ben
+ *
+ */
+public final class TreeDeletion
+{
+	/**
+	 * The default number of files deleted in each batch.
+	 * <br/>
+	 * Value: {@value}
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 500;
+	
+	/**
+	 * The default number of batches that can be deleted at once.
+	 * <br/>
+	 * Value: {@value}
+	 */
+	public static final int DEFAULT_MAX_PENDING = 4;
+	
+	/**
+	 * The path of the directory being deleted.
+	 */
+	private final String path;
+	
+	/**
+	 * The number of files deleted in each batch.
+	 */
+	private final int batchSize;
+	
+	/**
+	 * The number of batches that can be deleted at once.
+	 */
+	private final int maxPending;
+	
+	/**
+	 * The cache to remove deleted files from, or {@code null} if there is none.
+	 */
+	private final FileCache files;
+	
+	/**
+	 * The batches that are being deleted, oldest first.
+	 */
+	private final Deque<PendingBatch> pending = new ArrayDeque<>();
+	
+	/**
+	 * Where the next batch of descendants starts, or {@code null} to start from the beginning.
+	 */
+	private Cursor cursor;
+	
+	/**
+	 * Whether the descendants are being queried again to find any that were missed, before deleting the directory.
+	 */
+	private boolean verifying;
+	
+	/**
+	 * Whether the current pass of {@link #verifying} found any descendants that still exist.
+	 */
+	private boolean missed;
+	
+	/**
+	 * The number of files known to be deleted.
+	 */
+	private long deleted;
+	
+	/**
+	 * Whether the directory and all of its descendants have been deleted.
+	 */
+	private boolean finished;
+	
+	/**
+	 * Create a deletion with the default batch size and number of batches in flight.
+	 * @param path the path of the directory to delete
+	 */
+	public TreeDeletion(final String path)
+	{
+		this(path, DEFAULT_BATCH_SIZE, DEFAULT_MAX_PENDING);
+	}
+	
+	/**
+	 * Create a deletion.
+	 * @param path the path of the directory to delete
+	 * @param batchSize the number of files deleted in each batch
+	 * @param maxPending the number of batches that can be deleted at once
+	 */
+	public TreeDeletion(final String path, final int batchSize, final int maxPending)
+	{
+		this(path, batchSize, maxPending, null);
+	}
+	
+	/**
+	 * Create a deletion with the default batch size and number of batches in flight, which removes deleted files from
+	 * a cache once they are gone.
+	 * @param path the path of the directory to delete
+	 * @param files the cache to remove deleted files from
+	 */
+	TreeDeletion(final String path, final FileCache files)
+	{
+		this(path, DEFAULT_BATCH_SIZE, DEFAULT_MAX_PENDING, files);
+	}
+	
+	/**
+	 * Create a deletion.
+	 * @param path the path of the directory to delete
+	 * @param batchSize the number of files deleted in each batch
+	 * @param maxPending the number of batches that can be deleted at once
+	 * @param files the cache to remove deleted files from, or {@code null} if there is none
+	 */
+	private TreeDeletion(final String path, final int batchSize, final int maxPending, final FileCache files)
+	{
+		checkArgument(batchSize > 0, "Batch size must be positive: %s", batchSize);
+		checkArgument(maxPending > 0, "Maximum pending batches must be positive: %s", maxPending);
+		this.path = normalize(checkNotNull(path, "Path cannot be null"));
+		this.batchSize = batchSize;
+		this.maxPending = maxPending;
+		this.files = files;
+	}
+	
+	/**
+	 * Delete the directory and all of its descendants.
+	 * @return the number of files deleted, including the directory
+	 */
+	public long run()
+	{
+		while(runBatch())
+		{
+			// keep going until the whole tree is gone
+		}
+		return deleted;
+	}
+	
+	/**
+	 * Start deleting the next batch of descendants. Once there are none left, this waits for every batch to finish and
+	 * queries the descendants again. Only once a whole pass finds nothing that still exists is the directory itself
+	 * deleted.
+	 * @return {@code true} if there is more to delete
+	 */
+	public boolean runBatch()
+	{
+		if(!finished)
+		{
+			Query<FileImpl> query = ofy().load().type(FileImpl.class)
+					.filter(AncestorIndexMigration.ANCESTORS_PROPERTY, path).limit(batchSize);
+			if(cursor != null)
+			{
+				query = query.startAt(cursor);
+			}
+			final QueryResultIterator<Key<FileImpl>> results = query.keys().iterator();
+			final List<Key<FileImpl>> batch = new ArrayList<>(batchSize);
+			while(results.hasNext())
+			{
+				batch.add(results.next());
+			}
+			cursor = results.getCursor();
+			final List<Key<FileImpl>> remaining = verifying ? existing(batch) : batch;
+			missed |= verifying && !remaining.isEmpty();
+			if(!remaining.isEmpty())
+			{
+				submit(remaining);
+			}
+			if(batch.size() < batchSize)
+			{
+				while(!pending.isEmpty())
+				{
+					complete(pending.removeFirst());
+				}
+				if(verifying && !missed)
+				{
+					// only delete the directory once its descendants are gone, so that an interrupted deletion can be resumed
+					ofy().delete().key(Key.create(FileImpl.class, path)).now();
+					forget(ImmutableList.of(path));
+					deleted++;
+					finished = true;
+				}
+				else
+				{
+					// go over the descendants again, until a pass finds nothing left
+					verifying = true;
+					missed = false;
+					cursor = null;
+				}
+			}
+		}
+		return !finished;
+	}
+	
+	/**
+	 * Get the number of files known to be deleted so far. Batches that are still being deleted aren't counted.
+	 * @return the number of files deleted
+	 */
+	public long getDeleted()
+	{
+		return deleted;
+	}
+	
+	/**
+	 * Get the number of files that are being deleted in the background.
+	 * @return the number of files in batches that haven't finished yet
+	 */
+	public long getPending()
+	{
+		long count = 0;
+		for(final PendingBatch batch : pending)
+		{
+			count += batch.keys.size();
+		}
+		return count;
+	}
+	
+	/**
+	 * Check if the directory and all of its descendants have been deleted.
+	 * @return {@code true} if the deletion is finished
+	 */
+	public boolean isFinished()
+	{
+		return finished;
+	}
+	
+	/**
+	 * Start deleting a batch, first waiting for the oldest batch if too many are in flight.
+	 * @param batch the keys to delete
+	 */
+	private void submit(final List<Key<FileImpl>> batch)
+	{
+		if(pending.size() >= maxPending)
+		{
+			complete(pending.removeFirst());
+		}
+		pending.addLast(new PendingBatch(ofy().delete().keys(batch), batch));
+	}
+	
+	/**
+	 * Find which files still exist, with a strongly consistent get by key, since the ancestor index can still hold
+	 * files that were already deleted.
+	 * @param keys the keys of the files
+	 * @return the keys of the files that exist
+	 */
+	private static List<Key<FileImpl>> existing(final List<Key<FileImpl>> keys)
+	{
+		final List<com.google.appengine.api.datastore.Key> raw = new ArrayList<>(keys.size());
+		for(final Key<FileImpl> key : keys)
+		{
+			raw.add(key.getRaw());
+		}
+		final Set<com.google.appengine.api.datastore.Key> found = DatastoreServiceFactory.getDatastoreService().get(raw).keySet();
+		final List<Key<FileImpl>> existing = new ArrayList<>(found.size());
+		for(final Key<FileImpl> key : keys)
+		{
+			if(found.contains(key.getRaw()))
+			{
+				existing.add(key);
+			}
+		}
+		return existing;
+	}
+	
+	/**
+	 * Wait for a batch to be deleted.
+	 * @param batch the batch
+	 */
+	private void complete(final PendingBatch batch)
+	{
+		batch.result.now();
+		forget(Lists.transform(batch.keys, new KeyToPath()));
+		deleted += batch.keys.size();
+	}
+	
+	/**
+	 * Remove deleted files from the cache, if there is one.
+	 * @param paths the paths of the deleted files
+	 */
+	private void forget(final List<String> paths)
+	{
+		if(files != null)
+		{
+			files.invalidate(paths);
+		}
+	}
+	
+	/**
+	 * A batch of files being deleted.
+	 * @author ben
+	 */
+	private static final class PendingBatch
+	{
+		/**
+		 * The result of the asynchronous delete.
+		 */
+		private final Result<Void> result;
+		
+		/**
+		 * The keys of the files in the batch.
+		 */
+		private final List<Key<FileImpl>> keys;
+		
+		/**
+		 * Create a new batch.
+		 * @param result the result of the asynchronous delete
+		 * @param keys the keys of the files in the batch
+		 */
+		PendingBatch(final Result<Void> result, final List<Key<FileImpl>> keys)
+		{
+			this.result = result;
+			this.keys = keys;
+		}
+	}
+	
+	/**
+	 * A {@link Function} that transforms a {@link Key} to the path of the file it identifies.
+	 * @author ben
+	 */
+	private static final class KeyToPath implements Function<Key<FileImpl>, String>
+	{
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public String apply(final Key<FileImpl> input)
+		{
+			return input.getName();
+		}
+	}
+}
@@ -149,8 +149,12 @@ public class FileInfo implements Externalizable
 	 */
 	public final byte[] getMd5()
 	{
-		final byte[] out = new byte[md5.length];
-		System.arraycopy(md5, 0, out, 0, md5.length);
+		byte[] out = null;
+		if(md5 != null)
+		{
+			out = new byte[md5.length];
+			System.arraycopy(md5, 0, out, 0, md5.length);
+		}
 		return out;
 	}
 
@@ -0,0 +1,286 @@
+/**
+ * Copyright 2013 Ben Navetta <ben.navetta@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.appsite2.filesystem.util;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * An immutable, normalized absolute path, split into its components once when it is created. Paths are normalized by
+ * hand rather than through {@link java.net.URI}: repeated separators and {@code .} components are dropped,
+ * {@code ..} removes the component before it (or nothing at the root), relative paths are taken to start at the root,
+ * and there is never a trailing separator except on the root itself. Unlike a URI, no characters are escaped or
+ * decoded.
+ * <p>
+ * Paths are interned: {@link #of(String)} keeps the most recently used paths in a bounded table, keyed by the string
+ * they were created from, so the same string is only parsed again once it has fallen out of the table. Paths already
+ * in normal form reuse the given string instead of building a new one.
+ * </p>
+ * @author ben
+ *
+ */
+public final class FilePath
+{
+	/**
+	 * The maximum number of paths kept in the intern table.
+	 * <br/>
+	 * Value: {@value}
+	 */
+	public static final int INTERN_TABLE_SIZE = 10000;
+	
+	/**
+	 * The root path.
+	 */
+	public static final FilePath ROOT = new FilePath(PathUtils.SEPARATOR, ImmutableList.<String>of());
+	
+	/**
+	 * The path separator as a character.
+	 */
+	private static final char SEPARATOR = '/';
+	
+	/**
+	 * The component referring to the current directory.
+	 */
+	private static final String CURRENT = ".";
+	
+	/**
+	 * The component referring to the parent directory.
+	 */
+	private static final String PARENT = "..";
+	
+	/**
+	 * Recently used paths, keyed by the strings they were created from.
+	 */
+	private static final Cache<String, FilePath> INTERNED = CacheBuilder.newBuilder().maximumSize(INTERN_TABLE_SIZE).build();
+	
+	/**
+	 * The normalized path string.
+	 */
+	private final String path;
+	
+	/**
+	 * The path's components, from the top down. The root has none.
+	 */
+	private final ImmutableList<String> components;
+	
+	/**
+	 * The hash code of {@link #path}, computed up front.
+	 */
+	private final int hash;
+	
+	/**
+	 * Create a new path.
+	 * @param path the normalized path string
+	 * @param components the path's components
+	 */
+	private FilePath(final String path, final ImmutableList<String> components)
+	{
+		this.path = path;
+		this.components = components;
+		this.hash = path.hashCode();
+	}
+	
+	/**
+	 * Get the normalized form of a path, from the intern table if it has been seen recently.
+	 * @param path the path string (cannot be {@code null})
+	 * @return the normalized path
+	 */
+	public static FilePath of(final String path)
+	{
+		checkNotNull(path, "Path must not be null");
+		FilePath parsed = INTERNED.getIfPresent(path);
+		if(parsed == null)
+		{
+			parsed = parse(path);
+			INTERNED.put(path, parsed);
+		}
+		return parsed;
+	}
+	
+	/**
+	 * Parse and normalize a path in a single pass over its components.
+	 * @param raw the path string
+	 * @return the normalized path
+	 */
+	private static FilePath parse(final String raw)
+	{
+		final int length = raw.length();
+		// the only empty component allowed in a normal path is the one before the leading separator
+		boolean normal = length > 0 && raw.charAt(0) == SEPARATOR && (length == 1 || raw.charAt(length - 1) != SEPARATOR);
+		final List<String> components = new ArrayList<>();
+		int start = 0;
+		while(start < length)
+		{
+			int end = raw.indexOf(SEPARATOR, start);
+			if(end == -1)
+			{
+				end = length;
+			}
+			if(end == start || raw.startsWith(CURRENT, start) && end - start == CURRENT.length())
+			{
+				normal &= start == 0 && end == start;
+			}
+			else if(raw.startsWith(PARENT, start) && end - start == PARENT.length())
+			{
+				normal = false;
+				if(!components.isEmpty())
+				{
+					components.remove(components.size() - 1);
+				}
+			}
+			else
+			{
+				components.add(raw.substring(start, end));
+			}
+			start = end + 1;
+		}
+		return components.isEmpty() ? ROOT : new FilePath(normal ? raw : join(components), ImmutableList.copyOf(components));
+	}
+	
+	/**
+	 * Build a normalized path string from its components.
+	 * @param components the components, of which there is at least one
+	 * @return the path string
+	 */
+	private static String join(final List<String> components)
+	{
+		int length = 0;
+		for(final String component : components)
+		{
+			length += component.length() + 1;
+		}
+		final StringBuilder joined = new StringBuilder(length);
+		for(final String component : components)
+		{
+			joined.append(SEPARATOR).append(component);
+		}
+		return joined.toString();
+	}
+	
+	/**
+	 * Get the components of this path. For example, the components of {@code /foo/bar/baz.txt} are {@code foo},
+	 * {@code bar} and {@code baz.txt}.
+	 * @return the components from the top down, or an empty list for the root
+	 */
+	public ImmutableList<String> getComponents()
+	{
+		return components;
+	}
+	
+	/**
+	 * Get the number of directories containing this path, which is the same as its number of components.
+	 * @return the depth, which is {@code 0} for the root
+	 */
+	public int getDepth()
+	{
+		return components.size();
+	}
+	
+	/**
+	 * Get the last component of this path.
+	 * @return the last component, or the separator for the root
+	 * @see PathUtils#lastPathComponent(String)
+	 */
+	public String getName()
+	{
+		return components.isEmpty() ? path : components.get(components.size() - 1);
+	}
+	
+	/**
+	 * Check if this is the root path.
+	 * @return {@code true} for the root
+	 */
+	public boolean isRoot()
+	{
+		return components.isEmpty();
+	}
+	
+	/**
+	 * List the paths of the directories containing this path, starting from the root.
+	 * @return the ancestors, or an empty list for the root
+	 * @see PathUtils#ancestors(String)
+	 */
+	public ImmutableList<String> getAncestors()
+	{
+		final ImmutableList.Builder<String> ancestors = ImmutableList.builder();
+		if(!components.isEmpty())
+		{
+			ancestors.add(PathUtils.SEPARATOR);
+			int end = 0;
+			for(int i = 0; i < components.size() - 1; i++)
+			{
+				end += components.get(i).length() + 1;
+				ancestors.add(path.substring(0, end));
+			}
+		}
+		return ancestors.build();
+	}
+	
+	/**
+	 * Resolve a path against this one with the rules of {@link java.net.URI#resolve(java.net.URI)}: an absolute path
+	 * is used as it is, and a relative path is resolved against the directory containing this path.
+	 * @param relative the path to resolve (cannot be {@code null})
+	 * @return the resolved path
+	 */
+	public FilePath resolve(final String relative)
+	{
+		checkNotNull(relative, "Path must not be null");
+		FilePath resolved;
+		if(!relative.isEmpty() && relative.charAt(0) == SEPARATOR)
+		{
+			resolved = of(relative);
+		}
+		else
+		{
+			resolved = parse(path.substring(0, path.lastIndexOf(SEPARATOR) + 1).concat(relative));
+		}
+		return resolved;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean equals(final Object obj)
+	{
+		return obj == this || obj instanceof FilePath && hash == ((FilePath) obj).hash && path.equals(((FilePath) obj).path);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int hashCode()
+	{
+		return hash;
+	}
+	
+	/**
+	 * Get the normalized path string.
+	 * @return the path, such as {@code /foo/bar}
+	 */
+	@Override
+	public String toString()
+	{
+		return path;
+	}
+}
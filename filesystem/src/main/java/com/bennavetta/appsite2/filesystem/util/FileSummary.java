@@ -0,0 +1,108 @@
+/**
+ * Copyright 2013 Ben Navetta <ben.navetta@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.appsite2.filesystem.util;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.net.MediaType;
+
+/**
+ * The few details of a file needed to show it in a directory listing. Summaries are much cheaper to list than full
+ * {@link com.bennavetta.appsite2.filesystem.File}s, since they are read straight from the datastore's indexes.
+ * @author ben
+ *
+ */
+public final class FileSummary
+{
+	/**
+	 * The absolute path of the file.
+	 */
+	private final String path;
+	
+	/**
+	 * The MIME type of the file without any parameters, or {@code null} for a directory.
+	 */
+	private final MediaType mimeType;
+	
+	/**
+	 * The size of the file's content in bytes.
+	 */
+	private final long size;
+	
+	/**
+	 * Create a new summary.
+	 * @param path the absolute path of the file (cannot be {@code null})
+	 * @param mimeType the MIME type of the file without any parameters, or {@code null} for a directory
+	 * @param size the size of the file's content in bytes
+	 */
+	public FileSummary(final String path, final MediaType mimeType, final long size)
+	{
+		this.path = checkNotNull(path, "Path cannot be null");
+		this.mimeType = mimeType;
+		this.size = size;
+	}
+	
+	/**
+	 * Get the absolute path of the file.
+	 * @return the path, never {@code null}
+	 * @see com.bennavetta.appsite2.filesystem.File#getPath()
+	 */
+	public String getPath()
+	{
+		return path;
+	}
+	
+	/**
+	 * Get the name of the file, which is the last component of its path.
+	 * @return the name, never {@code null}
+	 * @see com.bennavetta.appsite2.filesystem.File#getName()
+	 */
+	public String getName()
+	{
+		return PathUtils.lastPathComponent(path);
+	}
+	
+	/**
+	 * Check if the file is a directory.
+	 * @return {@code true} for a directory
+	 * @see com.bennavetta.appsite2.filesystem.File#isDirectory()
+	 */
+	public boolean isDirectory()
+	{
+		return mimeType == null;
+	}
+	
+	/**
+	 * Get the MIME type of the file. Only the type and subtype are kept, so parameters such as the character set are
+	 * always missing.
+	 * @return the MIME type, or {@code null} for a directory
+	 * @see com.bennavetta.appsite2.filesystem.File#getMimeType()
+	 */
+	public MediaType getMimeType()
+	{
+		return mimeType;
+	}
+	
+	/**
+	 * Get the size of the file's content.
+	 * @return the size in bytes, or {@code 0} for a directory
+	 * @see com.bennavetta.appsite2.filesystem.File#getSize()
+	 */
+	public long getSize()
+	{
+		return size;
+	}
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright 2013 Ben Navetta <ben.navetta@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.appsite2.filesystem.util;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * One page of a listing that is fetched a page at a time, along with the cursor needed to fetch the next page. Cursors
+ * are opaque strings that are safe to put in URLs, so a listing can be continued in a later request.
+ * @param <T> the type of the entries
+ * @author ben
+ *
+ */
+public final class Page<T>
+{
+	/**
+	 * The entries on this page.
+	 */
+	private final ImmutableList<T> items;
+	
+	/**
+	 * The cursor for the next page, or {@code null} if this is the last page.
+	 */
+	private final String cursor;
+	
+	/**
+	 * Create a new page.
+	 * @param items the entries on the page (cannot be {@code null})
+	 * @param cursor the cursor for the next page, or {@code null} if this is the last page
+	 */
+	public Page(final ImmutableList<T> items, final String cursor)
+	{
+		this.items = checkNotNull(items, "Items cannot be null");
+		this.cursor = cursor;
+	}
+	
+	/**
+	 * Get the entries on this page. A page can have fewer entries than were asked for, or even none, without being
+	 * the last page.
+	 * @return the entries, never {@code null}
+	 */
+	public ImmutableList<T> getItems()
+	{
+		return items;
+	}
+	
+	/**
+	 * Get the cursor to pass back to fetch the next page.
+	 * @return the cursor, or {@code null} if this is the last page
+	 * @see #hasMore()
+	 */
+	public String getCursor()
+	{
+		return cursor;
+	}
+	
+	/**
+	 * Check if there might be more entries after this page.
+	 * @return {@code true} if this isn't the last page
+	 */
+	public boolean hasMore()
+	{
+		return cursor != null;
+	}
+}
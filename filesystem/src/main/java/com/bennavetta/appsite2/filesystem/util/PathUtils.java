@@ -17,11 +17,7 @@ package com.bennavetta.appsite2.filesystem.util;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
-import java.net.URI;
-import java.util.regex.Pattern;
-
-import com.google.appengine.repackaged.com.google.common.base.Splitter;
-import com.google.appengine.repackaged.com.google.common.collect.Iterables;
+import java.util.List;
 
 /**
  * Utility methods for manipulating paths.
@@ -41,11 +37,6 @@ public final class PathUtils
 	 */
 	private static final String NULL_PATH_MSG = "Path must not be null";
 	
-	/**
-	 * The absolute root URI to resolve others against.
-	 */
-	private static final URI ROOT = URI.create(SEPARATOR);
-	
 	/**
 	 * An internal constructor to prevent instantiation.
 	 */
@@ -69,16 +60,14 @@ public final class PathUtils
 	 */
 	public static String lastPathComponent(final String path)
 	{
-		String outPath = checkNotNull(path, NULL_PATH_MSG).replaceAll(Pattern.quote(SEPARATOR) + "+", SEPARATOR);
-		if(SEPARATOR.equals(outPath))
-		{
-			return outPath;
-		}
-		if(outPath.endsWith(SEPARATOR))
+		checkNotNull(path, NULL_PATH_MSG);
+		// skip any trailing separators, then take everything back to the separator before them
+		int end = path.length();
+		while(end > 0 && path.startsWith(SEPARATOR, end - 1))
 		{
-			outPath = outPath.substring(0, outPath.length()-1);
+			end--;
 		}
-		return Iterables.getLast(Splitter.on(SEPARATOR).split(outPath));
+		return end == 0 && !path.isEmpty() ? SEPARATOR : path.substring(path.lastIndexOf(SEPARATOR, end - 1) + 1, end);
 	}
 	
 	/**
@@ -102,22 +91,30 @@ public final class PathUtils
 		{
 			end = path.lastIndexOf(SEPARATOR);
 		}
-		return path.substring(0, end);
+		// the parent of a top-level file is the root
+		return end == 0 ? SEPARATOR : path.substring(0, end);
 	}
 	
 	/**
-	 * Normalize a path using the rules in {@link URI#normalize()}.
-	 * It will also resolve all paths against the root ({@code /}) and strip trailing slashes.
+	 * Normalize a path with the rules in {@link FilePath}, which are those of {@link java.net.URI#normalize()}
+	 * without any escaping. It will also resolve all paths against the root ({@code /}) and strip trailing slashes
+	 * (except from the root itself).
 	 * @param path the path to normalize
 	 * @return a normalized path
 	 */
 	public static String normalize(final String path)
 	{
-		String out = ROOT.resolve(checkNotNull(path, NULL_PATH_MSG)).normalize().getPath();
-		if(out.endsWith(SEPARATOR))
-		{
-			out = out.substring(0, out.length() - SEPARATOR.length());
-		}
-		return out;
+		return FilePath.of(checkNotNull(path, NULL_PATH_MSG)).toString();
+	}
+	
+	/**
+	 * List the ancestors of a path, starting from the root. For example, the ancestors of {@code /foo/bar/baz.txt} are
+	 * {@code /}, {@code /foo} and {@code /foo/bar}. The root has no ancestors.
+	 * @param path the path string (cannot be {@code null})
+	 * @return the normalized paths of the directories containing the path
+	 */
+	public static List<String> ancestors(final String path)
+	{
+		return FilePath.of(checkNotNull(path, NULL_PATH_MSG)).getAncestors();
 	}
 }
@@ -0,0 +1,81 @@
+/**
+ * Copyright 2013 Ben Navetta <ben.navetta@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.appsite2.filesystem.impl
+
+import spock.lang.Specification
+
+import com.bennavetta.appsite2.test.Appengine
+import com.bennavetta.appsite2.test.Blobstore
+import com.bennavetta.appsite2.test.Memcache
+import com.bennavetta.appsite2.test.Objectify
+import com.google.appengine.api.memcache.MemcacheServiceFactory
+import com.google.common.net.MediaType
+
+@Mixin([Appengine, Objectify, Blobstore, Memcache])
+class FileCacheSpec extends Specification
+{
+	def setupSpec()
+	{
+		Class.forName(FileSystemImpl.name)
+		objectify(FileImpl.class)
+		blobstore()
+		memcache()
+	}
+	
+	def setup()
+	{
+		appengineSetup()
+		ofy().clear()
+	}
+	
+	def cleanup()
+	{
+		appengineTearDown()
+	}
+	
+	def "lookups that race with a change don't cache what they loaded"()
+	{
+		given:
+			def fs = new FileSystemImpl("cachefs")
+			def cache = new FileCache(shared ? MemcacheServiceFactory.getMemcacheService() : null, 100)
+		when: "the file is created while a lookup is loading"
+			def lookup = cache.getAllAsync(["/late"])
+			fs.create("/late", MediaType.OCTET_STREAM, writeBlob(new byte[1]), new byte[16])
+			cache.invalidate(["/late"])
+			lookup.now()
+		then:
+			cache.getAll(["/late"]).containsKey("/late")
+		where:
+			shared << [false, true]
+	}
+	
+	def "lookups are cached"()
+	{
+		given:
+			def fs = new FileSystemImpl("cachefs")
+			fs.create("/file", MediaType.OCTET_STREAM, writeBlob(new byte[1]), new byte[16])
+			def cache = new FileCache(MemcacheServiceFactory.getMemcacheService(), 100)
+			def other = new FileCache(MemcacheServiceFactory.getMemcacheService(), 100)
+		when:
+			cache.getAll(["/file", "/missing"])
+			def found = other.getAll(["/file", "/missing"])
+		then: "the other instance finds both paths in memcache"
+			found.keySet() == ["/file"] as Set
+			other.stats().missCount() == 2
+			cache.getAll(["/file", "/missing"]).size() == 1
+			cache.stats().hitCount() == 2
+	}
+}
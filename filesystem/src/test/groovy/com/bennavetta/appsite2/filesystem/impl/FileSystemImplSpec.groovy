@@ -0,0 +1,1314 @@
+/**
+ * Copyright 2013 Ben Navetta <ben.navetta@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.appsite2.filesystem.impl
+
+import spock.lang.Specification
+
+import com.bennavetta.appsite2.filesystem.FileSystemException
+import com.bennavetta.appsite2.filesystem.util.FileInfo
+import com.bennavetta.appsite2.sync.DataUtils
+import com.bennavetta.appsite2.sync.DifferenceListener
+import com.bennavetta.appsite2.sync.Rsync
+import com.bennavetta.appsite2.sync.protocol.Blocks
+import com.bennavetta.appsite2.sync.protocol.DifferenceReader
+import com.bennavetta.appsite2.sync.protocol.DifferenceWriter
+import com.bennavetta.appsite2.test.Appengine
+import com.bennavetta.appsite2.test.Blobstore
+import com.bennavetta.appsite2.test.Memcache
+import com.bennavetta.appsite2.test.Objectify
+import com.bennavetta.appsite2.test.TaskQueue
+import com.google.appengine.api.NamespaceManager
+import com.google.appengine.api.blobstore.BlobInfoFactory
+import com.google.appengine.api.datastore.Blob
+import com.google.appengine.api.datastore.DatastoreServiceFactory
+import com.google.appengine.api.datastore.Query
+import com.google.appengine.api.memcache.MemcacheServiceFactory
+import com.google.appengine.api.taskqueue.DeferredTask
+import com.google.apphosting.api.ApiProxy
+import com.google.common.hash.Hashing
+import com.google.common.util.concurrent.SettableFuture
+import com.googlecode.objectify.Key
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import com.google.common.net.MediaType
+import groovy.transform.CompileStatic
+import java.lang.reflect.Method
+import java.nio.file.Files
+
+@Mixin([Appengine, Objectify, Blobstore, Memcache, TaskQueue])
+class FileSystemImplSpec extends Specification
+{
+	static final int BLOCK_SIZE = 1024
+	
+	def setupSpec()
+	{
+		// FileSystemImpl registers the MediaType translator, which has to happen before FileImpl is registered
+		Class.forName(FileSystemImpl.name)
+		objectify(FileImpl.class)
+		blobstore()
+		memcache()
+		taskQueue()
+	}
+	
+	def setup()
+	{
+		appengineSetup()
+		ofy().clear() // the session outlives the datastore
+	}
+	
+	def cleanup()
+	{
+		appengineTearDown()
+	}
+	
+	def "update applies differences to the stored content"()
+	{
+		given:
+			def fs = new FileSystemImpl("updatefs")
+			byte[] oldData = DataUtils.randomData(100 * BLOCK_SIZE + 17)
+			def file = fs.create("/assets/big.bin", MediaType.OCTET_STREAM, writeBlob(oldData), md5(oldData))
+			byte[] newData = edit(oldData)
+		when:
+			def updated = fs.update(file, BLOCK_SIZE, differences(oldData, newData))
+		then:
+			readBlob(updated.blobKey) == newData
+			updated.MD5Hash == md5(newData)
+			fs.fileAt("/assets/big.bin").blobKey == updated.blobKey
+			fs.fileAt("/assets/big.bin").MD5Hash == md5(newData)
+	}
+	
+	def "update only sends the changed data and replaces the old blob"()
+	{
+		given:
+			def fs = new FileSystemImpl("updatefs")
+			byte[] oldData = DataUtils.randomData(100 * BLOCK_SIZE)
+			def file = fs.create("/assets/edited.bin", MediaType.OCTET_STREAM, writeBlob(oldData), md5(oldData))
+			byte[] newData = edit(oldData)
+			def sent = differences(oldData, newData)
+			def sentSize = sent.available()
+		when:
+			def updated = fs.update(file, BLOCK_SIZE, sent)
+		then:
+			sentSize < oldData.length / 10
+			readBlob(updated.blobKey) == newData
+			updated.size == newData.length
+			new BlobInfoFactory().loadBlobInfo(updated.blobKey).size == newData.length
+			new BlobInfoFactory().loadBlobInfo(file.blobKey) == null
+	}
+	
+	def "update fails if the file changed in the meantime"()
+	{
+		given:
+			def fs = new FileSystemImpl("updatefs")
+			byte[] oldData = DataUtils.randomData(10 * BLOCK_SIZE)
+			def file = fs.create("/race.bin", MediaType.OCTET_STREAM, writeBlob(oldData), md5(oldData))
+			byte[] other = DataUtils.randomData(10)
+			def concurrent = fs.create("/race.bin", MediaType.OCTET_STREAM, writeBlob(other), md5(other))
+		when:
+			fs.update(file, BLOCK_SIZE, differences(oldData, edit(oldData)))
+		then:
+			thrown(FileSystemException)
+			fs.fileAt("/race.bin").blobKey == concurrent.blobKey
+	}
+	
+	def "update rejects directories"()
+	{
+		given:
+			def fs = new FileSystemImpl("updatefs")
+			byte[] data = DataUtils.randomData(10)
+			fs.create("/dir/file", MediaType.OCTET_STREAM, writeBlob(data), md5(data))
+		when:
+			fs.update(fs.fileAt("/dir/"), BLOCK_SIZE, new ByteArrayInputStream(new byte[0]))
+		then:
+			thrown(IllegalArgumentException)
+	}
+	
+	def "signature matches the stored content"()
+	{
+		given:
+			def fs = new FileSystemImpl("syncfs")
+			byte[] data = DataUtils.randomData(20 * BLOCK_SIZE + 3)
+			def file = fs.create("/sig.bin", MediaType.OCTET_STREAM, writeBlob(data), md5(data))
+			def out = new ByteArrayOutputStream()
+		when:
+			fs.writeSignature(file, BLOCK_SIZE, out)
+			def blocks = Blocks.readBlocks(new DataInputStream(new ByteArrayInputStream(out.toByteArray()))).toArray()
+			def expected = Rsync.calculateBlocks(new ByteArrayInputStream(data), BLOCK_SIZE).toArray()
+		then:
+			blocks*.checksum == expected*.checksum
+			blocks*.hash == expected*.hash
+	}
+	
+	def "clients can download only the differences"()
+	{
+		given:
+			def fs = new FileSystemImpl("syncfs")
+			byte[] clientData = DataUtils.randomData(50 * BLOCK_SIZE)
+			byte[] serverData = edit(clientData)
+			def file = fs.create("/download.bin", MediaType.OCTET_STREAM, writeBlob(serverData), md5(serverData))
+			def signature = new ByteArrayOutputStream()
+			Blocks.writeBlocks(Rsync.calculateBlocks(new ByteArrayInputStream(clientData), BLOCK_SIZE), new DataOutputStream(signature))
+			def differences = new ByteArrayOutputStream()
+		when:
+			fs.writeDifferences(file, BLOCK_SIZE, new ByteArrayInputStream(signature.toByteArray()), differences)
+		then:
+			differences.size() < serverData.length / 10
+			apply(clientData, differences.toByteArray()) == serverData
+	}
+	
+	def "directory digests follow their contents"()
+	{
+		given:
+			def fs = new FileSystemImpl("digestfs")
+			byte[] x = DataUtils.randomData(10)
+			byte[] y = DataUtils.randomData(10)
+			fs.create("/a/x", MediaType.OCTET_STREAM, writeBlob(x), md5(x))
+			fs.create("/a/y", MediaType.OCTET_STREAM, writeBlob(y), md5(y))
+			def rootDigest = fs.fileAt("/").digest
+			def aDigest = fs.fileAt("/a").digest
+		when:
+			fs.create("/b/c/z", MediaType.OCTET_STREAM, writeBlob(x), md5(x))
+		then:
+			fs.fileAt("/").digest != rootDigest
+			fs.fileAt("/a").digest == aDigest
+			fs.fileAt("/b/c").digest != new byte[16]
+		when:
+			fs.delete(fs.fileAt("/b/c/z"), false)
+			fs.delete(fs.fileAt("/b/c"), false)
+			fs.delete(fs.fileAt("/b"), false)
+		then:
+			fs.fileAt("/").digest == rootDigest
+	}
+	
+	def "directory digests don't depend on order"()
+	{
+		given:
+			def fs = new FileSystemImpl("digestfs")
+			byte[] x = DataUtils.randomData(10)
+			byte[] y = DataUtils.randomData(10)
+		when:
+			fs.create("/one/x", MediaType.OCTET_STREAM, writeBlob(x), md5(x))
+			fs.create("/one/y", MediaType.OCTET_STREAM, writeBlob(y), md5(y))
+			fs.create("/two/y", MediaType.OCTET_STREAM, writeBlob(y), md5(y))
+			fs.create("/two/x", MediaType.OCTET_STREAM, writeBlob(x), md5(x))
+		then:
+			fs.fileAt("/one").digest == fs.fileAt("/two").digest
+		when:
+			fs.create("/two/x", MediaType.OCTET_STREAM, writeBlob(y), md5(y))
+		then:
+			fs.fileAt("/one").digest != fs.fileAt("/two").digest
+		when:
+			fs.create("/two/x", MediaType.OCTET_STREAM, writeBlob(x), md5(x))
+		then:
+			fs.fileAt("/one").digest == fs.fileAt("/two").digest
+	}
+	
+	def "update changes directory digests"()
+	{
+		given:
+			def fs = new FileSystemImpl("digestfs")
+			byte[] oldData = DataUtils.randomData(10 * BLOCK_SIZE)
+			byte[] newData = edit(oldData)
+			def file = fs.create("/dir/file", MediaType.OCTET_STREAM, writeBlob(oldData), md5(oldData))
+			fs.create("/copy/file", MediaType.OCTET_STREAM, writeBlob(newData), md5(newData))
+		when:
+			fs.update(file, BLOCK_SIZE, differences(oldData, newData))
+		then:
+			fs.fileAt("/dir").digest == fs.fileAt("/copy").digest
+	}
+	
+	def "create makes missing directories in one batch"()
+	{
+		given:
+			def fs = new FileSystemImpl("createfs")
+			touch(fs, "/existing/other")
+		when:
+			touch(fs, "/existing/a/b/c/file")
+		then:
+			fs.fileAt("/existing/a/b/c/file").parent.path == "/existing/a/b/c"
+			fs.fileAt("/existing/a/b").directory
+			fs.fileAt("/existing/a/b").parent.path == "/existing/a"
+			fs.listTree(fs.fileAt("/existing")) as Set == ["/existing/other", "/existing/a", "/existing/a/b", "/existing/a/b/c", "/existing/a/b/c/file"] as Set
+	}
+	
+	def "directories created in a batch have the same digests as ones created one at a time"()
+	{
+		given:
+			def fs = new FileSystemImpl("createfs")
+			byte[] data = DataUtils.randomData(10)
+		when:
+			fs.create("/one/a/b/file", MediaType.OCTET_STREAM, writeBlob(data), md5(data))
+			touch(fs, "/two/a/x")
+			fs.create("/two/a/b/file", MediaType.OCTET_STREAM, writeBlob(data), md5(data))
+			fs.delete(fs.fileAt("/two/a/x"), false)
+		then:
+			fs.fileAt("/one").digest == fs.fileAt("/two").digest
+			fs.fileAt("/one/a/b").digest == fs.fileAt("/two/a/b").digest
+	}
+	
+	def "create uses the same number of calls however deep the path is"()
+	{
+		given:
+			def fs = new FileSystemImpl("createfs")
+			touch(fs, "/start")
+		expect:
+			datastoreCalls { touch(fs, "/a/b") } == datastoreCalls { touch(fs, "/c/d/e/f/g/h/i/j") }
+	}
+	
+	def "create rejects files in place of directories"()
+	{
+		given:
+			def fs = new FileSystemImpl("createfs")
+			touch(fs, "/file")
+		when:
+			touch(fs, "/file/child")
+		then:
+			thrown(IllegalStateException)
+	}
+	
+	def "createAll creates files in input order"()
+	{
+		given:
+			def fs = new FileSystemImpl("bulkfs")
+			touch(fs, "/site/old.html")
+			def paths = ["/site/z.html", "/site/css/a.css", "/site/old.html", "/other/b.txt"]
+		when:
+			def files = fs.createAll(paths.collect { info(it) })
+		then:
+			files*.path == paths
+			files*.parent*.path == ["/site", "/site/css", "/site", "/other"]
+			fs.filesAt(paths)*.path as Set == paths as Set
+			fs.fileAt("/site/css").directory
+	}
+	
+	def "createAll gives the same digests as create"()
+	{
+		given:
+			def fs = new FileSystemImpl("bulkfs")
+			byte[] data = DataUtils.randomData(10)
+			def names = ["a", "b/c", "b/d/e", "f/g"]
+			fs.create("/one/a", MediaType.OCTET_STREAM, writeBlob(data), md5(data))
+			fs.create("/two/a", MediaType.OCTET_STREAM, writeBlob(data), md5(data))
+		when:
+			names.each { fs.create("/one/" + it, MediaType.OCTET_STREAM, writeBlob(data), md5(data)) }
+			fs.createAll(names.collect { new FileInfo("/two/" + it, MediaType.OCTET_STREAM, writeBlob(data), md5(data)) })
+		then:
+			fs.fileAt("/one").digest == fs.fileAt("/two").digest
+			fs.fileAt("/one/b/d").digest == fs.fileAt("/two/b/d").digest
+	}
+	
+	def "createAll batches its datastore calls"()
+	{
+		given:
+			def fs = new FileSystemImpl("bulkfs")
+			touch(fs, "/start")
+			def infos = (1..60).collect { info("/many/dir${it % 7}/sub${it % 3}/file${it}") }
+		expect:
+			// the SDK splits batch puts into groups of a few entity groups each, so this isn't quite constant
+			datastoreCalls { fs.createAll(infos) } < infos.size() / 4
+	}
+	
+	def "createAll rejects files without an MD5 hash"()
+	{
+		given:
+			def fs = new FileSystemImpl("bulkfs")
+			def unhashed = new FileInfo()
+			unhashed.path = "/a/unhashed"
+			unhashed.mimeType = MediaType.OCTET_STREAM
+			unhashed.blobKey = writeBlob("unhashed".bytes)
+		when:
+			fs.createAll([info("/a/hashed"), unhashed])
+		then:
+			thrown(NullPointerException)
+			fs.fileAt("/a") == null
+			fs.fileAt("/a/hashed") == null
+	}
+	
+	def "createAll rejects conflicting paths"()
+	{
+		given:
+			def fs = new FileSystemImpl("bulkfs")
+		when:
+			fs.createAll(paths.collect { info(it) })
+		then:
+			thrown(IllegalArgumentException)
+			fs.fileAt("/a") == null
+		where:
+			paths << [["/a/b", "/a/b"], ["/a/b", "/a/b/c"]]
+	}
+	
+	def "listings follow creates and deletes"()
+	{
+		given:
+			def fs = new FileSystemImpl("listfs")
+			touch(fs, "/dir/a")
+			def dir = fs.fileAt("/dir")
+		expect:
+			fs.listFiles(dir)*.path == ["/dir/a"]
+		when:
+			touch(fs, "/dir/b")
+		then:
+			fs.listFiles(dir)*.path as Set == ["/dir/a", "/dir/b"] as Set
+		when:
+			fs.delete(fs.fileAt("/dir/a"), false)
+		then:
+			fs.listFiles(dir)*.path == ["/dir/b"]
+	}
+	
+	def "recreated directories aren't listed with their old contents"()
+	{
+		given:
+			def fs = new FileSystemImpl("listfs")
+			touch(fs, "/dir/sub/old")
+			fs.listFiles(fs.fileAt("/dir/sub"))
+		when:
+			fs.delete(fs.fileAt("/dir"), true)
+			touch(fs, "/dir/sub/new")
+		then:
+			fs.listFiles(fs.fileAt("/dir/sub"))*.path == ["/dir/sub/new"]
+	}
+	
+	def "listings are cached by path"()
+	{
+		given:
+			def fs = new FileSystemImpl("listfs")
+			touch(fs, "/dir/a")
+		when:
+			fs.list(fs.fileAt("/dir"))
+			ofy().clear()
+			fs.list(fs.fileAt("/dir"))
+		then:
+			fs.listingCacheStats.missCount() == 1
+			fs.listingCacheStats.hitCount() == 1
+			fs.listingCacheStats.loadSuccessCount() == 1
+	}
+	
+	def "instances sharing memcache see each other's changes"()
+	{
+		given:
+			def memcache = MemcacheServiceFactory.memcacheService
+			def first = new FileSystemImpl("sharedfs", { it.run() } as SweepScheduler, memcache)
+			def second = new FileSystemImpl("sharedfs", { it.run() } as SweepScheduler, memcache)
+			touch(first, "/dir/a")
+			def dir = first.fileAt("/dir")
+			first.listFiles(dir)
+		expect:
+			datastoreCalls { second.list(dir) } == 0
+		when:
+			touch(second, "/dir/b")
+			sleep(ListingCache.VERSION_CHECK_MILLIS)
+		then:
+			first.listFiles(dir)*.path as Set == ["/dir/a", "/dir/b"] as Set
+		when:
+			first.delete(first.fileAt("/dir/b"), false)
+			sleep(ListingCache.VERSION_CHECK_MILLIS)
+		then:
+			second.listFiles(dir)*.path == ["/dir/a"]
+	}
+	
+	def "repeated lookups don't use the datastore"()
+	{
+		given:
+			def fs = new FileSystemImpl("filecachefs")
+			touch(fs, "/site/css/main.css")
+			fs.fileAt("/site/css/main.css")
+		expect:
+			datastoreCalls { fs.fileAt("/site/css/main.css") } == 0
+			datastoreCalls { fs.filesAt("/site", "/site/css") } == 0
+			fs.fileAt("/site/css/main.css").path == "/site/css/main.css"
+			fs.fileCacheStats.hitCount() > 0
+	}
+	
+	def "missing files are cached until they are created"()
+	{
+		given:
+			def fs = new FileSystemImpl("filecachefs")
+			fs.fileAt("/late/file")
+		expect:
+			datastoreCalls { fs.fileAt("/late/file") } == 0
+			fs.fileAt("/late/file") == null
+		when:
+			touch(fs, "/late/file")
+		then:
+			fs.fileAt("/late/file").path == "/late/file"
+			fs.fileAt("/late").directory
+	}
+	
+	def "cached files follow changes"()
+	{
+		given:
+			def tasks = []
+			def fs = new FileSystemImpl("filecachefs", { tasks << it } as SweepScheduler)
+			["/site/index.html", "/site/css/main.css", "/other"].each { touch(fs, it) }
+			def rootDigest = fs.fileAt("/").digest
+			fs.filesAt("/site/index.html", "/site/css/main.css", "/other")
+		when:
+			fs.delete(fs.fileAt("/other"), false)
+			fs.delete(fs.fileAt("/site"), true)
+		then:
+			fs.fileAt("/other") == null
+			fs.fileAt("/site/css/main.css") == null
+			fs.fileAt("/").digest != rootDigest
+		when:
+			tasks*.run()
+			touch(fs, "/site/index.html")
+		then:
+			fs.fileAt("/site/index.html") != null
+			fs.fileAt("/site/css") == null
+			fs.fileAt("/site/css/main.css") == null
+	}
+	
+	def "instances sharing memcache share files"()
+	{
+		given:
+			def memcache = MemcacheServiceFactory.memcacheService
+			def first = new FileSystemImpl("sharedfs", { it.run() } as SweepScheduler, memcache)
+			def second = new FileSystemImpl("sharedfs", { it.run() } as SweepScheduler, memcache)
+			touch(first, "/dir/a")
+			first.fileAt("/dir/a")
+			first.fileAt("/dir/missing")
+		expect:
+			datastoreCalls { second.fileAt("/dir/a") } == 0
+			datastoreCalls { second.fileAt("/dir/missing") } == 0
+		when:
+			touch(first, "/dir/b")
+		then:
+			second.fileAt("/dir/b") != null
+	}
+	
+	def "large directories can be listed a page at a time"()
+	{
+		given:
+			def fs = new FileSystemImpl("pagefs")
+			fs.createAll((1..25).collect { info("/many/file${it}") })
+			def dir = fs.fileAt("/many")
+		when:
+			def pages = []
+			def page = fs.list(dir, null, 10)
+			pages << page
+			while(page.hasMore())
+			{
+				page = fs.list(dir, page.cursor, 10)
+				pages << page
+			}
+		then:
+			pages.size() == 3
+			pages*.items*.size() == [10, 10, 5]
+			pages*.items.flatten() as Set == (1..25).collect { "/many/file${it}" } as Set
+		when:
+			def files = fs.listFiles(dir, pages[0].cursor, 10)
+		then:
+			files.items*.path == pages[1].items
+			files.cursor == pages[1].cursor
+	}
+	
+	def "paged listings leave out deleted directories"()
+	{
+		given:
+			def fs = new FileSystemImpl("pagefs", { } as SweepScheduler)
+			["/dir/a", "/dir/gone/b", "/dir/c"].each { touch(fs, it) }
+			def dir = fs.fileAt("/dir")
+			fs.delete(fs.fileAt("/dir/gone"), true)
+		expect:
+			fs.list(dir, null, 10).items as Set == ["/dir/a", "/dir/c"] as Set
+			!fs.list(dir, null, 10).hasMore()
+			fs.listIterator(dir, 1).collect() as Set == ["/dir/a", "/dir/c"] as Set
+	}
+	
+	def "listing iterators fetch pages as they are needed"()
+	{
+		given:
+			def fs = new FileSystemImpl("pagefs")
+			fs.createAll((1..12).collect { info("/many/file${it}") })
+			def dir = fs.fileAt("/many")
+			def iter
+		expect:
+			datastoreCalls { iter = fs.fileIterator(dir, 5) } == 0
+			datastoreCalls { iter.next() } > 0
+			datastoreCalls { 4.times { iter.next() } } == 0
+			iter.collect()*.path.size() == 7
+			!iter.hasNext()
+	}
+	
+	def "async lookups can be started together"()
+	{
+		given:
+			def fs = new FileSystemImpl("asyncfs")
+			def paths = ["/a/one", "/b/two", "/c/three"]
+			paths.each { touch(fs, it) }
+			def fresh = new FileSystemImpl("asyncfs")
+		when:
+			def files = paths.collect { fresh.fileAtAsync(it) }
+			def missing = fresh.fileAtAsync("/a/none")
+			def many = fresh.filesAtAsync(paths.reverse())
+			def listing = fresh.listFilesAsync(fs.fileAt("/a"))
+		then:
+			files*.get()*.path == paths
+			missing.get() == null
+			many.get()*.path == paths.reverse()
+			listing.get()*.path == ["/a/one"]
+	}
+	
+	def "async changes are finished by get"()
+	{
+		given:
+			def fs = new FileSystemImpl("asyncfs")
+			touch(fs, "/old")
+		when:
+			def created = fs.createAsync(info("/dir/new"))
+			def deleted = fs.deleteAsync(fs.fileAt("/old"), false)
+		then:
+			created.get().path == "/dir/new"
+			deleted.get() == null
+			created.done
+			fs.fileAt("/dir/new") != null
+			fs.fileAt("/old") == null
+			fs.list(fs.fileAt("/")).size() == 1
+	}
+	
+	def "async changes are written before get"()
+	{
+		given:
+			def fs = new FileSystemImpl("asyncfs")
+			touch(fs, "/old")
+			def old = fs.fileAt("/old")
+			def created
+			def deleted
+		expect:
+			datastoreCalls { created = fs.createAsync(info("/dir/new")) } > 0
+			datastoreCalls { deleted = fs.deleteAsync(old, false) } > 0
+			datastoreCalls { created.get(); deleted.get() } == 0
+			fs.fileAt("/dir/new") != null
+			fs.fileAt("/old") == null
+	}
+	
+	def "timed gets only wait for calls in flight"()
+	{
+		given:
+			def call = SettableFuture.create()
+			def deferred = new Deferred<String>() {
+				protected String compute() { Deferred.await(call) }
+				protected Iterable<? extends Future<?>> pending() { [call] }
+			}
+		when:
+			deferred.get(10, TimeUnit.MILLISECONDS)
+		then:
+			thrown(TimeoutException)
+			!deferred.done
+		when:
+			call.set("done")
+		then:
+			deferred.get(10, TimeUnit.MILLISECONDS) == "done"
+	}
+	
+	def "async creates report errors through the future"()
+	{
+		given:
+			def fs = new FileSystemImpl("asyncfs")
+			touch(fs, "/file")
+		when:
+			fs.createAsync(info("/file/child")).get()
+		then:
+			def e = thrown(ExecutionException)
+			e.cause instanceof IllegalStateException
+	}
+	
+	def "parents are only loaded when they are used"()
+	{
+		given:
+			def fs = new FileSystemImpl("lazyparentfs")
+			touch(fs, "/a/b/c/d/file")
+			ofy().clear()
+		expect:
+			datastoreCalls { ofy().load().type(FileImpl).id("/a/b/c/d/file").now() } == 1
+			!ofy().isLoaded(Key.create(FileImpl, "/a/b/c/d"))
+			fs.fileAt("/a/b/c/d/file").parent.path == "/a/b/c/d"
+			fs.fileAt("/").parent == null
+		when:
+			ofy().clear()
+			ofy().load().group(FileImpl.WithParent).type(FileImpl).id("/a/b/c/d/file").now()
+		then:
+			ofy().isLoaded(Key.create(FileImpl, "/a/b/c/d"))
+	}
+	
+	def "listings of deleted directories are empty"()
+	{
+		given:
+			def fs = new FileSystemImpl("lazyparentfs", { } as SweepScheduler)
+			touch(fs, "/dir/sub/file")
+			def sub = fs.fileAt("/dir/sub")
+			fs.delete(fs.fileAt("/dir"), true)
+		expect:
+			fs.listFiles(sub).empty
+	}
+	
+	def "listTree finds the whole subtree"()
+	{
+		given:
+			def fs = new FileSystemImpl("treefs")
+			["/a/x", "/a/b/y", "/a/b/c/z", "/ab/w", "/other"].each { touch(fs, it) }
+		expect:
+			fs.listTree(fs.fileAt("/a")) as Set == ["/a/x", "/a/b", "/a/b/y", "/a/b/c", "/a/b/c/z"] as Set
+			fs.listFileTree(fs.fileAt("/a/b"))*.path as Set == ["/a/b/y", "/a/b/c", "/a/b/c/z"] as Set
+			fs.listTree(fs.fileAt("/a/b/c/z")).empty
+	}
+	
+	def "large trees can be listed a page at a time"()
+	{
+		given:
+			def fs = new FileSystemImpl("treefs", { } as SweepScheduler)
+			["/a/x", "/a/b/y", "/a/b/c/z", "/a/gone/w", "/other"].each { touch(fs, it) }
+			fs.delete(fs.fileAt("/a/gone"), true)
+			def dir = fs.fileAt("/a")
+			def expected = ["/a/x", "/a/b", "/a/b/y", "/a/b/c", "/a/b/c/z"] as Set
+		when:
+			def pages = [fs.listTree(dir, null, 2)]
+			while(pages[-1].hasMore())
+			{
+				pages << fs.listTree(dir, pages[-1].cursor, 2)
+			}
+		then:
+			pages.every { it.items.size() <= 2 }
+			pages*.items.flatten() as Set == expected
+			fs.listFileTree(dir, pages[0].cursor, 2).items*.path == pages[1].items
+		expect:
+			fs.treeIterator(dir, 2).collect() as Set == expected
+			fs.fileTreeIterator(dir, 3).collect { it.path } as Set == expected
+	}
+	
+	def "recursive delete removes the subtree"()
+	{
+		given:
+			def fs = new FileSystemImpl("treefs")
+			["/a/x", "/a/b/y", "/ab/w"].each { touch(fs, it) }
+		when:
+			fs.delete(fs.fileAt("/a"), true)
+		then:
+			fs.fileAt("/a") == null
+			fs.fileAt("/a/b/y") == null
+			fs.listTree(fs.fileAt("/")) as Set == ["/ab", "/ab/w"] as Set
+	}
+	
+	def "tree deletion runs in batches and can be resumed"()
+	{
+		given:
+			def fs = new FileSystemImpl("treefs")
+			(1..20).each { touch(fs, "/big/dir${it % 3}/file${it}") }
+			touch(fs, "/kept")
+		when:
+			def deletion = new TreeDeletion("/big", 4, 2)
+			3.times { deletion.runBatch() }
+		then:
+			!deletion.finished
+			deletion.deleted + deletion.pending == 12
+			fs.fileAt("/big") != null
+		when:
+			def resumed = new TreeDeletion("/big", 4, 2)
+			resumed.run()
+			// the deletion didn't go through fs, so its cache still has the old files
+			def fresh = new FileSystemImpl("treefs")
+		then:
+			resumed.finished
+			deletion.deleted + deletion.pending + resumed.deleted == 24 // 20 files, 3 directories and /big itself
+			fresh.fileAt("/big") == null
+			fresh.fileAt("/big/dir1/file1") == null
+			fresh.listTree(fresh.fileAt("/")) == ["/kept"]
+	}
+	
+	def "files left behind by a deletion are hidden"()
+	{
+		given:
+			def fs = new FileSystemImpl("treefs")
+			["/a/b/x", "/a/y"].each { touch(fs, it) }
+			DatastoreServiceFactory.datastoreService.delete(Key.create(FileImpl, "/a/b").raw)
+			def fresh = new FileSystemImpl("treefs")
+		expect:
+			fresh.fileAt("/a/b/x") == null
+			fresh.filesAt("/a/b/x", "/a/y")*.path == ["/a/y"]
+	}
+	
+	def "recursive delete hides the tree until it is swept"()
+	{
+		given:
+			def tasks = []
+			def fs = new FileSystemImpl("lazyfs", { tasks << it } as SweepScheduler)
+			touch(fs, "/kept")
+			def rootDigest = fs.fileAt("/").digest
+			["/site/index.html", "/site/css/main.css"].each { touch(fs, it) }
+			def root = fs.fileAt("/")
+			fs.list(root)
+		when:
+			fs.delete(fs.fileAt("/site"), true)
+		then:
+			tasks.size() == 1
+			fs.fileAt("/site") == null
+			fs.fileAt("/site/css/main.css") == null
+			fs.filesAt("/site/index.html", "/kept")*.path == ["/kept"]
+			fs.list(root).size() == 1
+			fs.listFiles(root)*.path == ["/kept"]
+			fs.listTree(root) == ["/kept"]
+			fs.fileAt("/").digest == rootDigest
+			ofy().load().type(FileImpl).id("/site/css/main.css").now() != null
+		when:
+			tasks*.run()
+		then:
+			ofy().load().type(FileImpl).id("/site").now() == null
+			ofy().load().type(FileImpl).id("/site/css/main.css").now() == null
+			fs.fileAt("/").digest == rootDigest
+	}
+	
+	def "creating inside a deleted tree reclaims it first"()
+	{
+		given:
+			def tasks = []
+			def fs = new FileSystemImpl("lazyfs", { tasks << it } as SweepScheduler)
+			["/site/old.html", "/site/css/main.css"].each { touch(fs, it) }
+			fs.delete(fs.fileAt("/site"), true)
+		when:
+			touch(fs, "/site/css/new.css")
+			tasks*.run()
+		then:
+			fs.fileAt("/site/css/new.css") != null
+			ofy().load().type(FileImpl).id("/site/old.html").now() == null
+			ofy().load().type(FileImpl).id("/site/css/main.css").now() == null
+			fs.listTree(fs.fileAt("/site")) as Set == ["/site/css", "/site/css/new.css"] as Set
+	}
+	
+	def "sweepAll reclaims every tombstone"()
+	{
+		given:
+			def fs = new FileSystemImpl("lazyfs", { } as SweepScheduler)
+			["/one/a", "/two/b", "/three/c"].each { touch(fs, it) }
+			fs.delete(fs.fileAt("/one"), true)
+			fs.delete(fs.fileAt("/two"), true)
+		expect:
+			Tombstones.sweepAll() == 2
+			ofy().load().type(FileImpl).ids("/one", "/one/a", "/two", "/two/b").isEmpty()
+			fs.listTree(fs.fileAt("/")) as Set == ["/three", "/three/c"] as Set
+			Tombstones.sweepAll() == 0
+	}
+	
+	def "recursive deletes queue a sweep that can run in any later request"()
+	{
+		given:
+			// serialized like the task queue does, without depending on the local queue leaving tasks alone
+			def queued = []
+			def fs = new FileSystemImpl("queuefs", { sweep ->
+				def bytes = new ByteArrayOutputStream()
+				new ObjectOutputStream(bytes).writeObject(sweep)
+				queued << bytes.toByteArray()
+			} as SweepScheduler)
+			["/site/index.html", "/site/css/main.css"].each { touch(fs, it) }
+			fs.fileAt("/site/index.html")
+		when:
+			fs.delete(fs.fileAt("/site"), true)
+		then:
+			queued.size() == 1
+			ofy().load().type(FileImpl).id("/site/css/main.css").now() != null
+		when:
+			// the task keeps its own namespace wherever it runs
+			NamespaceManager.set("elsewhere")
+			queued.each { (new ObjectInputStream(new ByteArrayInputStream(it)).readObject() as DeferredTask).run() }
+			NamespaceManager.set(null)
+			ofy().clear()
+			touch(fs, "/site/new.html")
+		then:
+			ofy().load().type(FileImpl).ids("/site/index.html", "/site/css", "/site/css/main.css").isEmpty()
+			fs.fileAt("/site/index.html") == null
+			fs.listTree(fs.fileAt("/site")) == ["/site/new.html"]
+	}
+	
+	def "migration backfills the ancestor index"()
+	{
+		given:
+			def fs = new FileSystemImpl("treefs")
+			["/a/x", "/a/b/y", "/c/z"].each { touch(fs, it) }
+			def datastore = DatastoreServiceFactory.datastoreService
+			datastore.prepare(new Query("file")).asIterable().each {
+				it.removeProperty(AncestorIndexMigration.ANCESTORS_PROPERTY)
+				datastore.put(it)
+			}
+			ofy().clear()
+		expect:
+			fs.listTree(fs.fileAt("/a")).empty
+		when:
+			def migration = new AncestorIndexMigration(null, 2)
+			migration.runBatch()
+			def resumed = new AncestorIndexMigration(migration.cursor, 2)
+			resumed.run()
+		then:
+			migration.scanned == 2
+			resumed.finished
+			migration.updated + resumed.updated == 6 // the root has no ancestors
+			fs.listTree(fs.fileAt("/a")) as Set == ["/a/x", "/a/b", "/a/b/y"] as Set
+		when:
+			def again = new AncestorIndexMigration()
+		then:
+			again.run() == 0
+			again.scanned == 7
+	}
+	
+	def "migration rebuilds missing digests"()
+	{
+		given:
+			def fs = new FileSystemImpl("digestfs")
+			["/one/a", "/one/b/c", "/two/d"].each { touch(fs, it) }
+			def digests = ["/", "/one", "/one/b", "/two"].collectEntries { [it, fs.fileAt(it).digest] }
+			def datastore = DatastoreServiceFactory.datastoreService
+			datastore.prepare(new Query("file")).asIterable().each {
+				it.removeProperty(DirectoryDigests.DIGEST_PROPERTY)
+				datastore.put(it)
+			}
+			ofy().clear()
+		when:
+			def migration = new AncestorIndexMigration()
+			migration.run()
+		then:
+			migration.finished
+			migration.repaired == 4
+			digests.every { path, digest -> ofy().load().type(FileImpl).id(path).now().digest == digest }
+	}
+	
+	def "repairDigests fixes the digests above an interrupted change"()
+	{
+		given:
+			def fs = new FileSystemImpl("digestfs")
+			["/a/b/x", "/a/y", "/c"].each { touch(fs, it) }
+			def rootDigest = fs.fileAt("/").digest
+			def cDigest = fs.fileAt("/c").digest
+			def datastore = DatastoreServiceFactory.datastoreService
+			def entity = datastore.get(Key.create(FileImpl, "/a/b/x").raw)
+			entity.setUnindexedProperty("md5Hash", new Blob(md5("changed".bytes)))
+			datastore.put(entity)
+		when:
+			def repaired = fs.repairDigests(fs.fileAt("/a"))
+		then:
+			repaired == 2
+			fs.fileAt("/").digest != rootDigest
+			fs.fileAt("/c").digest == cDigest
+			fs.repairDigests(fs.fileAt("/")) == 0
+	}
+	
+	def "concurrent changes all reach the directory digests"()
+	{
+		given:
+			def fs = new FileSystemImpl("digestfs")
+			// the directories every thread shares exist first, so the threads only contend for their digests
+			touch(fs, "/shared/seed")
+			def env = ApiProxy.currentEnvironment
+			def failures = Collections.synchronizedList([])
+		when:
+			def threads = (0..<8).collect { thread ->
+				Thread.start {
+					ApiProxy.setEnvironmentForCurrentThread(env)
+					try
+					{
+						(0..<5).each { touch(fs, "/shared/t$thread/f$it") }
+					}
+					catch(Throwable e)
+					{
+						failures << e
+					}
+				}
+			}
+			threads*.join()
+		then:
+			failures.empty
+			fs.listTree(fs.fileAt("/shared")).findAll { it.startsWith("/shared/t") && it.contains("/f") }.size() == 40
+			fs.repairDigests(fs.fileAt("/")) == 0
+	}
+	
+	def "digest updates leave the rest of the session alone"()
+	{
+		given:
+			def fs = new FileSystemImpl("digestfs")
+			touch(fs, "/a/x")
+			ofy().clear()
+			ofy().load().type(FileImpl).id("/a/x").now()
+			def dir = ofy().load().type(FileImpl).id("/a").now()
+		when:
+			touch(fs, "/a/y")
+		then:
+			ofy().isLoaded(Key.create(FileImpl, "/a/x"))
+			dir.digest == fs.fileAt("/a").digest
+	}
+	
+	def "summaries list types and sizes without loading files"()
+	{
+		given:
+			def fs = new FileSystemImpl("summaryfs")
+			byte[] logo = DataUtils.randomData(300)
+			fs.create("/assets/logo.png", MediaType.PNG, writeBlob(logo), md5(logo))
+			fs.create("/assets/photo.jpg", MediaType.JPEG, writeBlob(new byte[42]), md5(new byte[42]))
+			fs.create("/assets/css/site.css", MediaType.CSS_UTF_8, writeBlob(new byte[7]), md5(new byte[7]))
+			def dir = fs.fileAt("/assets")
+		when:
+			def all = fs.listSummaries(dir, null, null, 10)
+		then:
+			!all.hasMore()
+			all.items.collectEntries { [it.path, [it.mimeType, it.size]] } == [
+				"/assets/logo.png": [MediaType.PNG, 300L],
+				"/assets/photo.jpg": [MediaType.JPEG, 42L],
+				"/assets/css": [null, 0L]]
+			all.items.find { it.path == "/assets/css" }.directory
+			fs.fileAt("/assets/logo.png").size == 300
+		expect:
+			fs.listSummaries(dir, MediaType.ANY_IMAGE_TYPE, null, 10).items*.path as Set == ["/assets/logo.png", "/assets/photo.jpg"] as Set
+			fs.listSummaries(dir, MediaType.PNG, null, 10).items*.mimeType == [MediaType.PNG]
+			fs.listTreeSummaries(dir, MediaType.parse("text/css"), null, 10).items*.path == ["/assets/css/site.css"]
+			fs.listTreeSummaries(dir, MediaType.ANY_TYPE, null, 10).items.size() == 4
+	}
+	
+	def "summaries are paged and leave out deleted files"()
+	{
+		given:
+			def fs = new FileSystemImpl("summaryfs", { } as SweepScheduler)
+			["/dir/a", "/dir/b", "/dir/gone/c", "/dir/gone/d"].each { touch(fs, it) }
+			def dir = fs.fileAt("/dir")
+			def gone = fs.fileAt("/dir/gone")
+			fs.delete(gone, true)
+		when:
+			def first = fs.listSummaries(dir, MediaType.OCTET_STREAM, null, 1)
+			def second = fs.listSummaries(dir, MediaType.OCTET_STREAM, first.cursor, 1)
+		then:
+			first.items.size() == 1
+			(first.items + second.items)*.path as Set == ["/dir/a", "/dir/b"] as Set
+		expect:
+			fs.listTreeSummaries(dir, null, null, 10).items*.path as Set == ["/dir/a", "/dir/b"] as Set
+			fs.listSummaries(gone, null, null, 10).items.empty
+	}
+	
+	def "summaries follow updates and are backfilled by the migration"()
+	{
+		given:
+			def fs = new FileSystemImpl("summaryfs")
+			byte[] oldData = DataUtils.randomData(10 * BLOCK_SIZE)
+			def file = fs.create("/data.bin", MediaType.OCTET_STREAM, writeBlob(oldData), md5(oldData))
+			byte[] newData = edit(oldData)
+			fs.update(file, BLOCK_SIZE, differences(oldData, newData))
+		expect:
+			fs.listSummaries(fs.fileAt("/"), null, null, 10).items*.size == [(long) newData.length]
+		when:
+			def datastore = DatastoreServiceFactory.datastoreService
+			datastore.prepare(new Query("file")).asIterable().each {
+				[FileSummaries.SIZE_PROPERTY, FileSummaries.BASE_TYPE_PROPERTY, FileSummaries.TOP_LEVEL_TYPE_PROPERTY].each { p -> it.removeProperty(p) }
+				datastore.put(it)
+			}
+		then:
+			fs.listSummaries(fs.fileAt("/"), null, null, 10).items.empty
+		when:
+			new AncestorIndexMigration().run()
+		then:
+			fs.listSummaries(fs.fileAt("/"), MediaType.ANY_APPLICATION_TYPE, null, 10).items*.size == [(long) newData.length]
+	}
+	
+	def "the shipped datastore indexes serve every listing query"()
+	{
+		given:
+			def fs = new FileSystemImpl("indexfs", { } as SweepScheduler)
+			fs.create("/site/logo.png", MediaType.PNG, writeBlob(new byte[3]), md5(new byte[3]))
+			["/site/css/site.css", "/site/gone/old.css"].each { touch(fs, it) }
+			fs.delete(fs.fileAt("/site/gone"), true)
+			def dir = fs.fileAt("/site")
+			def appDir = Files.createTempDirectory("indexes").toFile()
+			generateIndexesIn(appDir)
+		when: "every shape of listing query runs, the local datastore writes out the indexes they need"
+			[null, MediaType.ANY_IMAGE_TYPE, MediaType.PNG].each { type ->
+				assert fs.listSummaries(dir, type, null, 10).items
+				assert fs.listTreeSummaries(dir, type, null, 10).items
+			}
+			assert fs.list(dir, null, 10).items as Set == ["/site/logo.png", "/site/css"] as Set
+			assert fs.listTree(dir, null, 10).items as Set == ["/site/logo.png", "/site/css", "/site/css/site.css"] as Set
+			// equality filters can come in any order, so indexes are compared by their properties
+			def properties = { xml -> new XmlSlurper().parse(xml)."datastore-index".collect { it.property*.@name*.text() } }
+			def needed = properties(new File(appDir, "WEB-INF/appengine-generated/datastore-indexes-auto.xml"))
+			def shipped = properties(getClass().getResourceAsStream("/com/bennavetta/appsite2/filesystem/datastore-indexes.xml"))
+		then:
+			needed
+			shipped*.toSet().containsAll(needed*.toSet())
+		and: "the tombstone queries could merge the built-in indexes, so the local datastore doesn't ask for theirs"
+			shipped.contains(["parent", "tombstone"])
+			shipped.contains(["ancestors", "tombstone"])
+		cleanup:
+			generateIndexesIn(new File("."))
+			appDir?.deleteDir()
+	}
+	
+	def "the index answers reads without the datastore"()
+	{
+		given:
+			def fs = new FileSystemImpl("indexfs")
+			["/a/x", "/a/b/y", "/c"].each { touch(fs, it) }
+			fs.enableIndex(1, TimeUnit.HOURS)
+			def dir = fs.fileAt("/a")
+		expect:
+			datastoreCalls {
+				assert fs.fileAt("/a/b/y").MD5Hash == md5("/a/b/y".bytes)
+				assert fs.fileAt("/missing") == null
+				assert fs.filesAt("/c", "/nope", "/a/x")*.path == ["/c", "/a/x"]
+				assert fs.list(dir) == ["/a/b", "/a/x"]
+				assert fs.listFiles(dir)*.name == ["b", "x"]
+				assert fs.listFilesAsync(dir).get()*.directory == [true, false]
+			} == 0
+	}
+	
+	def "the index follows changes through the same instance"()
+	{
+		given:
+			def fs = new FileSystemImpl("indexfs", { } as SweepScheduler)
+			["/a/x", "/a/b/y"].each { touch(fs, it) }
+			fs.enableIndex(1, TimeUnit.HOURS)
+		when:
+			touch(fs, "/a/b/z")
+			fs.delete(fs.fileAt("/a/x"), false)
+		then:
+			fs.list(fs.fileAt("/a/b")) == ["/a/b/y", "/a/b/z"]
+			fs.fileAt("/a/x") == null
+			fs.fileAt("/a").digest == new FileSystemImpl("other").fileAt("/a").digest
+		when:
+			fs.delete(fs.fileAt("/a/b"), true) // only marks it, since the sweeper does nothing
+		then:
+			fs.fileAt("/a/b") == null
+			fs.fileAt("/a/b/y") == null
+			fs.list(fs.fileAt("/a")).empty
+		when:
+			touch(fs, "/a/b/new")
+		then:
+			fs.list(fs.fileAt("/a/b")) == ["/a/b/new"]
+	}
+	
+	def "the index finds changes made elsewhere by comparing digests"()
+	{
+		given:
+			def fs = new FileSystemImpl("indexfs")
+			["/a/x", "/a/y", "/b/z", "/c/w"].each { touch(fs, it) }
+			fs.enableIndex(0, TimeUnit.SECONDS)
+			def other = new FileSystemImpl("indexfs")
+		expect:
+			datastoreCalls { fs.fileAt("/a/x") } == 1 // just the root
+		when:
+			touch(other, "/a/new")
+			other.delete(other.fileAt("/b"), true)
+			def calls = datastoreCalls { fs.fileAt("/a/new") }
+		then:
+			calls == 3 // the root, and listings of / and /a
+			fs.fileAt("/a/new") != null
+			fs.fileAt("/b/z") == null
+			fs.list(fs.fileAt("/")) == ["/a", "/c"]
+			fs.list(fs.fileAt("/a")) == ["/a/new", "/a/x", "/a/y"]
+	}
+	
+	def "the index lists a directory again if its children don't add up to its digest"()
+	{
+		given:
+			def fs = new FileSystemImpl("indexfs")
+			touch(fs, "/a/x")
+			fs.enableIndex(0, TimeUnit.SECONDS)
+			def other = new FileSystemImpl("indexfs")
+			def datastore = DatastoreServiceFactory.datastoreService
+		when: "a new file is missing from the query for its directory's children, as it can be until the query catches up"
+			touch(other, "/a/late")
+			def late = datastore.get(Key.create(FileImpl, "/a/late").raw)
+			def parent = late.getProperty("parent")
+			late.removeProperty("parent")
+			datastore.put(late)
+		then:
+			fs.list(fs.fileAt("/a")) == ["/a/x"]
+		when:
+			late.setProperty("parent", parent)
+			datastore.put(late)
+		then:
+			fs.list(fs.fileAt("/a")) == ["/a/late", "/a/x"]
+	}
+	
+	def "snapshots don't change and share what didn't change"()
+	{
+		given:
+			def fs = new FileSystemImpl("snapshotfs")
+			["/a/x", "/a/y", "/b/z"].each { touch(fs, it) }
+			fs.enableIndex(1, TimeUnit.HOURS)
+			def before = fs.snapshot()
+		when:
+			touch(fs, "/a/new")
+			fs.delete(fs.fileAt("/a/x"), false)
+			def after = fs.snapshot()
+		then:
+			before.list(fs.fileAt("/a")) == ["/a/x", "/a/y"]
+			before.fileAt("/a/x").MD5Hash == md5("/a/x".bytes)
+			before.fileAt("/a/new") == null
+			before.size() == 6
+			after.list(fs.fileAt("/a")) == ["/a/new", "/a/y"]
+			after.filesAt(["/a/x", "/a/new"])*.path == ["/a/new"]
+			after.size() == 6
+			after.root.getChild("b").is(before.root.getChild("b"))
+			!after.root.getChild("a").is(before.root.getChild("a"))
+			datastoreCalls { fs.snapshot() } == 0
+	}
+	
+	def "snapshots taken without the index don't change afterwards"()
+	{
+		given:
+			def fs = new FileSystemImpl("snapshotfs", { } as SweepScheduler)
+			["/a/x", "/a/gone/y", "/b"].each { touch(fs, it) }
+			fs.delete(fs.fileAt("/a/gone"), true)
+			def root = fs.fileAt("/")
+		when:
+			def snapshot = fs.snapshot()
+			touch(fs, "/c")
+		then:
+			datastoreCalls {
+				assert snapshot.size() == 4
+				assert snapshot.listFiles(root)*.path == ["/a", "/b"]
+				assert snapshot.fileAt("/a/gone/y") == null
+				assert snapshot.fileAt("/c") == null
+			} == 0
+			fs.snapshot().fileAt("c") != null
+	}
+	
+	def "snapshots taken without the index can include part of a change made during the scan"()
+	{
+		given:
+			def fs = new FileSystemImpl("snapshotfs", { } as SweepScheduler)
+			fs.createAll((0..<600).collect { info(String.format("/bulk/f%03d", it)) })
+			def delegate = ApiProxy.delegate
+			int queries = 0
+			def query = { pkg, method ->
+				// between the scan's first and second batches, move a file from the part already read to the part to come
+				if(pkg == "datastore_v3" && method == "RunQuery" && ++queries == 2)
+				{
+					ApiProxy.delegate = delegate
+					fs.delete(fs.fileAt("/bulk/f000"), false)
+					touch(fs, "/bulk/f999")
+				}
+			}
+			ApiProxy.delegate = [
+				makeSyncCall: { env, pkg, method, request ->
+					query(pkg, method)
+					delegate.makeSyncCall(env, pkg, method, request)
+				},
+				makeAsyncCall: { env, pkg, method, request, config ->
+					query(pkg, method)
+					delegate.makeAsyncCall(env, pkg, method, request, config)
+				},
+				log: { env, record -> delegate.log(env, record) },
+				flushLogs: { env -> delegate.flushLogs(env) },
+				getRequestThreads: { env -> delegate.getRequestThreads(env) }
+			] as ApiProxy.Delegate
+		when:
+			def snapshot = fs.snapshot()
+		then: "the snapshot holds both the old and the new file, which never existed together"
+			snapshot.fileAt("/bulk/f000") != null
+			snapshot.fileAt("/bulk/f999") != null
+			fs.fileAt("/bulk/f000") == null
+		cleanup:
+			ApiProxy.delegate = delegate
+	}
+	
+	byte[] apply(byte[] basis, byte[] differences)
+	{
+		def out = new ByteArrayOutputStream()
+		DifferenceReader.readDifferences(new DataInputStream(new ByteArrayInputStream(differences)), [
+			onStart: {},
+			onFinish: {},
+			onMatch: { int id, int block ->
+				int start = block * BLOCK_SIZE
+				out.write(basis, start, Math.min(BLOCK_SIZE, basis.length - start))
+			},
+			onDifferent: { byte[] buf, int off, int len -> out.write(buf, off, len) }
+		] as DifferenceListener)
+		return out.toByteArray()
+	}
+	
+	byte[] edit(byte[] data)
+	{
+		def out = new ByteArrayOutputStream()
+		out.write(data, 0, 5000)
+		out.write("a small edit".bytes)
+		out.write(data, 5000, data.length - 5000)
+		return out.toByteArray()
+	}
+	
+	InputStream differences(byte[] oldData, byte[] newData)
+	{
+		def blocks = Rsync.calculateBlocks(new ByteArrayInputStream(oldData), BLOCK_SIZE)
+		def out = new ByteArrayOutputStream()
+		Rsync.calculateDifferences(blocks, BLOCK_SIZE, new ByteArrayInputStream(newData), new DifferenceWriter(new DataOutputStream(out)))
+		return new ByteArrayInputStream(out.toByteArray())
+	}
+	
+	int datastoreCalls(Closure action)
+	{
+		def delegate = ApiProxy.delegate
+		int calls = 0
+		ApiProxy.delegate = [
+			makeSyncCall: { env, pkg, method, request ->
+				calls += pkg == "datastore_v3" ? 1 : 0
+				delegate.makeSyncCall(env, pkg, method, request)
+			},
+			makeAsyncCall: { env, pkg, method, request, config ->
+				calls += pkg == "datastore_v3" ? 1 : 0
+				delegate.makeAsyncCall(env, pkg, method, request, config)
+			},
+			log: { env, record -> delegate.log(env, record) },
+			flushLogs: { env -> delegate.flushLogs(env) },
+			getRequestThreads: { env -> delegate.getRequestThreads(env) }
+		] as ApiProxy.Delegate
+		try
+		{
+			action()
+		}
+		finally
+		{
+			ApiProxy.delegate = delegate
+		}
+		return calls
+	}
+	
+	/**
+	 * Have the local datastore write the indexes that queries need under another directory. The index manager's class
+	 * refers to the development server's XML parser, which isn't on the test classpath, so it is called through plain
+	 * reflection instead of Groovy's.
+	 */
+	@CompileStatic
+	static void generateIndexesIn(File appDir)
+	{
+		Class<?> indexes = Class.forName("com.google.appengine.api.datastore.dev.LocalCompositeIndexManager")
+		Method getInstance = indexes.getMethod("getInstance")
+		Method setAppDir = indexes.getMethod("setAppDir", File)
+		getInstance.accessible = true // the class itself is package-private
+		setAppDir.accessible = true
+		setAppDir.invoke(getInstance.invoke(null), appDir)
+	}
+	
+	FileInfo info(String path)
+	{
+		byte[] data = path.bytes
+		return new FileInfo(path, MediaType.OCTET_STREAM, writeBlob(data), md5(data))
+	}
+	
+	void touch(FileSystemImpl fs, String path)
+	{
+		byte[] data = path.bytes
+		fs.create(path, MediaType.OCTET_STREAM, writeBlob(data), md5(data))
+	}
+	
+	byte[] md5(byte[] data)
+	{
+		return Hashing.md5().hashBytes(data).asBytes()
+	}
+}
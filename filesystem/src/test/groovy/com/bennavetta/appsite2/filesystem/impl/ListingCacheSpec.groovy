@@ -0,0 +1,98 @@
+/**
+ * Copyright 2013 Ben Navetta <ben.navetta@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.appsite2.filesystem.impl
+
+import spock.lang.Specification
+
+import com.bennavetta.appsite2.test.Appengine
+import com.bennavetta.appsite2.test.Blobstore
+import com.bennavetta.appsite2.test.Memcache
+import com.bennavetta.appsite2.test.Objectify
+import com.google.appengine.api.memcache.MemcacheServiceFactory
+import com.google.common.net.MediaType
+
+@Mixin([Appengine, Objectify, Blobstore, Memcache])
+class ListingCacheSpec extends Specification
+{
+	def setupSpec()
+	{
+		Class.forName(FileSystemImpl.name)
+		objectify(FileImpl.class)
+		blobstore()
+		memcache()
+	}
+	
+	def setup()
+	{
+		appengineSetup()
+		ofy().clear()
+		def fs = new FileSystemImpl("cachefs")
+		(1..8).each { fs.create("/big/file${it}", MediaType.OCTET_STREAM, writeBlob(new byte[1]), new byte[16]) }
+		fs.create("/small/file", MediaType.OCTET_STREAM, writeBlob(new byte[1]), new byte[16])
+	}
+	
+	def cleanup()
+	{
+		appengineTearDown()
+	}
+	
+	def "cache size is bounded by children"()
+	{
+		given:
+			def cache = new ListingCache(null, 10)
+		when:
+			cache.get("/big")
+			cache.get("/small")
+			cache.get("/big")
+		then:
+			cache.get("/big").size() == 8
+			cache.stats().loadCount() == 3
+	}
+	
+	def "small listings share the cache"()
+	{
+		given:
+			def cache = new ListingCache(null, 20)
+		when:
+			cache.get("/big")
+			cache.get("/small")
+			cache.get("/big")
+			cache.get("/small")
+		then:
+			cache.stats().loadCount() == 2
+			cache.stats().hitCount() == 2
+	}
+	
+	def "out of date shared listings are reloaded"()
+	{
+		given:
+			def memcache = MemcacheServiceFactory.memcacheService
+			def cache = new ListingCache(memcache, 20)
+			def other = new ListingCache(memcache, 20)
+		when:
+			cache.get("/small")
+			other.invalidate("/small")
+			cache.get("/small")
+		then: "the version is only checked again after a while"
+			cache.stats().missCount() == 1
+			cache.stats().hitCount() == 1
+		when:
+			sleep(ListingCache.VERSION_CHECK_MILLIS)
+			cache.get("/small")
+		then:
+			cache.stats().missCount() == 2
+	}
+}
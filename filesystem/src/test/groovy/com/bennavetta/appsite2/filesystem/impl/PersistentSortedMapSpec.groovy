@@ -0,0 +1,65 @@
+/**
+ * Copyright 2013 Ben Navetta <ben.navetta@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.appsite2.filesystem.impl
+
+import spock.lang.Specification
+
+class PersistentSortedMapSpec extends Specification
+{
+	def "changes keep the map sorted and leave earlier versions alone"()
+	{
+		given:
+		def random = new Random(42)
+		def expected = new TreeMap<Integer, String>()
+		def map = PersistentSortedMap.<Integer, String>of()
+		def versions = []
+		
+		when:
+		1000.times {
+			def key = random.nextInt(200)
+			if(random.nextBoolean())
+			{
+				expected.put(key, "v$it".toString())
+				map = map.with(key, "v$it".toString())
+			}
+			else
+			{
+				expected.remove(key)
+				map = map.without(key)
+			}
+			if(it % 100 == 0)
+			{
+				versions << [map, new TreeMap(expected)]
+			}
+		}
+		
+		then:
+		map.values().collect() == expected.values().collect()
+		(0..<200).every { map.get(it) == expected.get(it) }
+		versions.every { version, entries -> version.values().collect() == entries.values().collect() }
+	}
+	
+	def "copies of sorted maps can be changed"()
+	{
+		given:
+		def map = PersistentSortedMap.copyOfSorted(new TreeMap(["b": 2, "d": 4, "f": 6]))
+		
+		expect:
+		map.with("a", 1).without("d").with("e", 5).values().collect() == [1, 2, 5, 6]
+		map.without("c").is(map)
+		map.values().collect() == [2, 4, 6]
+	}
+}
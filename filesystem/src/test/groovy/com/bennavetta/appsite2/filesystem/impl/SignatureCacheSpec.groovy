@@ -0,0 +1,71 @@
+/**
+ * Copyright 2013 Ben Navetta <ben.navetta@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.appsite2.filesystem.impl
+
+import spock.lang.Specification
+
+import com.bennavetta.appsite2.sync.DataUtils
+import com.bennavetta.appsite2.test.Appengine
+import com.bennavetta.appsite2.test.Blobstore
+
+@Mixin([Appengine, Blobstore])
+class SignatureCacheSpec extends Specification
+{
+	def setupSpec()
+	{
+		blobstore()
+	}
+	
+	def setup()
+	{
+		appengineSetup()
+	}
+	
+	def cleanup()
+	{
+		appengineTearDown()
+	}
+	
+	def "signatures are cached per blob and block size"()
+	{
+		given:
+			def cache = new SignatureCache()
+			def key = writeBlob(DataUtils.randomData(4096))
+		when:
+			def first = cache.get(key, 1024)
+			def second = cache.get(key, 1024)
+			def other = cache.get(key, 512)
+		then:
+			first.is(second)
+			first.size() == 4
+			other.size() == 8
+			cache.stats().loadCount() == 2
+			cache.stats().hitCount() == 1
+	}
+	
+	def "cache size is bounded by blocks"()
+	{
+		given:
+			def cache = new SignatureCache(10)
+			def key = writeBlob(DataUtils.randomData(8192))
+		when:
+			cache.get(key, 1024)
+			cache.get(key, 512)
+			cache.get(key, 1024)
+		then:
+			cache.stats().loadCount() == 3
+	}
+}
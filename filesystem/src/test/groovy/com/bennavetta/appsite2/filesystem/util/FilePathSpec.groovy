@@ -0,0 +1,83 @@
+/**
+ * Copyright 2013 Ben Navetta <ben.navetta@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.appsite2.filesystem.util
+
+import spock.lang.Specification
+
+class FilePathSpec extends Specification
+{
+	def "of rejects null"()
+	{
+		when:
+			FilePath.of(null)
+		then:
+			def e = thrown(NullPointerException)
+			e.message == "Path must not be null"
+	}
+	
+	def "paths are normalized like URIs"()
+	{
+		expect:
+			FilePath.of(input).toString() == output
+			FilePath.of(input).toString() == URI.create("/").resolve(input).normalize().path.replaceAll("(.)/\$", '$1')
+		where:
+			input << ['/foo/bar/baz', 'myfile', '/foo/', '', '/a/./b/../c', 'a/b/..', '/foo/bar/.', '/a/b/../../c/']
+			output << ['/foo/bar/baz', '/myfile', '/foo', '/', '/a/c', '/a', '/foo/bar', '/c']
+	}
+	
+	def "normalization collapses separators and stops at the root"()
+	{
+		expect:
+			FilePath.of(input).toString() == output
+		where:
+			input << ['//foo///bar//', '/..', '/../foo', 'a b/%20']
+			output << ['/foo/bar', '/', '/foo', '/a b/%20']
+	}
+	
+	def "paths are split into components"()
+	{
+		given:
+			def path = FilePath.of("/foo/bar/baz.txt")
+		expect:
+			path.components == ["foo", "bar", "baz.txt"]
+			path.depth == 3
+			path.name == "baz.txt"
+			path.ancestors == ["/", "/foo", "/foo/bar"]
+			!path.root
+			FilePath.of("/").is(FilePath.ROOT)
+			FilePath.ROOT.name == "/"
+			FilePath.ROOT.ancestors.empty
+			FilePath.ROOT.depth == 0
+	}
+	
+	def "repeated paths are interned"()
+	{
+		expect:
+			FilePath.of("/interned/path").is(FilePath.of("/interned/path"))
+			FilePath.of("/interned/path") == FilePath.of("/interned//path/")
+			FilePath.of("/interned/path").hashCode() == "/interned/path".hashCode()
+			FilePath.of("/interned/path") != FilePath.of("/interned")
+	}
+	
+	def "resolve follows URI rules"()
+	{
+		expect:
+			FilePath.of(base).resolve(relative).toString() == URI.create(base).resolve(relative).path
+		where:
+			base << ['/foo/bar', '/foo/bar', '/foo/bar', '/foo', '/a/b/c']
+			relative << ['baz', '/baz', '../baz', 'baz', './d/../e']
+	}
+}
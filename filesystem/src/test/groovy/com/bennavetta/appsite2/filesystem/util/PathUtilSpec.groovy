@@ -87,6 +87,12 @@ class PathUtilSpec extends Specification
 			path == "/"
 	}
 	
+	def "withoutLastPathComponent handles top-level files"()
+	{
+		expect:
+			PathUtils.withoutLastComponent("/foo") == "/"
+	}
+	
 	def "lastPathComponent rejects null"()
 	{
 		when:
@@ -120,7 +126,16 @@ class PathUtilSpec extends Specification
 		expect:
 			PathUtils.normalize(input) == output
 		where:
-			input << ['/foo/bar/baz', '/test.txt', 'myfile', '/foo/']
-			output << ['/foo/bar/baz', '/test.txt', '/myfile', '/foo']
+			input << ['/foo/bar/baz', '/test.txt', 'myfile', '/foo/', '/', '']
+			output << ['/foo/bar/baz', '/test.txt', '/myfile', '/foo', '/', '/']
+	}
+	
+	def "ancestors lists every enclosing directory"()
+	{
+		expect:
+			PathUtils.ancestors(input) == output
+		where:
+			input << ['/foo/bar/baz.txt', '/foo', 'foo/bar/', '/']
+			output << [['/', '/foo', '/foo/bar'], ['/'], ['/', '/foo'], []]
 	}
 }
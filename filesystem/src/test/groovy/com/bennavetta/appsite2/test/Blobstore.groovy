@@ -0,0 +1,66 @@
+/**
+ * Copyright 2013 Ben Navetta <ben.navetta@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.appsite2.test
+
+import java.nio.ByteBuffer
+
+import spock.lang.Specification
+
+import com.google.appengine.api.blobstore.BlobKey
+import com.google.appengine.api.files.FileServiceFactory
+import com.google.appengine.tools.development.testing.LocalBlobstoreServiceTestConfig
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig
+import com.google.appengine.tools.development.testing.LocalFileServiceTestConfig
+
+@Category(Specification)
+class Blobstore
+{
+	def blobstore()
+	{
+		// the blobstore keeps blob information in the datastore, and both store their data on disk by default
+		if(!ServiceManager.get(this).hasService(LocalDatastoreServiceTestConfig))
+		{
+			ServiceManager.get(this).addService(new LocalDatastoreServiceTestConfig())
+		}
+		ServiceManager.get(this).addService(new LocalBlobstoreServiceTestConfig().setNoStorage(true))
+		ServiceManager.get(this).addService(new LocalFileServiceTestConfig())
+	}
+	
+	BlobKey writeBlob(byte[] data, String mimeType = "application/octet-stream")
+	{
+		def files = FileServiceFactory.fileService
+		def file = files.createNewBlobFile(mimeType)
+		def channel = files.openWriteChannel(file, true)
+		channel.write(ByteBuffer.wrap(data))
+		channel.closeFinally()
+		return files.getBlobKey(file)
+	}
+	
+	byte[] readBlob(BlobKey key)
+	{
+		def files = FileServiceFactory.fileService
+		def channel = files.openReadChannel(files.getBlobFile(key), false)
+		def out = new ByteArrayOutputStream()
+		def buf = ByteBuffer.allocate(8192)
+		while(channel.read(buf) != -1)
+		{
+			out.write(buf.array(), 0, buf.position())
+			buf.clear()
+		}
+		channel.close()
+		return out.toByteArray()
+	}
+}
@@ -0,0 +1,30 @@
+/**
+ * Copyright 2013 Ben Navetta <ben.navetta@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.appsite2.test
+
+import spock.lang.Specification
+
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig
+
+@Category(Specification)
+class TaskQueue
+{
+	def taskQueue()
+	{
+		// there is no server to run tasks against, so they are left on their queues
+		ServiceManager.get(this).addService(new LocalTaskQueueTestConfig().setDisableAutoTaskExecution(true))
+	}
+}
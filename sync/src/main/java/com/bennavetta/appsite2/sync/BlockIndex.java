@@ -0,0 +1,268 @@
+/**
+ * Copyright 2013 Ben Navetta <ben.navetta@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.appsite2.sync;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.carrotsearch.hppc.ByteArrayList;
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.LongArrayList;
+import com.carrotsearch.hppc.LongIntOpenHashMap;
+import com.carrotsearch.hppc.ObjectArrayList;
+
+/**
+ * A lookup table of the blocks from one or more basis files, keyed by weak checksum. Each basis file is identified by
+ * the order in which it was added (the first basis has ID {@code 0}), and matches report both the basis ID and the
+ * index of the block within that basis. All bases must have been calculated with the same block size.
+ * <p>
+ * Blocks with the same weak checksum are chained together in the order they were added, so earlier bases are
+ * preferred when the same block appears in several of them.
+ * </p>
+ * <p>
+ * The strong hashes are stored back to back in a single array and compared in place, so searching the index with
+ * {@link #find(long, byte[], int, int)} does not allocate anything.
+ * </p>
+ * @author ben
+ *
+ */
+public class BlockIndex
+{
+	/**
+	 * The value used to mark the end of a chain.
+	 */
+	public static final int NONE = -1;
+
+	/**
+	 * Maps a weak checksum to the first entry with that checksum.
+	 */
+	private final LongIntOpenHashMap heads = new LongIntOpenHashMap();
+
+	/**
+	 * Maps a weak checksum to the last entry with that checksum, so that entries can be appended in order.
+	 */
+	private final LongIntOpenHashMap tails = new LongIntOpenHashMap();
+
+	/**
+	 * The weak checksum of each entry.
+	 */
+	private final LongArrayList checksums = new LongArrayList();
+
+	/**
+	 * The MD5 hash of each entry, {@link ProbeDigest#HASH_LENGTH} bytes per entry.
+	 */
+	private final ByteArrayList hashes = new ByteArrayList();
+
+	/**
+	 * The basis ID of each entry.
+	 */
+	private final IntArrayList bases = new IntArrayList();
+
+	/**
+	 * The index of each entry's block within its basis.
+	 */
+	private final IntArrayList indices = new IntArrayList();
+
+	/**
+	 * The next entry with the same weak checksum as each entry, or {@link #NONE}.
+	 */
+	private final IntArrayList next = new IntArrayList();
+
+	/**
+	 * The number of bases added so far.
+	 */
+	private int basisCount;
+
+	/**
+	 * Create an index of a single basis file.
+	 * @param blocks the blocks of the basis file (it will have ID {@code 0})
+	 * @return the new index
+	 */
+	public static BlockIndex of(final ObjectArrayList<Block> blocks)
+	{
+		final BlockIndex index = new BlockIndex();
+		index.addBasis(blocks);
+		return index;
+	}
+
+	/**
+	 * Add the blocks of another basis file to this index.
+	 * @param basis the blocks of the basis file (cannot be {@code null})
+	 * @return the ID assigned to the basis, which will be reported to {@link DifferenceListener#onMatch(int, int)}
+	 */
+	public int addBasis(final ObjectArrayList<Block> basis)
+	{
+		checkNotNull(basis, "Basis cannot be null");
+		final int id = basisCount++;
+		// see ObjectArrayList javadoc and the HPPC user guide for why the casts are necessary
+		final Object[] buffer = (Object[]) basis.buffer;
+		final int size = basis.size();
+		for(int i = 0; i < size; i++)
+		{
+			add(id, i, (Block) buffer[i]);
+		}
+		return id;
+	}
+
+	/**
+	 * Add a single entry to the index.
+	 * @param basis the basis ID
+	 * @param index the index of the block within the basis
+	 * @param block the block
+	 */
+	private void add(final int basis, final int index, final Block block)
+	{
+		final int entry = checksums.size();
+		final long checksum = block.getChecksum();
+		checksums.add(checksum);
+		final byte[] hash = block.getHash();
+		checkArgument(hash.length == ProbeDigest.HASH_LENGTH, "Not an MD5 hash: %s", block);
+		hashes.add(hash, 0, hash.length);
+		bases.add(basis);
+		indices.add(index);
+		next.add(NONE);
+
+		if(tails.containsKey(checksum))
+		{
+			next.set(tails.lget(), entry);
+			tails.lset(entry);
+		}
+		else
+		{
+			heads.put(checksum, entry);
+			tails.put(checksum, entry);
+		}
+	}
+
+	/**
+	 * Get the number of bases in this index.
+	 * @return the number of times {@link #addBasis(ObjectArrayList)} has been called
+	 */
+	public int getBasisCount()
+	{
+		return basisCount;
+	}
+
+	/**
+	 * Get the total number of blocks in this index, across all bases.
+	 * @return the number of blocks
+	 */
+	public int size()
+	{
+		return checksums.size();
+	}
+
+	/**
+	 * Find the first entry with the given weak checksum.
+	 * @param checksum the weak rolling checksum
+	 * @return an entry, or {@link #NONE} if no block has the checksum
+	 * @see #next(int)
+	 */
+	public int first(final long checksum)
+	{
+		return heads.containsKey(checksum) ? heads.lget() : NONE;
+	}
+
+	/**
+	 * Find the next entry with the same weak checksum as the given one.
+	 * @param entry an entry returned by {@link #first(long)} or this method
+	 * @return the next entry, or {@link #NONE} if there are no more
+	 */
+	public int next(final int entry)
+	{
+		return next.get(checkElementIndex(entry, next.size()));
+	}
+
+	/**
+	 * Search for a block with the given checksum and content. The strong hash is only calculated if there is a block
+	 * with the same weak checksum, and nothing is allocated.
+	 * @param checksum the weak rolling checksum of the data
+	 * @param data the buffer containing the data being searched for
+	 * @param off the offset of the data within the buffer
+	 * @param len the length of the data
+	 * @return the matching entry, or {@link #NONE}
+	 */
+	public int find(final long checksum, final byte[] data, final int off, final int len)
+	{
+		int match = NONE;
+		int entry = first(checksum);
+		if(entry != NONE)
+		{
+			final byte[] hash = ProbeDigest.md5(data, off, len);
+			while(entry != NONE && match == NONE)
+			{
+				if(hashEquals(entry, hash))
+				{
+					match = entry;
+				}
+				else
+				{
+					entry = next.get(entry);
+				}
+			}
+		}
+		return match;
+	}
+
+	/**
+	 * Compare an entry's stored hash against another hash without copying it.
+	 * @param entry the entry
+	 * @param hash the hash to compare against
+	 * @return {@code true} if the hashes are the same
+	 */
+	private boolean hashEquals(final int entry, final byte[] hash)
+	{
+		final byte[] stored = hashes.buffer;
+		final int start = entry * ProbeDigest.HASH_LENGTH;
+		boolean equal = true;
+		for(int i = 0; i < ProbeDigest.HASH_LENGTH && equal; i++)
+		{
+			equal = stored[start + i] == hash[i];
+		}
+		return equal;
+	}
+
+	/**
+	 * Get the weak checksum of an entry's block.
+	 * @param entry the entry
+	 * @return the weak rolling checksum
+	 */
+	public long getChecksum(final int entry)
+	{
+		return checksums.get(checkElementIndex(entry, checksums.size()));
+	}
+
+	/**
+	 * Get the ID of the basis an entry came from.
+	 * @param entry the entry
+	 * @return the basis ID
+	 */
+	public int getBasis(final int entry)
+	{
+		return bases.get(checkElementIndex(entry, bases.size()));
+	}
+
+	/**
+	 * Get the index of an entry's block within its basis.
+	 * @param entry the entry
+	 * @return the block index
+	 */
+	public int getIndex(final int entry)
+	{
+		return indices.get(checkElementIndex(entry, indices.size()));
+	}
+}
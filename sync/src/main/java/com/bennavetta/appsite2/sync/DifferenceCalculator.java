@@ -0,0 +1,315 @@
+/**
+ * Copyright 2013 Ben Navetta <ben.navetta@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.appsite2.sync;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Calculates the differences between a new file and the blocks of one or more basis files. This is the sending half of
+ * the Rsync algorithm, with a few optional extensions. A {@code DifferenceCalculator} can be reused, but it is not
+ * thread-safe.
+ * <p>
+ * The new file is read into a single fixed-size buffer, and new data is passed to the listener directly from that buffer
+ * whenever it reaches the {@link #setLiteralThreshold(int) literal threshold} or a match is found. Memory use
+ * depends only on the settings, not on the size of the file or how much of it changed.
+ * </p>
+ * @author ben
+ * @see Rsync#calculateDifferences(BlockIndex, int, InputStream, DifferenceListener)
+ */
+public final class DifferenceCalculator
+{
+	/**
+	 * The default maximum amount of new data to collect before passing it to the listener.
+	 * <br/>
+	 * Value: {@value}
+	 */
+	public static final int DEFAULT_LITERAL_THRESHOLD = 32768;
+
+	/**
+	 * The minimum amount of the new file to read at once.
+	 */
+	private static final int BUFFER_SIZE = 65536;
+
+	/**
+	 * The blocks of the basis files.
+	 */
+	private final BlockIndex index;
+
+	/**
+	 * The chunk size used to generate the blocks.
+	 */
+	private final int chunkSize;
+
+	/**
+	 * The number of bytes of the new file to search for repeated data, or {@code 0} to disable.
+	 */
+	private int historySize;
+
+	/**
+	 * The maximum amount of new data to collect before passing it to the listener.
+	 */
+	private int literalThreshold = DEFAULT_LITERAL_THRESHOLD;
+
+	/**
+	 * Data read from the new file. New data that hasn't been passed to the listener yet starts at
+	 * {@link #literalStart}, and the window being checked for a match starts at {@link #start}.
+	 */
+	private byte[] buffer;
+
+	/**
+	 * The offset in {@link #buffer} of the new data found since the last match or flush.
+	 */
+	private int literalStart;
+
+	/**
+	 * The offset in {@link #buffer} of the window being checked for a match.
+	 */
+	private int start;
+
+	/**
+	 * The offset in {@link #buffer} just past the last byte read.
+	 */
+	private int end;
+
+	/**
+	 * Whether the end of the new file has been reached.
+	 */
+	private boolean eof;
+
+	/**
+	 * The data that was sent recently.
+	 */
+	private History history;
+
+	/**
+	 * Create a calculator for the given basis files.
+	 * @param index the blocks from the basis files (cannot be {@code null})
+	 * @param chunkSize the chunk size used to generate the blocks
+	 */
+	public DifferenceCalculator(final BlockIndex index, final int chunkSize)
+	{
+		this.index = checkNotNull(index, "Index cannot be null");
+		checkArgument(chunkSize > 0, "Chunk size must be positive: %s", chunkSize);
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Get the size of the history searched for repeated data.
+	 * @return the history size in bytes, or {@code 0} if disabled
+	 * @see #setHistorySize(int)
+	 */
+	public int getHistorySize()
+	{
+		return historySize;
+	}
+
+	/**
+	 * Set the size of the history searched for repeated data. When enabled, blocks of the new file that were already
+	 * sent within this many bytes are reported to {@link DifferenceListener#onCopy(int, int)} instead of being sent
+	 * again as new data. Receivers must keep at least this much of their output available to apply the copies.
+	 * History is disabled by default.
+	 * @param historySize the history size in bytes, which must be at least the chunk size, or {@code 0} to disable
+	 */
+	public void setHistorySize(final int historySize)
+	{
+		checkArgument(historySize == 0 || historySize >= chunkSize, "History size must be 0 or at least the chunk size");
+		this.historySize = historySize;
+	}
+
+	/**
+	 * Get the maximum amount of new data collected before it is passed to the listener.
+	 * @return the threshold in bytes
+	 * @see #setLiteralThreshold(int)
+	 */
+	public int getLiteralThreshold()
+	{
+		return literalThreshold;
+	}
+
+	/**
+	 * Set the maximum amount of new data collected before it is passed to the listener. Larger values mean fewer,
+	 * larger calls to {@link DifferenceListener#onDifferent(byte[], int, int)}, at the cost of a larger buffer.
+	 * @param literalThreshold the threshold in bytes (must be positive)
+	 */
+	public void setLiteralThreshold(final int literalThreshold)
+	{
+		checkArgument(literalThreshold > 0, "Literal threshold must be positive: %s", literalThreshold);
+		this.literalThreshold = literalThreshold;
+	}
+
+	/**
+	 * Calculate the differences between the new file and the basis files.
+	 * @param input the new file
+	 * @param listener an event handler that will receive the calculated differences
+	 * @throws IOException if there is an exception calculating differences
+	 */
+	public void calculate(final InputStream input, final DifferenceListener listener) throws IOException
+	{
+		// room for the pending new data, the window and a full read
+		buffer = new byte[literalThreshold + chunkSize + Math.max(BUFFER_SIZE, chunkSize)];
+		literalStart = 0;
+		start = 0;
+		end = 0;
+		eof = false;
+		history = new History(historySize, chunkSize);
+
+		listener.onStart();
+
+		boolean full = fillWindow(input);
+		long checksum = full ? RollingChecksum.checksum(buffer, start, chunkSize) : 0;
+		while(full)
+		{
+			if(matchBlock(checksum, listener))
+			{
+				// start over with the data following the matched block
+				start += chunkSize;
+				literalStart = start;
+				full = fillWindow(input);
+				if(full)
+				{
+					checksum = RollingChecksum.checksum(buffer, start, chunkSize);
+				}
+			}
+			else
+			{
+				// the first byte of the window can't be part of any match, so it's new data
+				final byte old = buffer[start];
+				history.append(old);
+				start++;
+				if(start - literalStart >= literalThreshold)
+				{
+					flushNewData(listener);
+				}
+				full = fillWindow(input);
+				if(full)
+				{
+					checksum = RollingChecksum.update(checksum, old, buffer[start + chunkSize - 1], chunkSize);
+				}
+			}
+		}
+
+		finish(listener);
+		buffer = null;
+		history = null;
+	}
+
+	/**
+	 * Look for the window in the basis files and then in the history, and report it if found. The data is only
+	 * hashed or compared if there is a block with the same weak checksum.
+	 * @param checksum the weak checksum of the window
+	 * @param listener the listener to notify
+	 * @return {@code true} if the window was matched
+	 * @throws IOException if the listener throws an exception
+	 */
+	private boolean matchBlock(final long checksum, final DifferenceListener listener) throws IOException
+	{
+		final int match = index.find(checksum, buffer, start, chunkSize);
+		final int distance = match == BlockIndex.NONE ? history.find(checksum, buffer, start) : History.NONE;
+		history.record(checksum);
+		if(match != BlockIndex.NONE)
+		{
+			flushNewData(listener);
+			listener.onMatch(index.getBasis(match), index.getIndex(match));
+		}
+		else if(distance != History.NONE)
+		{
+			flushNewData(listener);
+			listener.onCopy(distance, chunkSize);
+		}
+		final boolean matched = match != BlockIndex.NONE || distance != History.NONE;
+		if(matched)
+		{
+			history.append(buffer, start, chunkSize);
+		}
+		return matched;
+	}
+
+	/**
+	 * Handle the data left after the last full window and notify the listener that calculation is finished.
+	 * @param listener the listener to notify
+	 * @throws IOException if the listener throws an exception
+	 */
+	private void finish(final DifferenceListener listener) throws IOException
+	{
+		// anything left over can only match the (shorter) last block of a basis
+		final int remaining = end - start;
+		int match = BlockIndex.NONE;
+		if(remaining > 0)
+		{
+			match = index.find(RollingChecksum.checksum(buffer, start, remaining), buffer, start, remaining);
+		}
+		if(match == BlockIndex.NONE)
+		{
+			start = end;
+			flushNewData(listener);
+		}
+		else
+		{
+			flushNewData(listener);
+			listener.onMatch(index.getBasis(match), index.getIndex(match));
+		}
+		listener.onFinish();
+	}
+
+	/**
+	 * Make sure there is a full window of data in the buffer, reading more of the input if necessary.
+	 * @param input the stream to read from
+	 * @return {@code true} if the window is full, or {@code false} if the end of the input was reached first
+	 * @throws IOException if there is an exception reading the data
+	 */
+	private boolean fillWindow(final InputStream input) throws IOException
+	{
+		while(end - start < chunkSize && !eof)
+		{
+			if(buffer.length - start < chunkSize)
+			{
+				// move the pending new data and partial window to the front of the buffer to make room
+				System.arraycopy(buffer, literalStart, buffer, 0, end - literalStart);
+				end -= literalStart;
+				start -= literalStart;
+				literalStart = 0;
+			}
+			final int read = input.read(buffer, end, buffer.length - end);
+			if(read == -1)
+			{
+				eof = true;
+			}
+			else
+			{
+				end += read;
+			}
+		}
+		return end - start >= chunkSize;
+	}
+
+	/**
+	 * Pass any new data before the window to the listener. The listener gets a slice of the buffer, not a copy.
+	 * @param listener the listener to notify
+	 * @throws IOException if the listener throws an exception
+	 */
+	private void flushNewData(final DifferenceListener listener) throws IOException
+	{
+		if(start > literalStart)
+		{
+			listener.onDifferent(buffer, literalStart, start - literalStart);
+			literalStart = start;
+		}
+	}
+}
@@ -18,21 +18,25 @@ package com.bennavetta.appsite2.sync;
 import java.io.IOException;
 
 /**
- * A callback for {@link Rsync#calculateDifferences(com.carrotsearch.hppc.ObjectArrayList, int, java.io.InputStream)}.
+ * A callback for {@link Rsync#calculateDifferences(BlockIndex, int, java.io.InputStream, DifferenceListener)}.
  * @author ben
  *
  */
 public interface DifferenceListener
 {
 	/**
-	 * Called when a match is found with a block from the receiver's file.
-	 * @param block the block index in the receiver's file
+	 * Called when a match is found with a block from one of the receiver's files.
+	 * @param basis the ID of the basis file containing the block ({@code 0} when there is only one)
+	 * @param block the block index in the basis file
 	 * @throws IOException if there is an error processing the match
+	 * @see BlockIndex#addBasis(com.carrotsearch.hppc.ObjectArrayList)
 	 */
-	public void onMatch(int block) throws IOException;
+	public void onMatch(int basis, int block) throws IOException;
 	
 	/**
-	 * Called when new data is found (not in receiver's file).
+	 * Called when new data is found (not in receiver's file). Long runs of new data may be split across several calls.
+	 * The buffer is usually shared with the caller and reused, so it is only valid until this method returns.
+	 * Implementations must not modify it, and must copy any data they need to keep.
 	 * @param data the buffer containing the new data
 	 * @param off the offset within the buffer that the new data begins at
 	 * @param len the length of the new data
@@ -40,6 +44,17 @@ public interface DifferenceListener
 	 */
 	public void onDifferent(byte[] data, int off, int len) throws IOException;
 	
+	/**
+	 * Called when data is found that was already sent earlier in the new file. The receiver should copy {@code length}
+	 * bytes of its output, starting {@code distance} bytes before the end of what it has written so far. The copied
+	 * data never overlaps the current position ({@code distance} is at least {@code length}).
+	 * @param distance how far back the data starts, in bytes
+	 * @param length the number of bytes to copy
+	 * @throws IOException if there is an error processing the copy
+	 * @see DifferenceCalculator#setHistorySize(int)
+	 */
+	public void onCopy(int distance, int length) throws IOException;
+	
 	/**
 	 * Called when difference calculation has begun.
 	 * @throws IOException if there is an error processing the match
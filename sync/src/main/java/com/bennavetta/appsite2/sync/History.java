@@ -0,0 +1,239 @@
+/**
+ * Copyright 2013 Ben Navetta <ben.navetta@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.appsite2.sync;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.carrotsearch.hppc.LongLongOpenHashMap;
+
+/**
+ * A bounded window of the new file's data that has already been sent, used to find data that repeats within the new
+ * file (similar to LZ77). Blocks of the history are indexed by weak checksum at positions at least one block apart.
+ * A block only becomes available once all of it has been sent, so copies never overlap the data being copied.
+ * <p>
+ * A history with a size of {@code 0} is disabled: nothing is stored and nothing is ever found.
+ * </p>
+ * @author ben
+ *
+ */
+final class History
+{
+	/**
+	 * The value returned by {@link #find(long, byte[], int)} when there is no match.
+	 */
+	public static final int NONE = -1;
+
+	/**
+	 * The data that has been sent, stored in a ring buffer.
+	 */
+	private final byte[] data;
+
+	/**
+	 * The block size used to calculate checksums.
+	 */
+	private final int blockSize;
+
+	/**
+	 * Maps a weak checksum to the position of the most recent indexed block with that checksum.
+	 */
+	private final LongLongOpenHashMap blocks = new LongLongOpenHashMap();
+
+	/**
+	 * The checksums of the indexed blocks, oldest first (a ring buffer), so they can be dropped from {@link #blocks}
+	 * once they fall out of the history.
+	 */
+	private final long[] anchorChecksums;
+
+	/**
+	 * The positions of the indexed blocks, matching {@link #anchorChecksums}.
+	 */
+	private final long[] anchorPositions;
+
+	/**
+	 * The slot of the oldest indexed block in {@link #anchorChecksums}.
+	 */
+	private int anchorHead;
+
+	/**
+	 * The number of indexed blocks.
+	 */
+	private int anchorCount;
+
+	/**
+	 * The total number of bytes sent so far, which is also the position of the next byte in the new file.
+	 */
+	private long position;
+
+	/**
+	 * Whether there is a block waiting to be indexed once it has been completely sent.
+	 */
+	private boolean pending;
+
+	/**
+	 * The checksum of the pending block.
+	 */
+	private long pendingChecksum;
+
+	/**
+	 * The position of the pending block.
+	 */
+	private long pendingPosition;
+
+	/**
+	 * The earliest position at which the next block can be recorded.
+	 */
+	private long nextAnchor;
+
+	/**
+	 * Create a new history.
+	 * @param size the number of bytes to remember, or {@code 0} to disable the history. Must be at least one block.
+	 * @param blockSize the block size used to calculate checksums
+	 */
+	History(final int size, final int blockSize)
+	{
+		checkArgument(size == 0 || size >= blockSize, "History size %s is smaller than block size %s", size, blockSize);
+		this.data = new byte[size];
+		this.blockSize = blockSize;
+		final int anchors = size == 0 ? 0 : size / blockSize + 1;
+		this.anchorChecksums = new long[anchors];
+		this.anchorPositions = new long[anchors];
+	}
+
+	/**
+	 * Check if this history stores anything.
+	 * @return {@code false} if the history was created with a size of {@code 0}
+	 */
+	public boolean isEnabled()
+	{
+		return data.length > 0;
+	}
+
+	/**
+	 * Add a byte that has been sent.
+	 * @param value the byte
+	 */
+	public void append(final byte value)
+	{
+		if(isEnabled())
+		{
+			data[(int) (position % data.length)] = value;
+		}
+		position++;
+	}
+
+	/**
+	 * Add data that has been sent.
+	 * @param buf the buffer containing the data
+	 * @param off the offset of the data within the buffer
+	 * @param len the length of the data
+	 */
+	public void append(final byte[] buf, final int off, final int len)
+	{
+		for(int i = off; i < off + len; i++)
+		{
+			append(buf[i]);
+		}
+	}
+
+	/**
+	 * Remember the block starting at the current position (the one about to be sent) so that it can be found later.
+	 * Blocks closer than the block size to the last one recorded are ignored.
+	 * @param checksum the weak checksum of the block
+	 */
+	public void record(final long checksum)
+	{
+		if(isEnabled())
+		{
+			promote();
+			if(!pending && position >= nextAnchor)
+			{
+				pending = true;
+				pendingChecksum = checksum;
+				pendingPosition = position;
+				nextAnchor = position + blockSize;
+			}
+		}
+	}
+
+	/**
+	 * Search the history for a block.
+	 * @param checksum the weak checksum of the block
+	 * @param block the buffer containing the block's data
+	 * @param off the offset of the block within the buffer (the block must be exactly one block long)
+	 * @return how far back (in bytes from the current position) the block starts, or {@link #NONE}
+	 */
+	public int find(final long checksum, final byte[] block, final int off)
+	{
+		int distance = NONE;
+		if(isEnabled())
+		{
+			promote();
+			if(blocks.containsKey(checksum))
+			{
+				final long anchor = blocks.lget();
+				if(position - anchor <= data.length && matches(anchor, block, off))
+				{
+					distance = (int) (position - anchor);
+				}
+			}
+		}
+		return distance;
+	}
+
+	/**
+	 * Compare a block against the history.
+	 * @param anchor the position of the block in the history
+	 * @param block the buffer containing the data to compare
+	 * @param off the offset of the data within the buffer
+	 * @return {@code true} if the block is identical to the data in the history
+	 */
+	private boolean matches(final long anchor, final byte[] block, final int off)
+	{
+		boolean matches = true;
+		for(int i = 0; i < blockSize && matches; i++)
+		{
+			matches = data[(int) ((anchor + i) % data.length)] == block[off + i];
+		}
+		return matches;
+	}
+
+	/**
+	 * Index the pending block if it has been completely sent.
+	 */
+	private void promote()
+	{
+		if(pending && position >= pendingPosition + blockSize)
+		{
+			if(anchorCount == anchorChecksums.length)
+			{
+				// forget the oldest block, unless a newer block with the same checksum has replaced it
+				final long oldChecksum = anchorChecksums[anchorHead];
+				if(blocks.containsKey(oldChecksum) && blocks.lget() == anchorPositions[anchorHead])
+				{
+					blocks.remove(oldChecksum);
+				}
+				anchorHead = (anchorHead + 1) % anchorChecksums.length;
+				anchorCount--;
+			}
+			final int slot = (anchorHead + anchorCount) % anchorChecksums.length;
+			anchorChecksums[slot] = pendingChecksum;
+			anchorPositions[slot] = pendingPosition;
+			anchorCount++;
+			blocks.put(pendingChecksum, pendingPosition);
+			pending = false;
+		}
+	}
+}
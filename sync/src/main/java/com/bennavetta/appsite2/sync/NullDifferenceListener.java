@@ -26,7 +26,7 @@ public class NullDifferenceListener implements DifferenceListener
 	 * {@inheritDoc}
 	 */
 	@Override
-	public void onMatch(int block) {} // NOPMD
+	public void onMatch(int basis, int block) {} // NOPMD
 
 	/**
 	 * {@inheritDoc}
@@ -34,6 +34,12 @@ public class NullDifferenceListener implements DifferenceListener
 	@Override
 	public void onDifferent(byte[] data, int off, int len) {} // NOPMD
 
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void onCopy(int distance, int length) {} // NOPMD
+
 	/**
 	 * {@inheritDoc}
 	 */
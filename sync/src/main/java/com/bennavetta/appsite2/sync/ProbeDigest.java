@@ -0,0 +1,103 @@
+/**
+ * Copyright 2013 Ben Navetta <ben.navetta@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.appsite2.sync;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A per-thread MD5 digest and output buffer, used to calculate strong hashes while searching for matches without
+ * allocating anything. Guava's {@code Hashing.md5().hashBytes()} creates a new digest, {@code HashCode} and byte array
+ * for every call, which adds up when every weak checksum hit needs a strong hash.
+ * @author ben
+ *
+ */
+final class ProbeDigest
+{
+	/**
+	 * The length of an MD5 hash in bytes.
+	 */
+	static final int HASH_LENGTH = 16;
+
+	/**
+	 * The name of the digest algorithm.
+	 */
+	private static final String ALGORITHM = "MD5";
+
+	/**
+	 * The digest for each thread.
+	 */
+	private static final ThreadLocal<ProbeDigest> DIGESTS = new ThreadLocal<ProbeDigest>()
+	{
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected ProbeDigest initialValue()
+		{
+			return new ProbeDigest();
+		}
+	};
+
+	/**
+	 * The reusable digest.
+	 */
+	private final MessageDigest digest;
+
+	/**
+	 * The reusable output buffer.
+	 */
+	private final byte[] hash = new byte[HASH_LENGTH];
+
+	/**
+	 * Create the digest for the current thread.
+	 */
+	private ProbeDigest()
+	{
+		try
+		{
+			digest = MessageDigest.getInstance(ALGORITHM);
+		}
+		catch(final NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException("Every Java platform is required to support " + ALGORITHM, e);
+		}
+	}
+
+	/**
+	 * Calculate the MD5 hash of some data. The returned array belongs to the current thread and is overwritten by
+	 * the next call on the same thread, so it must not be stored or modified.
+	 * @param data the buffer containing the data
+	 * @param off the offset of the data within the buffer
+	 * @param len the length of the data
+	 * @return the hash
+	 */
+	static byte[] md5(final byte[] data, final int off, final int len)
+	{
+		final ProbeDigest local = DIGESTS.get();
+		local.digest.update(data, off, len);
+		try
+		{
+			local.digest.digest(local.hash, 0, HASH_LENGTH);
+		}
+		catch(final DigestException e)
+		{
+			throw new IllegalStateException("Unexpected MD5 digest length", e);
+		}
+		return local.hash;
+	}
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright 2013 Ben Navetta <ben.navetta@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.appsite2.sync;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * The ways a single file can be brought up to date. The strategy is chosen by comparing {@link SyncSummary}s before
+ * the receiver calculates and sends its blocks.
+ * @author ben
+ *
+ */
+public enum SyncStrategy
+{
+	/**
+	 * The receiver's file is already up to date, so nothing needs to be sent.
+	 */
+	UNCHANGED,
+
+	/**
+	 * The whole file should be sent as new data. Used when the file is small enough that sending the blocks and
+	 * difference instructions would cost more than the file itself, or when the receiver has no copy.
+	 * @see Rsync#sendWholeFile(java.io.InputStream, int, DifferenceListener)
+	 */
+	WHOLE_FILE,
+
+	/**
+	 * The receiver should send its blocks so that only the differences are transferred.
+	 * @see Rsync#calculateDifferences(com.carrotsearch.hppc.ObjectArrayList, int, java.io.InputStream, DifferenceListener)
+	 */
+	DELTA;
+
+	/**
+	 * The default size (in bytes) below which files are always sent whole.
+	 * <br/>
+	 * Value: {@value}
+	 */
+	public static final long DEFAULT_WHOLE_FILE_THRESHOLD = 4096;
+
+	/**
+	 * Choose a strategy using the {@link #DEFAULT_WHOLE_FILE_THRESHOLD default threshold}.
+	 * @param receiver the summary of the receiver's file, or {@code null} if the receiver does not have the file
+	 * @param sender the summary of the sender's (up-to-date) file
+	 * @return the strategy to use
+	 * @see #choose(SyncSummary, SyncSummary, long)
+	 */
+	public static SyncStrategy choose(final SyncSummary receiver, final SyncSummary sender)
+	{
+		return choose(receiver, sender, DEFAULT_WHOLE_FILE_THRESHOLD);
+	}
+
+	/**
+	 * Choose how to synchronize a file.
+	 * @param receiver the summary of the receiver's file, or {@code null} if the receiver does not have the file
+	 * @param sender the summary of the sender's (up-to-date) file
+	 * @param threshold files smaller than this many bytes are sent whole
+	 * @return the strategy to use
+	 */
+	public static SyncStrategy choose(final SyncSummary receiver, final SyncSummary sender, final long threshold)
+	{
+		checkNotNull(sender, "Sender summary cannot be null");
+		final SyncStrategy strategy;
+		if(sender.matches(receiver))
+		{
+			strategy = UNCHANGED;
+		}
+		else if(receiver == null || sender.getLength() < threshold)
+		{
+			strategy = WHOLE_FILE;
+		}
+		else
+		{
+			strategy = DELTA;
+		}
+		return strategy;
+	}
+}
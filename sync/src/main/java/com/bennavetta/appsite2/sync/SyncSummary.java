@@ -0,0 +1,122 @@
+/**
+ * Copyright 2013 Ben Navetta <ben.navetta@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.appsite2.sync;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import com.bennavetta.appsite2.sync.protocol.Constants;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+
+/**
+ * The size and whole-file MD5 hash of a file. Summaries are exchanged before any blocks are sent so that
+ * unchanged files can be skipped entirely. {@code SyncSummary} objects are immutable.
+ * @author ben
+ * @see SyncStrategy
+ */
+public class SyncSummary
+{
+	/**
+	 * The size of the buffer used when summarizing a stream.
+	 */
+	private static final int BUF_SIZE = 8192;
+
+	/**
+	 * The length of the file in bytes.
+	 */
+	private final long length;
+
+	/**
+	 * The MD5 hash of the file's content.
+	 */
+	private final byte[] hash;
+
+	/**
+	 * Create a new summary with the given length and hash.
+	 * @param length the length of the file in bytes (cannot be negative)
+	 * @param hash the 16-byte MD5 hash of the whole file (will be copied)
+	 */
+	public SyncSummary(final long length, final byte[] hash)
+	{
+		checkArgument(length >= 0, "Length cannot be negative: %s", length);
+		checkNotNull(hash, "Hash cannot be null");
+		checkArgument(hash.length == Constants.HASH_LENGTH, "Hash must be %s bytes: %s", Constants.HASH_LENGTH, hash.length);
+		this.length = length;
+		this.hash = Arrays.copyOf(hash, hash.length);
+	}
+
+	/**
+	 * Summarize the content of a stream. The stream is read until it is exhausted, but it is not closed.
+	 * @param input the stream to read
+	 * @return a summary of the stream's content
+	 * @throws IOException if there is an exception reading the stream
+	 */
+	public static SyncSummary summarize(final InputStream input) throws IOException
+	{
+		final Hasher hasher = Hashing.md5().newHasher();
+		final byte[] buf = new byte[BUF_SIZE];
+		long length = 0;
+		int read = input.read(buf);
+		while(read != -1)
+		{
+			hasher.putBytes(buf, 0, read);
+			length += read;
+			read = input.read(buf);
+		}
+		return new SyncSummary(length, hasher.hash().asBytes());
+	}
+
+	/**
+	 * Get the length of the summarized file.
+	 * @return the length in bytes
+	 */
+	public long getLength()
+	{
+		return length;
+	}
+
+	/**
+	 * Get the MD5 hash of the summarized file.
+	 * @return a copy of the 128-bit (16-byte) MD5 hash of the file
+	 */
+	public byte[] getHash()
+	{
+		return Arrays.copyOf(hash, hash.length);
+	}
+
+	/**
+	 * Check if this summary describes the same content as another. The length is compared first, so
+	 * most changed files are detected without comparing hashes.
+	 * @param other the summary to compare against (can be {@code null})
+	 * @return {@code true} if both summaries have the same length and hash
+	 */
+	public boolean matches(final SyncSummary other)
+	{
+		return other != null && length == other.length && Arrays.equals(hash, other.hash);
+	}
+
+	@Override
+	public String toString()
+	{
+		return "SyncSummary [length: " + length + ", hash: " + BaseEncoding.base16().encode(hash) + "]";
+	}
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright 2013 Ben Navetta <ben.navetta@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.appsite2.sync.bench;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.bennavetta.appsite2.sync.DifferenceListener;
+
+/**
+ * Rebuilds a new file in memory from an old file and the differences between them.
+ * @author ben
+ *
+ */
+final class ArrayPatcher implements DifferenceListener
+{
+	/**
+	 * The old file.
+	 */
+	private final byte[] basis;
+
+	/**
+	 * The block size the differences were calculated with.
+	 */
+	private final int blockSize;
+
+	/**
+	 * The new file, which grows as needed.
+	 */
+	private byte[] output;
+
+	/**
+	 * The length of the new file so far.
+	 */
+	private int length;
+
+	/**
+	 * Create a new patcher.
+	 * @param basis the old file
+	 * @param blockSize the block size the differences were calculated with
+	 * @param expectedLength the expected length of the new file, used to size the output
+	 */
+	ArrayPatcher(final byte[] basis, final int blockSize, final int expectedLength)
+	{
+		this.basis = basis;
+		this.blockSize = blockSize;
+		this.output = new byte[Math.max(expectedLength, 1)];
+	}
+
+	/**
+	 * Get the rebuilt file.
+	 * @return a copy of the new file
+	 */
+	public byte[] toByteArray()
+	{
+		return Arrays.copyOf(output, length);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void onMatch(final int basisId, final int block) throws IOException
+	{
+		final long start = (long) block * blockSize;
+		if(basisId != 0 || start >= basis.length)
+		{
+			throw new IOException("No such block: " + basisId + "/" + block);
+		}
+		write(basis, (int) start, Math.min(blockSize, basis.length - (int) start));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void onDifferent(final byte[] data, final int off, final int len)
+	{
+		write(data, off, len);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void onCopy(final int distance, final int len) throws IOException
+	{
+		if(distance > length || len > distance)
+		{
+			throw new IOException("Invalid copy of " + len + " bytes from " + distance + " bytes back");
+		}
+		ensureCapacity(len);
+		// the source is entirely before the end of the output, so this never reads what it writes
+		System.arraycopy(output, length - distance, output, length, len);
+		length += len;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void onStart()
+	{
+		length = 0;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void onFinish()
+	{
+		// nothing to do
+	}
+
+	/**
+	 * Append data to the new file.
+	 * @param data the buffer containing the data
+	 * @param off the offset of the data within the buffer
+	 * @param len the length of the data
+	 */
+	private void write(final byte[] data, final int off, final int len)
+	{
+		ensureCapacity(len);
+		System.arraycopy(data, off, output, length, len);
+		length += len;
+	}
+
+	/**
+	 * Make room in the output.
+	 * @param extra the number of bytes about to be added
+	 */
+	private void ensureCapacity(final int extra)
+	{
+		if(length + extra > output.length)
+		{
+			output = Arrays.copyOf(output, Math.max(output.length * 2, length + extra));
+		}
+	}
+}
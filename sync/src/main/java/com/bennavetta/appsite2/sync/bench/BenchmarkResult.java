@@ -0,0 +1,247 @@
+/**
+ * Copyright 2013 Ben Navetta <ben.navetta@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.appsite2.sync.bench;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The measurements from one sync cycle of a {@link SyncBenchmark}.
+ * @author ben
+ *
+ */
+public final class BenchmarkResult
+{
+	/**
+	 * A header line for the table printed by {@link SyncBenchmark#main(String[])}.
+	 */
+	public static final String HEADER = String.format(Locale.ROOT, "%-8s %-8s %10s %10s %8s %10s %10s %10s %10s %8s %s",
+			"corpus", "mutation", "old", "new", "delta%", "sig MB/s", "diff MB/s", "apply MB/s", "total MB/s", "peak MB", "ok");
+
+	/**
+	 * The number of bytes in a megabyte.
+	 */
+	private static final double MEGABYTE = 1024 * 1024;
+
+	/**
+	 * The content of the files.
+	 */
+	private final Corpus corpus;
+
+	/**
+	 * How the new file was made from the old one.
+	 */
+	private final Mutation mutation;
+
+	/**
+	 * The length of the old file.
+	 */
+	private final int oldLength;
+
+	/**
+	 * The length of the new file.
+	 */
+	private final int newLength;
+
+	/**
+	 * The length of the encoded differences.
+	 */
+	private final int deltaLength;
+
+	/**
+	 * The time taken to calculate the old file's signature, in nanoseconds.
+	 */
+	private final long signatureNanos;
+
+	/**
+	 * The time taken to calculate and encode the differences, in nanoseconds.
+	 */
+	private final long deltaNanos;
+
+	/**
+	 * The time taken to decode the differences and rebuild the new file, in nanoseconds.
+	 */
+	private final long applyNanos;
+
+	/**
+	 * The peak heap use during the cycle, in bytes.
+	 */
+	private final long peakMemory;
+
+	/**
+	 * Whether the rebuilt file was identical to the new file.
+	 */
+	private final boolean correct;
+
+	/**
+	 * Create a new result.
+	 * @param corpus the content of the files
+	 * @param mutation how the new file was made from the old one
+	 * @param lengths the lengths of the old file, the new file and the differences, in that order
+	 * @param nanos the times taken by the signature, difference and reconstruction phases, in that order
+	 * @param peakMemory the peak heap use in bytes
+	 * @param correct whether the rebuilt file was identical to the new file
+	 */
+	BenchmarkResult(final Corpus corpus, final Mutation mutation, final int[] lengths, final long[] nanos, final long peakMemory, final boolean correct) // NOPMD - arrays are only read
+	{
+		this.corpus = corpus;
+		this.mutation = mutation;
+		this.oldLength = lengths[0];
+		this.newLength = lengths[1];
+		this.deltaLength = lengths[2];
+		this.signatureNanos = nanos[0];
+		this.deltaNanos = nanos[1];
+		this.applyNanos = nanos[2];
+		this.peakMemory = peakMemory;
+		this.correct = correct;
+	}
+
+	/**
+	 * Get the content of the files.
+	 * @return the corpus
+	 */
+	public Corpus getCorpus()
+	{
+		return corpus;
+	}
+
+	/**
+	 * Get how the new file was made from the old one.
+	 * @return the mutation
+	 */
+	public Mutation getMutation()
+	{
+		return mutation;
+	}
+
+	/**
+	 * Get the length of the old file.
+	 * @return the length in bytes
+	 */
+	public int getOldLength()
+	{
+		return oldLength;
+	}
+
+	/**
+	 * Get the length of the new file.
+	 * @return the length in bytes
+	 */
+	public int getNewLength()
+	{
+		return newLength;
+	}
+
+	/**
+	 * Get the length of the encoded differences.
+	 * @return the length in bytes
+	 */
+	public int getDeltaLength()
+	{
+		return deltaLength;
+	}
+
+	/**
+	 * Get the size of the differences relative to the new file.
+	 * @return the ratio of the delta length to the new file's length (lower is better)
+	 */
+	public double getDeltaRatio()
+	{
+		return newLength == 0 ? 0 : deltaLength / (double) newLength;
+	}
+
+	/**
+	 * Get the time taken to calculate the old file's signature.
+	 * @param unit the unit to return the time in
+	 * @return the time taken
+	 */
+	public long getSignatureTime(final TimeUnit unit)
+	{
+		return unit.convert(signatureNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Get the time taken to calculate and encode the differences.
+	 * @param unit the unit to return the time in
+	 * @return the time taken
+	 */
+	public long getDeltaTime(final TimeUnit unit)
+	{
+		return unit.convert(deltaNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Get the time taken to decode the differences and rebuild the new file.
+	 * @param unit the unit to return the time in
+	 * @return the time taken
+	 */
+	public long getApplyTime(final TimeUnit unit)
+	{
+		return unit.convert(applyNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Get the throughput of the whole cycle.
+	 * @return megabytes of the new file synchronized per second
+	 */
+	public double getThroughput()
+	{
+		return throughput(newLength, signatureNanos + deltaNanos + applyNanos);
+	}
+
+	/**
+	 * Get the peak heap use during the cycle. This includes the files themselves, and is the sum of each heap pool's
+	 * peak, so it is an upper bound.
+	 * @return the peak use in bytes
+	 */
+	public long getPeakMemory()
+	{
+		return peakMemory;
+	}
+
+	/**
+	 * Check if the new file was rebuilt correctly.
+	 * @return {@code true} if the rebuilt file was identical to the new file
+	 */
+	public boolean isCorrect()
+	{
+		return correct;
+	}
+
+	/**
+	 * Format this result as a line of the table started by {@link #HEADER}.
+	 * @return the formatted result
+	 */
+	@Override
+	public String toString()
+	{
+		return String.format(Locale.ROOT, "%-8s %-8s %10d %10d %8.3f %10.1f %10.1f %10.1f %10.1f %8.1f %s",
+				corpus, mutation, oldLength, newLength, getDeltaRatio() * 100,
+				throughput(oldLength, signatureNanos), throughput(newLength, deltaNanos),
+				throughput(newLength, applyNanos), getThroughput(), peakMemory / MEGABYTE, correct ? "yes" : "NO");
+	}
+
+	/**
+	 * Calculate a throughput.
+	 * @param bytes the amount of data processed
+	 * @param nanos the time taken in nanoseconds
+	 * @return the throughput in megabytes per second
+	 */
+	private static double throughput(final long bytes, final long nanos)
+	{
+		return nanos == 0 ? 0 : bytes / MEGABYTE / (nanos / (double) TimeUnit.SECONDS.toNanos(1));
+	}
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright 2013 Ben Navetta <ben.navetta@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.appsite2.sync.bench;
+
+import java.util.Random;
+
+import com.google.common.base.Charsets;
+
+/**
+ * The kinds of file content that benchmarks can be run on.
+ * @author ben
+ *
+ */
+public enum Corpus
+{
+	/**
+	 * Text made of words from a small vocabulary, split into lines. Like most real files (source code, HTML, and so
+	 * on), it repeats itself a lot, which gives weak checksums far more chances to collide than random data does.
+	 */
+	TEXT
+	{
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public byte[] generate(final Random random, final int length)
+		{
+			final byte[] data = new byte[length];
+			int pos = 0;
+			int lineLength = 0;
+			while(pos < length)
+			{
+				final byte[] word = WORDS[random.nextInt(WORDS.length)];
+				final int len = Math.min(word.length, length - pos);
+				System.arraycopy(word, 0, data, pos, len);
+				pos += len;
+				lineLength += len;
+				if(pos < length)
+				{
+					data[pos++] = lineLength > LINE_LENGTH ? (byte) '\n' : (byte) ' ';
+					lineLength = lineLength > LINE_LENGTH ? 0 : lineLength + 1;
+				}
+			}
+			return data;
+		}
+	},
+
+	/**
+	 * Uniformly random bytes. This is the easiest case for the weak checksum and the least realistic one.
+	 */
+	RANDOM
+	{
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public byte[] generate(final Random random, final int length)
+		{
+			final byte[] data = new byte[length];
+			random.nextBytes(data);
+			return data;
+		}
+	};
+
+	/**
+	 * The approximate length of a line of {@link #TEXT}.
+	 */
+	private static final int LINE_LENGTH = 72;
+
+	/**
+	 * The vocabulary used by {@link #TEXT}.
+	 */
+	private static final byte[][] WORDS = words("the", "of", "and", "a", "to", "in", "is", "file", "public", "return",
+			"final", "int", "byte", "class", "void", "static", "if", "else", "for", "while", "new", "this", "<div>",
+			"</div>", "{", "}", "(", ")", ";", "=", "block", "data", "sync", "length", "offset", "buffer", "hash");
+
+	/**
+	 * Generate content of this kind.
+	 * @param random the source of randomness, which makes the content reproducible
+	 * @param length the length of the content
+	 * @return the generated content
+	 */
+	public abstract byte[] generate(Random random, int length);
+
+	/**
+	 * Encode a list of words.
+	 * @param words the words
+	 * @return the UTF-8 encoding of each word
+	 */
+	private static byte[][] words(final String... words)
+	{
+		final byte[][] encoded = new byte[words.length][];
+		for(int i = 0; i < words.length; i++)
+		{
+			encoded[i] = words[i].getBytes(Charsets.UTF_8);
+		}
+		return encoded;
+	}
+}
@@ -0,0 +1,215 @@
+/**
+ * Copyright 2013 Ben Navetta <ben.navetta@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.appsite2.sync.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The kinds of edits that benchmarks make to a file to produce its new version. Every mutation is deterministic for
+ * a given {@link Random} seed.
+ * @author ben
+ *
+ */
+public enum Mutation
+{
+	/**
+	 * No change at all, the best case.
+	 */
+	NONE
+	{
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public byte[] apply(final byte[] data, final Random random, final Corpus corpus)
+		{
+			return Arrays.copyOf(data, data.length);
+		}
+	},
+
+	/**
+	 * Short runs of new content inserted at several places, shifting everything after them.
+	 */
+	INSERT
+	{
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public byte[] apply(final byte[] data, final Random random, final Corpus corpus)
+		{
+			final int[] positions = positions(random, data.length, EDITS);
+			final ByteArrayOutputStream out = new ByteArrayOutputStream(data.length + EDITS * MAX_EDIT_LENGTH);
+			int last = 0;
+			for(final int position : positions)
+			{
+				out.write(data, last, position - last);
+				final byte[] inserted = corpus.generate(random, 1 + random.nextInt(MAX_EDIT_LENGTH));
+				out.write(inserted, 0, inserted.length);
+				last = position;
+			}
+			out.write(data, last, data.length - last);
+			return out.toByteArray();
+		}
+	},
+
+	/**
+	 * Short runs of content removed from several places.
+	 */
+	DELETE
+	{
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public byte[] apply(final byte[] data, final Random random, final Corpus corpus)
+		{
+			final int[] positions = positions(random, data.length, EDITS);
+			final ByteArrayOutputStream out = new ByteArrayOutputStream(data.length);
+			int last = 0;
+			for(final int position : positions)
+			{
+				if(position >= last)
+				{
+					out.write(data, last, position - last);
+					last = Math.min(data.length, position + 1 + random.nextInt(MAX_EDIT_LENGTH));
+				}
+			}
+			out.write(data, last, data.length - last);
+			return out.toByteArray();
+		}
+	},
+
+	/**
+	 * A large section of the file moved somewhere else, as when functions or paragraphs are reordered.
+	 */
+	SHIFT
+	{
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public byte[] apply(final byte[] data, final Random random, final Corpus corpus)
+		{
+			final int length = data.length / SHIFT_FRACTION;
+			final int from = random.nextInt(data.length - length + 1);
+			final byte[] rest = new byte[data.length - length];
+			System.arraycopy(data, 0, rest, 0, from);
+			System.arraycopy(data, from + length, rest, from, rest.length - from);
+			final int to = random.nextInt(rest.length + 1);
+			final byte[] out = new byte[data.length];
+			System.arraycopy(rest, 0, out, 0, to);
+			System.arraycopy(data, from, out, to, length);
+			System.arraycopy(rest, to, out, to + length, rest.length - to);
+			return out;
+		}
+	},
+
+	/**
+	 * New content added to the end, as with logs.
+	 */
+	APPEND
+	{
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public byte[] apply(final byte[] data, final Random random, final Corpus corpus)
+		{
+			final byte[] appended = corpus.generate(random, data.length / APPEND_FRACTION);
+			final byte[] out = Arrays.copyOf(data, data.length + appended.length);
+			System.arraycopy(appended, 0, out, data.length, appended.length);
+			return out;
+		}
+	},
+
+	/**
+	 * Single bytes changed all over the file, the worst case for block matching.
+	 */
+	SCATTER
+	{
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public byte[] apply(final byte[] data, final Random random, final Corpus corpus)
+		{
+			final byte[] out = Arrays.copyOf(data, data.length);
+			for(final int position : positions(random, data.length, SCATTERED_EDITS))
+			{
+				if(position < out.length)
+				{
+					out[position] ^= 1 + random.nextInt(Byte.MAX_VALUE);
+				}
+			}
+			return out;
+		}
+	};
+
+	/**
+	 * The number of edits made by {@link #INSERT} and {@link #DELETE}.
+	 */
+	private static final int EDITS = 16;
+
+	/**
+	 * The maximum length of each insertion or deletion.
+	 */
+	private static final int MAX_EDIT_LENGTH = 256;
+
+	/**
+	 * The number of bytes changed by {@link #SCATTER}.
+	 */
+	private static final int SCATTERED_EDITS = 64;
+
+	/**
+	 * The part of the file moved by {@link #SHIFT} (one in this many bytes).
+	 */
+	private static final int SHIFT_FRACTION = 10;
+
+	/**
+	 * The amount of content added by {@link #APPEND} (one in this many bytes of the original).
+	 */
+	private static final int APPEND_FRACTION = 20;
+
+	/**
+	 * Create the new version of a file.
+	 * @param data the old version, which is not modified
+	 * @param random the source of randomness
+	 * @param corpus the kind of content to use for new data
+	 * @return the new version
+	 */
+	public abstract byte[] apply(byte[] data, Random random, Corpus corpus);
+
+	/**
+	 * Pick sorted random positions in a file.
+	 * @param random the source of randomness
+	 * @param length the length of the file
+	 * @param count the number of positions
+	 * @return the positions, in ascending order
+	 */
+	private static int[] positions(final Random random, final int length, final int count)
+	{
+		final int[] positions = new int[count];
+		for(int i = 0; i < count; i++)
+		{
+			positions[i] = random.nextInt(length + 1);
+		}
+		Arrays.sort(positions);
+		return positions;
+	}
+}
@@ -0,0 +1,239 @@
+/**
+ * Copyright 2013 Ben Navetta <ben.navetta@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.appsite2.sync.bench;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.bennavetta.appsite2.sync.Block;
+import com.bennavetta.appsite2.sync.BlockIndex;
+import com.bennavetta.appsite2.sync.DifferenceCalculator;
+import com.bennavetta.appsite2.sync.Rsync;
+import com.bennavetta.appsite2.sync.protocol.DifferenceReader;
+import com.bennavetta.appsite2.sync.protocol.DifferenceWriter;
+import com.carrotsearch.hppc.ObjectArrayList;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Runs complete sync cycles (signature, differences, reconstruction) over generated files, and measures throughput,
+ * delta size, memory use and whether the new file was rebuilt correctly. Files are generated from a seed, so runs
+ * with the same settings use exactly the same data.
+ * <p>
+ * Run {@link #main(String[])} (or {@code gradle :sync:benchmark}) to print a table covering every {@link Corpus} and
+ * {@link Mutation}.
+ * </p>
+ * @author ben
+ *
+ */
+public final class SyncBenchmark
+{
+	/**
+	 * The default length of the generated files.
+	 * <br/>
+	 * Value: {@value}
+	 */
+	public static final int DEFAULT_LENGTH = 4 * 1024 * 1024;
+
+	/**
+	 * The default block size.
+	 * <br/>
+	 * Value: {@value}
+	 */
+	public static final int DEFAULT_BLOCK_SIZE = 1024;
+
+	/**
+	 * The default seed for generating files.
+	 * <br/>
+	 * Value: {@value}
+	 */
+	public static final long DEFAULT_SEED = 42;
+
+	/**
+	 * A multiplier used to give each corpus and mutation its own seed.
+	 */
+	private static final long SEED_MULTIPLIER = 31;
+
+	/**
+	 * The length of the generated files.
+	 */
+	private final int length;
+
+	/**
+	 * The block size used for signatures.
+	 */
+	private final int blockSize;
+
+	/**
+	 * The seed for generating files.
+	 */
+	private final long seed;
+
+	/**
+	 * The history size passed to {@link DifferenceCalculator#setHistorySize(int)}.
+	 */
+	private int historySize;
+
+	/**
+	 * Create a new benchmark.
+	 * @param length the length of the generated files
+	 * @param blockSize the block size used for signatures
+	 * @param seed the seed for generating files
+	 */
+	public SyncBenchmark(final int length, final int blockSize, final long seed)
+	{
+		checkArgument(length > 0, "Length must be positive: %s", length);
+		checkArgument(blockSize > 0, "Block size must be positive: %s", blockSize);
+		this.length = length;
+		this.blockSize = blockSize;
+		this.seed = seed;
+	}
+
+	/**
+	 * Set the size of the history used to find data repeated within the new file.
+	 * @param historySize the history size, or {@code 0} to disable it (the default)
+	 * @see DifferenceCalculator#setHistorySize(int)
+	 */
+	public void setHistorySize(final int historySize)
+	{
+		this.historySize = historySize;
+	}
+
+	/**
+	 * Run a sync cycle on every combination of corpus and mutation.
+	 * @return the results, grouped by corpus
+	 * @throws IOException if there is an exception during a cycle
+	 */
+	public ImmutableList<BenchmarkResult> runAll() throws IOException
+	{
+		final ImmutableList.Builder<BenchmarkResult> results = ImmutableList.builder();
+		for(final Corpus corpus : Corpus.values())
+		{
+			for(final Mutation mutation : Mutation.values())
+			{
+				results.add(run(corpus, mutation));
+			}
+		}
+		return results.build();
+	}
+
+	/**
+	 * Run a single sync cycle.
+	 * @param corpus the content of the old file
+	 * @param mutation how to make the new file from the old one
+	 * @return the measurements
+	 * @throws IOException if there is an exception during the cycle
+	 */
+	public BenchmarkResult run(final Corpus corpus, final Mutation mutation) throws IOException
+	{
+		final Random random = new Random((seed * SEED_MULTIPLIER + corpus.ordinal()) * SEED_MULTIPLIER + mutation.ordinal());
+		final byte[] oldData = corpus.generate(random, length);
+		final byte[] newData = mutation.apply(oldData, random, corpus);
+		resetPeakMemory();
+
+		final long start = System.nanoTime();
+		final ObjectArrayList<Block> blocks = Rsync.calculateBlocks(new ByteArrayInputStream(oldData), blockSize);
+		final long signed = System.nanoTime();
+
+		final ByteArrayOutputStream delta = new ByteArrayOutputStream();
+		final DifferenceCalculator calculator = new DifferenceCalculator(BlockIndex.of(blocks), blockSize);
+		calculator.setHistorySize(historySize);
+		final DataOutputStream deltaOut = new DataOutputStream(delta);
+		calculator.calculate(new ByteArrayInputStream(newData), new DifferenceWriter(deltaOut));
+		deltaOut.flush();
+		final long diffed = System.nanoTime();
+
+		final ArrayPatcher patcher = new ArrayPatcher(oldData, blockSize, newData.length);
+		DifferenceReader.readDifferences(new DataInputStream(new ByteArrayInputStream(delta.toByteArray())), patcher);
+		final long applied = System.nanoTime();
+
+		return new BenchmarkResult(corpus, mutation,
+				new int[] {oldData.length, newData.length, delta.size()},
+				new long[] {signed - start, diffed - signed, applied - diffed},
+				peakMemory(), Arrays.equals(patcher.toByteArray(), newData));
+	}
+
+	/**
+	 * Reset the peak usage of every heap memory pool.
+	 */
+	private static void resetPeakMemory()
+	{
+		for(final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+		{
+			if(pool.getType() == MemoryType.HEAP)
+			{
+				pool.resetPeakUsage();
+			}
+		}
+	}
+
+	/**
+	 * Get the peak heap use since {@link #resetPeakMemory()}.
+	 * @return the sum of the peak usage of every heap memory pool, in bytes
+	 */
+	private static long peakMemory()
+	{
+		long peak = 0;
+		for(final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+		{
+			if(pool.getType() == MemoryType.HEAP)
+			{
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		return peak;
+	}
+
+	//CHECKSTYLE.OFF: UncommentedMain - this is the benchmark's entry point
+	/**
+	 * Run the benchmark and print the results. The first run only warms up the JIT, and isn't printed.
+	 * @param args optional file length, block size and seed, in that order
+	 * @throws IOException if there is an exception during a cycle
+	 */
+	public static void main(final String[] args) throws IOException
+	{
+		final int length = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_LENGTH;
+		final int blockSize = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_BLOCK_SIZE;
+		final long seed = args.length > 2 ? Long.parseLong(args[2]) : DEFAULT_SEED;
+		final SyncBenchmark benchmark = new SyncBenchmark(length, blockSize, seed);
+		benchmark.runAll();
+
+		final PrintStream out = System.out; // NOPMD - printing the results is the point
+		out.printf("length=%d blockSize=%d seed=%d%n", length, blockSize, seed);
+		out.println(BenchmarkResult.HEADER);
+		boolean correct = true;
+		for(final BenchmarkResult result : benchmark.runAll())
+		{
+			out.println(result);
+			correct &= result.isCorrect();
+		}
+		if(!correct)
+		{
+			throw new IllegalStateException("Some files were not rebuilt correctly");
+		}
+	}
+	//CHECKSTYLE.ON: UncommentedMain
+}
@@ -0,0 +1,253 @@
+/**
+ * Copyright 2013 Ben Navetta <ben.navetta@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.appsite2.sync.protocol;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.concurrent.TimeUnit;
+
+import com.bennavetta.appsite2.sync.DifferenceListener;
+
+/**
+ * A {@link DifferenceListener} that writes the same format as {@link DifferenceWriter}, but to a channel and with far
+ * fewer writes. Frame headers (and small amounts of new data) are collected in a reusable buffer, which is only written
+ * out when it fills up, when larger new data has to be written, when the oldest pending frame is older than the
+ * maximum delay, or when differences are finished. Larger new data is written together with the pending headers in a
+ * single gathering write, straight from the caller's buffer.
+ * <p>
+ * The delay is only checked when an event arrives, so a quiet stream is not flushed until the next event. The channel
+ * should be in blocking mode.
+ * </p>
+ * @author ben
+ */
+public class ChannelDifferenceWriter implements DifferenceListener
+{
+	/**
+	 * The default size of the header buffer in bytes.
+	 * <br/>
+	 * Value: {@value}
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+	/**
+	 * The default maximum time (in milliseconds) that a frame can wait in the header buffer.
+	 * <br/>
+	 * Value: {@value}
+	 */
+	public static final long DEFAULT_MAX_DELAY_MILLIS = 50;
+
+	/**
+	 * The largest frame header: a type code and two {@code int}s.
+	 */
+	private static final int MAX_HEADER_SIZE = 1 + 2 * (Integer.SIZE / Byte.SIZE);
+
+	/**
+	 * The channel to write differences to.
+	 */
+	private final GatheringByteChannel channel;
+
+	/**
+	 * Frames waiting to be written.
+	 */
+	private final ByteBuffer headers;
+
+	/**
+	 * The buffers passed to each gathering write.
+	 */
+	private final ByteBuffer[] gather = new ByteBuffer[2];
+
+	/**
+	 * New data no bigger than this is copied into {@link #headers} instead of being written separately.
+	 */
+	private final int copyThreshold;
+
+	/**
+	 * The maximum time that a frame can wait in {@link #headers}, in nanoseconds.
+	 */
+	private final long maxDelay;
+
+	/**
+	 * When the oldest pending frame was added, from {@link System#nanoTime()}.
+	 */
+	private long pendingSince;
+
+	/**
+	 * A view of the last array passed to {@link #onDifferent(byte[], int, int)}, kept so that the usual case of the
+	 * same buffer being passed every time doesn't create a new view.
+	 */
+	private ByteBuffer literal;
+
+	/**
+	 * Create a new writer with the default buffer size and delay.
+	 * @param channel the channel to write to
+	 */
+	public ChannelDifferenceWriter(final GatheringByteChannel channel)
+	{
+		this(channel, DEFAULT_BUFFER_SIZE, DEFAULT_MAX_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Create a new writer.
+	 * @param channel the channel to write to
+	 * @param bufferSize the size of the header buffer in bytes
+	 * @param maxDelay the maximum time that a frame can wait before it is written
+	 * @param unit the unit of {@code maxDelay}
+	 */
+	public ChannelDifferenceWriter(final GatheringByteChannel channel, final int bufferSize, final long maxDelay, final TimeUnit unit)
+	{
+		checkArgument(bufferSize >= 2 * MAX_HEADER_SIZE, "Buffer size is too small: %s", bufferSize);
+		this.channel = checkNotNull(channel, "Channel cannot be null");
+		this.headers = ByteBuffer.allocate(bufferSize);
+		this.copyThreshold = bufferSize / 4;
+		this.maxDelay = unit.toNanos(maxDelay);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void onMatch(final int basis, final int block) throws IOException
+	{
+		reserve(MAX_HEADER_SIZE);
+		if(basis == 0)
+		{
+			headers.put(Constants.TYPE_BLOCK_MATCH);
+		}
+		else
+		{
+			headers.put(Constants.TYPE_BASIS_MATCH);
+			headers.putInt(basis);
+		}
+		headers.putInt(block);
+		added();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void onCopy(final int distance, final int length) throws IOException
+	{
+		reserve(MAX_HEADER_SIZE);
+		headers.put(Constants.TYPE_COPY);
+		headers.putInt(distance);
+		headers.putInt(length);
+		added();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void onDifferent(final byte[] data, final int off, final int len) throws IOException
+	{
+		if(len <= copyThreshold)
+		{
+			reserve(MAX_HEADER_SIZE + len);
+			headers.put(Constants.TYPE_NEW_DATA);
+			headers.putInt(len);
+			headers.put(data, off, len);
+			added();
+		}
+		else
+		{
+			// the caller's buffer is only valid during this call, so write it now along with anything pending
+			reserve(MAX_HEADER_SIZE);
+			headers.put(Constants.TYPE_NEW_DATA);
+			headers.putInt(len);
+			if(literal == null || literal.array() != data)
+			{
+				literal = ByteBuffer.wrap(data);
+			}
+			literal.limit(off + len).position(off);
+			headers.flip();
+			gather[0] = headers;
+			gather[1] = literal;
+			while(headers.hasRemaining() || literal.hasRemaining())
+			{
+				channel.write(gather);
+			}
+			headers.clear();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void onStart()
+	{
+		// nothing to do
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void onFinish() throws IOException
+	{
+		reserve(1);
+		headers.put(Constants.TYPE_FINISHED);
+		flush();
+	}
+
+	/**
+	 * Write any pending frames to the channel.
+	 * @throws IOException if there is an exception writing to the channel
+	 */
+	public void flush() throws IOException
+	{
+		headers.flip();
+		while(headers.hasRemaining())
+		{
+			channel.write(headers);
+		}
+		headers.clear();
+	}
+
+	/**
+	 * Make sure there is room for a frame in the header buffer, writing out pending frames if necessary.
+	 * @param size the size of the frame
+	 * @throws IOException if there is an exception writing to the channel
+	 */
+	private void reserve(final int size) throws IOException
+	{
+		if(headers.remaining() < size)
+		{
+			flush();
+		}
+		if(headers.position() == 0)
+		{
+			pendingSince = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Called after a frame is added to the header buffer to write it out if frames have been waiting too long.
+	 * @throws IOException if there is an exception writing to the channel
+	 */
+	private void added() throws IOException
+	{
+		if(System.nanoTime() - pendingSince >= maxDelay)
+		{
+			flush();
+		}
+	}
+}
@@ -51,7 +51,46 @@ public final class Constants
 	 * Value: {@value}
 	 */
 	public static final byte TYPE_FINISHED = 2;
-	
+
+	/**
+	 * The code to write out indicating that a matched block from a basis other than the first is being written.
+	 * Matches from the first basis use {@link #TYPE_BLOCK_MATCH} so they don't need to include the basis ID.
+	 * <br/>
+	 * Value: {@value}
+	 */
+	public static final byte TYPE_BASIS_MATCH = 3;
+
+	/**
+	 * The code to write out indicating that data from earlier in the new file is being repeated.
+	 * <br/>
+	 * Value: {@value}
+	 */
+	public static final byte TYPE_COPY = 4;
+
+	/**
+	 * The code to write out indicating that the receiver's file is already up to date.
+	 * <br/>
+	 * Value: {@value}
+	 * @see com.bennavetta.appsite2.sync.SyncStrategy#UNCHANGED
+	 */
+	public static final byte STRATEGY_UNCHANGED = 0;
+
+	/**
+	 * The code to write out indicating that the whole file will be sent as new data.
+	 * <br/>
+	 * Value: {@value}
+	 * @see com.bennavetta.appsite2.sync.SyncStrategy#WHOLE_FILE
+	 */
+	public static final byte STRATEGY_WHOLE_FILE = 1;
+
+	/**
+	 * The code to write out indicating that the receiver should send its blocks.
+	 * <br/>
+	 * Value: {@value}
+	 * @see com.bennavetta.appsite2.sync.SyncStrategy#DELTA
+	 */
+	public static final byte STRATEGY_DELTA = 2;
+
 	/**
 	 * Hidden constructor.
 	 */
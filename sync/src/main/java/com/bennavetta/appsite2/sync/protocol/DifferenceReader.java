@@ -27,6 +27,11 @@ import com.bennavetta.appsite2.sync.DifferenceListener;
  */
 public final class DifferenceReader
 {
+	/**
+	 * The largest amount of new data passed to the listener at once.
+	 */
+	private static final int BUFFER_SIZE = 32768;
+	
 	/**
 	 * Hidden constructor.
 	 */
@@ -42,6 +47,7 @@ public final class DifferenceReader
 	{
 		listener.onStart();
 		
+		final byte[] buf = new byte[BUFFER_SIZE];
 		byte type = -1;
 		MAIN: while(true)
 		{
@@ -51,12 +57,18 @@ public final class DifferenceReader
 			case Constants.TYPE_FINISHED:
 				break MAIN;
 			case Constants.TYPE_BLOCK_MATCH:
-				listener.onMatch(input.readInt());
+				listener.onMatch(0, input.readInt());
+				break;
+			case Constants.TYPE_BASIS_MATCH:
+				final int basis = input.readInt();
+				listener.onMatch(basis, input.readInt());
+				break;
+			case Constants.TYPE_COPY:
+				final int distance = input.readInt();
+				listener.onCopy(distance, input.readInt());
 				break;
 			case Constants.TYPE_NEW_DATA:
-				byte[] data = new byte[input.readInt()]; // NOPMD - general opinion seems to be that pooling isn't worth it / more expensive
-				input.readFully(data);
-				listener.onDifferent(data, 0, data.length);
+				readNewData(input, input.readInt(), buf, listener);
 				break;
 			default:
 				throw new IOException("Unknown difference instruction: " + type);
@@ -65,4 +77,24 @@ public final class DifferenceReader
 		
 		listener.onFinish();
 	}
+	
+	/**
+	 * Pass new data to the listener a buffer at a time, so that memory use doesn't depend on how much new data there is.
+	 * @param input the stream to read from
+	 * @param length the amount of new data
+	 * @param buf the buffer to read into
+	 * @param listener a handler for the new data
+	 * @throws IOException if there is an exception reading the data
+	 */
+	private static void readNewData(final DataInputStream input, final int length, final byte[] buf, final DifferenceListener listener) throws IOException
+	{
+		int remaining = length;
+		while(remaining > 0)
+		{
+			final int len = Math.min(remaining, buf.length);
+			input.readFully(buf, 0, len);
+			listener.onDifferent(buf, 0, len);
+			remaining -= len;
+		}
+	}
 }
@@ -45,9 +45,17 @@ public class DifferenceWriter implements DifferenceListener
 	 * {@inheritDoc}
 	 */
 	@Override
-	public void onMatch(final int block) throws IOException
+	public void onMatch(final int basis, final int block) throws IOException
 	{
-		out.write(Constants.TYPE_BLOCK_MATCH);
+		if(basis == 0)
+		{
+			out.write(Constants.TYPE_BLOCK_MATCH);
+		}
+		else
+		{
+			out.write(Constants.TYPE_BASIS_MATCH);
+			out.writeInt(basis);
+		}
 		out.writeInt(block);
 	}
 
@@ -62,6 +70,17 @@ public class DifferenceWriter implements DifferenceListener
 		out.write(data, off, len);
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void onCopy(final int distance, final int length) throws IOException
+	{
+		out.write(Constants.TYPE_COPY);
+		out.writeInt(distance);
+		out.writeInt(length);
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -0,0 +1,145 @@
+/**
+ * Copyright 2013 Ben Navetta <ben.navetta@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.appsite2.sync.protocol;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import com.bennavetta.appsite2.sync.SyncSummary;
+import com.bennavetta.appsite2.sync.SyncStrategy;
+
+/**
+ * Utility methods for the quick-check negotiation that happens before blocks are exchanged. The receiver writes the
+ * {@link SyncSummary} of its copy, and the sender replies with the {@link SyncStrategy} to use. Only if the strategy is
+ * {@link SyncStrategy#DELTA} does the receiver go on to send its blocks.
+ * @author ben
+ *
+ */
+public final class QuickCheck
+{
+	/**
+	 * Hidden constructor.
+	 */
+	private QuickCheck() {}
+
+	/**
+	 * Write a file summary to the given stream. A {@code null} summary indicates that the receiver does not have the file.
+	 * @param summary the summary to write (can be {@code null})
+	 * @param out the stream to write to
+	 * @throws IOException if there is an exception writing the summary
+	 * @see #readSummary(DataInputStream)
+	 */
+	public static void writeSummary(final SyncSummary summary, final DataOutputStream out) throws IOException
+	{
+		if(summary == null)
+		{
+			out.writeBoolean(false);
+		}
+		else
+		{
+			out.writeBoolean(true);
+			out.writeLong(summary.getLength());
+			out.write(summary.getHash()); // since it's a hash, the size is constant
+		}
+	}
+
+	/**
+	 * Read a file summary from the given stream.
+	 * @param input the stream to read from
+	 * @return the summary read, or {@code null} if the receiver does not have the file
+	 * @throws IOException if there is an exception reading the summary
+	 * @see #writeSummary(SyncSummary, DataOutputStream)
+	 */
+	public static SyncSummary readSummary(final DataInputStream input) throws IOException
+	{
+		SyncSummary summary = null;
+		if(input.readBoolean())
+		{
+			final long length = input.readLong();
+			final byte[] hash = new byte[Constants.HASH_LENGTH];
+			input.readFully(hash);
+			summary = new SyncSummary(length, hash);
+		}
+		return summary;
+	}
+
+	/**
+	 * Write the chosen strategy to the given stream.
+	 * @param strategy the strategy to write
+	 * @param out the stream to write to
+	 * @throws IOException if there is an exception writing the strategy
+	 * @see #readStrategy(DataInputStream)
+	 */
+	public static void writeStrategy(final SyncStrategy strategy, final DataOutputStream out) throws IOException
+	{
+		switch(strategy)
+		{
+		case UNCHANGED:
+			out.write(Constants.STRATEGY_UNCHANGED);
+			break;
+		case WHOLE_FILE:
+			out.write(Constants.STRATEGY_WHOLE_FILE);
+			break;
+		case DELTA:
+			out.write(Constants.STRATEGY_DELTA);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown strategy: " + strategy);
+		}
+	}
+
+	/**
+	 * Read a strategy from the given stream.
+	 * @param input the stream to read from
+	 * @return the strategy read
+	 * @throws IOException if there is an exception reading the strategy or the code is not recognized
+	 * @see #writeStrategy(SyncStrategy, DataOutputStream)
+	 */
+	public static SyncStrategy readStrategy(final DataInputStream input) throws IOException
+	{
+		final byte code = input.readByte();
+		switch(code)
+		{
+		case Constants.STRATEGY_UNCHANGED:
+			return SyncStrategy.UNCHANGED;
+		case Constants.STRATEGY_WHOLE_FILE:
+			return SyncStrategy.WHOLE_FILE;
+		case Constants.STRATEGY_DELTA:
+			return SyncStrategy.DELTA;
+		default:
+			throw new IOException("Unknown sync strategy: " + code);
+		}
+	}
+
+	/**
+	 * Perform the sender's half of the negotiation: read the receiver's summary, choose a strategy and write it back.
+	 * @param local the summary of the sender's (up-to-date) file
+	 * @param threshold files smaller than this many bytes are sent whole
+	 * @param input the stream to read the receiver's summary from
+	 * @param out the stream to write the chosen strategy to
+	 * @return the chosen strategy
+	 * @throws IOException if there is an exception reading or writing
+	 * @see SyncStrategy#choose(SyncSummary, SyncSummary, long)
+	 */
+	public static SyncStrategy negotiate(final SyncSummary local, final long threshold, final DataInputStream input, final DataOutputStream out) throws IOException
+	{
+		final SyncStrategy strategy = SyncStrategy.choose(readSummary(input), local, threshold);
+		writeStrategy(strategy, out);
+		out.flush();
+		return strategy;
+	}
+}
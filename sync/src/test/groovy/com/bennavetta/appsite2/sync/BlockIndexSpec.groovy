@@ -0,0 +1,112 @@
+/**
+ * Copyright 2013 Ben Navetta <ben.navetta@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.appsite2.sync
+
+import groovy.transform.CompileStatic
+
+import java.lang.management.ManagementFactory
+
+import spock.lang.Specification
+
+class BlockIndexSpec extends Specification
+{
+	static final int BLOCK_SIZE = 16
+	
+	def "blocks are found by content"()
+	{
+		given:
+			byte[] data = DataUtils.randomData(BLOCK_SIZE * 4)
+			def index = BlockIndex.of(Rsync.calculateBlocks(new ByteArrayInputStream(data), BLOCK_SIZE))
+		when:
+			int entry = index.find(RollingChecksum.checksum(data, BLOCK_SIZE * 2, BLOCK_SIZE), data, BLOCK_SIZE * 2, BLOCK_SIZE)
+		then:
+			entry != BlockIndex.NONE
+			index.getBasis(entry) == 0
+			index.getIndex(entry) == 2
+	}
+	
+	def "weak checksum collisions are rejected"()
+	{
+		given:
+			byte[] stored = collidingBlock(true)
+			byte[] probe = collidingBlock(false)
+			def index = BlockIndex.of(Rsync.calculateBlocks(new ByteArrayInputStream(stored), BLOCK_SIZE))
+		expect:
+			RollingChecksum.checksum(stored, 0, BLOCK_SIZE) == RollingChecksum.checksum(probe, 0, BLOCK_SIZE)
+			index.find(RollingChecksum.checksum(probe, 0, BLOCK_SIZE), probe, 0, BLOCK_SIZE) == BlockIndex.NONE
+			index.find(RollingChecksum.checksum(stored, 0, BLOCK_SIZE), stored, 0, BLOCK_SIZE) == 0
+	}
+	
+	def "probing does not allocate"()
+	{
+		given:
+			com.sun.management.ThreadMXBean threads = ManagementFactory.threadMXBean
+			byte[] stored = collidingBlock(true)
+			byte[] probe = collidingBlock(false)
+			def index = BlockIndex.of(Rsync.calculateBlocks(new ByteArrayInputStream(stored), BLOCK_SIZE))
+			long checksum = RollingChecksum.checksum(stored, 0, BLOCK_SIZE)
+			probeRepeatedly(index, checksum, stored, probe, 10000) // warm up
+		when:
+			long before = threads.getThreadAllocatedBytes(Thread.currentThread().id)
+			int found = probeRepeatedly(index, checksum, stored, probe, 100000)
+			long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().id) - before
+		then:
+			found == 100000
+			// the measurement and the dynamic Groovy call allocate a little, but even one object per probe would be 16+ bytes each
+			allocated < 100000
+	}
+	
+	/**
+	 * Probe the index with a weak and strong hit followed by a weak hit and strong miss.
+	 * @return the number of strong hits
+	 */
+	@CompileStatic
+	static int probeRepeatedly(BlockIndex index, long checksum, byte[] hit, byte[] miss, int times)
+	{
+		int found = 0
+		for(int i = 0; i < times; i++)
+		{
+			if(index.find(checksum, hit, 0, BLOCK_SIZE) != BlockIndex.NONE)
+			{
+				found++
+			}
+			if(index.find(checksum, miss, 0, BLOCK_SIZE) != BlockIndex.NONE)
+			{
+				found--
+			}
+		}
+		return found
+	}
+	
+	/**
+	 * Two blocks with the same weak checksum but different content: {@code 1 0 0 1} and {@code 0 1 1 0}.
+	 */
+	static byte[] collidingBlock(boolean first)
+	{
+		byte[] block = new byte[BLOCK_SIZE]
+		if(first)
+		{
+			block[0] = 1
+			block[3] = 1
+		}
+		else
+		{
+			block[1] = 1
+			block[2] = 1
+		}
+		return block
+	}
+}
@@ -0,0 +1,236 @@
+/**
+ * Copyright 2013 Ben Navetta <ben.navetta@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.appsite2.sync
+
+import spock.lang.Specification
+
+import com.bennavetta.appsite2.sync.protocol.DifferenceReader
+import com.bennavetta.appsite2.sync.protocol.DifferenceWriter
+
+class RsyncSpec extends Specification
+{
+	static final int BLOCK_SIZE = 64
+	
+	def "unchanged file is all matches"()
+	{
+		given:
+			byte[] data = DataUtils.randomData(BLOCK_SIZE * 10 + 17)
+			def result = sync([data], data)
+		expect:
+			result.output == data
+			result.literal == 0
+			result.matches == 11
+	}
+	
+	def "inserted data is sent as new data"()
+	{
+		given:
+			byte[] old = DataUtils.randomData(BLOCK_SIZE * 20)
+			def updated = new ByteArrayOutputStream()
+			updated.write(old, 0, 300)
+			updated.write(DataUtils.randomData(50))
+			updated.write(old, 300, old.length - 300)
+			def result = sync([old], updated.toByteArray())
+		expect:
+			result.output == updated.toByteArray()
+			result.literal < 50 + 2 * BLOCK_SIZE
+	}
+	
+	def "files shorter than a block are new data"()
+	{
+		given:
+			byte[] data = DataUtils.randomData(10)
+			def result = sync([DataUtils.randomData(BLOCK_SIZE * 2)], data)
+		expect:
+			result.output == data
+			result.literal == 10
+	}
+	
+	def "blocks are matched from several bases"()
+	{
+		given:
+			byte[] first = DataUtils.randomData(BLOCK_SIZE * 4)
+			byte[] second = DataUtils.randomData(BLOCK_SIZE * 4)
+			def updated = new ByteArrayOutputStream()
+			updated.write(second, 0, BLOCK_SIZE * 2)
+			updated.write(first, BLOCK_SIZE, BLOCK_SIZE * 3)
+			def result = sync([first, second], updated.toByteArray())
+		expect:
+			result.output == updated.toByteArray()
+			result.literal == 0
+			result.bases == [1, 1, 0, 0, 0]
+	}
+	
+	def "basis IDs survive the protocol"()
+	{
+		given:
+			def data = new ByteArrayOutputStream()
+			def writer = new DifferenceWriter(new DataOutputStream(data))
+			def listener = Mock(DifferenceListener)
+		when:
+			writer.onStart()
+			writer.onMatch(0, 5)
+			writer.onMatch(3, 7)
+			writer.onFinish()
+			DifferenceReader.readDifferences(new DataInputStream(new ByteArrayInputStream(data.toByteArray())), listener)
+		then:
+			1 * listener.onStart()
+		then:
+			1 * listener.onMatch(0, 5)
+		then:
+			1 * listener.onMatch(3, 7)
+		then:
+			1 * listener.onFinish()
+	}
+	
+	def "repeated new data is copied from the history"()
+	{
+		given:
+			byte[] repeated = DataUtils.randomData(BLOCK_SIZE * 4)
+			def updated = new ByteArrayOutputStream()
+			3.times { updated.write(repeated) }
+			updated.write(DataUtils.randomData(20))
+			updated.write(repeated)
+			def result = sync([DataUtils.randomData(BLOCK_SIZE * 4)], updated.toByteArray(), BLOCK_SIZE * 8)
+		expect:
+			result.output == updated.toByteArray()
+			result.literal == BLOCK_SIZE * 4 + 20
+			result.copies == 12
+	}
+	
+	def "history is bounded"()
+	{
+		given:
+			byte[] repeated = DataUtils.randomData(BLOCK_SIZE * 2)
+			def updated = new ByteArrayOutputStream()
+			updated.write(repeated)
+			updated.write(DataUtils.randomData(BLOCK_SIZE * 4))
+			updated.write(repeated)
+			def result = sync([new byte[0]], updated.toByteArray(), BLOCK_SIZE * 4)
+		expect:
+			result.output == updated.toByteArray()
+			result.copies == 0
+	}
+	
+	def "history handles unaligned and self-similar data"()
+	{
+		given:
+			byte[] data = new byte[BLOCK_SIZE * 50 + 7]
+			def random = new Random(1234)
+			for(int i = 0; i < data.length; i++)
+			{
+				data[i] = (byte) (i % 3 == 0 ? random.nextInt(4) : i % 7)
+			}
+			def result = sync([DataUtils.randomData(BLOCK_SIZE * 3)], data, BLOCK_SIZE * 5)
+		expect:
+			result.output == data
+	}
+	
+	def "copies survive the protocol"()
+	{
+		given:
+			def data = new ByteArrayOutputStream()
+			def writer = new DifferenceWriter(new DataOutputStream(data))
+			def listener = Mock(DifferenceListener)
+		when:
+			writer.onStart()
+			writer.onCopy(1024, 64)
+			writer.onFinish()
+			DifferenceReader.readDifferences(new DataInputStream(new ByteArrayInputStream(data.toByteArray())), listener)
+		then:
+			1 * listener.onCopy(1024, 64)
+	}
+	
+	def "new data is streamed in slices of a bounded buffer"()
+	{
+		given:
+			byte[] old = DataUtils.randomData(BLOCK_SIZE * 10)
+			def updated = new ByteArrayOutputStream()
+			updated.write(DataUtils.randomData(100000))
+			updated.write(old)
+			updated.write(DataUtils.randomData(5000))
+			def result = sync([old], updated.toByteArray(), 0, 1000)
+		expect:
+			result.output == updated.toByteArray()
+			result.matches == 10
+			result.largest <= 1000
+			result.buffers.size() == 1
+	}
+	
+	def "reader splits large new data"()
+	{
+		given:
+			byte[] data = DataUtils.randomData(100000)
+			def encoded = new ByteArrayOutputStream()
+			def writer = new DifferenceWriter(new DataOutputStream(encoded))
+			writer.onStart()
+			writer.onDifferent(data, 0, data.length)
+			writer.onFinish()
+			def output = new ByteArrayOutputStream()
+			int calls = 0
+		when:
+			DifferenceReader.readDifferences(new DataInputStream(new ByteArrayInputStream(encoded.toByteArray())), [
+				onStart: {},
+				onFinish: {},
+				onDifferent: { byte[] buf, int off, int len ->
+					output.write(buf, off, len)
+					calls++
+				}
+			] as DifferenceListener)
+		then:
+			output.toByteArray() == data
+			calls > 1
+	}
+	
+	/**
+	 * Run the algorithm and rebuild the new file from the bases.
+	 */
+	def sync(List<byte[]> bases, byte[] data, int historySize = 0, int literalThreshold = DifferenceCalculator.DEFAULT_LITERAL_THRESHOLD)
+	{
+		def index = new BlockIndex()
+		bases.each { index.addBasis(Rsync.calculateBlocks(new ByteArrayInputStream(it), BLOCK_SIZE)) }
+		def result = [output: new ByteArrayOutputStream(), literal: 0, largest: 0, matches: 0, copies: 0, bases: [],
+			buffers: Collections.newSetFromMap(new IdentityHashMap())]
+		def calculator = new DifferenceCalculator(index, BLOCK_SIZE)
+		calculator.historySize = historySize
+		calculator.literalThreshold = literalThreshold
+		calculator.calculate(new ByteArrayInputStream(data), [
+			onStart: {},
+			onFinish: {},
+			onMatch: { int basis, int block ->
+				byte[] source = bases[basis]
+				int off = block * BLOCK_SIZE
+				result.output.write(source, off, Math.min(BLOCK_SIZE, source.length - off))
+				result.matches++
+				result.bases << basis
+			},
+			onCopy: { int distance, int length ->
+				assert distance <= historySize
+				byte[] written = result.output.toByteArray()
+				result.output.write(written, written.length - distance, length)
+				result.copies++
+			},
+			onDifferent: { byte[] buf, int off, int len ->
+				result.output.write(buf, off, len)
+				result.literal += len
+				result.largest = Math.max(result.largest, len)
+				result.buffers << buf
+			}
+		] as DifferenceListener)
+		result.output = result.output.toByteArray()
+		return result
+	}
+}
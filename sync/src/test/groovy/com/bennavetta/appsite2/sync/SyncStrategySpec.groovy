@@ -0,0 +1,104 @@
+/**
+ * Copyright 2013 Ben Navetta <ben.navetta@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.appsite2.sync
+
+import spock.lang.Specification
+
+import com.google.common.base.Charsets
+import com.google.common.hash.Hashing
+
+class SyncStrategySpec extends Specification
+{
+	def "summary matches the same content"()
+	{
+		given:
+			byte[] data = DataUtils.sequentialData(10000)
+		when:
+			def first = SyncSummary.summarize(new ByteArrayInputStream(data))
+			def second = SyncSummary.summarize(new ByteArrayInputStream(data))
+		then:
+			first.length == 10000
+			first.matches(second)
+	}
+	
+	def "summary detects changes"()
+	{
+		given:
+			byte[] data = DataUtils.sequentialData(10000)
+			def original = SyncSummary.summarize(new ByteArrayInputStream(data))
+		when:
+			data[500] = 42
+			def changed = SyncSummary.summarize(new ByteArrayInputStream(data))
+		then:
+			!original.matches(changed)
+			!original.matches(null)
+	}
+	
+	def "identical files are unchanged"()
+	{
+		given:
+			def summary = new SyncSummary(100000, md5("123"))
+		expect:
+			SyncStrategy.choose(new SyncSummary(100000, md5("123")), summary) == SyncStrategy.UNCHANGED
+	}
+	
+	def "small files are sent whole"()
+	{
+		expect:
+			SyncStrategy.choose(new SyncSummary(100, md5("1")), new SyncSummary(101, md5("2")), 1024) == SyncStrategy.WHOLE_FILE
+	}
+	
+	def "missing files are sent whole"()
+	{
+		expect:
+			SyncStrategy.choose(null, new SyncSummary(100000, md5("2"))) == SyncStrategy.WHOLE_FILE
+	}
+	
+	def "large changed files use deltas"()
+	{
+		expect:
+			SyncStrategy.choose(new SyncSummary(100000, md5("1")), new SyncSummary(100001, md5("2"))) == SyncStrategy.DELTA
+	}
+	
+	def "summaries must have a whole MD5 hash"()
+	{
+		when:
+			new SyncSummary(100, [1, 2, 3] as byte[])
+		then:
+			thrown(IllegalArgumentException)
+	}
+	
+	def "sendWholeFile sends everything as new data"()
+	{
+		given:
+			byte[] data = DataUtils.randomData(1000)
+			def out = new ByteArrayOutputStream()
+			def listener = Mock(DifferenceListener)
+		when:
+			Rsync.sendWholeFile(new ByteArrayInputStream(data), 64, listener)
+		then:
+			1 * listener.onStart()
+			16 * listener.onDifferent(_, 0, _) >> { byte[] buf, int off, int len -> out.write(buf, off, len) }
+			1 * listener.onFinish()
+			0 * listener.onMatch(_, _)
+			out.toByteArray() == data
+	}
+	
+	private static byte[] md5(String content)
+	{
+		Hashing.md5().hashString(content, Charsets.UTF_8).asBytes()
+	}
+}
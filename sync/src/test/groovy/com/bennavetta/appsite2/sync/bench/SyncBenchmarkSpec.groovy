@@ -0,0 +1,78 @@
+/**
+ * Copyright 2013 Ben Navetta <ben.navetta@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.appsite2.sync.bench
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class SyncBenchmarkSpec extends Specification
+{
+	static final int LENGTH = 64 * 1024
+	static final int BLOCK_SIZE = 256
+	
+	@Unroll
+	def "#corpus with #mutation is rebuilt correctly"()
+	{
+		given:
+			def result = new SyncBenchmark(LENGTH, BLOCK_SIZE, 1).run(corpus, mutation)
+		expect:
+			result.correct
+			result.oldLength == LENGTH
+			result.deltaLength > 0
+		where:
+			[corpus, mutation] << [Corpus.values(), Mutation.values()].combinations()
+	}
+	
+	def "unchanged files have a small delta"()
+	{
+		given:
+			def result = new SyncBenchmark(LENGTH, BLOCK_SIZE, 1).run(Corpus.RANDOM, Mutation.NONE)
+		expect:
+			result.newLength == LENGTH
+			result.deltaRatio < 0.05
+	}
+	
+	def "scattered edits cost more than a single insertion"()
+	{
+		given:
+			def benchmark = new SyncBenchmark(LENGTH, BLOCK_SIZE, 1)
+		expect:
+			benchmark.run(Corpus.RANDOM, Mutation.SCATTER).deltaLength > benchmark.run(Corpus.RANDOM, Mutation.INSERT).deltaLength
+	}
+	
+	def "the same seed generates the same files"()
+	{
+		given:
+			def first = new SyncBenchmark(LENGTH, BLOCK_SIZE, 7).runAll()
+			def second = new SyncBenchmark(LENGTH, BLOCK_SIZE, 7).runAll()
+		expect:
+			first*.newLength == second*.newLength
+			first*.deltaLength == second*.deltaLength
+	}
+	
+	def "history finds repeated data"()
+	{
+		given:
+			def plain = new SyncBenchmark(LENGTH, BLOCK_SIZE, 1)
+			def withHistory = new SyncBenchmark(LENGTH, BLOCK_SIZE, 1)
+			withHistory.historySize = LENGTH
+		when:
+			def result = withHistory.run(Corpus.TEXT, Mutation.APPEND)
+		then:
+			result.correct
+			result.deltaLength <= plain.run(Corpus.TEXT, Mutation.APPEND).deltaLength
+	}
+}
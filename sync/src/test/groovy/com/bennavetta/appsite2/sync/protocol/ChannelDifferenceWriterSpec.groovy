@@ -0,0 +1,121 @@
+/**
+ * Copyright 2013 Ben Navetta <ben.navetta@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.appsite2.sync.protocol
+
+import java.nio.ByteBuffer
+import java.nio.channels.GatheringByteChannel
+import java.util.concurrent.TimeUnit
+
+import spock.lang.Specification
+
+import com.bennavetta.appsite2.sync.DataUtils
+import com.bennavetta.appsite2.sync.DifferenceListener
+
+class ChannelDifferenceWriterSpec extends Specification
+{
+	def "writes the same format as DifferenceWriter"()
+	{
+		given:
+			def channel = new CountingChannel()
+			def streamData = new ByteArrayOutputStream()
+			byte[] small = DataUtils.randomData(100)
+			byte[] large = DataUtils.randomData(50000)
+		when:
+			[new ChannelDifferenceWriter(channel), new DifferenceWriter(new DataOutputStream(streamData))].each { DifferenceListener writer ->
+				writer.onStart()
+				writer.onMatch(0, 1)
+				writer.onDifferent(small, 10, 50)
+				writer.onMatch(2, 3)
+				writer.onCopy(1000, 64)
+				writer.onDifferent(large, 5, 40000)
+				writer.onMatch(0, 4)
+				writer.onFinish()
+			}
+		then:
+			channel.data.toByteArray() == streamData.toByteArray()
+	}
+	
+	def "frames are batched into few writes"()
+	{
+		given:
+			def channel = new CountingChannel()
+			def writer = new ChannelDifferenceWriter(channel, 8192, 1, TimeUnit.HOURS)
+			byte[] large = DataUtils.randomData(10000)
+		when:
+			writer.onStart()
+			10000.times { writer.onMatch(0, it) }
+			writer.onDifferent(large, 0, large.length)
+			writer.onFinish()
+			def decoded = []
+			DifferenceReader.readDifferences(new DataInputStream(new ByteArrayInputStream(channel.data.toByteArray())), [
+				onStart: {},
+				onFinish: {},
+				onMatch: { int basis, int block -> decoded << block },
+				onDifferent: { byte[] buf, int off, int len -> }
+			] as DifferenceListener)
+		then:
+			decoded == (0..<10000).toList()
+			channel.writes < 10
+	}
+	
+	def "old frames are flushed"()
+	{
+		given:
+			def channel = new CountingChannel()
+			def writer = new ChannelDifferenceWriter(channel, 8192, 0, TimeUnit.MILLISECONDS)
+		when:
+			writer.onMatch(0, 1)
+		then:
+			channel.data.size() == 5
+	}
+	
+	static class CountingChannel implements GatheringByteChannel
+	{
+		ByteArrayOutputStream data = new ByteArrayOutputStream()
+		int writes
+		
+		long write(ByteBuffer[] srcs, int offset, int length)
+		{
+			writes++
+			long total = 0
+			srcs[offset..<offset + length].each { ByteBuffer src ->
+				total += src.remaining()
+				while(src.hasRemaining())
+				{
+					data.write(src.get())
+				}
+			}
+			return total
+		}
+		
+		long write(ByteBuffer[] srcs)
+		{
+			return write(srcs, 0, srcs.length)
+		}
+		
+		int write(ByteBuffer src)
+		{
+			return write([src] as ByteBuffer[])
+		}
+		
+		boolean isOpen()
+		{
+			return true
+		}
+		
+		void close() {}
+	}
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright 2013 Ben Navetta <ben.navetta@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.appsite2.sync.protocol
+
+import spock.lang.Specification
+
+import com.bennavetta.appsite2.sync.DataUtils
+import com.bennavetta.appsite2.sync.SyncSummary
+import com.bennavetta.appsite2.sync.SyncStrategy
+
+class QuickCheckSpec extends Specification
+{
+	def "summaries round trip"()
+	{
+		given:
+			def summary = SyncSummary.summarize(new ByteArrayInputStream(DataUtils.randomData(5000)))
+			def data = new ByteArrayOutputStream()
+		when:
+			QuickCheck.writeSummary(summary, new DataOutputStream(data))
+			QuickCheck.writeSummary(null, new DataOutputStream(data))
+			def input = new DataInputStream(new ByteArrayInputStream(data.toByteArray()))
+			def read = QuickCheck.readSummary(input)
+			def missing = QuickCheck.readSummary(input)
+		then:
+			read.matches(summary)
+			missing == null
+	}
+	
+	def "sender negotiates strategy"()
+	{
+		given:
+			byte[] content = DataUtils.randomData(10000)
+			def local = SyncSummary.summarize(new ByteArrayInputStream(content))
+			def request = new ByteArrayOutputStream()
+			QuickCheck.writeSummary(receiver, new DataOutputStream(request))
+			def response = new ByteArrayOutputStream()
+		when:
+			def strategy = QuickCheck.negotiate(local, 1024, new DataInputStream(new ByteArrayInputStream(request.toByteArray())), new DataOutputStream(response))
+		then:
+			strategy == expected
+			QuickCheck.readStrategy(new DataInputStream(new ByteArrayInputStream(response.toByteArray()))) == expected
+		where:
+			receiver                                                            | expected
+			null                                                                | SyncStrategy.WHOLE_FILE
+			new SyncSummary(10000, new byte[16])                                | SyncStrategy.DELTA
+			SyncSummary.summarize(new ByteArrayInputStream(new byte[0]))        | SyncStrategy.DELTA
+	}
+	
+	def "unknown strategies are rejected"()
+	{
+		when:
+			QuickCheck.readStrategy(new DataInputStream(new ByteArrayInputStream([42] as byte[])))
+		then:
+			thrown(IOException)
+	}
+}